@@ -0,0 +1,9 @@
+#!/bin/sh
+# Build the engine and the benchmarks, then run the end to end load test.
+# Options are passed on, e.g. ./load.sh --http-devices=500 --rate=2 --out=results/load.json
+set -e
+cd "$(dirname "$0")"
+(cd .. && mvn -q install -DskipTests)
+mvn -q package
+mkdir -p results
+java -cp target/benchmarks.jar se.sics.sicsthsense.benchmarks.load.LoadTest "$@"
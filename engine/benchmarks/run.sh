@@ -0,0 +1,13 @@
+#!/bin/sh
+# Build the engine and the benchmarks, then run them writing JMH's JSON results to
+# results/<commit>.json. Extra arguments go to JMH, e.g. ./run.sh Parse -f 1
+# Compare two runs with:
+#   java -cp target/benchmarks.jar se.sics.sicsthsense.benchmarks.Compare results/A.json results/B.json
+set -e
+cd "$(dirname "$0")"
+(cd .. && mvn -q install -DskipTests)
+mvn -q package
+mkdir -p results
+COMMIT=$(git rev-parse --short HEAD 2>/dev/null || echo local)
+java -jar target/benchmarks.jar -rf json -rff "results/$COMMIT.json" "$@"
+echo "Results in results/$COMMIT.json"
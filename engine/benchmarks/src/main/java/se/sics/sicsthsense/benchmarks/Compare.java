@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Compares two JMH JSON result files, e.g. from two commits, printing
+ * each benchmark's score in both and the relative change. Benchmarks only in one
+ * of the files are listed with a blank score for the other.
+ *   java -cp target/benchmarks.jar se.sics.sicsthsense.benchmarks.Compare old.json new.json
+ * TODO:
+ * */
+package se.sics.sicsthsense.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class Compare {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length!=2) {
+			System.err.println("Usage: Compare <old.json> <new.json>");
+			System.exit(2);
+		}
+		Map<String, JsonNode> before = read(args[0]);
+		Map<String, JsonNode> after = read(args[1]);
+		Map<String, JsonNode> all = new LinkedHashMap<String, JsonNode>(before);
+		all.putAll(after);
+
+		System.out.println(String.format("%-70s %14s %14s %8s  %s", "Benchmark", "Old", "New", "Change", "Unit"));
+		for (String name: all.keySet()) {
+			JsonNode old = before.get(name);
+			JsonNode now = after.get(name);
+			String unit = (now!=null ? now : old).get("scoreUnit").asText();
+			String change = "";
+			if (old!=null && now!=null && old.get("score").asDouble()!=0) {
+				double ratio = now.get("score").asDouble()/old.get("score").asDouble();
+				change = String.format("%+.1f%%", (ratio-1)*100);
+			}
+			System.out.println(String.format("%-70s %14s %14s %8s  %s", name, score(old), score(now), change, unit));
+		}
+	}
+
+	// primary metric of each run keyed by benchmark and parameters
+	static Map<String, JsonNode> read(String file) throws IOException {
+		Map<String, JsonNode> results = new LinkedHashMap<String, JsonNode>();
+		for (JsonNode run: new ObjectMapper().readTree(new File(file))) {
+			StringBuilder name = new StringBuilder(run.get("benchmark").asText().replace("se.sics.sicsthsense.benchmarks.", ""));
+			JsonNode params = run.get("params");
+			if (params!=null) {
+				Iterator<Map.Entry<String, JsonNode>> it = params.fields();
+				while (it.hasNext()) {
+					Map.Entry<String, JsonNode> param = it.next();
+					name.append(' ').append(param.getKey()).append('=').append(param.getValue().asText());
+				}
+			}
+			results.put(name.toString(), run.get("primaryMetric"));
+		}
+		return results;
+	}
+
+	static String score(JsonNode metric) {
+		if (metric==null) { return ""; }
+		return String.format("%.3f", metric.get("score").asDouble());
+	}
+}
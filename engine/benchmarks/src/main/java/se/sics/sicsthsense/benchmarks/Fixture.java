@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Embedded storage for the benchmarks: an in-memory H2 database in
+ * MySQL mode with the engine's tables, and the real StorageDAO on top of it.
+ * Each fixture has its own database, dropped by close().
+ * TODO:
+ * */
+package se.sics.sicsthsense.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+
+import se.sics.sicsthsense.Utils;
+import se.sics.sicsthsense.core.DataPoint;
+import se.sics.sicsthsense.core.Stream;
+import se.sics.sicsthsense.jdbi.InMemoryStorageDAO;
+import se.sics.sicsthsense.jdbi.StorageDAO;
+
+public class Fixture {
+	private static final AtomicInteger databases = new AtomicInteger();
+
+	public final DBI dbi; // null for the in-memory storage
+	public final StorageDAO storage;
+	// the in-memory database lives as long as a connection to it is open
+	private final Handle keepAlive;
+
+	public Fixture() throws IOException {
+		this("jdbc:h2:mem:bench"+databases.incrementAndGet()+";MODE=MySQL");
+	}
+
+	// e.g. a named database the engine then connects to as well
+	public Fixture(String url) throws IOException {
+		dbi = new DBI(url);
+		keepAlive = dbi.open();
+		for (String statement: readSchema()) { keepAlive.execute(statement); }
+		storage = dbi.onDemand(StorageDAO.class);
+	}
+
+	private Fixture(StorageDAO storage) {
+		this.dbi = null;
+		this.keepAlive = null;
+		this.storage = storage;
+	}
+
+	// no database at all, the bound on what the rest of the pipeline costs
+	public static Fixture inMemory() {
+		return new Fixture(new InMemoryStorageDAO());
+	}
+
+	// the storage named by a benchmark parameter, "h2" or "memory"
+	public static Fixture create(String storage) throws IOException {
+		return "memory".equals(storage) ? inMemory() : new Fixture();
+	}
+
+	public void close() {
+		if (keepAlive!=null) { keepAlive.close(); }
+	}
+
+	public long createStream(long resourceId, String function) {
+		Stream stream = new Stream();
+		stream.setResource_id(resourceId);
+		stream.setFunction(function);
+		return Utils.insertStream(storage, stream);
+	}
+
+	// a derived stream computed by function from the given antecedents
+	public long createDerived(String function, List<Long> antecedents) {
+		long derived = createStream(1, function);
+		for (Long antecedent: antecedents) { storage.insertDependent(antecedent, derived); }
+		return derived;
+	}
+
+	// count points spaced period ms apart, the newest at until
+	public void fill(long streamId, int count, long period, long until) {
+		List<DataPoint> points = new ArrayList<DataPoint>(count);
+		for (int i=count-1; i>=0; i--) {
+			points.add(new DataPoint(streamId, until-i*period, 20.0+Math.sin(i/10.0)));
+		}
+		storage.insertDataPoints(points);
+	}
+
+	private static List<String> readSchema() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+			Fixture.class.getResourceAsStream("/schema.sql"), "UTF-8"));
+		StringBuilder sql = new StringBuilder();
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.trim().startsWith("--")) { sql.append(line).append('\n'); }
+			}
+		} finally {
+			in.close();
+		}
+		List<String> statements = new ArrayList<String>();
+		for (String statement: sql.toString().split(";")) {
+			if (statement.trim().length()>0) { statements.add(statement); }
+		}
+		return statements;
+	}
+}
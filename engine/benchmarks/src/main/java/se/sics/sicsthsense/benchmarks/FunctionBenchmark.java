@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Each stream function computing a derived stream, as the propagator
+ * calls it, over 1, 4 or 16 antecedents holding ten minutes of 1 Hz points. Cases
+ * are <spec>@<antecedents>; expr cases average all their inputs. Stateless
+ * functions read their whole tolerance window on every call, windowed ones only
+ * the points since their previous call.
+ * TODO:
+ * */
+package se.sics.sicsthsense.benchmarks;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import se.sics.sicsthsense.core.DataPoint;
+import se.sics.sicsthsense.core.functions.FunctionRegistry;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FunctionBenchmark {
+	static final int HISTORY = 600;
+	static final long PERIOD = 1000;
+
+	@Param({
+		"mean@1", "mean@4", "mean@16",
+		"min@4", "max@4", "median@4", "median@16",
+		"intensity@3", "intensity@7",
+		"smooth@1", "meansmooth@1",
+		"tumbling:1m:mean@4", "sliding:5m:p95@4", "sliding:5m:p95@16",
+		"expr@1", "expr@4", "expr@16"
+	})
+	public String function;
+
+	// h2 measures the statements too, memory only the engine's own work
+	@Param({"h2", "memory"})
+	public String storage;
+
+	private Fixture fixture;
+	private String spec;
+	private long derived;
+	private List<Long> antecedents;
+
+	@Setup
+	public void setup() throws Exception {
+		fixture = Fixture.create(storage);
+		int at = function.lastIndexOf('@');
+		int inputs = Integer.parseInt(function.substring(at+1));
+		spec = function.substring(0, at);
+		if ("expr".equals(spec)) { spec = average(inputs); }
+
+		long now = System.currentTimeMillis();
+		antecedents = new ArrayList<Long>(inputs);
+		for (int i=0; i<inputs; i++) {
+			long id = fixture.createStream(1, null);
+			fixture.fill(id, HISTORY, PERIOD, now);
+			antecedents.add(id);
+		}
+		FunctionRegistry.validate(fixture.storage, spec, inputs);
+		derived = fixture.createDerived(spec, antecedents);
+	}
+
+	@TearDown
+	public void tearDown() {
+		FunctionRegistry.forget(derived);
+		fixture.close();
+	}
+
+	@Benchmark
+	public List<DataPoint> apply() throws Exception {
+		return FunctionRegistry.apply(fixture.storage, derived, spec, antecedents);
+	}
+
+	// expr:(a+b+...)/n, variables are bound to the antecedents in alphabetical order
+	static String average(int inputs) {
+		StringBuilder expression = new StringBuilder("expr:(");
+		for (int i=0; i<inputs; i++) {
+			if (i>0) { expression.append('+'); }
+			expression.append((char)('a'+i));
+		}
+		return expression.append(")/").append(inputs).toString();
+	}
+}
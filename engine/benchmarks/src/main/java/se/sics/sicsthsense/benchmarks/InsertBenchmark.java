@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: The insert path, Utils.insertDataPoint, writing either directly,
+ * through the per stream actors or through the actors' reorder buffers, from one
+ * thread and from four threads sharing the given number of streams.
+ * TODO:
+ * */
+package se.sics.sicsthsense.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+import se.sics.sicsthsense.ActorConfiguration;
+import se.sics.sicsthsense.ReorderConfiguration;
+import se.sics.sicsthsense.Utils;
+import se.sics.sicsthsense.core.DataPoint;
+import se.sics.sicsthsense.core.StreamSystem;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class InsertBenchmark {
+	@Param({"direct", "actor", "reordered"})
+	public String path;
+
+	@Param({"1", "64"})
+	public int streams;
+
+	// h2 measures the statements too, memory only the engine's own work
+	@Param({"h2", "memory"})
+	public String storage;
+
+	private Fixture fixture;
+	private long[] streamIds;
+	private final AtomicLong next = new AtomicLong();
+	private long start;
+
+	@Setup
+	public void setup() throws Exception {
+		fixture = Fixture.create(storage);
+		ActorConfiguration config = new ActorConfiguration();
+		config.setEnabled(!"direct".equals(path));
+		ReorderConfiguration reorder = new ReorderConfiguration();
+		reorder.setEnabled("reordered".equals(path));
+		StreamSystem.build(fixture.storage, config, reorder);
+		streamIds = new long[streams];
+		for (int i=0; i<streams; i++) { streamIds[i] = fixture.createStream(1, null); }
+		start = System.currentTimeMillis();
+	}
+
+	@TearDown
+	public void tearDown() {
+		ActorConfiguration config = new ActorConfiguration();
+		config.setEnabled(false);
+		StreamSystem.build(fixture.storage, config, new ReorderConfiguration()); // stops the actors
+		fixture.close();
+	}
+
+	@Benchmark
+	public void insert() throws Exception {
+		store();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void insertContended() throws Exception {
+		store();
+	}
+
+	// every point gets its own timestamp so none replaces another
+	private void store() throws Exception {
+		long n = next.getAndIncrement();
+		Utils.insertDataPoint(fixture.storage, new DataPoint(streamIds[(int)(n%streams)], start+n, 21.25));
+	}
+}
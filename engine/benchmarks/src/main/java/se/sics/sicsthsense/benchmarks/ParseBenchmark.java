@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: ParseData.apply on the payloads pollers and devices send: a JSON
+ * document with the value nested a few levels down, and a line of text matched by
+ * a regex with value and time groups. Each call stores one point.
+ * TODO:
+ * */
+package se.sics.sicsthsense.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import se.sics.sicsthsense.core.Parser;
+import se.sics.sicsthsense.core.PollSystem;
+import se.sics.sicsthsense.model.ParseData;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+	static final String JSON = "{\"gateway\":\"gw-17\",\"uptime\":81273,"
+		+"\"sensors\":{\"humidity\":{\"value\":41.5,\"unit\":\"%\"},"
+		+"\"temperature\":{\"value\":21.25,\"unit\":\"C\"},\"battery\":3.61}}";
+	static final String TEXT = "node=17 rssi=-71 temperature=21.25 time=1437551234000 seq=8812";
+
+	@Param({"json", "regex"})
+	public String format;
+
+	private Fixture fixture;
+	private ParseData parseData;
+	private Parser parser;
+	private String payload;
+	private long timestamp;
+
+	@Setup
+	public void setup() throws Exception {
+		fixture = new Fixture();
+		PollSystem.build(fixture.storage); // ParseData takes its JSON mapper from here
+		parseData = new ParseData(fixture.storage);
+		long streamId = fixture.createStream(1, null);
+		parser = new Parser();
+		parser.setResource_id(1);
+		parser.setStream_id(streamId);
+		if ("json".equals(format)) {
+			parser.setInput_parser("/sensors/temperature/value");
+			payload = JSON;
+		} else {
+			parser.setInput_type("text/plain");
+			parser.setInput_parser("temperature=([0-9.]+) time=([0-9]+)");
+			payload = TEXT;
+		}
+		timestamp = System.currentTimeMillis();
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Benchmark
+	public void apply() throws Exception {
+		parseData.apply(parser, payload, timestamp++);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Trigger evaluation. test() is the comparison alone, for each
+ * operator; lookup() is what every stored point costs, finding the stream's
+ * triggers and testing them. Operands are chosen so no trigger fires, firing is an
+ * HTTP request and would dominate.
+ * TODO:
+ * */
+package se.sics.sicsthsense.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import se.sics.sicsthsense.core.DataPoint;
+import se.sics.sicsthsense.core.Stream;
+import se.sics.sicsthsense.core.Trigger;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class TriggerBenchmark {
+	static final String URL = "http://localhost:1/never";
+
+	@Param({">", "<=", "="})
+	public String operator;
+
+	// triggers on the stream for lookup()
+	@Param({"1", "10"})
+	public int triggers;
+
+	// h2 measures the statements too, memory only the engine's own work
+	@Param({"h2", "memory"})
+	public String storage;
+
+	private Fixture fixture;
+	private Trigger trigger;
+	private DataPoint point;
+
+	@Setup
+	public void setup() throws Exception {
+		fixture = Fixture.create(storage);
+		long streamId = fixture.createStream(1, null);
+		double operand = ">".equals(operator) ? 1e9 : -1e9;
+		trigger = new Trigger(1L, streamId, URL, operator, operand, null);
+		for (int i=0; i<triggers; i++) {
+			fixture.storage.insertTrigger(streamId, URL, operator, operand, null);
+		}
+		point = new DataPoint(streamId, System.currentTimeMillis(), 21.25);
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Benchmark
+	public void test() {
+		trigger.test(point);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void lookup() {
+		Stream.testTriggers(fixture.storage, point);
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: JDBC driver that wraps another one and counts the statements
+ * executed through it, so the load test can report database round trips per
+ * ingested point. Prefix the real URL with "counting:", e.g.
+ *   jdbc:counting:h2:mem:load;MODE=MySQL
+ * A batch counts once, as it is one round trip.
+ * TODO:
+ * */
+package se.sics.sicsthsense.benchmarks.load;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CountingDriver implements Driver {
+	public static final String PREFIX = "jdbc:counting:";
+	private static final AtomicLong statements = new AtomicLong();
+
+	static {
+		try {
+			DriverManager.registerDriver(new CountingDriver());
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static long getStatements() {
+		return statements.get();
+	}
+
+	public Connection connect(String url, Properties info) throws SQLException {
+		if (!acceptsURL(url)) { return null; }
+		Connection connection = DriverManager.getConnection("jdbc:"+url.substring(PREFIX.length()), info);
+		return (Connection)wrap(connection, Connection.class);
+	}
+
+	public boolean acceptsURL(String url) {
+		return url!=null && url.startsWith(PREFIX);
+	}
+
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+		return new DriverPropertyInfo[0];
+	}
+
+	public int getMajorVersion()	{ return 1; }
+	public int getMinorVersion()	{ return 0; }
+	public boolean jdbcCompliant()	{ return false; }
+
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	// statements made by a connection are wrapped too, their execute*() calls counted
+	private static Object wrap(final Object target, Class<?> type) {
+		return Proxy.newProxyInstance(CountingDriver.class.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				Object result;
+				try {
+					result = method.invoke(target, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+				if (method.getName().startsWith("execute") && target instanceof Statement) {
+					statements.incrementAndGet();
+				}
+				if (result instanceof Statement && Statement.class.isAssignableFrom(method.getReturnType())) {
+					return wrap(result, method.getReturnType());
+				}
+				return result;
+			}
+		});
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: One simulated device posting a reading of its stream on every
+ * run(), over HTTP to StreamResource.postData or over CoAP to
+ * StreamDataCoapResource. Latency is measured from the time the post was due, so
+ * a backed up client or engine shows up in the percentiles rather than hiding in
+ * a lower request rate.
+ * TODO:
+ * */
+package se.sics.sicsthsense.benchmarks.load;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+
+public class LoadDevice implements Runnable {
+	public enum Transport { HTTP, COAP }
+
+	// what the devices of one transport saw during one phase of the test
+	public static class Stats {
+		public final Timer latency = new Timer(new UniformReservoir(100000));
+		public final AtomicLong errors = new AtomicLong();
+	}
+
+	private final Transport transport;
+	private final String url;
+	private final long period; // ns between posts
+	private volatile Stats stats;
+	private long due;
+	private long n = 0;
+	private CoapClient coap;
+
+	// url is the full data URL of the stream including its key
+	public LoadDevice(Transport transport, String url, long period, Stats stats) {
+		this.transport = transport;
+		this.url = url;
+		this.period = period;
+		this.stats = stats;
+		if (transport==Transport.COAP) {
+			coap = new CoapClient(url);
+			coap.setTimeout(5000);
+		}
+	}
+
+	public Transport getTransport() {
+		return transport;
+	}
+
+	// when the first post is due, in System.nanoTime()
+	public void setDue(long due) {
+		this.due = due;
+	}
+
+	public void setStats(Stats stats) {
+		this.stats = stats;
+	}
+
+	public void run() {
+		Stats current = stats;
+		String reading = "{\"value\":"+(20.0+Math.sin(n++/10.0))+",\"timestamp\":"+System.currentTimeMillis()+"}";
+		boolean ok;
+		try {
+			ok = transport==Transport.HTTP ? postHttp(reading) : postCoap(reading);
+		} catch (Exception e) {
+			ok = false;
+		}
+		long now = System.nanoTime();
+		current.latency.update(now-due, TimeUnit.NANOSECONDS);
+		if (!ok) { current.errors.incrementAndGet(); }
+		due += period;
+		if (due < now-period*10) { due = now; } // too far behind, start over rather than flood
+	}
+
+	private boolean postHttp(String reading) throws Exception {
+		HttpURLConnection con = (HttpURLConnection)new URL(url).openConnection();
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		con.setConnectTimeout(5000);
+		con.setReadTimeout(5000);
+		con.setRequestProperty("Content-Type", "application/json");
+		OutputStream out = con.getOutputStream();
+		out.write(reading.getBytes("UTF-8"));
+		out.close();
+		int code = con.getResponseCode();
+		InputStream in = code<400 ? con.getInputStream() : con.getErrorStream();
+		if (in!=null) { // drain so the connection is kept alive
+			byte[] buffer = new byte[512];
+			while (in.read(buffer)>=0) {}
+			in.close();
+		}
+		return code==200;
+	}
+
+	private boolean postCoap(String reading) {
+		CoapResponse response = coap.post(reading, MediaTypeRegistry.APPLICATION_JSON);
+		return response!=null && response.getCode()==ResponseCode.CREATED;
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: End to end ingest load test. Starts the engine in this JVM against
+ * an in-memory H2 database, provisions a user with simulated devices and polled
+ * resources, then for a warm up and a measured period:
+ *   - HTTP devices post to StreamResource.postData
+ *   - CoAP devices post to StreamDataCoapResource
+ *   - the engine's pollers scrape PollStub over HTTP and CoAP
+ * and reports throughput, latency percentiles and error rates per transport, the
+ * points ingested, and database statements per ingested point.
+ *   java -cp target/benchmarks.jar se.sics.sicsthsense.benchmarks.load.LoadTest \
+ *     --http-devices=200 --coap-devices=50 --polled=20 --rate=2 --duration=60 --out=load.json
+ * The engine's own CoAP server takes the default port, 5683.
+ * TODO:
+ * */
+package se.sics.sicsthsense.benchmarks.load;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import com.codahale.metrics.Snapshot;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.skife.jdbi.v2.Handle;
+
+import se.sics.sicsthsense.EngineApplication;
+import se.sics.sicsthsense.Utils;
+import se.sics.sicsthsense.benchmarks.Fixture;
+import se.sics.sicsthsense.core.Resource;
+import se.sics.sicsthsense.core.Stream;
+import se.sics.sicsthsense.jdbi.StorageDAO;
+import se.sics.sicsthsense.model.ParseData;
+
+public class LoadTest {
+	static final String DATABASE = "h2:mem:load;MODE=MySQL;DB_CLOSE_DELAY=-1;USER=sa;PASSWORD=";
+	static final int COAP_PORT = 5683;
+
+	private final Map<String, String> options;
+	private final List<LoadDevice> devices = new ArrayList<LoadDevice>();
+	private final List<Long> polledStreams = new ArrayList<Long>();
+	private Fixture fixture;
+
+	public LoadTest(Map<String, String> options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg: args) {
+			if (!arg.startsWith("--") || arg.indexOf('=')<0) {
+				System.err.println("Options are --name=value: http-devices, coap-devices, polled, rate, poll-period, warmup, duration, port, out");
+				System.exit(2);
+			}
+			options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=')+1));
+		}
+		new LoadTest(options).run();
+		System.exit(0); // the engine does not stop by itself
+	}
+
+	public void run() throws Exception {
+		int httpDevices = option("http-devices", 100);
+		int coapDevices = option("coap-devices", 20);
+		int polled = option("polled", 20);
+		double rate = Double.parseDouble(option("rate", "1")); // posts per second per device
+		int pollPeriod = option("poll-period", 1);             // seconds
+		int warmup = option("warmup", 10);
+		int duration = option("duration", 60);
+		int port = option("port", 18080);
+		int stubPort = port+10;
+
+		fixture = new Fixture("jdbc:"+DATABASE);
+		PollStub stub = new PollStub();
+		stub.start(stubPort, COAP_PORT+2);
+		long userId = provisionUser();
+		provisionPolled(userId, polled, pollPeriod, stubPort, COAP_PORT+2);
+
+		File config = writeConfig(port);
+		new EngineApplication().run(new String[] { "server", config.getPath() });
+
+		long period = (long)(1e9/rate);
+		LoadDevice.Stats warming = new LoadDevice.Stats();
+		provisionDevices(userId, httpDevices, coapDevices, port, period, warming);
+		System.out.println("Running "+httpDevices+" HTTP and "+coapDevices+" CoAP devices at "+rate+"/s, "
+			+polled+" resources polled every "+pollPeriod+"s; warm up "+warmup+"s, measuring "+duration+"s");
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Math.max(1, Math.min(devices.size(), 64)));
+		Random random = new Random();
+		for (LoadDevice device: devices) {
+			long delay = (long)(random.nextDouble()*period);
+			device.setDue(System.nanoTime()+delay);
+			scheduler.scheduleAtFixedRate(device, delay, period, TimeUnit.NANOSECONDS);
+		}
+		Thread.sleep(warmup*1000L);
+
+		Map<LoadDevice.Transport, LoadDevice.Stats> stats = new HashMap<LoadDevice.Transport, LoadDevice.Stats>();
+		for (LoadDevice.Transport transport: LoadDevice.Transport.values()) { stats.put(transport, new LoadDevice.Stats()); }
+		long statements = CountingDriver.getStatements();
+		long points = countPoints(null);
+		long polledPoints = countPoints(polledStreams);
+		long served = stub.getServed();
+		long start = System.nanoTime();
+		for (LoadDevice device: devices) { device.setStats(stats.get(device.getTransport())); }
+		Thread.sleep(duration*1000L);
+		for (LoadDevice device: devices) { device.setStats(warming); }
+		double seconds = (System.nanoTime()-start)/1e9;
+		statements = CountingDriver.getStatements()-statements;
+		points = countPoints(null)-points;
+		polledPoints = countPoints(polledStreams)-polledPoints;
+		served = stub.getServed()-served;
+		scheduler.shutdownNow();
+		stub.stop();
+
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("seconds", seconds);
+		for (LoadDevice.Transport transport: LoadDevice.Transport.values()) {
+			report.put(transport.name().toLowerCase(), summary(stats.get(transport), seconds));
+		}
+		Map<String, Object> polling = new LinkedHashMap<String, Object>();
+		polling.put("served", served);
+		polling.put("points", polledPoints);
+		polling.put("pointsPerSecond", polledPoints/seconds);
+		report.put("polling", polling);
+		report.put("points", points);
+		report.put("pointsPerSecond", points/seconds);
+		report.put("statements", statements);
+		report.put("statementsPerPoint", points==0 ? 0.0 : (double)statements/points);
+		print(report);
+		if (options.containsKey("out")) {
+			ObjectMapper mapper = new ObjectMapper();
+			mapper.enable(SerializationFeature.INDENT_OUTPUT);
+			mapper.writeValue(new File(options.get("out")), report);
+		}
+	}
+
+	private long provisionUser() {
+		StorageDAO storage = fixture.storage;
+		storage.insertUser("load", "load@localhost", "Load", "Test", UUID.randomUUID().toString(), "");
+		return storage.findUserIdByUsername("load");
+	}
+
+	// one resource holding a stream per device
+	private void provisionDevices(long userId, int httpDevices, int coapDevices, int port, long period, LoadDevice.Stats stats) {
+		StorageDAO storage = fixture.storage;
+		storage.insertResource("devices", "1", userId, 0, null, null, 0, UUID.randomUUID().toString(), "simulated devices");
+		long resourceId = storage.findResourceId("devices");
+		for (int i=0; i<httpDevices+coapDevices; i++) {
+			Stream stream = new Stream();
+			stream.setResource_id(resourceId);
+			stream.setOwner_id(userId);
+			long streamId = Utils.insertStream(storage, stream);
+			String url;
+			LoadDevice.Transport transport;
+			if (i<httpDevices) {
+				transport = LoadDevice.Transport.HTTP;
+				url = "http://localhost:"+port+"/users/"+userId+"/resources/"+resourceId+"/streams/"+streamId+"/data?key="+stream.getSecret_key();
+			} else {
+				transport = LoadDevice.Transport.COAP;
+				url = "coap://localhost:"+COAP_PORT+"/streams/data?user="+userId+"&resource="+resourceId+"&stream="+streamId+"&key="+stream.getSecret_key();
+			}
+			devices.add(new LoadDevice(transport, url, period, stats));
+		}
+	}
+
+	// resources the engine polls, alternately over HTTP and CoAP, each with one JSON parsed stream
+	private void provisionPolled(long userId, int polled, int pollPeriod, int httpPort, int coapPort) {
+		StorageDAO storage = fixture.storage;
+		for (int i=0; i<polled; i++) {
+			String label = "polled-"+i;
+			String url = i%2==0 ? "http://localhost:"+httpPort+"/sensor?id="+i : "coap://localhost:"+coapPort+"/sensor?id="+i;
+			storage.insertResource(label, "1", userId, 0, url, null, pollPeriod, UUID.randomUUID().toString(), "polled by the load test");
+			Resource resource = storage.findResourceById(storage.findResourceId(label));
+			polledStreams.addAll(ParseData.makeStreamsAndParsers(storage, resource, Collections.singletonList("/value")));
+		}
+	}
+
+	private File writeConfig(int port) throws IOException {
+		File config = File.createTempFile("loadtest", ".yml");
+		config.deleteOnExit();
+		Writer out = new FileWriter(config);
+		try {
+			out.write("template: Hello, %s!\n"
+				+"database:\n"
+				+"  driverClass: "+CountingDriver.class.getName()+"\n"
+				+"  user: sa\n"
+				+"  password: \"\"\n"
+				+"  url: \""+CountingDriver.PREFIX+DATABASE+"\"\n"
+				+"  maxSize: 64\n"
+				+"server:\n"
+				+"  applicationConnectors:\n"
+				+"    - type: http\n"
+				+"      port: "+port+"\n"
+				+"  adminConnectors:\n"
+				+"    - type: http\n"
+				+"      port: "+(port+1)+"\n"
+				+"logging:\n"
+				+"  level: WARN\n");
+		} finally {
+			out.close();
+		}
+		return config;
+	}
+
+	// points stored, in the given streams or in all of them, read past the counting driver
+	private long countPoints(List<Long> streamIds) {
+		String sql = "select count(*) from data_point_double";
+		if (streamIds!=null) {
+			if (streamIds.isEmpty()) { return 0; }
+			StringBuilder in = new StringBuilder();
+			for (Long id: streamIds) { in.append(in.length()==0 ? "" : ",").append(id); }
+			sql += " where stream_id in ("+in+")";
+		}
+		Handle h = fixture.dbi.open();
+		try {
+			return h.createQuery(sql).mapTo(Long.class).first();
+		} finally {
+			h.close();
+		}
+	}
+
+	private static Map<String, Object> summary(LoadDevice.Stats stats, double seconds) {
+		Snapshot latency = stats.latency.getSnapshot();
+		long requests = stats.latency.getCount();
+		long errors = stats.errors.get();
+		Map<String, Object> summary = new LinkedHashMap<String, Object>();
+		summary.put("requests", requests);
+		summary.put("errors", errors);
+		summary.put("errorRate", requests==0 ? 0.0 : (double)errors/requests);
+		summary.put("throughput", (requests-errors)/seconds);
+		summary.put("p50ms", latency.getMedian()/1e6);
+		summary.put("p95ms", latency.get95thPercentile()/1e6);
+		summary.put("p99ms", latency.get99thPercentile()/1e6);
+		summary.put("maxms", latency.getMax()/1e6);
+		return summary;
+	}
+
+	private static void print(Map<String, Object> report) {
+		System.out.println(String.format("%-6s %10s %8s %8s %12s %9s %9s %9s %9s",
+			"", "requests", "errors", "error%", "ok/s", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+		for (LoadDevice.Transport transport: LoadDevice.Transport.values()) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> s = (Map<String, Object>)report.get(transport.name().toLowerCase());
+			System.out.println(String.format("%-6s %10d %8d %7.2f%% %12.1f %9.2f %9.2f %9.2f %9.2f",
+				transport.name(), s.get("requests"), s.get("errors"), 100*(Double)s.get("errorRate"),
+				s.get("throughput"), s.get("p50ms"), s.get("p95ms"), s.get("p99ms"), s.get("maxms")));
+		}
+		@SuppressWarnings("unchecked")
+		Map<String, Object> polling = (Map<String, Object>)report.get("polling");
+		System.out.println(String.format("Polling: %d requests served, %d points, %.1f points/s",
+			polling.get("served"), polling.get("points"), polling.get("pointsPerSecond")));
+		System.out.println(String.format("Ingested %d points, %.1f points/s, %d DB statements, %.2f statements/point",
+			report.get("points"), report.get("pointsPerSecond"), report.get("statements"), report.get("statementsPerPoint")));
+	}
+
+	private int option(String name, int fallback) {
+		return Integer.parseInt(option(name, String.valueOf(fallback)));
+	}
+
+	private String option(String name, String fallback) {
+		String value = options.get(name);
+		return value!=null ? value : fallback;
+	}
+}
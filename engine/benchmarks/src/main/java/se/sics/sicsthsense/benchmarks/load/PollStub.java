@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Stands in for the devices the engine polls: an HTTP and a CoAP
+ * server answering GET /sensor?id=<n> with a JSON reading, {"value":<x>}, that
+ * changes on every request. Counts the requests served.
+ * TODO:
+ * */
+package se.sics.sicsthsense.benchmarks.load;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+public class PollStub {
+	private final AtomicLong served = new AtomicLong();
+	private HttpServer http;
+	private CoapServer coap;
+
+	public void start(int httpPort, int coapPort) throws IOException {
+		http = HttpServer.create(new InetSocketAddress("localhost", httpPort), 0);
+		http.createContext("/sensor", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = reading().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		http.setExecutor(Executors.newFixedThreadPool(4));
+		http.start();
+
+		coap = new CoapServer(coapPort);
+		coap.add(new CoapResource("sensor") {
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond(ResponseCode.CONTENT, reading(), MediaTypeRegistry.APPLICATION_JSON);
+			}
+		});
+		coap.start();
+	}
+
+	public void stop() {
+		if (http!=null) { http.stop(0); }
+		if (coap!=null) { coap.stop(); }
+	}
+
+	public long getServed() {
+		return served.get();
+	}
+
+	private String reading() {
+		long n = served.incrementAndGet();
+		return "{\"value\":"+(20.0+Math.sin(n/10.0))+"}";
+	}
+}
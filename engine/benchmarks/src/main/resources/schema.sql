@@ -0,0 +1,123 @@
+-- the tables of buildDB.sql the benchmarks and the load test touch, for H2 in MySQL mode
+
+create table IF NOT EXISTS data_point_double (
+  id                        bigint auto_increment not null,
+  stream_id                 bigint,
+  timestamp                 bigint,
+  data                      double,
+  constraint uq_data_point_double_1 unique (stream_id,timestamp),
+  constraint pk_data_point_double primary key (id))
+;
+
+create table IF NOT EXISTS streams (
+  id                        bigint auto_increment not null,
+  type                      varchar(1),
+  latitude                  double,
+  longitude                double,
+  description               varchar(255),
+  public_access             tinyint(1) default 0,
+  public_search             tinyint(1) default 0,
+  frozen                    tinyint(1) default 0,
+  history_size              bigint,
+  last_updated              bigint,
+  secret_key                varchar(255),
+  owner_id                  bigint,
+  resource_id               bigint,
+  function                  varchar(255),
+  version                   integer not null,
+  constraint pk_streams primary key (id))
+;
+
+create table IF NOT EXISTS parsers (
+  id                        bigint auto_increment not null,
+  resource_id               bigint,
+  stream_id                 bigint,
+  input_parser              varchar(255),
+  input_type                varchar(255),
+  timeformat                varchar(255),
+  data_group                integer,
+  time_group                integer,
+  number_of_points          integer,
+  constraint pk_parsers primary key (id))
+;
+
+create table IF NOT EXISTS dependents (
+  id                      bigint auto_increment not null,
+  stream_id               bigint,
+  dependent_id            bigint,
+  constraint pk_dependents primary key (id))
+;
+
+create table IF NOT EXISTS triggers (
+  id                      bigint auto_increment not null,
+  stream_id               bigint not null,
+  url                     varchar(255) not null,
+  operator                varchar(5) not null,
+  operand                 double not null,
+  payload                 varchar(255),
+  constraint pk_triggers primary key (id))
+;
+
+create table IF NOT EXISTS vfiles (
+  id                        bigint auto_increment not null,
+  path                      varchar(255) not null,
+  owner_id                  bigint,
+  type                      varchar(1) not null,
+  linked_stream_id          bigint,
+  constraint pk_vfiles primary key (id))
+;
+
+create table IF NOT EXISTS users (
+  id                        bigint auto_increment not null,
+  email                     varchar(255) not null,
+  username                 varchar(255) not null,
+  password                  varchar(255),
+  first_name                varchar(255),
+  last_name                 varchar(255),
+  description               varchar(2048),
+  latitude                  double,
+  longitude                 double,
+  creation_date             datetime not null,
+  last_login                datetime,
+  token                     varchar(255),
+  admin                     tinyint(1) default 0,
+  version                   integer not null,
+  constraint uq_users_email unique (email),
+  constraint uq_users_username unique (username),
+  constraint pk_users primary key (id))
+;
+
+create table IF NOT EXISTS resources (
+  id                        bigint auto_increment not null,
+  owner_id                  bigint,
+  label                     varchar(255),
+  polling_period            bigint,
+  last_polled               bigint,
+  last_posted               bigint,
+  polling_url               varchar(255),
+  polling_authentication_key varchar(255),
+  description               varchar(255),
+  parent_id                 bigint,
+  secret_key                varchar(255),
+  version                   integer not null,
+  constraint uq_resources_1 unique (owner_id,parent_id,label),
+  constraint pk_resources primary key (id))
+;
+
+create table IF NOT EXISTS resource_log (
+  id                        bigint auto_increment not null,
+  resource_id               bigint,
+  creation_timestamp        bigint,
+  response_timestamp        bigint,
+  parsed_successfully       tinyint(1) default 0,
+  is_poll                   tinyint(1) default 0,
+  body                      varchar(8192),
+  method                    varchar(255),
+  host_name                 varchar(255),
+  uri                       varchar(255),
+  headers                   varchar(4096),
+  message                   varchar(4096),
+  version                   integer not null,
+  constraint uq_resource_log_1 unique (resource_id,is_poll),
+  constraint pk_resource_log primary key (id))
+;
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Settings for the per-stream writer actors, the "actors" section of
+ * the configuration file. Times are in milliseconds.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import javax.validation.constraints.Min;
+
+public class ActorConfiguration {
+	// route writes through the stream actors, otherwise callers write directly
+	private boolean enabled = true;
+
+	// an actor that saw no message for this long is stopped
+	@Min(1000)
+	private long idleTimeout = 120000;
+
+	// how long a caller waits for its write to be applied
+	@Min(1)
+	private long askTimeout = 10000;
+
+	// last_updated is written at most this often per stream
+	@Min(0)
+	private long touchInterval = 1000;
+
+	@JsonProperty
+	public boolean isEnabled()									{ return enabled; }
+	@JsonProperty
+	public void setEnabled(boolean enabled)			{ this.enabled = enabled; }
+	@JsonProperty
+	public long getIdleTimeout()								{ return idleTimeout; }
+	@JsonProperty
+	public void setIdleTimeout(long idleTimeout)	{ this.idleTimeout = idleTimeout; }
+	@JsonProperty
+	public long getAskTimeout()									{ return askTimeout; }
+	@JsonProperty
+	public void setAskTimeout(long askTimeout)	{ this.askTimeout = askTimeout; }
+	@JsonProperty
+	public long getTouchInterval()							{ return touchInterval; }
+	@JsonProperty
+	public void setTouchInterval(long touchInterval)	{ this.touchInterval = touchInterval; }
+}
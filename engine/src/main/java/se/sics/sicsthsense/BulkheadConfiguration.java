@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Sizes of the bulkheads, the "bulkheads" section of the configuration
+ * file, see Bulkheads. Each stage has threads and a queue of waiting work:
+ *   poll      fetching the polled resources
+ *   parse     parsing what was fetched and storing the points
+ *   triggers  calling trigger webhooks
+ *   storage   database calls at a time, whichever thread makes them
+ *   api       HTTP API and CoAP data requests handled at a time
+ * threads 0 turns a stage off: its work is done by the caller as before, storage
+ * and api are then not limited. waitTimeout is the longest wait in a storage or
+ * api queue, in milliseconds.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class BulkheadConfiguration {
+	@Valid
+	@NotNull
+	private Pool poll = new Pool(16, 1000);
+
+	@Valid
+	@NotNull
+	private Pool parse = new Pool(4, 1000);
+
+	@Valid
+	@NotNull
+	private Pool triggers = new Pool(8, 1000);
+
+	@Valid
+	@NotNull
+	private Pool storage = new Pool(32, 256);
+
+	@Valid
+	@NotNull
+	private Pool api = new Pool(64, 256);
+
+	@Min(1)
+	private long waitTimeout = 5000;
+
+	public static class Pool {
+		@Min(0)
+		private int threads;
+
+		@Min(0)
+		private int queue;
+
+		public Pool() {}
+		public Pool(int threads, int queue) {
+			this.threads = threads;
+			this.queue = queue;
+		}
+
+		@JsonProperty
+		public int getThreads()							{ return threads; }
+		@JsonProperty
+		public void setThreads(int threads)	{ this.threads = threads; }
+		@JsonProperty
+		public int getQueue()								{ return queue; }
+		@JsonProperty
+		public void setQueue(int queue)			{ this.queue = queue; }
+	}
+
+	@JsonProperty
+	public Pool getPoll()										{ return poll; }
+	@JsonProperty
+	public void setPoll(Pool poll)					{ this.poll = poll; }
+	@JsonProperty
+	public Pool getParse()									{ return parse; }
+	@JsonProperty
+	public void setParse(Pool parse)				{ this.parse = parse; }
+	@JsonProperty
+	public Pool getTriggers()								{ return triggers; }
+	@JsonProperty
+	public void setTriggers(Pool triggers)	{ this.triggers = triggers; }
+	@JsonProperty
+	public Pool getStorage()								{ return storage; }
+	@JsonProperty
+	public void setStorage(Pool storage)		{ this.storage = storage; }
+	@JsonProperty
+	public Pool getApi()										{ return api; }
+	@JsonProperty
+	public void setApi(Pool api)						{ this.api = api; }
+	@JsonProperty
+	public long getWaitTimeout()						{ return waitTimeout; }
+	@JsonProperty
+	public void setWaitTimeout(long waitTimeout)	{ this.waitTimeout = waitTimeout; }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Settings for the live update bus, the "bus" section of the
+ * configuration file. Overflow policies are drop-oldest, coalesce or disconnect.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import javax.validation.constraints.Min;
+import org.hibernate.validator.constraints.NotEmpty;
+
+public class BusConfiguration {
+	// threads delivering queued points to subscribers
+	@Min(1)
+	private int threads = 4;
+
+	// points queued per subscriber before the overflow policy applies
+	@Min(1)
+	private int queueSize = 256;
+
+	@NotEmpty
+	private String overflow = "drop-oldest";
+
+	// web socket clients only care about the latest value of each stream
+	@NotEmpty
+	private String websocketOverflow = "coalesce";
+
+	// unused, triggers are tested inline; kept so older configurations still load
+	private int triggerQueueSize = 10000;
+
+	@JsonProperty
+	public int getThreads()											{ return threads; }
+	@JsonProperty
+	public void setThreads(int threads)					{ this.threads = threads; }
+	@JsonProperty
+	public int getQueueSize()										{ return queueSize; }
+	@JsonProperty
+	public void setQueueSize(int queueSize)			{ this.queueSize = queueSize; }
+	@JsonProperty
+	public String getOverflow()									{ return overflow; }
+	@JsonProperty
+	public void setOverflow(String overflow)		{ this.overflow = overflow; }
+	@JsonProperty
+	public String getWebsocketOverflow()				{ return websocketOverflow; }
+	@JsonProperty
+	public void setWebsocketOverflow(String websocketOverflow)	{ this.websocketOverflow = websocketOverflow; }
+	@JsonProperty
+	public int getTriggerQueueSize()						{ return triggerQueueSize; }
+	@JsonProperty
+	public void setTriggerQueueSize(int triggerQueueSize)	{ this.triggerQueueSize = triggerQueueSize; }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Cluster mode, the "cluster" section of the configuration file. The
+ * engine nodes find each other through the seed nodes ("host:port" of the akka
+ * remoting port, the node itself when empty) and split the polled resources and
+ * the streams between them by consistent hashing of the id. Unreachable nodes
+ * lose their share after downAfter ms. Times are in milliseconds.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import java.util.List;
+import java.util.ArrayList;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class ClusterConfiguration {
+	private boolean enabled = false;
+
+	@NotNull
+	private String hostname = "127.0.0.1";
+
+	@Min(0)
+	@Max(65535)
+	private int port = 2552;
+
+	@NotNull
+	private List<String> seeds = new ArrayList<String>();
+
+	// points per node on the hash ring
+	@Min(1)
+	private int virtualNodes = 128;
+
+	// membership changes are gathered this long before pollers move
+	@Min(0)
+	private long rebalanceDelay = 2000;
+
+	@Min(1000)
+	private long downAfter = 10000;
+
+	@JsonProperty
+	public boolean isEnabled()									{ return enabled; }
+	@JsonProperty
+	public void setEnabled(boolean enabled)			{ this.enabled = enabled; }
+	@JsonProperty
+	public String getHostname()									{ return hostname; }
+	@JsonProperty
+	public void setHostname(String hostname)		{ this.hostname = hostname; }
+	@JsonProperty
+	public int getPort()												{ return port; }
+	@JsonProperty
+	public void setPort(int port)								{ this.port = port; }
+	@JsonProperty
+	public List<String> getSeeds()							{ return seeds; }
+	@JsonProperty
+	public void setSeeds(List<String> seeds)		{ this.seeds = seeds; }
+	@JsonProperty
+	public int getVirtualNodes()								{ return virtualNodes; }
+	@JsonProperty
+	public void setVirtualNodes(int virtualNodes)	{ this.virtualNodes = virtualNodes; }
+	@JsonProperty
+	public long getRebalanceDelay()							{ return rebalanceDelay; }
+	@JsonProperty
+	public void setRebalanceDelay(long rebalanceDelay)	{ this.rebalanceDelay = rebalanceDelay; }
+	@JsonProperty
+	public long getDownAfter()									{ return downAfter; }
+	@JsonProperty
+	public void setDownAfter(long downAfter)		{ this.downAfter = downAfter; }
+}
@@ -25,6 +25,9 @@
 package se.sics.sicsthsense;
 
 import java.util.UUID;
+import java.util.EnumSet;
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterRegistration;
 import javax.servlet.ServletRegistration;
 
 import org.skife.jdbi.v2.*; // For DBI
@@ -74,6 +77,12 @@ import org.eclipse.californium.core.CaliforniumLogger;
 import se.sics.sicsthsense.resources.*;
 import se.sics.sicsthsense.jdbi.*;
 import se.sics.sicsthsense.core.*;
+import se.sics.sicsthsense.core.functions.FunctionRegistry;
+import se.sics.sicsthsense.admin.BackfillServlet;
+import se.sics.sicsthsense.admin.HeavyHitterServlet;
+import se.sics.sicsthsense.admin.TraceServlet;
+import se.sics.sicsthsense.resources.atmosphere.BroadcasterBridge;
+import se.sics.sicsthsense.resources.atmosphere.MuxWebSocketHandler;
 import se.sics.sicsthsense.auth.*;
 import se.sics.sicsthsense.auth.openid.*;
 import se.sics.sicsthsense.model.security.*;
@@ -136,13 +145,33 @@ public class EngineApplication extends Application<EngineConfiguration> {
 		//@formatter:off
 		websocket.setInitParameters(ImmutableMap.<String, String> of( "com.sun.jersey.config.property.packages","se.sics.sicsthsense.resources.atmosphere"));
 		websocket.setInitParameters(ImmutableMap.<String, String> of( "org.atmosphere.websocket.messageContentType", "application/json"));
+
+		// many streams over one web socket, see MuxWebSocketHandler
+		AtmosphereServlet muxServlet = new AtmosphereServlet();
+		muxServlet.framework().addWebSocketHandler("/mux", new MuxWebSocketHandler());
+		final ServletRegistration.Dynamic mux = environment.servlets().addServlet("mux", muxServlet);
+		mux.setAsyncSupported(true);
+		mux.addMapping("/mux", "/mux/*");
 	}
 
 	// ClassNotFoundException thrown when missing DBI driver
 	@Override
-	public void run(EngineConfiguration configuration, Environment environment) throws ClassNotFoundException {
+	public void run(EngineConfiguration configuration, Environment environment) throws ClassNotFoundException, IOException {
+		EngineMetrics.build(environment.metrics());
+		IngestMetrics.build();
+		FlightRecorder.build(configuration.getTracing());
+		HeavyHitters.build(configuration.getHeavyHitters());
+		RateLimiter.build(configuration.getRateLimits());
+		Bulkheads.build(configuration.getBulkheads()); // before the DAOs, which go through the storage bulkhead
 		DAOFactory.build(configuration, environment);
 		StorageDAO storage = DAOFactory.getInstance();
+		FunctionRegistry.loadPlugins();
+		DependencyPropagator.build(storage, configuration.getPropagation());
+		ClusterNode.build(configuration.getCluster()); // before the bus, stream actors and pollers that follow it
+		StreamBus bus = StreamBus.build(configuration.getBus());
+		TriggerSubscriber.attach(bus, storage);
+		BroadcasterBridge.setOverflow(StreamBus.Overflow.parse(configuration.getBus().getWebsocketOverflow()));
+		StreamSystem.build(storage, configuration.getActors(), configuration.getReorder());
 	// register each resource type accessible through the API
 		pollSystem = PollSystem.build(storage);
 		try {
@@ -162,6 +191,25 @@ public class EngineApplication extends Application<EngineConfiguration> {
 
 		// Attach Atmosphere servlet
 		addServlet(environment);
+		environment.admin().addServlet("backfill", new BackfillServlet()).addMapping("/backfill");
+		environment.admin().addServlet("traces", new TraceServlet()).addMapping("/traces");
+		environment.admin().addServlet("heavy-hitters", new HeavyHitterServlet()).addMapping("/heavy-hitters");
+		FilterRegistration.Dynamic trace = environment.servlets().addFilter("trace", new TraceFilter());
+		trace.setAsyncSupported(true); // in front of the websocket and event stream servlets
+		trace.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), true, "/*");
+		if (configuration.getRateLimits().isEnabled()) { // behind the trace filter, so turned away requests show
+			FilterRegistration.Dynamic limits = environment.servlets().addFilter("rate-limits", new RateLimitFilter());
+			limits.setAsyncSupported(true);
+			limits.addMappingForServletNames(EnumSet.of(DispatcherType.REQUEST), true, "atmosphere");
+		}
+		if (configuration.getBulkheads().getApi().getThreads() > 0) { // after admission, so only admitted requests wait
+			FilterRegistration.Dynamic bulkhead = environment.servlets().addFilter("bulkhead", new BulkheadFilter());
+			bulkhead.setAsyncSupported(true);
+			bulkhead.addMappingForServletNames(EnumSet.of(DispatcherType.REQUEST), true, "atmosphere");
+		}
+		ServletRegistration.Dynamic sse = environment.servlets().addServlet("sse", new StreamEventsServlet());
+		sse.setAsyncSupported(true);
+		sse.addMapping("/sse/*");
                 
                 // CoAP server startup
                 CoapServer server = new CoapServer();
@@ -50,6 +50,54 @@ public class EngineConfiguration extends Configuration {
 	@NotNull
 	private DataSourceFactory database = new DataSourceFactory();
 
+	@Valid
+	@NotNull
+	private StorageConfiguration storage = new StorageConfiguration();
+
+	@Valid
+	@NotNull
+	private PropagationConfiguration propagation = new PropagationConfiguration();
+
+	@Valid
+	@NotNull
+	private BusConfiguration bus = new BusConfiguration();
+
+	@Valid
+	@NotNull
+	private ActorConfiguration actors = new ActorConfiguration();
+
+	@Valid
+	@NotNull
+	private ReplicationConfiguration replication = new ReplicationConfiguration();
+
+	@Valid
+	@NotNull
+	private TraceConfiguration tracing = new TraceConfiguration();
+
+	@Valid
+	@NotNull
+	private HeavyHitterConfiguration heavyHitters = new HeavyHitterConfiguration();
+
+	@Valid
+	@NotNull
+	private ClusterConfiguration cluster = new ClusterConfiguration();
+
+	@Valid
+	@NotNull
+	private WalConfiguration wal = new WalConfiguration();
+
+	@Valid
+	@NotNull
+	private ReorderConfiguration reorder = new ReorderConfiguration();
+
+	@Valid
+	@NotNull
+	private RateLimitConfiguration rateLimits = new RateLimitConfiguration();
+
+	@Valid
+	@NotNull
+	private BulkheadConfiguration bulkheads = new BulkheadConfiguration();
+
 	public String getTemplate() {
 		return template;
 	}
@@ -71,4 +119,112 @@ public class EngineConfiguration extends Configuration {
 	public void setDataSourceFactory (DataSourceFactory dataSourceFactory) {
 		this.database = dataSourceFactory;
 	}
+
+	@JsonProperty("storage")
+	public StorageConfiguration getStorage() {
+		return storage;
+	}
+	@JsonProperty("storage")
+	public void setStorage(StorageConfiguration storage) {
+		this.storage = storage;
+	}
+
+	@JsonProperty("propagation")
+	public PropagationConfiguration getPropagation() {
+		return propagation;
+	}
+	@JsonProperty("propagation")
+	public void setPropagation(PropagationConfiguration propagation) {
+		this.propagation = propagation;
+	}
+
+	@JsonProperty("bus")
+	public BusConfiguration getBus() {
+		return bus;
+	}
+	@JsonProperty("bus")
+	public void setBus(BusConfiguration bus) {
+		this.bus = bus;
+	}
+
+	@JsonProperty("actors")
+	public ActorConfiguration getActors() {
+		return actors;
+	}
+	@JsonProperty("actors")
+	public void setActors(ActorConfiguration actors) {
+		this.actors = actors;
+	}
+
+	@JsonProperty("replication")
+	public ReplicationConfiguration getReplication() {
+		return replication;
+	}
+	@JsonProperty("replication")
+	public void setReplication(ReplicationConfiguration replication) {
+		this.replication = replication;
+	}
+
+	@JsonProperty("tracing")
+	public TraceConfiguration getTracing() {
+		return tracing;
+	}
+	@JsonProperty("tracing")
+	public void setTracing(TraceConfiguration tracing) {
+		this.tracing = tracing;
+	}
+
+	@JsonProperty("heavyHitters")
+	public HeavyHitterConfiguration getHeavyHitters() {
+		return heavyHitters;
+	}
+	@JsonProperty("heavyHitters")
+	public void setHeavyHitters(HeavyHitterConfiguration heavyHitters) {
+		this.heavyHitters = heavyHitters;
+	}
+
+	@JsonProperty("cluster")
+	public ClusterConfiguration getCluster() {
+		return cluster;
+	}
+	@JsonProperty("cluster")
+	public void setCluster(ClusterConfiguration cluster) {
+		this.cluster = cluster;
+	}
+
+	@JsonProperty("wal")
+	public WalConfiguration getWal() {
+		return wal;
+	}
+	@JsonProperty("wal")
+	public void setWal(WalConfiguration wal) {
+		this.wal = wal;
+	}
+
+	@JsonProperty("reorder")
+	public ReorderConfiguration getReorder() {
+		return reorder;
+	}
+	@JsonProperty("reorder")
+	public void setReorder(ReorderConfiguration reorder) {
+		this.reorder = reorder;
+	}
+
+	@JsonProperty("rateLimits")
+	public RateLimitConfiguration getRateLimits() {
+		return rateLimits;
+	}
+	@JsonProperty("rateLimits")
+	public void setRateLimits(RateLimitConfiguration rateLimits) {
+		this.rateLimits = rateLimits;
+	}
+
+	@JsonProperty("bulkheads")
+	public BulkheadConfiguration getBulkheads() {
+		return bulkheads;
+	}
+	@JsonProperty("bulkheads")
+	public void setBulkheads(BulkheadConfiguration bulkheads) {
+		this.bulkheads = bulkheads;
+	}
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Holder for the engine's metric registry, so that code outside the
+ * Jersey resources (functions, pollers, storage) can register timers and meters.
+ * Uses a private registry until build() hands it Dropwizard's, so nothing breaks
+ * when classes are used before the application has started.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+public class EngineMetrics {
+	private static volatile MetricRegistry registry = new MetricRegistry();
+
+	// called once from EngineApplication.run()
+	public static void build(MetricRegistry metrics) {
+		registry = metrics;
+	}
+
+	public static MetricRegistry getRegistry() {
+		return registry;
+	}
+
+	public static Timer timer(String name, String... names) {
+		return registry.timer(MetricRegistry.name(name, names));
+	}
+	public static Meter meter(String name, String... names) {
+		return registry.meter(MetricRegistry.name(name, names));
+	}
+	public static Counter counter(String name, String... names) {
+		return registry.counter(MetricRegistry.name(name, names));
+	}
+	public static Histogram histogram(String name, String... names) {
+		return registry.histogram(MetricRegistry.name(name, names));
+	}
+	// replaces a gauge of the same name, gauges cannot be fetched like the others
+	public static <T> Gauge<T> gauge(Gauge<T> gauge, String name, String... names) {
+		String full = MetricRegistry.name(name, names);
+		registry.remove(full);
+		return registry.register(full, gauge);
+	}
+}
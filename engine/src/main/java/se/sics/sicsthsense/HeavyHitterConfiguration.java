@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Heavy-hitter tracking, the "heavyHitters" section of the configuration
+ * file. Counts cover the last window seconds, expiring in buckets steps; each
+ * sketch has depth rows of width counters and overcounts a key by at most 0.3% of
+ * the window's total at width 1024. topK is how many are reported of each kind.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import javax.validation.constraints.Min;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class HeavyHitterConfiguration {
+	private boolean enabled = true;
+
+	@Min(1)
+	private long window = 60;
+
+	@Min(1)
+	private int buckets = 6;
+
+	@Min(16)
+	private int width = 1024;
+
+	@Min(1)
+	private int depth = 4;
+
+	@Min(1)
+	private int topK = 20;
+
+	@JsonProperty
+	public boolean isEnabled()							{ return enabled; }
+	@JsonProperty
+	public void setEnabled(boolean enabled)	{ this.enabled = enabled; }
+	@JsonProperty
+	public long getWindow()									{ return window; }
+	@JsonProperty
+	public void setWindow(long window)			{ this.window = window; }
+	@JsonProperty
+	public int getBuckets()									{ return buckets; }
+	@JsonProperty
+	public void setBuckets(int buckets)			{ this.buckets = buckets; }
+	@JsonProperty
+	public int getWidth()										{ return width; }
+	@JsonProperty
+	public void setWidth(int width)					{ this.width = width; }
+	@JsonProperty
+	public int getDepth()										{ return depth; }
+	@JsonProperty
+	public void setDepth(int depth)					{ this.depth = depth; }
+	@JsonProperty
+	public int getTopK()										{ return topK; }
+	@JsonProperty
+	public void setTopK(int topK)						{ this.topK = topK; }
+}
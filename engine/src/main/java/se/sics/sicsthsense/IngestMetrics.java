@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Timers for each stage a point goes through on its way in, and for
+ * each phase of a poll, registered with the engine's metrics so they show on the
+ * admin port's /metrics. Points are counted by the way they arrived.
+ *   ingest.parse       ParseData.apply, including the inserts it makes
+ *   ingest.insert      Utils.insertDataPoint as the caller sees it, queueing included
+ *   ingest.store       the storage write of one point
+ *   ingest.dependents  handing changed streams to the DependencyPropagator
+ *   ingest.fanout      direct dependents of each stream the propagator visits
+ *   ingest.triggers    testing a point against its stream's triggers
+ *   poll.dns/connect/first-byte/body/parse, and per resource poll.resource.<id>.*
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import java.util.concurrent.TimeUnit;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+public class IngestMetrics {
+	public enum Source { HTTP, WS, COAP, POLL }
+
+	private static volatile IngestMetrics instance = new IngestMetrics();
+
+	public final Timer parse = EngineMetrics.timer("ingest", "parse");
+	public final Timer insert = EngineMetrics.timer("ingest", "insert");
+	public final Timer store = EngineMetrics.timer("ingest", "store");
+	public final Timer dependents = EngineMetrics.timer("ingest", "dependents");
+	public final Histogram fanout = EngineMetrics.histogram("ingest", "fanout");
+	public final Timer triggers = EngineMetrics.timer("ingest", "triggers");
+
+	public final Timer dns = EngineMetrics.timer("poll", "dns");
+	public final Timer connect = EngineMetrics.timer("poll", "connect");
+	public final Timer firstByte = EngineMetrics.timer("poll", "first-byte");
+	public final Timer body = EngineMetrics.timer("poll", "body");
+	public final Timer pollParse = EngineMetrics.timer("poll", "parse");
+
+	private final Meter[] points = new Meter[Source.values().length];
+
+	private IngestMetrics() {
+		for (Source source: Source.values()) {
+			points[source.ordinal()] = EngineMetrics.meter("ingest", "points", source.name().toLowerCase());
+		}
+	}
+
+	// called from EngineApplication.run() after EngineMetrics.build(), to register with its registry
+	public static void build() {
+		instance = new IngestMetrics();
+	}
+
+	public static IngestMetrics getInstance() {
+		return instance;
+	}
+
+	public Meter points(Source source) {
+		return points[source.ordinal()];
+	}
+
+	// a poll of the resource, from name lookup until its data is parsed
+	public void polled(long resourceId, long nanos, boolean success) {
+		if (success) {
+			EngineMetrics.timer("poll", "resource", String.valueOf(resourceId), "latency").update(nanos, TimeUnit.NANOSECONDS);
+			EngineMetrics.meter("poll", "resource", String.valueOf(resourceId), "success").mark();
+		} else {
+			EngineMetrics.meter("poll", "resource", String.valueOf(resourceId), "failure").mark();
+		}
+	}
+
+	// when the resource's poller goes away
+	public void forgetResource(long resourceId) {
+		String prefix = MetricRegistry.name("poll", "resource", String.valueOf(resourceId));
+		MetricRegistry registry = EngineMetrics.getRegistry();
+		registry.remove(MetricRegistry.name(prefix, "latency"));
+		registry.remove(MetricRegistry.name(prefix, "success"));
+		registry.remove(MetricRegistry.name(prefix, "failure"));
+	}
+}
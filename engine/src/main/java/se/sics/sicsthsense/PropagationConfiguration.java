@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Settings for how updates propagate to derived streams, the
+ * "propagation" section of the configuration file.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import javax.validation.constraints.Min;
+
+public class PropagationConfiguration {
+	// worker threads evaluating derived streams
+	@Min(1)
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+
+	// derived streams of one owner evaluated at the same time
+	@Min(1)
+	private int perOwnerLimit = 4;
+
+	// return to the caller before the derived streams have been updated
+	private boolean async = false;
+
+	// how long a caller waits for propagation when not async, ms
+	@Min(0)
+	private long timeout = 30000;
+
+	// largest number of derived streams one batch may reach
+	@Min(1)
+	private int maxStreams = 10000;
+
+	@JsonProperty
+	public int getParallelism()									{ return parallelism; }
+	@JsonProperty
+	public void setParallelism(int parallelism)		{ this.parallelism = parallelism; }
+	@JsonProperty
+	public int getPerOwnerLimit()								{ return perOwnerLimit; }
+	@JsonProperty
+	public void setPerOwnerLimit(int perOwnerLimit)	{ this.perOwnerLimit = perOwnerLimit; }
+	@JsonProperty
+	public boolean isAsync()										{ return async; }
+	@JsonProperty
+	public void setAsync(boolean async)					{ this.async = async; }
+	@JsonProperty
+	public long getTimeout()										{ return timeout; }
+	@JsonProperty
+	public void setTimeout(long timeout)				{ this.timeout = timeout; }
+	@JsonProperty
+	public int getMaxStreams()									{ return maxStreams; }
+	@JsonProperty
+	public void setMaxStreams(int maxStreams)		{ this.maxStreams = maxStreams; }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Rate limits and admission control of the HTTP API and the CoAP data
+ * resources, the "rateLimits" section of the configuration file. Every user,
+ * resource and API key seen in a request has a token bucket refilled at rate
+ * requests per second and holding at most burst; users and resources can be given
+ * their own limits by id, resources also by the name used in the URL, and a rate
+ * of 0 means unlimited. Above targetLatency ms of mean ingest latency low priority
+ * requests (reads of stored data, queries, backfills and posts over bulkSize
+ * bytes) are turned away, above maxLatency all of them; 0 turns either off.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import java.util.Map;
+import java.util.HashMap;
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class RateLimitConfiguration {
+	private boolean enabled = false;
+
+	@Min(0)
+	private double rate = 10;
+
+	@Min(1)
+	private int burst = 50;
+
+	@Valid
+	@NotNull
+	private Map<String, Limit> users = new HashMap<String, Limit>();
+
+	@Valid
+	@NotNull
+	private Map<String, Limit> resources = new HashMap<String, Limit>();
+
+	@Min(0)
+	private long targetLatency = 250;
+
+	@Min(0)
+	private long maxLatency = 2000;
+
+	@Min(0)
+	private long bulkSize = 65536;
+
+	// idle buckets are dropped after this long, ms
+	@Min(1000)
+	private long idleTimeout = 300000;
+
+	public static class Limit {
+		@Min(0)
+		private double rate;
+
+		@Min(1)
+		private int burst = 1;
+
+		public Limit() {}
+		public Limit(double rate, int burst) {
+			this.rate = rate;
+			this.burst = burst;
+		}
+
+		@JsonProperty
+		public double getRate()							{ return rate; }
+		@JsonProperty
+		public void setRate(double rate)		{ this.rate = rate; }
+		@JsonProperty
+		public int getBurst()								{ return burst; }
+		@JsonProperty
+		public void setBurst(int burst)			{ this.burst = burst; }
+	}
+
+	@JsonProperty
+	public boolean isEnabled()							{ return enabled; }
+	@JsonProperty
+	public void setEnabled(boolean enabled)	{ this.enabled = enabled; }
+	@JsonProperty
+	public double getRate()									{ return rate; }
+	@JsonProperty
+	public void setRate(double rate)				{ this.rate = rate; }
+	@JsonProperty
+	public int getBurst()										{ return burst; }
+	@JsonProperty
+	public void setBurst(int burst)					{ this.burst = burst; }
+	@JsonProperty
+	public Map<String, Limit> getUsers()		{ return users; }
+	@JsonProperty
+	public void setUsers(Map<String, Limit> users)	{ this.users = users; }
+	@JsonProperty
+	public Map<String, Limit> getResources()	{ return resources; }
+	@JsonProperty
+	public void setResources(Map<String, Limit> resources)	{ this.resources = resources; }
+	@JsonProperty
+	public long getTargetLatency()					{ return targetLatency; }
+	@JsonProperty
+	public void setTargetLatency(long targetLatency)	{ this.targetLatency = targetLatency; }
+	@JsonProperty
+	public long getMaxLatency()							{ return maxLatency; }
+	@JsonProperty
+	public void setMaxLatency(long maxLatency)	{ this.maxLatency = maxLatency; }
+	@JsonProperty
+	public long getBulkSize()								{ return bulkSize; }
+	@JsonProperty
+	public void setBulkSize(long bulkSize)	{ this.bulkSize = bulkSize; }
+	@JsonProperty
+	public long getIdleTimeout()						{ return idleTimeout; }
+	@JsonProperty
+	public void setIdleTimeout(long idleTimeout)	{ this.idleTimeout = idleTimeout; }
+}
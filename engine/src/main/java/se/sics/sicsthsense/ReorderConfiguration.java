@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Settings for the per-stream reorder buffer, the "reorder" section of
+ * the configuration file. Times are in milliseconds.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import javax.validation.constraints.Min;
+
+public class ReorderConfiguration {
+	// hold written points in the stream actors and release them in timestamp order
+	private boolean enabled = false;
+
+	// how far behind the newest point of a stream, or how long after it arrived,
+	// a point is held back for earlier ones to catch up
+	@Min(0)
+	private long lateness = 2000;
+
+	// most points held per stream, the oldest are released early beyond this
+	@Min(1)
+	private int maxBuffered = 10000;
+
+	// late points of a stream are gathered this long before its dependents are recomputed
+	@Min(0)
+	private long correctionDelay = 5000;
+
+	@JsonProperty
+	public boolean isEnabled()									{ return enabled; }
+	@JsonProperty
+	public void setEnabled(boolean enabled)			{ this.enabled = enabled; }
+	@JsonProperty
+	public long getLateness()										{ return lateness; }
+	@JsonProperty
+	public void setLateness(long lateness)			{ this.lateness = lateness; }
+	@JsonProperty
+	public int getMaxBuffered()									{ return maxBuffered; }
+	@JsonProperty
+	public void setMaxBuffered(int maxBuffered)	{ this.maxBuffered = maxBuffered; }
+	@JsonProperty
+	public long getCorrectionDelay()						{ return correctionDelay; }
+	@JsonProperty
+	public void setCorrectionDelay(long correctionDelay)	{ this.correctionDelay = correctionDelay; }
+}
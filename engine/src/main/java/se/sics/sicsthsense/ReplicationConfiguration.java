@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Optional read replicas, the "replication" section of the
+ * configuration file. Reads of stream history go to a replica whose lag is within
+ * maxStaleness, everything else and every write stays on the primary database.
+ * Times are in milliseconds.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import java.util.List;
+import java.util.ArrayList;
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.db.DataSourceFactory;
+
+public class ReplicationConfiguration {
+	@Valid
+	@NotNull
+	private List<DataSourceFactory> replicas = new ArrayList<DataSourceFactory>();
+
+	// replicas further behind the primary than this are not read from
+	@Min(0)
+	private long maxStaleness = 5000;
+
+	// how often replica lag is measured
+	@Min(100)
+	private long lagCheckInterval = 1000;
+
+	// a stream written to, and a thread that wrote, read from the primary for this long
+	@Min(0)
+	private long pinAfterWrite = 2000;
+
+	@JsonProperty
+	public List<DataSourceFactory> getReplicas()	{ return replicas; }
+	@JsonProperty
+	public void setReplicas(List<DataSourceFactory> replicas)	{ this.replicas = replicas; }
+	@JsonProperty
+	public long getMaxStaleness()								{ return maxStaleness; }
+	@JsonProperty
+	public void setMaxStaleness(long maxStaleness)	{ this.maxStaleness = maxStaleness; }
+	@JsonProperty
+	public long getLagCheckInterval()						{ return lagCheckInterval; }
+	@JsonProperty
+	public void setLagCheckInterval(long lagCheckInterval)	{ this.lagCheckInterval = lagCheckInterval; }
+	@JsonProperty
+	public long getPinAfterWrite()							{ return pinAfterWrite; }
+	@JsonProperty
+	public void setPinAfterWrite(long pinAfterWrite)	{ this.pinAfterWrite = pinAfterWrite; }
+}
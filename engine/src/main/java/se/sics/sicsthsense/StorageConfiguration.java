@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Where the engine keeps its data, the "storage" section of the
+ * configuration file. "mysql" is the database section (and any replicas), "memory"
+ * keeps everything in the engine's heap and loses it on restart, for benchmarks,
+ * load tests and small deployments without a database server.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.Pattern;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class StorageConfiguration {
+	@Pattern(regexp = "mysql|memory")
+	private String type = "mysql";
+
+	// in memory, the oldest points of a stream are dropped beyond this many, 0 keeps all
+	@Min(0)
+	private int maxPointsPerStream = 0;
+
+	public boolean isInMemory()	{ return "memory".equals(type); }
+
+	@JsonProperty
+	public String getType()											{ return type; }
+	@JsonProperty
+	public void setType(String type)						{ this.type = type; }
+	@JsonProperty
+	public int getMaxPointsPerStream()					{ return maxPointsPerStream; }
+	@JsonProperty
+	public void setMaxPointsPerStream(int maxPointsPerStream)	{ this.maxPointsPerStream = maxPointsPerStream; }
+}
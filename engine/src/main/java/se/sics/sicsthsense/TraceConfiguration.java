@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Request tracing, the "tracing" section of the configuration file.
+ * Requests, polls and trigger deliveries slower than slowThreshold (ms) are kept,
+ * the latest bufferSize of them, with up to maxSpans spans each; see /traces on the
+ * admin port. sampleRate is the share of them traced at all.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class TraceConfiguration {
+	private boolean enabled = true;
+
+	@Min(0)
+	private long slowThreshold = 1000;
+
+	@Min(1)
+	private int bufferSize = 100;
+
+	@Min(1)
+	private int maxSpans = 256;
+
+	@DecimalMin("0.0")
+	@DecimalMax("1.0")
+	private double sampleRate = 1.0;
+
+	@JsonProperty
+	public boolean isEnabled()									{ return enabled; }
+	@JsonProperty
+	public void setEnabled(boolean enabled)			{ this.enabled = enabled; }
+	@JsonProperty
+	public long getSlowThreshold()							{ return slowThreshold; }
+	@JsonProperty
+	public void setSlowThreshold(long slowThreshold)	{ this.slowThreshold = slowThreshold; }
+	@JsonProperty
+	public int getBufferSize()									{ return bufferSize; }
+	@JsonProperty
+	public void setBufferSize(int bufferSize)		{ this.bufferSize = bufferSize; }
+	@JsonProperty
+	public int getMaxSpans()										{ return maxSpans; }
+	@JsonProperty
+	public void setMaxSpans(int maxSpans)				{ this.maxSpans = maxSpans; }
+	@JsonProperty
+	public double getSampleRate()								{ return sampleRate; }
+	@JsonProperty
+	public void setSampleRate(double sampleRate)	{ this.sampleRate = sampleRate; }
+}
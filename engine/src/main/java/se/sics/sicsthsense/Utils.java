@@ -25,9 +25,11 @@
 package se.sics.sicsthsense;
 
 import java.util.List;
+import java.util.ArrayList;
 import java.util.UUID;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Collections;
 import java.net.URI;
 
 import org.slf4j.Logger;
@@ -41,10 +43,14 @@ import javax.ws.rs.core.MediaType;
 import com.fasterxml.jackson.databind.SerializationConfig;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionStatus;
+import com.codahale.metrics.Timer;
 
 import se.sics.sicsthsense.resources.*;
 import se.sics.sicsthsense.jdbi.*;
 import se.sics.sicsthsense.core.*;
+import se.sics.sicsthsense.core.functions.FunctionRegistry;
 import se.sics.sicsthsense.auth.*;
 import se.sics.sicsthsense.model.*;
 import se.sics.sicsthsense.auth.openid.*;
@@ -257,24 +263,71 @@ public class Utils {
 		}
 	}
 
+	// writes go through the stream's actor when there is one, see StreamSystem
 	public static void insertDataPoint(StorageDAO storage, DataPoint datapoint) throws Exception {
-		final Logger logger = LoggerFactory.getLogger(Utils.class);
-		Stream stream = storage.findStreamById(datapoint.getStreamId());
+		Timer.Context timer = IngestMetrics.getInstance().insert.time();
+		try {
+			StreamSystem streams = StreamSystem.getInstance();
+			if (streams!=null) {
+				streams.insert(datapoint);
+				return;
+			}
+			storeDataPoint(storage, datapoint);
+		} finally {
+			RateLimiter.ingested(timer.stop()); // the latency admission control goes by
+		}
+	}
+
+	// unserialised write, only for callers that are not behind a stream actor
+	public static void storeDataPoint(StorageDAO storage, DataPoint datapoint) {
 		if (datapoint.getTimestamp()<=0) { datapoint.setTimestamp(java.lang.System.currentTimeMillis()); }
-		storage.insertDataPoint(
-			datapoint.getStreamId(),
-			datapoint.getValue(),
-			datapoint.getTimestamp()
-		);
+		Timer.Context timer = IngestMetrics.getInstance().store.time();
+		try {
+			storage.insertDataPoint(
+				datapoint.getStreamId(),
+				datapoint.getValue(),
+				datapoint.getTimestamp()
+			);
+		} finally {
+			timer.stop();
+		}
 		//logger.info("inserted datapoint @ "+datapoint.toString());
 		storage.updatedStream(datapoint.getStreamId(),java.lang.System.currentTimeMillis());
 		//stream.notifyDependents(); // taken care of during parsing
-		//stream.testTriggers(datapoint);
+		StreamBus.getInstance().publish(datapoint); // live subscribers and triggers
+	}
+
+	// fetch a stream's points honouring the limit/from/until semantics of the data API
+	// points come back oldest first, a limit of -1 means the default of 50
+	public static List<DataPoint> findPoints(StorageDAO storage, long streamId, int limit, long from, long until) {
+		List<DataPoint> rv;
+		boolean limitSet=true;
+		int limitValue = limit;
+		if (limit==-1) {
+			limitSet=false;
+			limitValue=50; // give default value
+		}
+
+		if (from != -1) { // from is set
+			if (until != -1) { // until is set
+				rv = storage.findPointsByStreamIdSince(streamId, from, until);
+			} else { // until is not set
+				if (limitSet) { // limit was set
+					rv = storage.findPointsByStreamIdSinceLimit(streamId, from, limitValue);
+				} else { // limit was not set, only from
+					rv = storage.findPointsByStreamIdSince(streamId, from);
+				}
+			}
+		} else { // just get the most recent LIMIT points
+			rv = storage.findPointsByStreamId(streamId, limitValue);
+			Collections.reverse(rv);
+		}
+		return rv;
 	}
 
 	public static long insertStream(StorageDAO storage, Stream stream) {
 		final Logger logger = LoggerFactory.getLogger(Utils.class);
-		storage.insertStream(
+		long streamID = storage.insertStream(
 			stream.getType(),
 			stream.getLatitude(),
 			stream.getLongitude(),
@@ -290,7 +343,6 @@ public class Utils {
 			stream.getFunction(),
 			stream.getVersion()
 		);
-		long streamID = storage.findStreamId(stream.getResource_id(), stream.getSecret_key());
 		/*
 		if (stream.getLabel()!=null && stream.getLabel()!="") {
 		storage.insertVFile(stream.getLabel(),stream.getOwner_id(),"D",streamID);
@@ -307,6 +359,7 @@ public class Utils {
 
 	public static void insertTrigger(StorageDAO storage, long stream_id, String url, String operator, double operand, String payload) {
 		storage.insertTrigger(stream_id, url, operator, operand, payload);
+		TriggerSubscriber.forget(stream_id);
 	}
 
 	public static long insertVFile(StorageDAO storage, String path, long owner_id, String type, long stream_id) {
@@ -315,38 +368,66 @@ public class Utils {
 	}
 
 	public static void deleteStream(StorageDAO storage, Stream stream) {
+		deleteStreams(storage, Collections.singletonList(stream.getId()));
+	}
 
-		// delete dependants,vfiles and parsers on the Stream
-		List<Long> vfiles = storage.findPathIdsByStreamId(stream.getId());
-		for (Long id: vfiles) { storage.deleteVFile(id); }
-		List<Long> parsers = storage.findParserIdsByStreamId(stream.getId());
-		for (Long id: parsers) { storage.deleteParser(id); }
-		List<Long> dependents = storage.findDependents(stream.getId());
-		for (Long id: dependents) { storage.deleteDependent(id); }
-		List<Long> triggers = storage.findTriggerIdsByStreamId(stream.getId());
-		for (Long id: triggers) { storage.deleteTrigger(id); }
-
-		storage.deleteStream(stream.getId());
+	// delete streams with their vfiles, parsers, dependents and triggers in one
+	// transaction, one batched statement per table whatever the number of streams
+	public static void deleteStreams(StorageDAO storage, final List<Long> streamIds) {
+		if (streamIds.isEmpty()) { return; }
+		storage.inTransaction(new Transaction<Void, StorageDAO>() {
+			public Void inTransaction(StorageDAO tx, TransactionStatus status) {
+				deleteStreamRows(tx, streamIds);
+				return null;
+			}
+		});
+		forgetStreams(streamIds);
 	}
 
-	public static void deleteResource(StorageDAO storage, Resource resource) {
+	public static void deleteResource(StorageDAO storage, final Resource resource) {
 		final PollSystem pollSystem = PollSystem.getInstance();
 		// delete child streams and parsers
-		List<Stream> streams = storage.findStreamsByResourceId(resource.getId());
-		List<Parser> parsers = storage.findParsersByResourceId(resource.getId());
-		for (Stream s: streams) {Utils.deleteStream(storage,s);}
-		for (Parser p: parsers) {storage.deleteParser(p.getId());}
-		storage.deleteResourceLogByResourceId(resource.getId());
-		storage.deleteResource(resource.getId());
+		final List<Long> streamIds = new ArrayList<Long>();
+		for (Stream s: storage.findStreamsByResourceId(resource.getId())) { streamIds.add(s.getId()); }
+		storage.inTransaction(new Transaction<Void, StorageDAO>() {
+			public Void inTransaction(StorageDAO tx, TransactionStatus status) {
+				if (!streamIds.isEmpty()) { deleteStreamRows(tx, streamIds); }
+				tx.deleteParsersByResourceId(resource.getId());
+				tx.deleteResourceLogByResourceId(resource.getId());
+				tx.deleteResource(resource.getId());
+				return null;
+			}
+		});
+		forgetStreams(streamIds);
 		// remake pollers with updated Resource attribtues
 		pollSystem.rebuildResourcePoller(resource.getId());
 	}
 
+	private static void deleteStreamRows(StorageDAO tx, List<Long> streamIds) {
+		tx.deleteVFilesByStreamIds(streamIds);
+		tx.deleteParsersByStreamIds(streamIds);
+		tx.deleteDependentsByStreamIds(streamIds);
+		tx.deleteTriggersByStreamIds(streamIds);
+		tx.deleteStreams(streamIds);
+	}
+
+	// drop the in-memory state of deleted streams, once the delete has committed
+	private static void forgetStreams(List<Long> streamIds) {
+		StreamSystem streams = StreamSystem.getInstance();
+		for (Long id: streamIds) {
+			FunctionRegistry.forget(id);
+			TriggerSubscriber.forget(id);
+			if (streams!=null) { streams.forget(id); }
+		}
+	}
+
 
-	public static void applyParsers(StorageDAO storage, Resource resource, String data, long timestamp) {
+	// source is how the data arrived, for the points per source metrics, key the API key it came with
+	public static void applyParsers(StorageDAO storage, Resource resource, String data, long timestamp, IngestMetrics.Source source, String key) {
 		final Logger logger = LoggerFactory.getLogger(Utils.class);
 		ParseData parseData = new ParseData(storage); // should really be static somewhere
 		boolean parsedSuccessfully=true;
+		int points = 0;
 
 		String parseError = "";
 		Set<Long> toUpdate = new HashSet<Long>(); // give these stream notifcation after update
@@ -356,7 +437,9 @@ public class Utils {
 		for (Parser parser: parsers) {
 			//logger.info("applying a parser "+parser.getInput_parser());
 			try {
-				parseData.apply(parser,data,timestamp);
+				int parsed = parseData.apply(parser,data,timestamp);
+				HeavyHitters.wroteStream(parser.getStream_id(), parsed, data.length());
+				points += parsed;
 				toUpdate.add(parser.getStream_id());
 			} catch (Exception e) {
 				parsedSuccessfully=false;
@@ -365,11 +448,11 @@ public class Utils {
 				parseError +="Parsing "+data+" failed!"+e;
 			}
 		}
-		// bunch all notifications here!
-		try { for (Long stream_id: toUpdate) {
-			//logger.warn(" dependents:"+stream_id);
-			Stream.notifyDependents(storage,stream_id.longValue());
-		}
+		IngestMetrics.getInstance().points(source).mark(points);
+		HeavyHitters.wrote(resource, key, points, data.length());
+		// bunch all notifications here, derived streams are updated as one batch
+		try {
+			DependencyPropagator.getInstance().ingested(toUpdate);
 		} catch (Exception e) {
 			logger.error("Children not accepting notification! "+e);
 			e.printStackTrace();
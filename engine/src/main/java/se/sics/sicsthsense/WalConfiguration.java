@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: The write-ahead log in front of the datapoint store, the "wal"
+ * section of the configuration file. Points are acknowledged once on disk in
+ * directory and reach the database in batches of batchSize; a writer waits up to
+ * applyWait ms for its point to get there too, 0 acknowledges on disk alone.
+ * Failed batches are retried after retryDelay, doubling up to maxRetryDelay.
+ * Deletes wait up to drainTimeout for the log to be applied. Times are in
+ * milliseconds, sizes in bytes.
+ * TODO:
+ * */
+package se.sics.sicsthsense;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class WalConfiguration {
+	private boolean enabled = false;
+
+	@NotNull
+	private String directory = "wal";
+
+	@Min(1024*1024)
+	private long segmentSize = 64*1024*1024;
+
+	@Min(1)
+	private int batchSize = 1000;
+
+	@Min(0)
+	private long applyWait = 1000;
+
+	@Min(1)
+	private long retryDelay = 1000;
+
+	@Min(1)
+	private long maxRetryDelay = 30000;
+
+	@Min(0)
+	private long drainTimeout = 30000;
+
+	@JsonProperty
+	public boolean isEnabled()									{ return enabled; }
+	@JsonProperty
+	public void setEnabled(boolean enabled)			{ this.enabled = enabled; }
+	@JsonProperty
+	public String getDirectory()								{ return directory; }
+	@JsonProperty
+	public void setDirectory(String directory)	{ this.directory = directory; }
+	@JsonProperty
+	public long getSegmentSize()								{ return segmentSize; }
+	@JsonProperty
+	public void setSegmentSize(long segmentSize)	{ this.segmentSize = segmentSize; }
+	@JsonProperty
+	public int getBatchSize()										{ return batchSize; }
+	@JsonProperty
+	public void setBatchSize(int batchSize)			{ this.batchSize = batchSize; }
+	@JsonProperty
+	public long getApplyWait()									{ return applyWait; }
+	@JsonProperty
+	public void setApplyWait(long applyWait)		{ this.applyWait = applyWait; }
+	@JsonProperty
+	public long getRetryDelay()									{ return retryDelay; }
+	@JsonProperty
+	public void setRetryDelay(long retryDelay)	{ this.retryDelay = retryDelay; }
+	@JsonProperty
+	public long getMaxRetryDelay()							{ return maxRetryDelay; }
+	@JsonProperty
+	public void setMaxRetryDelay(long maxRetryDelay)	{ this.maxRetryDelay = maxRetryDelay; }
+	@JsonProperty
+	public long getDrainTimeout()								{ return drainTimeout; }
+	@JsonProperty
+	public void setDrainTimeout(long drainTimeout)	{ this.drainTimeout = drainTimeout; }
+}
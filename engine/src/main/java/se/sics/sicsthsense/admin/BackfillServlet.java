@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Admin endpoint for recomputing derived streams, mounted at /backfill
+ * on the admin port.
+ *   GET  /backfill                          all jobs with their progress
+ *   GET  /backfill?id=3                     one job
+ *   POST /backfill?stream=12[&from=..][&until=..][&clear=true]   start a job
+ *   POST /backfill?cancel=3                 stop a job
+ * TODO:
+ * */
+package se.sics.sicsthsense.admin;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.sics.sicsthsense.core.*;
+import se.sics.sicsthsense.jdbi.*;
+import se.sics.sicsthsense.model.Backfill;
+
+public class BackfillServlet extends HttpServlet {
+	private static final Logger logger = LoggerFactory.getLogger(BackfillServlet.class);
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String id = request.getParameter("id");
+		if (id==null) {
+			write(response, HttpServletResponse.SC_OK, Backfill.getJobs());
+			return;
+		}
+		Backfill.Job job = Backfill.getJob(parseLong(id, -1));
+		if (job==null) { write(response, HttpServletResponse.SC_NOT_FOUND, new JSONMessage("Error: No backfill job "+id)); return; }
+		write(response, HttpServletResponse.SC_OK, job);
+	}
+
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		try {
+			String cancel = request.getParameter("cancel");
+			if (cancel!=null) {
+				if (Backfill.cancel(Long.parseLong(cancel))) {
+					write(response, HttpServletResponse.SC_OK, Backfill.getJob(Long.parseLong(cancel)));
+				} else {
+					write(response, HttpServletResponse.SC_NOT_FOUND, new JSONMessage("Error: No backfill job "+cancel));
+				}
+				return;
+			}
+			StorageDAO storage = DAOFactory.getInstance();
+			Stream stream = storage.findStreamById(Long.parseLong(request.getParameter("stream")));
+			if (stream==null) { write(response, HttpServletResponse.SC_NOT_FOUND, new JSONMessage("Error: No such stream")); return; }
+			Backfill.Job job = Backfill.start(storage, stream,
+				parseLong(request.getParameter("from"), -1),
+				parseLong(request.getParameter("until"), -1),
+				"true".equals(request.getParameter("clear")));
+			write(response, HttpServletResponse.SC_ACCEPTED, job);
+		} catch (IllegalArgumentException e) { // includes bad numbers
+			write(response, HttpServletResponse.SC_BAD_REQUEST, new JSONMessage("Error: "+e.getMessage()));
+		}
+	}
+
+	private long parseLong(String value, long otherwise) {
+		if (value==null || "".equals(value)) { return otherwise; }
+		return Long.parseLong(value);
+	}
+
+	private void write(HttpServletResponse response, int status, Object body) throws IOException {
+		response.setStatus(status);
+		response.setContentType("application/json");
+		mapper.writeValue(response.getOutputStream(), body);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Admin endpoint for the heaviest writers and readers, mounted at
+ * /heavy-hitters on the admin port.
+ *   GET    /heavy-hitters                               everything, ranked by points
+ *   GET    /heavy-hitters?by=bytes&limit=5              ranked by bytes, five of each
+ *   GET    /heavy-hitters?direction=write&dimension=user   one list
+ *   DELETE /heavy-hitters                               start counting afresh
+ * dimension is one of stream, resource, user or key.
+ * TODO:
+ * */
+package se.sics.sicsthsense.admin;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.sics.sicsthsense.core.*;
+
+public class HeavyHitterServlet extends HttpServlet {
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		HeavyHitters hitters = HeavyHitters.getInstance();
+		if (hitters==null) { write(response, HttpServletResponse.SC_NOT_FOUND, new JSONMessage("Error: Heavy-hitter tracking is disabled")); return; }
+		try {
+			HeavyHitters.Measure by = HeavyHitters.Measure.valueOf(parameter(request, "by", "points"));
+			String limit = request.getParameter("limit");
+			int top = limit==null ? hitters.getTopK() : Integer.parseInt(limit);
+			String direction = request.getParameter("direction");
+			String dimension = request.getParameter("dimension");
+			if (direction==null && dimension==null) {
+				write(response, HttpServletResponse.SC_OK, hitters.top(by, top));
+				return;
+			}
+			write(response, HttpServletResponse.SC_OK, hitters.top(
+				HeavyHitters.Direction.valueOf(parameter(request, "direction", "write")),
+				HeavyHitters.Dimension.valueOf(parameter(request, "dimension", "stream")),
+				by, top));
+		} catch (IllegalArgumentException e) { // unknown names and bad numbers
+			write(response, HttpServletResponse.SC_BAD_REQUEST, new JSONMessage("Error: "+e.getMessage()));
+		}
+	}
+
+	protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		HeavyHitters hitters = HeavyHitters.getInstance();
+		if (hitters!=null) { hitters.clear(); }
+		write(response, HttpServletResponse.SC_OK, new JSONMessage("Heavy hitters cleared"));
+	}
+
+	private String parameter(HttpServletRequest request, String name, String otherwise) {
+		String value = request.getParameter(name);
+		return (value==null || "".equals(value) ? otherwise : value).toUpperCase();
+	}
+
+	private void write(HttpServletResponse response, int status, Object body) throws IOException {
+		response.setStatus(status);
+		response.setContentType("application/json");
+		mapper.writeValue(response.getOutputStream(), body);
+	}
+}
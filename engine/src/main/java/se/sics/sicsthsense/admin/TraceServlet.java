@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Admin endpoint for the slow traces the FlightRecorder kept, mounted
+ * at /traces on the admin port.
+ *   GET    /traces            the slow traces, newest first, with their spans
+ *   GET    /traces?limit=10   only the newest ten
+ *   DELETE /traces            forget them
+ * TODO:
+ * */
+package se.sics.sicsthsense.admin;
+
+import java.io.IOException;
+import java.util.List;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.sics.sicsthsense.core.*;
+
+public class TraceServlet extends HttpServlet {
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		FlightRecorder recorder = FlightRecorder.getInstance();
+		if (recorder==null) { write(response, HttpServletResponse.SC_NOT_FOUND, new JSONMessage("Error: Tracing is disabled")); return; }
+		List<Trace> slow = recorder.getSlow();
+		String limit = request.getParameter("limit");
+		try {
+			if (limit!=null && Integer.parseInt(limit)<slow.size()) {
+				slow = slow.subList(0, Math.max(0, Integer.parseInt(limit)));
+			}
+		} catch (NumberFormatException e) {
+			write(response, HttpServletResponse.SC_BAD_REQUEST, new JSONMessage("Error: Bad limit "+limit));
+			return;
+		}
+		write(response, HttpServletResponse.SC_OK, slow);
+	}
+
+	protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		FlightRecorder recorder = FlightRecorder.getInstance();
+		if (recorder!=null) { recorder.clear(); }
+		write(response, HttpServletResponse.SC_OK, new JSONMessage("Slow traces cleared"));
+	}
+
+	private void write(HttpServletResponse response, int status, Object body) throws IOException {
+		response.setStatus(status);
+		response.setContentType("application/json");
+		mapper.writeValue(response.getOutputStream(), body);
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: A named, bounded share of the engine's threads for one kind of work,
+ * so a stage that slows down, say webhooks or the database, fills its own queue
+ * and is turned away there instead of taking every thread with it. Used one of
+ * two ways:
+ *   execute()  hands a task to the bulkhead's own threads, queueing up to queue
+ *   call()     runs a task on the caller's thread once one of threads permits is
+ *              free, with at most queue callers waiting, each up to timeout
+ * Either way work beyond the queue is refused with a RejectedExecutionException.
+ * Metrics under bulkheads.<name>: active, queued and saturation (active/threads)
+ * gauges, queue-wait and run timers and a rejected meter.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import se.sics.sicsthsense.EngineMetrics;
+
+public class Bulkhead {
+	private static final Logger logger = LoggerFactory.getLogger(Bulkhead.class);
+
+	private final String name;
+	private final int threads;
+	private final int queue;
+	private final long timeout;
+	private final ThreadPoolExecutor executor; // null when used through call()
+	private final Semaphore permits;           // null when used through execute()
+	private final AtomicInteger waiting = new AtomicInteger();
+	// calls made while already holding a permit, e.g. a DAO calling itself, do not take another
+	private final ThreadLocal<Boolean> held = new ThreadLocal<Boolean>();
+
+	private final Timer queueWait;
+	private final Timer run;
+	private final Meter rejected;
+
+	// a bulkhead with its own threads, see execute()
+	public static Bulkhead pool(String name, int threads, int queue) {
+		return new Bulkhead(name, threads, queue, 0, true);
+	}
+
+	// a bulkhead limiting its callers, see call()
+	public static Bulkhead limit(String name, int threads, int queue, long timeout) {
+		return new Bulkhead(name, threads, queue, timeout, false);
+	}
+
+	private Bulkhead(final String name, int threads, int queue, long timeout, boolean pooled) {
+		this.name = name;
+		this.threads = threads;
+		this.queue = queue;
+		this.timeout = timeout;
+		if (pooled) {
+			this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queue)), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			this.executor.allowCoreThreadTimeOut(true);
+			this.permits = null;
+		} else {
+			this.executor = null;
+			this.permits = new Semaphore(threads, true);
+		}
+		this.queueWait = EngineMetrics.timer("bulkheads", name, "queue-wait");
+		this.run = EngineMetrics.timer("bulkheads", name, "run");
+		this.rejected = EngineMetrics.meter("bulkheads", name, "rejected");
+		EngineMetrics.gauge(new Gauge<Integer>() {
+			public Integer getValue() { return getActive(); }
+		}, "bulkheads", name, "active");
+		EngineMetrics.gauge(new Gauge<Integer>() {
+			public Integer getValue() { return getQueued(); }
+		}, "bulkheads", name, "queued");
+		EngineMetrics.gauge(new Gauge<Double>() {
+			public Double getValue() { return (double)getActive()/Bulkhead.this.threads; }
+		}, "bulkheads", name, "saturation");
+	}
+
+	// run the task on one of this bulkhead's threads
+	public void execute(final Runnable task) {
+		final long queued = System.nanoTime();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					long started = System.nanoTime();
+					queueWait.update(started-queued, TimeUnit.NANOSECONDS);
+					try {
+						task.run();
+					} catch (Exception e) {
+						logger.error("Task in bulkhead "+name+" failed: "+e);
+					} finally {
+						run.update(System.nanoTime()-started, TimeUnit.NANOSECONDS);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.mark();
+			throw new RejectedExecutionException("Bulkhead "+name+" is full, "+getQueued()+" tasks queued");
+		}
+	}
+
+	// run the task on this thread, once there is room
+	public <T> T call(Callable<T> task) throws Exception {
+		if (held.get()!=null) { return task.call(); }
+		long queued = System.nanoTime();
+		acquire();
+		long started = System.nanoTime();
+		queueWait.update(started-queued, TimeUnit.NANOSECONDS);
+		held.set(Boolean.TRUE);
+		try {
+			return task.call();
+		} finally {
+			held.remove();
+			permits.release();
+			run.update(System.nanoTime()-started, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void acquire() throws InterruptedException {
+		if (permits.tryAcquire()) { return; }
+		if (waiting.incrementAndGet()>queue) {
+			waiting.decrementAndGet();
+			rejected.mark();
+			throw new RejectedExecutionException("Bulkhead "+name+" is full, "+queue+" callers waiting");
+		}
+		try {
+			if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+				rejected.mark();
+				throw new RejectedExecutionException("Bulkhead "+name+" had no room for "+timeout+" ms");
+			}
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	public int getActive() {
+		return executor!=null ? executor.getActiveCount() : threads-permits.availablePermits();
+	}
+
+	public int getQueued() {
+		return executor!=null ? executor.getQueue().size() : waiting.get();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void shutdown() {
+		if (executor!=null) { executor.shutdown(); }
+	}
+}
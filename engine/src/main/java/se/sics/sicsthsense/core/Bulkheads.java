@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: The engine's bulkheads, one per stage of the work, see Bulkhead and
+ * BulkheadConfiguration. A poll is fetched on "poll" and handed to "parse", which
+ * parses and stores the points; trigger webhooks are called on "triggers".
+ * "storage" limits the database calls in flight and "api" the HTTP and CoAP
+ * requests being handled, on the threads making them. A stage configured with no
+ * threads has no bulkhead: execute() then runs the task on the caller and call()
+ * is not limited, as before start up.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+
+import se.sics.sicsthsense.BulkheadConfiguration;
+
+public class Bulkheads {
+	public static final String POLL = "poll";
+	public static final String PARSE = "parse";
+	public static final String TRIGGERS = "triggers";
+	public static final String STORAGE = "storage";
+	public static final String API = "api";
+
+	private static volatile Bulkheads singleton;
+
+	private final Map<String, Bulkhead> bulkheads = new HashMap<String, Bulkhead>();
+
+	public static Bulkheads getInstance() {
+		return singleton;
+	}
+	public static synchronized Bulkheads build(BulkheadConfiguration config) {
+		if (singleton!=null) { singleton.shutdown(); }
+		singleton = new Bulkheads(config);
+		return singleton;
+	}
+
+	public Bulkheads(BulkheadConfiguration config) {
+		pool(POLL, config.getPoll());
+		pool(PARSE, config.getParse());
+		pool(TRIGGERS, config.getTriggers());
+		limit(STORAGE, config.getStorage(), config.getWaitTimeout());
+		limit(API, config.getApi(), config.getWaitTimeout());
+	}
+
+	private void pool(String name, BulkheadConfiguration.Pool pool) {
+		if (pool.getThreads()==0) { return; }
+		bulkheads.put(name, Bulkhead.pool(name, pool.getThreads(), pool.getQueue()));
+	}
+
+	private void limit(String name, BulkheadConfiguration.Pool pool, long timeout) {
+		if (pool.getThreads()==0) { return; }
+		bulkheads.put(name, Bulkhead.limit(name, pool.getThreads(), pool.getQueue(), timeout));
+	}
+
+	// the named bulkhead, null if that stage has none
+	public static Bulkhead get(String name) {
+		Bulkheads all = singleton;
+		return all==null ? null : all.bulkheads.get(name);
+	}
+
+	// run the task on the named stage's threads, throws RejectedExecutionException when it is full
+	public static void execute(String name, Runnable task) {
+		Bulkhead bulkhead = get(name);
+		if (bulkhead==null) {
+			task.run();
+			return;
+		}
+		bulkhead.execute(task);
+	}
+
+	// run the task on this thread within the named stage's limit
+	public static <T> T call(String name, Callable<T> task) throws Exception {
+		Bulkhead bulkhead = get(name);
+		return bulkhead==null ? task.call() : bulkhead.call(task);
+	}
+
+	public void shutdown() {
+		for (Bulkhead bulkhead: bulkheads.values()) { bulkhead.shutdown(); }
+	}
+}
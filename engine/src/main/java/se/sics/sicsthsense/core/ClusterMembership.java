@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Follows the cluster's members and keeps the ClusterNode's HashRing
+ * to the nodes that are up and reachable. Changes are gathered for rebalanceDelay
+ * before the node's listeners move pollers and streams, so a node starting or
+ * stopping costs one rebalance rather than several.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import akka.cluster.Cluster;
+import akka.cluster.ClusterEvent;
+import akka.cluster.ClusterEvent.MemberEvent;
+import akka.cluster.ClusterEvent.MemberExited;
+import akka.cluster.ClusterEvent.MemberRemoved;
+import akka.cluster.ClusterEvent.MemberUp;
+import akka.cluster.ClusterEvent.ReachabilityEvent;
+import akka.cluster.ClusterEvent.ReachableMember;
+import akka.cluster.ClusterEvent.UnreachableMember;
+import akka.cluster.MemberStatus;
+import scala.concurrent.duration.Duration;
+
+public class ClusterMembership extends UntypedActor {
+	public static final String NAME = "cluster-membership";
+	private static final String SETTLED = "settled";
+	private final Logger logger = LoggerFactory.getLogger(ClusterMembership.class);
+
+	private final ClusterNode node;
+	private final HashRing ring;
+	private final long rebalanceDelay;
+	private final Cluster cluster = Cluster.get(getContext().system());
+	private Cancellable pending;
+
+	public ClusterMembership(ClusterNode node, long rebalanceDelay) {
+		this.node = node;
+		this.ring = node.getRing();
+		this.rebalanceDelay = rebalanceDelay;
+	}
+
+	@Override
+	public void preStart() {
+		cluster.subscribe(getSelf(), ClusterEvent.initialStateAsEvents(), MemberEvent.class, ReachabilityEvent.class);
+	}
+
+	@Override
+	public void postStop() {
+		cluster.unsubscribe(getSelf());
+		if (pending!=null) { pending.cancel(); }
+	}
+
+	@Override
+	public void onReceive(Object message) throws Exception {
+		if (SETTLED.equals(message)) {
+			pending = null;
+			node.changed();
+		} else if (message instanceof MemberUp) {
+			changed(ring.add(((MemberUp)message).member().address().toString()));
+		} else if (message instanceof MemberExited) {
+			changed(ring.remove(((MemberExited)message).member().address().toString()));
+		} else if (message instanceof MemberRemoved) {
+			changed(ring.remove(((MemberRemoved)message).member().address().toString()));
+		} else if (message instanceof UnreachableMember) { // its share goes to the others until it is back
+			changed(ring.remove(((UnreachableMember)message).member().address().toString()));
+		} else if (message instanceof ReachableMember) {
+			ReachableMember reachable = (ReachableMember)message;
+			if (reachable.member().status()==MemberStatus.up()) { changed(ring.add(reachable.member().address().toString())); }
+		} else {
+			unhandled(message);
+		}
+	}
+
+	private void changed(boolean changed) {
+		if (!changed) { return; }
+		logger.info("Cluster nodes: "+ring.getNodes());
+		if (pending!=null) { return; }
+		pending = getContext().system().scheduler().scheduleOnce(Duration.create(rebalanceDelay, TimeUnit.MILLISECONDS),
+				getSelf(), SETTLED, getContext().dispatcher(), getSelf());
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: This engine's place in the cluster, when cluster mode is on. The
+ * node's actor system joins the other engines through the seed nodes, and the
+ * nodes that are up sit on a HashRing which gives every resource and stream one
+ * owning node: the owner polls the resource, and writes to the stream, computes
+ * it and runs its triggers. Other nodes send stream writes on to the owner's
+ * StreamRouter at /user/streams. Listeners hear of membership changes once they
+ * have settled, see ClusterMembership. Null when cluster mode is off.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import akka.actor.ActorSelection;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import com.codahale.metrics.Gauge;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import se.sics.sicsthsense.ClusterConfiguration;
+import se.sics.sicsthsense.EngineMetrics;
+
+public class ClusterNode {
+	public static final String SYSTEM_NAME = "SicsthAkkaSystem";
+	private static final Logger logger = LoggerFactory.getLogger(ClusterNode.class);
+	private static volatile ClusterNode singleton;
+
+	public interface Listener {
+		void membershipChanged(ClusterNode node);
+	}
+
+	private final ActorSystem system;
+	private final HashRing ring;
+	private final String self;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	public static ClusterNode getInstance() {
+		return singleton;
+	}
+	public static synchronized ClusterNode build(ClusterConfiguration config) {
+		if (singleton!=null) { singleton.shutdown(); singleton = null; }
+		if (!config.isEnabled()) { return null; }
+		singleton = new ClusterNode(config);
+		return singleton;
+	}
+
+	private ClusterNode(ClusterConfiguration config) {
+		this.system = ActorSystem.create(SYSTEM_NAME, config(config));
+		this.ring = new HashRing(config.getVirtualNodes());
+		this.self = Cluster.get(system).selfAddress().toString();
+		logger.info("Joining the cluster as "+self+" through "+config.getSeeds());
+		EngineMetrics.gauge(new Gauge<Integer>() {
+			public Integer getValue() { return ring.size(); }
+		}, "cluster", "nodes");
+		system.actorOf(Props.create(StreamRouter.class), StreamRouter.NAME);
+		system.actorOf(Props.create(ClusterMembership.class, this, config.getRebalanceDelay()), ClusterMembership.NAME);
+	}
+
+	// akka remoting and cluster settings, over whatever application.conf has
+	static Config config(ClusterConfiguration cluster) {
+		List<String> seeds = new ArrayList<String>(cluster.getSeeds());
+		if (seeds.isEmpty()) { seeds.add(cluster.getHostname()+":"+cluster.getPort()); }
+		StringBuilder seedNodes = new StringBuilder();
+		for (String seed: seeds) {
+			if (seedNodes.length()>0) { seedNodes.append(","); }
+			seedNodes.append("\"akka.tcp://"+SYSTEM_NAME+"@"+seed.trim()+"\"");
+		}
+		return ConfigFactory.parseString(
+				"akka.actor.provider = \"akka.cluster.ClusterActorRefProvider\"\n"+
+				"akka.actor.serializers.stream = \""+StreamMessageSerializer.class.getName()+"\"\n"+
+				"akka.actor.serialization-bindings { \""+StreamRouter.Message.class.getName()+"\" = stream }\n"+
+				"akka.remote.netty.tcp.hostname = \""+cluster.getHostname()+"\"\n"+
+				"akka.remote.netty.tcp.port = "+cluster.getPort()+"\n"+
+				"akka.cluster.seed-nodes = ["+seedNodes+"]\n"+
+				"akka.cluster.auto-down-unreachable-after = "+cluster.getDownAfter()+"ms\n")
+			.withFallback(ConfigFactory.load());
+	}
+
+	// the listener hears straight away when the ring is already known
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+		if (ring.size()>0) { listener.membershipChanged(this); }
+	}
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	// called by ClusterMembership once changes have settled
+	void changed() {
+		for (Listener listener: listeners) {
+			try {
+				listener.membershipChanged(this);
+			} catch (Exception e) {
+				logger.error("Membership listener failed: "+e);
+			}
+		}
+	}
+
+	// null while this node is not up yet
+	public String owner(long id) {
+		return ring.owner(id);
+	}
+
+	// the node owning the id when it is another one, null when it is this one or unknown
+	public String remoteOwner(long id) {
+		String owner = ring.owner(id);
+		return owner==null || self.equals(owner) ? null : owner;
+	}
+
+	public boolean owns(long id) {
+		return remoteOwner(id)==null;
+	}
+
+	public ActorSelection select(String node, String name) {
+		return system.actorSelection(node+"/user/"+name);
+	}
+
+	public void shutdown() {
+		Cluster.get(system).leave(Cluster.get(system).selfAddress());
+		system.shutdown();
+	}
+
+	public ActorSystem getSystem()	{ return system; }
+	public HashRing getRing()				{ return ring; }
+	public String getSelf()					{ return self; }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Count-Min sketch, an estimate of how often each key was counted in
+ * depth x width counters. Estimates never undercount, and overcount by at most
+ * e/width of the sketch's total with probability 1-e^-depth. Not thread safe, the
+ * HeavyHitters hold their lock around it.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.Arrays;
+
+public class CountMinSketch {
+	private final int width;
+	private final int depth;
+	private final long[] counts; // row after row
+	private long total;
+
+	public CountMinSketch(int width, int depth) {
+		if (width<1 || depth<1) { throw new IllegalArgumentException("Sketch needs width and depth of at least 1"); }
+		this.width = width;
+		this.depth = depth;
+		this.counts = new long[width*depth];
+	}
+
+	// 64 bit FNV-1a, the rows index with h1+i*h2 from its two halves
+	public static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i=0; i<key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	public void add(long hash, long count) {
+		int h1 = (int)hash;
+		int h2 = (int)(hash>>>32);
+		for (int i=0; i<depth; i++) {
+			counts[i*width + index(h1 + i*h2)] += count;
+		}
+		total += count;
+	}
+
+	public long estimate(long hash) {
+		int h1 = (int)hash;
+		int h2 = (int)(hash>>>32);
+		long min = Long.MAX_VALUE;
+		for (int i=0; i<depth; i++) {
+			min = Math.min(min, counts[i*width + index(h1 + i*h2)]);
+		}
+		return min;
+	}
+
+	// sketches of the same shape add counter by counter
+	public void add(CountMinSketch other) {
+		for (int i=0; i<counts.length; i++) { counts[i] += other.counts[i]; }
+		total += other.total;
+	}
+	public void subtract(CountMinSketch other) {
+		for (int i=0; i<counts.length; i++) { counts[i] -= other.counts[i]; }
+		total -= other.total;
+	}
+
+	public void clear() {
+		Arrays.fill(counts, 0L);
+		total = 0;
+	}
+
+	// everything counted, exactly
+	public long getTotal()	{ return total; }
+	public int getWidth()		{ return width; }
+	public int getDepth()		{ return depth; }
+
+	private int index(int h) {
+		return (h & Integer.MAX_VALUE) % width;
+	}
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Updates the derived streams that depend, directly or through other
+ * derived streams, on a batch of changed streams. The affected part of the
+ * dependency graph is worked out first, then each derived stream is run on a
+ * work-stealing pool as soon as all of its antecedents in the batch are done, so
+ * independent streams at the same depth are evaluated concurrently. Each owner
+ * has a limit on how many of their streams run at once; the rest wait their turn.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.IngestMetrics;
+import se.sics.sicsthsense.PropagationConfiguration;
+import se.sics.sicsthsense.jdbi.*;
+
+public class DependencyPropagator {
+	private static final Logger logger = LoggerFactory.getLogger(DependencyPropagator.class);
+	private static DependencyPropagator singleton;
+
+	private final StorageDAO storage;
+	private final ForkJoinPool pool;
+	private final int perOwnerLimit;
+	private final boolean async;
+	private final long timeout;
+	private final int maxStreams;
+	private final ConcurrentHashMap<Long, Tenant> tenants = new ConcurrentHashMap<Long, Tenant>();
+
+	private final Timer batchTimer = EngineMetrics.timer("propagation", "batches");
+	private final Histogram batchSize = EngineMetrics.histogram("propagation", "batch-size");
+	private final Meter failures = EngineMetrics.meter("propagation", "failures");
+	private final Histogram fanout = IngestMetrics.getInstance().fanout;
+
+	// Static methods to ensure single instance
+	public static synchronized DependencyPropagator getInstance() {
+		if (singleton==null) { // used before start up, e.g. from a tool
+			singleton = new DependencyPropagator(DAOFactory.getInstance(), new PropagationConfiguration());
+		}
+		return singleton;
+	}
+	public static synchronized DependencyPropagator build(StorageDAO storage, PropagationConfiguration config) {
+		if (singleton!=null) { singleton.shutdown(); }
+		singleton = new DependencyPropagator(storage, config);
+		return singleton;
+	}
+
+	public DependencyPropagator(StorageDAO storage, PropagationConfiguration config) {
+		this.storage = storage;
+		this.pool = new ForkJoinPool(config.getParallelism());
+		this.perOwnerLimit = config.getPerOwnerLimit();
+		this.async = config.isAsync();
+		this.timeout = config.getTimeout();
+		this.maxStreams = config.getMaxStreams();
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	// Update everything downstream of the changed streams. Unless configured to be
+	// asynchronous this waits (up to the timeout) for the derived streams to finish.
+	public void propagate(Collection<Long> changed) {
+		if (changed==null || changed.size()==0) { return; }
+		final List<Long> sources = new ArrayList<Long>(changed);
+		Timer.Context timer = IngestMetrics.getInstance().dependents.time();
+		Trace.Span span = Trace.start("dependents", "propagate");
+		try {
+			if (async) {
+				pool.execute(new Runnable() {
+					public void run() { runBatch(sources); }
+				});
+				return;
+			}
+			Batch batch = runBatch(sources);
+			if (batch!=null) { batch.await(timeout); }
+		} finally {
+			span.end();
+			timer.stop();
+		}
+	}
+
+	public void propagate(long changed) {
+		List<Long> sources = new ArrayList<Long>(1);
+		sources.add(changed);
+		propagate(sources);
+	}
+
+	// Update everything downstream of streams a client just wrote to. When the stream
+	// actors reorder points this is left to them, as they release the points.
+	public void ingested(Collection<Long> changed) {
+		StreamSystem streams = StreamSystem.getInstance();
+		if (streams!=null && streams.isReordering()) { return; }
+		propagate(changed);
+	}
+
+	public void ingested(long changed) {
+		List<Long> sources = new ArrayList<Long>(1);
+		sources.add(changed);
+		ingested(sources);
+	}
+
+	// Update everything downstream without waiting, for callers that must not block
+	public void propagateLater(long changed) {
+		final List<Long> sources = new ArrayList<Long>(1);
+		sources.add(changed);
+		pool.execute(new Runnable() {
+			public void run() { runBatch(sources); }
+		});
+	}
+
+	// work out the affected graph and start the streams whose inputs are all ready
+	private Batch runBatch(List<Long> sources) {
+		Batch batch;
+		try {
+			batch = plan(sources);
+		} catch (Exception e) {
+			failures.mark();
+			logger.error("Unable to plan propagation from "+sources+" "+e);
+			return null;
+		}
+		if (batch.nodes.size()==0) { return null; }
+		batchSize.update(batch.nodes.size());
+		for (Node node: batch.nodes.values()) {
+			if (node.pending.get()==0) { schedule(node); }
+		}
+		return batch;
+	}
+
+	private Batch plan(List<Long> sources) {
+		Batch batch = new Batch();
+		ArrayDeque<Long> frontier = new ArrayDeque<Long>(sources);
+		Map<Long, List<Long>> edges = new HashMap<Long, List<Long>>();
+		walk:
+		while (!frontier.isEmpty()) {
+			Long id = frontier.poll();
+			if (edges.containsKey(id)) { continue; }
+			List<Long> dependents = storage.findDependents(id);
+			edges.put(id, dependents);
+			fanout.update(dependents.size());
+			for (Long dependent: dependents) {
+				if (batch.nodes.containsKey(dependent)) { continue; }
+				if (batch.nodes.size()>=maxStreams) {
+					logger.warn("Propagation from "+sources+" reaches over "+maxStreams+" streams, truncated");
+					break walk;
+				}
+				Stream stream = storage.findStreamById(dependent);
+				if (stream==null) { logger.warn("Dependent stream not found, id:"+dependent); continue; }
+				batch.nodes.put(dependent, new Node(batch, stream));
+				frontier.add(dependent);
+			}
+		}
+		// a stream waits for each of its antecedents that is itself being recomputed
+		for (Map.Entry<Long, List<Long>> entry: edges.entrySet()) {
+			Node from = batch.nodes.get(entry.getKey());
+			if (from==null) { continue; } // a changed stream, already up to date
+			for (Long dependent: entry.getValue()) {
+				Node to = batch.nodes.get(dependent);
+				if (to==null || to==from) { continue; }
+				from.dependents.add(to);
+				to.pending.incrementAndGet();
+			}
+		}
+		dropCycles(batch);
+		batch.remaining = new CountDownLatch(batch.nodes.size());
+		batch.left.set(batch.nodes.size());
+		return batch;
+	}
+
+	// streams on a cycle would never become ready; leave them, and what hangs off them, out
+	private void dropCycles(Batch batch) {
+		Map<Node, Integer> indegree = new HashMap<Node, Integer>();
+		ArrayDeque<Node> ready = new ArrayDeque<Node>();
+		for (Node node: batch.nodes.values()) {
+			indegree.put(node, node.pending.get());
+			if (node.pending.get()==0) { ready.add(node); }
+		}
+		int ordered=0;
+		while (!ready.isEmpty()) {
+			Node node = ready.poll();
+			ordered++;
+			for (Node dependent: node.dependents) {
+				int left = indegree.get(dependent)-1;
+				indegree.put(dependent, left);
+				if (left==0) { ready.add(dependent); }
+			}
+		}
+		if (ordered==batch.nodes.size()) { return; }
+		List<Long> cyclic = new ArrayList<Long>();
+		for (Map.Entry<Node, Integer> entry: indegree.entrySet()) {
+			if (entry.getValue()>0) { cyclic.add(entry.getKey().stream.getId()); }
+		}
+		logger.error("Dependency cycle through streams "+cyclic+", not updating them");
+		for (Long id: cyclic) { batch.nodes.remove(id); }
+		for (Node node: batch.nodes.values()) {
+			List<Node> kept = new ArrayList<Node>();
+			for (Node dependent: node.dependents) {
+				if (batch.nodes.containsKey(dependent.stream.getId())) { kept.add(dependent); }
+			}
+			node.dependents.clear();
+			node.dependents.addAll(kept);
+		}
+	}
+
+	// run now if the owner is below their limit, otherwise queue behind their other streams
+	private void schedule(Node node) {
+		Tenant tenant = tenant(node.stream.getOwner_id());
+		synchronized (tenant) {
+			if (tenant.running>=perOwnerLimit) {
+				tenant.waiting.add(node);
+				return;
+			}
+			tenant.running++;
+		}
+		pool.execute(node);
+	}
+
+	private void finished(Node node) {
+		Tenant tenant = tenant(node.stream.getOwner_id());
+		Node next;
+		synchronized (tenant) {
+			next = tenant.waiting.poll();
+			if (next==null) { tenant.running--; }
+		}
+		if (next!=null) { pool.execute(next); }
+		for (Node dependent: node.dependents) {
+			if (dependent.pending.decrementAndGet()==0) { schedule(dependent); }
+		}
+		node.batch.remaining.countDown();
+		if (node.batch.left.decrementAndGet()==0) {
+			batchTimer.update(System.nanoTime()-node.batch.started, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private Tenant tenant(long ownerId) {
+		Tenant tenant = tenants.get(ownerId);
+		if (tenant==null) {
+			tenants.putIfAbsent(ownerId, new Tenant());
+			tenant = tenants.get(ownerId);
+		}
+		return tenant;
+	}
+
+	public int getPerOwnerLimit()	{ return perOwnerLimit; }
+	public boolean isAsync()			{ return async; }
+
+	private class Batch {
+		final Map<Long, Node> nodes = new HashMap<Long, Node>();
+		final long started = System.nanoTime();
+		final AtomicInteger left = new AtomicInteger();
+		final Trace trace = Trace.current(); // of the caller waiting for the batch
+		CountDownLatch remaining;
+
+		void await(long timeout) {
+			try {
+				if (!remaining.await(timeout, TimeUnit.MILLISECONDS)) {
+					logger.warn("Propagation still running after "+timeout+"ms, "+remaining.getCount()+" streams left");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// one derived stream to update; a Runnable so a failure cannot stall the batch
+	private class Node implements Runnable {
+		final Batch batch;
+		final Stream stream;
+		final AtomicInteger pending = new AtomicInteger();
+		final List<Node> dependents = new ArrayList<Node>();
+
+		Node(Batch batch, Stream stream) {
+			this.batch = batch;
+			this.stream = stream;
+		}
+
+		public void run() {
+			Trace previous = Trace.attach(batch.trace);
+			try {
+				stream.update(storage);
+			} catch (Exception e) {
+				failures.mark();
+				logger.error("Updating dependent stream "+stream.getId()+" failed: "+e);
+			} finally {
+				Trace.attach(previous);
+				finished(this);
+			}
+		}
+	}
+
+	private static class Tenant {
+		int running = 0;
+		final ArrayDeque<Node> waiting = new ArrayDeque<Node>();
+	}
+}
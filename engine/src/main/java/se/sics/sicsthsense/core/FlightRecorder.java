@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Keeps the latest slow traces in a ring buffer for the /traces admin
+ * endpoint, and writes each one as a single line to the "sicsthsense.slow" logger,
+ * which logging configuration can send to its own file. Null when tracing is off.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Meter;
+
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.TraceConfiguration;
+
+public class FlightRecorder {
+	private static final Logger slowLog = LoggerFactory.getLogger("sicsthsense.slow");
+	private static volatile FlightRecorder singleton;
+
+	private final long threshold; // nanos
+	private final int maxSpans;
+	private final double sampleRate;
+	private final Trace[] ring;
+	private int next;
+	private boolean full;
+
+	private final Meter traced = EngineMetrics.meter("trace", "traced");
+	private final Meter slow = EngineMetrics.meter("trace", "slow");
+
+	public static FlightRecorder getInstance() {
+		return singleton;
+	}
+	public static FlightRecorder build(TraceConfiguration config) {
+		singleton = config.isEnabled() ? new FlightRecorder(config) : null;
+		return singleton;
+	}
+
+	public FlightRecorder(TraceConfiguration config) {
+		this.threshold = TimeUnit.MILLISECONDS.toNanos(config.getSlowThreshold());
+		this.maxSpans = config.getMaxSpans();
+		this.sampleRate = config.getSampleRate();
+		this.ring = new Trace[config.getBufferSize()];
+	}
+
+	void record(Trace trace) {
+		traced.mark();
+		if (trace.durationNanos()<threshold) { return; }
+		slow.mark();
+		synchronized (this) {
+			ring[next] = trace;
+			next = (next+1)%ring.length;
+			if (next==0) { full = true; }
+		}
+		if (slowLog.isWarnEnabled()) { slowLog.warn(trace.toString()); }
+	}
+
+	// newest first
+	public synchronized List<Trace> getSlow() {
+		List<Trace> slow = new ArrayList<Trace>(ring.length);
+		int count = full ? ring.length : next;
+		for (int i=1; i<=count; i++) { slow.add(ring[(next-i+ring.length)%ring.length]); }
+		return slow;
+	}
+
+	public synchronized void clear() {
+		for (int i=0; i<ring.length; i++) { ring[i] = null; }
+		next = 0;
+		full = false;
+	}
+
+	public int getMaxSpans()			{ return maxSpans; }
+	public double getSampleRate()	{ return sampleRate; }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Consistent hash ring of cluster nodes, each placed at virtualNodes
+ * points so resources spread evenly. A node joining or leaving only moves the
+ * resources between it and its neighbours on the ring.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class HashRing {
+	private final int virtualNodes;
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+	private final Set<String> nodes = new TreeSet<String>();
+
+	public HashRing(int virtualNodes) {
+		this.virtualNodes = virtualNodes;
+	}
+
+	public synchronized boolean add(String node) {
+		if (!nodes.add(node)) { return false; }
+		for (int i=0; i<virtualNodes; i++) { ring.put(mix(CountMinSketch.hash(node+"#"+i)), node); }
+		return true;
+	}
+
+	public synchronized boolean remove(String node) {
+		if (!nodes.remove(node)) { return false; }
+		for (int i=0; i<virtualNodes; i++) { ring.remove(mix(CountMinSketch.hash(node+"#"+i))); }
+		return true;
+	}
+
+	// the node owning the key, null while there are none
+	public synchronized String owner(long key) {
+		if (ring.isEmpty()) { return null; }
+		Map.Entry<Long, String> entry = ring.ceilingEntry(mix(key));
+		return (entry==null ? ring.firstEntry() : entry).getValue();
+	}
+
+	public synchronized Set<String> getNodes() {
+		return Collections.unmodifiableSet(new TreeSet<String>(nodes));
+	}
+
+	public synchronized int size() {
+		return nodes.size();
+	}
+
+	// the murmur3 finaliser, so neighbouring ids land far apart
+	static long mix(long h) {
+		h ^= h>>>33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h>>>33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h>>>33;
+		return h;
+	}
+}
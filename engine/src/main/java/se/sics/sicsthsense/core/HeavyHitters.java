@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: The streams, resources, users and keys writing and reading the most
+ * over the last few seconds, so a noisy tenant shows without scanning the data
+ * tables. Points and bytes are counted in a Count-Min sketch per direction,
+ * dimension and measure. The window is a ring of bucket sketches whose sum is kept
+ * alongside, so a key's estimate is one lookup; the keys with the largest estimates
+ * are kept as candidates, re-estimated whenever a bucket expires. The candidates may
+ * grow to twice their number before the smallest are dropped, so they are sorted
+ * now and then rather than kept in order on every count.
+ * Counting takes no shared lock: each thread adds to its own buffer, which the
+ * heavy-hitters thread drains into the sketches every DRAIN_INTERVAL ms, and
+ * readers drain first so they see every count.
+ * Users are the owners of the data, API keys show only their first characters,
+ * bytes are the characters of the payload as it came in or went out.
+ * See /heavy-hitters on the admin port and the heavy-hitters.* gauges. Null when
+ * disabled, the static methods then do nothing.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Gauge;
+
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.HeavyHitterConfiguration;
+
+public class HeavyHitters {
+	public enum Direction { WRITE, READ }
+	public enum Dimension { STREAM, RESOURCE, USER, KEY }
+	public enum Measure { POINTS, BYTES }
+
+	private static final Logger logger = LoggerFactory.getLogger(HeavyHitters.class);
+	// ms between drains of the threads' buffers
+	public static final long DRAIN_INTERVAL = 100;
+
+	private static volatile HeavyHitters singleton;
+
+	// largest estimates first
+	private static final Comparator<Candidate> LARGEST = new Comparator<Candidate>() {
+		public int compare(Candidate a, Candidate b) {
+			return a.count<b.count ? 1 : (a.count>b.count ? -1 : 0);
+		}
+	};
+
+	private final long bucketMillis;
+	private final int buckets;
+	private final int width;
+	private final int depth;
+	private final int topK;
+	private final int capacity; // candidates kept per window, more than reported to absorb estimate noise
+	private final long started;
+	private final Tracker[] trackers = new Tracker[Direction.values().length*Dimension.values().length];
+	// counts not yet in the trackers, one buffer per counting thread
+	private final ThreadLocal<Buffer> buffer = new ThreadLocal<Buffer>() {
+		protected Buffer initialValue() {
+			Buffer b = new Buffer();
+			buffers.add(b);
+			return b;
+		}
+	};
+	private final CopyOnWriteArrayList<Buffer> buffers = new CopyOnWriteArrayList<Buffer>();
+	private final Object draining = new Object();
+	private final ScheduledExecutorService drainer;
+
+	public static HeavyHitters getInstance() {
+		return singleton;
+	}
+	public static HeavyHitters build(HeavyHitterConfiguration config) {
+		if (singleton!=null) { singleton.shutdown(); }
+		HeavyHitters hitters = config.isEnabled() ? new HeavyHitters(config) : null;
+		if (hitters!=null) { hitters.registerGauges(); }
+		singleton = hitters;
+		return hitters;
+	}
+
+	public HeavyHitters(HeavyHitterConfiguration config) {
+		this.buckets = config.getBuckets();
+		this.bucketMillis = Math.max(1, config.getWindow()*1000/buckets);
+		this.width = config.getWidth();
+		this.depth = config.getDepth();
+		this.topK = config.getTopK();
+		this.capacity = 4*topK;
+		this.started = System.currentTimeMillis();
+		for (int i=0; i<trackers.length; i++) { trackers[i] = new Tracker(); }
+		this.drainer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "heavy-hitters");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		drainer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					drain();
+				} catch (Exception e) {
+					logger.error("Could not drain the heavy hitter counts: "+e);
+				}
+			}
+		}, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown() {
+		drainer.shutdownNow();
+	}
+
+	// a point written to a stream directly, over HTTP, websocket or CoAP
+	public static void wrote(Stream stream, String key, long points, long bytes) {
+		HeavyHitters hitters = singleton;
+		if (hitters==null) { return; }
+		hitters.count(Direction.WRITE, stream, key, points, bytes);
+	}
+
+	// a payload posted to or polled from a resource, before its parsers split it into streams
+	public static void wrote(Resource resource, String key, long points, long bytes) {
+		HeavyHitters hitters = singleton;
+		if (hitters==null) { return; }
+		hitters.add(Direction.WRITE, Dimension.RESOURCE, String.valueOf(resource.getId()), points, bytes);
+		hitters.add(Direction.WRITE, Dimension.USER, String.valueOf(resource.getOwner_id()), points, bytes);
+		hitters.addKey(Direction.WRITE, key, points, bytes);
+	}
+
+	// the points one parser took out of a resource's payload into its stream
+	public static void wroteStream(long streamId, long points, long bytes) {
+		HeavyHitters hitters = singleton;
+		if (hitters==null) { return; }
+		hitters.add(Direction.WRITE, Dimension.STREAM, String.valueOf(streamId), points, bytes);
+	}
+
+	public static void read(Stream stream, String key, long points, long bytes) {
+		HeavyHitters hitters = singleton;
+		if (hitters==null) { return; }
+		hitters.count(Direction.READ, stream, key, points, bytes);
+	}
+
+	private void count(Direction direction, Stream stream, String key, long points, long bytes) {
+		add(direction, Dimension.STREAM, String.valueOf(stream.getId()), points, bytes);
+		add(direction, Dimension.RESOURCE, String.valueOf(stream.getResource_id()), points, bytes);
+		add(direction, Dimension.USER, String.valueOf(stream.getOwner_id()), points, bytes);
+		addKey(direction, key, points, bytes);
+	}
+
+	private void addKey(Direction direction, String key, long points, long bytes) {
+		if (key==null || "".equals(key)) { return; }
+		buffer.get().add(index(direction, Dimension.KEY), key, mask(key), points, bytes);
+	}
+
+	public void add(Direction direction, Dimension dimension, String id, long points, long bytes) {
+		buffer.get().add(index(direction, dimension), id, id, points, bytes);
+	}
+
+	// the heaviest, at most topK of them
+	public List<Hitter> top(Direction direction, Dimension dimension, Measure by, int limit) {
+		drain();
+		return tracker(direction, dimension).top(by, Math.min(limit, topK));
+	}
+
+	// move the threads' buffered counts into the trackers
+	void drain() {
+		synchronized (draining) {
+			for (Buffer b: buffers) {
+				Map<String, Pending>[] counts = b.take();
+				for (int i=0; i<counts.length; i++) {
+					if (counts[i]!=null) { trackers[i].add(counts[i].values()); }
+				}
+				if (b.isOrphaned()) { buffers.remove(b); }
+			}
+		}
+	}
+
+	// every direction and dimension, as {"write": {"stream": [...], ...}, "read": {...}}
+	public Map<String, Map<String, List<Hitter>>> top(Measure by, int limit) {
+		Map<String, Map<String, List<Hitter>>> all = new LinkedHashMap<String, Map<String, List<Hitter>>>();
+		for (Direction direction: Direction.values()) {
+			Map<String, List<Hitter>> dimensions = new LinkedHashMap<String, List<Hitter>>();
+			for (Dimension dimension: Dimension.values()) {
+				dimensions.put(dimension.name().toLowerCase(), top(direction, dimension, by, limit));
+			}
+			all.put(direction.name().toLowerCase(), dimensions);
+		}
+		return all;
+	}
+
+	public void clear() {
+		drain();
+		for (Tracker tracker: trackers) { tracker.clear(); }
+	}
+
+	public int getTopK()	{ return topK; }
+
+	private Tracker tracker(Direction direction, Dimension dimension) {
+		return trackers[index(direction, dimension)];
+	}
+
+	private static int index(Direction direction, Dimension dimension) {
+		return direction.ordinal()*Dimension.values().length + dimension.ordinal();
+	}
+
+	private static String mask(String key) {
+		return key.length()<=4 ? "****" : key.substring(0, 4)+"...";
+	}
+
+	// the heaviest of each kind, its rates and its share of all points counted
+	private void registerGauges() {
+		for (final Direction direction: Direction.values()) {
+			for (final Dimension dimension: Dimension.values()) {
+				final Tracker tracker = tracker(direction, dimension);
+				String[] name = { direction.name().toLowerCase(), dimension.name().toLowerCase(), "top" };
+				EngineMetrics.gauge(new Gauge<Double>() {
+					public Double getValue() {
+						drain();
+						List<Hitter> top = tracker.top(Measure.POINTS, 1);
+						return top.isEmpty() ? 0.0 : top.get(0).getPointsPerSecond();
+					}
+				}, "heavy-hitters", name[0], name[1], name[2], "points-per-second");
+				EngineMetrics.gauge(new Gauge<Double>() {
+					public Double getValue() {
+						drain();
+						List<Hitter> top = tracker.top(Measure.BYTES, 1);
+						return top.isEmpty() ? 0.0 : top.get(0).getBytesPerSecond();
+					}
+				}, "heavy-hitters", name[0], name[1], name[2], "bytes-per-second");
+				EngineMetrics.gauge(new Gauge<Double>() {
+					public Double getValue() {
+						drain();
+						return tracker.topShare();
+					}
+				}, "heavy-hitters", name[0], name[1], name[2], "share");
+			}
+		}
+	}
+
+	// one direction and dimension, both measures
+	private class Tracker {
+		private final Window points = new Window();
+		private final Window bytes = new Window();
+		private long epoch = started/bucketMillis; // bucket the newest counts go to
+
+		synchronized void add(Collection<Pending> counts) {
+			advance();
+			for (Pending count: counts) {
+				long hash = CountMinSketch.hash(count.id);
+				if (count.points>0) { points.add(hash, count.id, count.label, count.points); }
+				if (count.bytes>0)  { bytes.add(hash, count.id, count.label, count.bytes); }
+			}
+		}
+
+		synchronized List<Hitter> top(Measure by, int limit) {
+			advance();
+			long now = System.currentTimeMillis();
+			// the ring holds between buckets-1 and buckets worth of time, less just after start
+			double seconds = Math.max(1000, Math.min(now-started, (buckets-1)*bucketMillis + now%bucketMillis))/1000.0;
+			List<Candidate> heaviest = (by==Measure.POINTS ? points : bytes).heaviest();
+			List<Hitter> top = new ArrayList<Hitter>(Math.min(limit, heaviest.size()));
+			for (Candidate candidate: heaviest) {
+				if (top.size()>=limit) { break; }
+				long p = points.sum.estimate(candidate.hash);
+				long b = bytes.sum.estimate(candidate.hash);
+				top.add(new Hitter(candidate.label, p, b, p/seconds, b/seconds));
+			}
+			return top;
+		}
+
+		synchronized double topShare() {
+			advance();
+			List<Candidate> heaviest = points.heaviest();
+			if (heaviest.isEmpty() || points.sum.getTotal()<=0) { return 0.0; }
+			return (double)heaviest.get(0).count / points.sum.getTotal();
+		}
+
+		synchronized void clear() {
+			points.clear();
+			bytes.clear();
+		}
+
+		// expire the buckets that have fallen out of the window
+		private void advance() {
+			long bucket = System.currentTimeMillis()/bucketMillis;
+			if (bucket<=epoch) { return; }
+			long steps = Math.min(bucket-epoch, buckets);
+			for (long i=0; i<steps; i++) {
+				points.expire();
+				bytes.expire();
+			}
+			epoch = bucket;
+			points.refresh();
+			bytes.refresh();
+		}
+	}
+
+	// one measure over the window, guarded by its Tracker
+	private class Window {
+		private final CountMinSketch[] ring = new CountMinSketch[buckets];
+		private final CountMinSketch sum = new CountMinSketch(width, depth); // of the ring
+		// up to twice capacity, trimmed back to the largest capacity of them
+		private final Map<String, Candidate> candidates = new HashMap<String, Candidate>();
+		private long floor = 0; // smallest estimate kept by the last trim
+		private int current;
+
+		Window() {
+			for (int i=0; i<ring.length; i++) { ring[i] = new CountMinSketch(width, depth); }
+		}
+
+		void add(long hash, String id, String label, long count) {
+			ring[current].add(hash, count);
+			sum.add(hash, count);
+			long estimate = sum.estimate(hash);
+			Candidate candidate = candidates.get(id);
+			if (candidate!=null) {
+				candidate.count = estimate;
+				return;
+			}
+			if (candidates.size()>=capacity && estimate<=floor) { return; }
+			candidates.put(id, new Candidate(id, label, hash, estimate));
+			if (candidates.size()>=2*capacity) { trim(); }
+		}
+
+		// keep the capacity largest candidates
+		private void trim() {
+			if (candidates.size()<=capacity) { floor = 0; return; }
+			List<Candidate> sorted = new ArrayList<Candidate>(candidates.values());
+			Collections.sort(sorted, LARGEST);
+			for (int i=capacity; i<sorted.size(); i++) { candidates.remove(sorted.get(i).id); }
+			floor = sorted.get(capacity-1).count;
+		}
+
+		// the oldest bucket leaves the sum and becomes the newest
+		void expire() {
+			current = (current+1)%ring.length;
+			sum.subtract(ring[current]);
+			ring[current].clear();
+		}
+
+		void refresh() {
+			Iterator<Candidate> it = candidates.values().iterator();
+			while (it.hasNext()) {
+				Candidate candidate = it.next();
+				candidate.count = sum.estimate(candidate.hash);
+				if (candidate.count<=0) { it.remove(); }
+			}
+			trim();
+		}
+
+		List<Candidate> heaviest() {
+			List<Candidate> heaviest = new ArrayList<Candidate>(candidates.values());
+			Collections.sort(heaviest, LARGEST);
+			return heaviest.size()>capacity ? heaviest.subList(0, capacity) : heaviest;
+		}
+
+		void clear() {
+			for (CountMinSketch sketch: ring) { sketch.clear(); }
+			sum.clear();
+			candidates.clear();
+			floor = 0;
+		}
+	}
+
+	// counts of one id since the last drain
+	private static class Pending {
+		final String id;
+		final String label;
+		long points;
+		long bytes;
+
+		Pending(String id, String label) {
+			this.id = id;
+			this.label = label;
+		}
+	}
+
+	// one thread's counts, its lock only contended by the drain
+	private class Buffer {
+		private final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+		@SuppressWarnings("unchecked")
+		private Map<String, Pending>[] counts = new Map[trackers.length];
+
+		synchronized void add(int tracker, String id, String label, long points, long bytes) {
+			Map<String, Pending> map = counts[tracker];
+			if (map==null) { map = counts[tracker] = new HashMap<String, Pending>(); }
+			Pending pending = map.get(id);
+			if (pending==null) {
+				pending = new Pending(id, label);
+				map.put(id, pending);
+			}
+			pending.points += points;
+			pending.bytes += bytes;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized Map<String, Pending>[] take() {
+			Map<String, Pending>[] taken = counts;
+			counts = new Map[trackers.length];
+			return taken;
+		}
+
+		// the thread has gone, nothing more will be added
+		boolean isOrphaned() {
+			Thread thread = owner.get();
+			return thread==null || !thread.isAlive();
+		}
+	}
+
+	private static class Candidate {
+		final String id;
+		final String label;
+		final long hash;
+		long count;
+
+		Candidate(String id, String label, long hash, long count) {
+			this.id = id;
+			this.label = label;
+			this.hash = hash;
+			this.count = count;
+		}
+	}
+
+	public static class Hitter {
+		private final String id;
+		private final long points;
+		private final long bytes;
+		private final double pointsPerSecond;
+		private final double bytesPerSecond;
+
+		public Hitter(String id, long points, long bytes, double pointsPerSecond, double bytesPerSecond) {
+			this.id = id;
+			this.points = points;
+			this.bytes = bytes;
+			this.pointsPerSecond = pointsPerSecond;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		public String getId()									{ return id; }
+		public long getPoints()								{ return points; }
+		public long getBytes()								{ return bytes; }
+		public double getPointsPerSecond()		{ return pointsPerSecond; }
+		public double getBytesPerSecond()			{ return bytesPerSecond; }
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: The keys that have been seen to match, with who they belong to, so
+ * the RateLimiter can tell a user's own devices from anyone naming the user in a
+ * URL without going to the database. A key is put here by the isAuthorised()
+ * checks of User, Resource and Stream once it matched, and is forgotten when it
+ * has not matched for a while, so a changed key stops counting soon after.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+public enum InMemoryKeyCache {
+
+	// Provide a global singleton for the application
+	INSTANCE;
+
+	// who a key was seen to belong to
+	public static class Owner {
+		private final long user;
+		private final long resource; // -1 for a user's own key
+		private final String label;
+
+		Owner(long user, long resource, String label) {
+			this.user = user;
+			this.resource = resource;
+			this.label = label;
+		}
+
+		// the user as named in a URL, by id
+		public boolean isUser(String user) {
+			return String.valueOf(this.user).equals(user);
+		}
+
+		// the resource as named in a URL, by id or label. A user's key covers all of theirs
+		public boolean covers(String resource) {
+			if (this.resource==-1) { return true; }
+			return String.valueOf(this.resource).equals(resource) || (label!=null && label.equals(resource));
+		}
+	}
+
+	private final Cache<String, Owner> keys = CacheBuilder
+		.newBuilder()
+		.expireAfterWrite(15, TimeUnit.MINUTES)
+		.maximumSize(100000)
+		.build();
+
+	// null unless the key was seen to match lately
+	public Owner get(String key) {
+		if (key==null || "".equals(key)) { return null; }
+		return keys.getIfPresent(key);
+	}
+
+	public void userKey(String key, long userId) {
+		keys.put(key, new Owner(userId, -1, null));
+	}
+
+	public void resourceKey(String key, long userId, long resourceId, String label) {
+		keys.put(key, new Owner(userId, resourceId, label));
+	}
+
+	public void invalidateAll() {
+		keys.invalidateAll();
+	}
+}
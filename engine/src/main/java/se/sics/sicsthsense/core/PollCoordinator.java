@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: In cluster mode, takes rebuild requests for pollers at
+ * /user/poll-coordinator on every node and sends each on to the coordinator of
+ * the node owning the resource, see ClusterNode.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.io.Serializable;
+
+import akka.actor.UntypedActor;
+
+public class PollCoordinator extends UntypedActor {
+	public static final String NAME = "poll-coordinator";
+
+	private final PollSystem pollSystem;
+	private final ClusterNode node;
+
+	// rebuild the poller of a resource, forwarded once from a node that does not own it
+	public static class Rebuild implements Serializable {
+		private static final long serialVersionUID = 1L;
+		public final long resourceId;
+		public final boolean forwarded;
+
+		public Rebuild(long resourceId, boolean forwarded) {
+			this.resourceId = resourceId;
+			this.forwarded = forwarded;
+		}
+	}
+
+	public PollCoordinator(PollSystem pollSystem, ClusterNode node) {
+		this.pollSystem = pollSystem;
+		this.node = node;
+	}
+
+	@Override
+	public void onReceive(Object message) throws Exception {
+		if (message instanceof Rebuild) {
+			Rebuild rebuild = (Rebuild)message;
+			String owner = node.owner(rebuild.resourceId);
+			if (owner==null) { return; } // not up yet, the first rebalance reads it from the database
+			if (owner.equals(node.getSelf()) || rebuild.forwarded) { // views of the ring may differ for a moment, the next rebalance settles it
+				pollSystem.rebuildLocalPoller(rebuild.resourceId);
+			} else {
+				node.select(owner, NAME).tell(new Rebuild(rebuild.resourceId, true), getSelf());
+			}
+		} else {
+			unhandled(message);
+		}
+	}
+}
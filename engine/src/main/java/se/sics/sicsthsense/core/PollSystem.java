@@ -23,14 +23,19 @@
  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
 
-/* Description:
+/* Description: One poller actor per polled resource, each probed every polling
+ * period. In cluster mode a node only polls the resources it owns, see ClusterNode,
+ * moving pollers when nodes join or leave.
  * TODO:
  * */
 package se.sics.sicsthsense.core;
 
 import java.util.List;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,9 +48,13 @@ import akka.event.LoggingAdapter;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.Cancellable;
+import akka.actor.InvalidActorNameException;
+import com.codahale.metrics.Gauge;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.IngestMetrics;
 import se.sics.sicsthsense.core.*;
 import se.sics.sicsthsense.jdbi.StorageDAO;
 
@@ -57,6 +66,8 @@ public class PollSystem {
 	private ActorSystem system;
 	public Map<Long, ActorRef> actors;
 	public Map<Long, Cancellable> killSwitches;
+	private ClusterNode node;       // null unless clustered
+	private ActorRef coordinator;
 
 	// Static methods to ensure single instance
 	public static PollSystem getInstance() {
@@ -72,12 +83,28 @@ public class PollSystem {
 		this.mapper = new ObjectMapper();
 	}
 
-	public void createPollers() {
+	public synchronized void createPollers() {
 		logger.info("Starting polling...");
-		system = ActorSystem.create("SicsthAkkaSystem");
-
 		actors = new HashMap<Long, ActorRef>(1000);
 		killSwitches = new HashMap<Long, Cancellable>(1000);
+		EngineMetrics.gauge(new Gauge<Integer>() {
+			public Integer getValue() {
+				synchronized (PollSystem.this) { return killSwitches.size(); }
+			}
+		}, "poll", "scheduled");
+
+		node = ClusterNode.getInstance();
+		if (node!=null) { // polling starts with the first rebalance, once this node is up
+			system = node.getSystem();
+			coordinator = system.actorOf(Props.create(PollCoordinator.class, this, node), PollCoordinator.NAME);
+			node.addListener(new ClusterNode.Listener() {
+				public void membershipChanged(ClusterNode node) {
+					rebalance();
+				}
+			});
+			return;
+		}
+		system = ActorSystem.create("SicsthAkkaSystem");
 		List<Resource> toPoll = storage.findPolledResources();
 
 		// for each polled resource
@@ -85,20 +112,26 @@ public class PollSystem {
 			createPoller(resource.getId(), resource.getLabel(), resource.getPolling_url(), resource.getPolling_period(), null);
 		}
 	}
+
 	public void createPoller(long resourceId) {
 		Resource resource = storage.findResourceById(resourceId);
 		createPoller(resource);
 	}
-	public void createPoller(Resource resource) {
+	public synchronized void createPoller(Resource resource) {
 		createPoller(resource.getId(), resource.getLabel(), resource.getPolling_url(), resource.getPolling_period(), null);
 	}
 
-	public void createPoller(long resourceId, String name, String url, long period, String auth) {
+	public synchronized void createPoller(long resourceId, String name, String url, long period, String auth) {
 		logger.info("Making poller: "+name+" on: "+url);
 
 		ActorRef actorRef = actors.get(resourceId);
 		if (actorRef==null) {
-			actorRef = system.actorOf( Props.create(Poller.class,storage,mapper,resourceId,url), String.valueOf(resourceId));
+			Props props = Props.create(Poller.class,storage,mapper,resourceId,url);
+			try {
+				actorRef = system.actorOf(props, String.valueOf(resourceId));
+			} catch (InvalidActorNameException e) { // moved away and back before the old one stopped
+				actorRef = system.actorOf(props);
+			}
 			actors.put(resourceId, actorRef);
 		}
 		if (period > 0 && url!=null && url!="") {
@@ -110,12 +143,22 @@ public class PollSystem {
 		}
 	}
 
-	// tell specified poller to rebuild from the database
+	// tell specified poller to rebuild from the database, on whichever node polls it
 	public void rebuildResourcePoller(long resourceId) {
+		if (coordinator!=null) {
+			coordinator.tell(new PollCoordinator.Rebuild(resourceId, false), ActorRef.noSender());
+			return;
+		}
+		rebuildLocalPoller(resourceId);
+	}
+
+	public synchronized void rebuildLocalPoller(long resourceId) {
 		Resource resource = storage.findResourceById(resourceId);
 		if (resource==null) { // it may have been deleted
 			logger.error("No resource with ID: "+resourceId);
-			killSwitches.remove(resourceId);
+			Cancellable killSwitch = killSwitches.remove(resourceId);
+			if (killSwitch!=null) { killSwitch.cancel(); } // stop polling it
+			IngestMetrics.getInstance().forgetResource(resourceId);
 			return;
 		}
 		Cancellable killSwitch = killSwitches.get(resourceId);
@@ -128,4 +171,33 @@ public class PollSystem {
 		createPoller(resource);
 	}
 
+	// poll what this node owns, stop polling the rest
+	public synchronized void rebalance() {
+		List<Resource> toPoll = storage.findPolledResources();
+		Set<Long> owned = new HashSet<Long>();
+		int started = 0;
+		for (Resource resource: toPoll) {
+			if (!node.owns(resource.getId())) { continue; }
+			owned.add(resource.getId());
+			if (!killSwitches.containsKey(resource.getId())) {
+				createPoller(resource);
+				started++;
+			}
+		}
+		int stopped = 0;
+		for (Long resourceId: new ArrayList<Long>(actors.keySet())) {
+			if (owned.contains(resourceId)) { continue; }
+			stopPoller(resourceId);
+			stopped++;
+		}
+		logger.info("Polling "+owned.size()+" of "+toPoll.size()+" resources across "+node.getRing().size()+" nodes, started "+started+", stopped "+stopped);
+	}
+
+	private void stopPoller(long resourceId) {
+		Cancellable killSwitch = killSwitches.remove(resourceId);
+		if (killSwitch!=null) { killSwitch.cancel(); }
+		ActorRef actorRef = actors.remove(resourceId);
+		if (actorRef!=null) { system.stop(actorRef); }
+		IngestMetrics.getInstance().forgetResource(resourceId);
+	}
 }
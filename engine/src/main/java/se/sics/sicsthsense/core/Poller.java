@@ -23,7 +23,11 @@
  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
 
-/* Description:
+/* Description: Polls one resource. On each "probe" the fetch runs on the poll
+ * bulkhead and the payload is parsed and stored on the parse bulkhead, see
+ * Bulkheads, so the actor's dispatcher never waits on the network or the
+ * database. The actor hears PROBED when the poll is over; a probe arriving before
+ * then is skipped and a rebuild waits for it.
  * TODO:
  * */
 package se.sics.sicsthsense.core;
@@ -36,9 +40,11 @@ import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.MalformedURLException;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import akka.actor.ActorRef;
 import akka.actor.UntypedActor;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -48,10 +54,15 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.IngestMetrics;
 import se.sics.sicsthsense.model.ParseData;
 import se.sics.sicsthsense.jdbi.StorageDAO;
 
@@ -69,6 +80,8 @@ import org.eclipse.californium.scandium.dtls.pskstore.InMemoryPskStore;
 
 public class Poller extends UntypedActor {
 	private final Logger logger = LoggerFactory.getLogger(Poller.class);
+	private static final String PROBED = "probed"; // the last poll is over
+	private static final Meter skipped = EngineMetrics.meter("poll", "skipped");
 	public long resourceId;
 	public String url;
 	private ObjectMapper mapper;
@@ -77,7 +90,10 @@ public class Poller extends UntypedActor {
 	private URI uriobj;
 	private String inputLine;
 	private List<Parser> parsers;
+	private Resource resource;
         private CoapClient secureclient = null;
+	private boolean probing = false; // a poll is running on the bulkheads
+	private boolean stale = false;   // rebuild once it is over
         
         private static final String TRUST_STORE_PASSWORD = "rootPass";
 	private final static String KEY_STORE_PASSWORD = "endPass";
@@ -98,6 +114,7 @@ public class Poller extends UntypedActor {
 		logger.info("Making a poller for resource "+resourceId+" on url "+url);
 		Resource resource = storage.findResourceById(resourceId);
 		if (resource==null) {logger.error("Resource does not exist: "+resourceId); return; }
+		this.resource = resource;
 		this.url=resource.getPolling_url();
 		if (this.url==null || this.url.equals("")) {
 			logger.error("Url not valid");
@@ -170,6 +187,15 @@ public class Poller extends UntypedActor {
 	}
 
 	public void applyParsers(long resourceId, String data) {
+		Timer.Context timer = IngestMetrics.getInstance().pollParse.time();
+		try {
+			parse(resourceId, data);
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private void parse(long resourceId, String data) {
 		boolean parsedSuccessfully = true;
 		String allMsgs = "";
 		String synopsis;
@@ -185,10 +211,13 @@ public class Poller extends UntypedActor {
 		//logger.info("Applying all parsers to data: "+synopsis);
 		if (parsers.size()==0) {logger.error("No parsers exist!"); return;}
 
+		int points = 0;
 		for (Parser parser: parsers) {
 			//logger.info("Applying a parser "+parser.getInput_parser());
 			try {
-				parsedata.apply(parser,data, timestamp);
+				int parsed = parsedata.apply(parser,data, timestamp);
+				HeavyHitters.wroteStream(parser.getStream_id(), parsed, data.length());
+				points += parsed;
 				String msg = "Parser succeeded: "+parser+"\n";
 				allMsgs += msg;
 			} catch (Exception e) {
@@ -200,8 +229,10 @@ public class Poller extends UntypedActor {
 				parsedSuccessfully=false;
 			}
 		}
+		IngestMetrics.getInstance().points(IngestMetrics.Source.POLL).mark(points);
+		if (resource!=null) { HeavyHitters.wrote(resource, null, points, data.length()); }
         // should bunch all notifications here!
-		try { for (Long stream_id: toUpdate) {Stream.notifyDependents(storage, stream_id.longValue());}
+		try { DependencyPropagator.getInstance().ingested(toUpdate);
 		} catch (Exception e) { logger.error("Children not accepting notification!");}
 
 		ResourceLog rl = ResourceLog.createOrUpdate(storage, resourceId);
@@ -214,69 +245,149 @@ public class Poller extends UntypedActor {
 		//logger.info("Received String message: to probe: {}");
     if (message instanceof String) {
 			if (message.equals("rebuild")) {
-				rebuild();
+				if (probing) { stale = true; } else { rebuild(); }
+			} else if (message.equals(PROBED)) {
+				probing = false;
+				if (stale) { stale = false; rebuild(); }
 			} else { // "probe"
 				//logger.info("Received String message: to probe: {}", url);
 				//getSender().tell(message, getSelf());
 				if (uriobj==null) { logger.error("URL object was null!"); return;}
-				if(uriobj.getScheme().equals("http") || uriobj.getScheme().equals("https")){
-                                        HttpURLConnection con = (HttpURLConnection)uriobj.toURL().openConnection();
-                                        con.setRequestMethod("GET"); // optional default is GET
-                                        con.setInstanceFollowRedirects(true);
-                                        con.setRequestProperty("User-Agent", "SICSthSense"); //add request header
+				if (probing) { skipped.mark(); return; } // the last poll is still going
+				probing = true;
+				final ActorRef self = getSelf();
+				try {
+					Bulkheads.execute(Bulkheads.POLL, new Runnable() {
+						public void run() { poll(self); }
+					});
+				} catch (RejectedExecutionException e) {
+					probing = false;
+					failed("Poll refused: "+e.getMessage());
+				}
+			}
+    } else {
+            unhandled(message);
+    }
+  }
+
+	// on the poll bulkhead: fetch, then hand the payload on to the parse bulkhead.
+	// Unless the parse task has it, PROBED is sent here whatever happens, or the
+	// actor would skip every later poll
+	private void poll(final ActorRef self) {
+		boolean handedOff = false;
+		Trace trace = Trace.begin("poll of resource", resourceId);
+		try {
+			final String payload = probe();
+			if (payload==null) { return; }
+			Bulkheads.execute(Bulkheads.PARSE, new Runnable() {
+				public void run() {
+					Trace trace = Trace.begin("parse of resource", resourceId);
+					try {
+						applyParsers(resourceId, payload);
+					} finally {
+						Trace.end(trace);
+						self.tell(PROBED, ActorRef.noSender());
+					}
+				}
+			});
+			handedOff = true;
+		} catch (RejectedExecutionException e) {
+			logger.warn("Poll of resource "+resourceId+" refused: "+e.getMessage());
+			try {
+				failed("Poll refused: "+e.getMessage());
+			} catch (RuntimeException ignored) {}
+		} catch (RuntimeException e) {
+			logger.error("Poll of resource "+resourceId+" failed: "+e);
+		} finally {
+			Trace.end(trace);
+			if (!handedOff) { self.tell(PROBED, ActorRef.noSender()); }
+		}
+	}
 
+	// fetch the resource, null if that failed. Each phase is timed, see IngestMetrics
+	private String probe() {
+				IngestMetrics metrics = IngestMetrics.getInstance();
+				long started = System.nanoTime();
+				if (!resolve(metrics)) { return null; }
+				if(uriobj.getScheme().equals("http") || uriobj.getScheme().equals("https")){
                                         try {
+                                                HttpURLConnection con = (HttpURLConnection)uriobj.toURL().openConnection();
+                                                con.setRequestMethod("GET"); // optional default is GET
+                                                con.setInstanceFollowRedirects(true);
+                                                con.setRequestProperty("User-Agent", "SICSthSense"); //add request header
+
+                                                Timer.Context phase = metrics.connect.time();
+                                                con.connect();
+                                                phase.stop();
+                                                phase = metrics.firstByte.time();
                                                 int responseCode = con.getResponseCode();
+                                                phase.stop();
                                                 //logger.info("Sending 'GET' request to URL : " + url+" Response Code : " + responseCode);
 
+                                                phase = metrics.body.time();
                                                 BufferedReader in = new BufferedReader( new InputStreamReader(con.getInputStream()));
                                                 StringBuffer response = new StringBuffer();
                                                 while ((inputLine = in.readLine()) != null) { response.append(inputLine); }
                                                 in.close();
+                                                phase.stop();
 
                                                 storage.polledResource(resourceId,System.currentTimeMillis());
                                                 //System.out.println(response.toString());
-                                                applyParsers(resourceId,response.toString());
+                                                metrics.polled(resourceId, System.nanoTime()-started, true);
+                                                return response.toString();
                                         } catch (Exception e) {
-                                                ResourceLog rl = ResourceLog.createOrUpdate(storage, resourceId);
-                                                String msg = "Network problem: "+e+" URL: "+url;
-                                                //logger.error(msg);
-                                                //e.printStackTrace();
-                                                rl.update(false, true, msg, System.currentTimeMillis());
-                                                rl.save();
+                                                failed("Network problem: "+e+" URL: "+url);
                                         }
                                         
                                 } else if(uriobj.getScheme().equals(CoAP.COAP_URI_SCHEME)){
                                         CoapClient client = new CoapClient(uriobj);
                                         CoapResponse response = null;
+                                        Timer.Context phase = metrics.firstByte.time(); // the whole exchange, there is no connection
                                         response = client.get(MediaTypeRegistry.TEXT_PLAIN);
                                         if (response != null) {
+                                                phase.stop();
                                                 storage.polledResource(resourceId,System.currentTimeMillis());
-                                                applyParsers(resourceId,response.getResponseText());
+                                                metrics.polled(resourceId, System.nanoTime()-started, true);
+                                                return response.getResponseText();
                                         } else {
-                                                ResourceLog rl = ResourceLog.createOrUpdate(storage, resourceId);
-                                                String msg = "Network problem CoAP URL: "+url;
-                                                rl.update(false, true, msg, System.currentTimeMillis());
-                                                rl.save();
+                                                failed("Network problem CoAP URL: "+url);
                                         }
                                         
                                 } else if(uriobj.getScheme().equals(CoAP.COAP_SECURE_URI_SCHEME)){
                                         secureclient.setURI(uriobj.toString());
                                         CoapResponse response = null;
+                                        Timer.Context phase = metrics.firstByte.time();
                                         response = secureclient.get(MediaTypeRegistry.TEXT_PLAIN);
                                         if (response != null) {
+                                                phase.stop();
                                                 storage.polledResource(resourceId,System.currentTimeMillis());
-                                                applyParsers(resourceId,response.getResponseText());
+                                                metrics.polled(resourceId, System.nanoTime()-started, true);
+                                                return response.getResponseText();
                                         } else {
-                                                ResourceLog rl = ResourceLog.createOrUpdate(storage, resourceId);
-                                                String msg = "Network problem CoAPs URL: "+url;
-                                                rl.update(false, true, msg, System.currentTimeMillis());
-                                                rl.save();
+                                                failed("Network problem CoAPs URL: "+url);
                                         }
                                 }
-			}
-    } else {
-            unhandled(message);
-    }
-  }
+				return null;
+	}
+
+	// time the name lookup on its own, the JVM then has the address cached for the request
+	private boolean resolve(IngestMetrics metrics) {
+		Timer.Context phase = metrics.dns.time();
+		try {
+			InetAddress.getByName(uriobj.getHost());
+			phase.stop();
+			return true;
+		} catch (UnknownHostException e) {
+			failed("Network problem: unknown host "+uriobj.getHost()+" URL: "+url);
+			return false;
+		}
+	}
+
+	private void failed(String msg) {
+		IngestMetrics.getInstance().polled(resourceId, 0, false);
+		ResourceLog rl = ResourceLog.createOrUpdate(storage, resourceId);
+		//logger.error(msg);
+		rl.update(false, true, msg, System.currentTimeMillis());
+		rl.save();
+	}
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Columnar answer to a multi-stream query. When the query was aligned all
+ * columns share the top level timestamps, otherwise each column carries its own.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+@JsonInclude(Include.NON_NULL)
+public class QueryResult {
+	@JsonProperty
+	protected String fill;
+	@JsonProperty
+	protected long[] timestamps;
+	@JsonProperty
+	protected List<Column> streams;
+
+	public QueryResult(String fill) {
+		this.fill = fill;
+		this.streams = new ArrayList<Column>();
+	}
+
+	@JsonInclude(Include.NON_NULL)
+	public static class Column {
+		@JsonProperty
+		protected long id;
+		// the name the stream was requested by
+		@JsonProperty
+		protected String name;
+		@JsonProperty
+		protected long[] timestamps;
+		// null where an aligned stream has no value for the grid point
+		@JsonProperty
+		protected Double[] values;
+
+		public Column(long id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		public long getId()								{ return id; }
+		public String getName()						{ return name; }
+		public long[] getTimestamps()			{ return timestamps; }
+		public Double[] getValues()				{ return values; }
+
+		public void setTimestamps(long[] timestamps)	{ this.timestamps = timestamps; }
+		public void setValues(Double[] values)				{ this.values = values; }
+	}
+
+	public String getFill()							{ return fill; }
+	public long[] getTimestamps()				{ return timestamps; }
+	public List<Column> getStreams()		{ return streams; }
+
+	public void setTimestamps(long[] timestamps)	{ this.timestamps = timestamps; }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Rate limits and admission control for requests from outside. Each
+ * user, resource and API key has a TokenBucket; a request takes a token from each
+ * of the ones it names, and is turned away, with the tokens it took given back,
+ * if any of them is empty, so one busy device can not use up its owner's share
+ * and the owner's other devices' with it. Only a key already seen to match, see
+ * InMemoryKeyCache, charges the buckets of the user and resource it belongs to;
+ * a request without one, or naming someone else's user or resource, is charged
+ * to a bucket of its client address instead, so nobody can use up a user's share
+ * by naming the user in a URL. Buckets are made on first use and
+ * dropped when idle. Once a second the mean ingest latency of the last second,
+ * smoothed, is compared to the targets: above targetLatency low priority requests
+ * are turned away, above maxLatency normal ones as well, until it has fallen well
+ * below again. Checked before anything is read from the database, see
+ * RateLimitFilter and the CoAP data resources. Null when disabled, the static
+ * methods then let everything through.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.RateLimitConfiguration;
+import se.sics.sicsthsense.RateLimitConfiguration.Limit;
+
+public class RateLimiter {
+	private static final Logger logger = LoggerFactory.getLogger(RateLimiter.class);
+	// how often the ingest latency is looked at, ms
+	public static final long TICK = 1000;
+	// a latency target that was exceeded is met again below this share of it
+	private static final double HYSTERESIS = 0.8;
+
+	public enum Priority { LOW, NORMAL }
+
+	private static volatile RateLimiter singleton;
+
+	private final Limit defaults;
+	private final Map<String, Limit> users;
+	private final Map<String, Limit> resources;
+	private final long targetLatency;
+	private final long maxLatency;
+	private final long idleTimeout;
+	private final long bulkSize;
+	private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+	private final ScheduledExecutorService ticker;
+
+	// ingest latency since the last tick, ns
+	private final AtomicLong latencySum = new AtomicLong();
+	private final AtomicLong latencyCount = new AtomicLong();
+	private volatile double latency; // smoothed, ms
+	private volatile Priority shedding; // highest priority turned away, null when none
+
+	private final Meter limitedUsers = EngineMetrics.meter("rate-limits", "limited", "user");
+	private final Meter limitedResources = EngineMetrics.meter("rate-limits", "limited", "resource");
+	private final Meter limitedKeys = EngineMetrics.meter("rate-limits", "limited", "key");
+	private final Meter limitedClients = EngineMetrics.meter("rate-limits", "limited", "client");
+	private final Meter shedLow = EngineMetrics.meter("rate-limits", "shed", "low");
+	private final Meter shedNormal = EngineMetrics.meter("rate-limits", "shed", "normal");
+
+	// why a request was turned away and when to try again
+	public static class Rejection {
+		private final boolean overloaded;
+		private final long retryAfter;
+		private final String reason;
+
+		Rejection(boolean overloaded, long retryAfter, String reason) {
+			this.overloaded = overloaded;
+			this.retryAfter = retryAfter;
+			this.reason = reason;
+		}
+
+		// turned away by admission control rather than by a rate limit
+		public boolean isOverloaded()			{ return overloaded; }
+		public long getRetryAfter()				{ return retryAfter; }
+		// whole seconds, as in Retry-After and Max-Age
+		public long getRetryAfterSeconds()	{ return Math.max(1, (retryAfter+999)/1000); }
+		public String getReason()					{ return reason; }
+	}
+
+	public static RateLimiter getInstance() {
+		return singleton;
+	}
+	public static synchronized RateLimiter build(RateLimitConfiguration config) {
+		if (singleton!=null) { singleton.shutdown(); }
+		singleton = config.isEnabled() ? new RateLimiter(config) : null;
+		return singleton;
+	}
+
+	public RateLimiter(RateLimitConfiguration config) {
+		this.defaults = new Limit(config.getRate(), config.getBurst());
+		this.users = config.getUsers();
+		this.resources = config.getResources();
+		this.targetLatency = config.getTargetLatency();
+		this.maxLatency = config.getMaxLatency();
+		this.idleTimeout = config.getIdleTimeout();
+		this.bulkSize = config.getBulkSize();
+		this.ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "rate-limiter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		ticker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					tick();
+				} catch (Exception e) {
+					logger.error("Rate limiter tick failed: "+e);
+				}
+			}
+		}, TICK, TICK, TimeUnit.MILLISECONDS);
+		EngineMetrics.gauge(new Gauge<Double>() {
+			public Double getValue() { return latency; }
+		}, "rate-limits", "latency");
+		EngineMetrics.gauge(new Gauge<Integer>() {
+			public Integer getValue() { Priority p = shedding; return p==null ? 0 : p.ordinal()+1; }
+		}, "rate-limits", "shedding");
+		EngineMetrics.gauge(new Gauge<Integer>() {
+			public Integer getValue() { return buckets.size(); }
+		}, "rate-limits", "buckets");
+	}
+
+	public void shutdown() {
+		ticker.shutdownNow();
+	}
+
+	// Whether a request may go ahead, null if so. user, resource and key are as given
+	// in the request, null when it has none, client is the address it came from.
+	public static Rejection admit(String user, String resource, String key, String client, Priority priority) {
+		RateLimiter limiter = singleton;
+		if (limiter==null) { return null; }
+		return limiter.check(user, resource, key, client, priority);
+	}
+
+	// a write of this many bytes is a bulk import, low priority
+	public static Priority ofWrite(long bytes) {
+		RateLimiter limiter = singleton;
+		return limiter!=null && bytes>limiter.bulkSize ? Priority.LOW : Priority.NORMAL;
+	}
+
+	// how long one point took to be written, see Utils.insertDataPoint
+	public static void ingested(long nanos) {
+		RateLimiter limiter = singleton;
+		if (limiter==null) { return; }
+		limiter.latencySum.addAndGet(nanos);
+		limiter.latencyCount.incrementAndGet();
+	}
+
+	public Rejection check(String user, String resource, String key, String client, Priority priority) {
+		Priority shed = shedding;
+		if (shed!=null && priority.compareTo(shed)<=0) {
+			(priority==Priority.LOW ? shedLow : shedNormal).mark();
+			return new Rejection(true, TICK, "Overloaded, "+priority.name().toLowerCase()+" priority requests are turned away");
+		}
+		long now = System.nanoTime();
+		List<TokenBucket> taken = new ArrayList<TokenBucket>(3);
+		Rejection rejection = null;
+		InMemoryKeyCache.Owner owner = InMemoryKeyCache.INSTANCE.get(key);
+		if (owner==null || (user!=null && !owner.isUser(user))) { // unverified, on its own account
+			rejection = take("client", String.valueOf(client), null, limitedClients, now, taken);
+		} else {
+			if (user!=null) {
+				rejection = take("user", user, users.get(user), limitedUsers, now, taken);
+			}
+			if (rejection==null && resource!=null && owner.covers(resource)) {
+				rejection = take("resource", user+"/"+resource, resources.get(resource), limitedResources, now, taken);
+			}
+			if (rejection==null) {
+				rejection = take("key", key, null, limitedKeys, now, taken);
+			}
+		}
+		if (rejection!=null) {
+			for (TokenBucket bucket: taken) { bucket.refund(); }
+		}
+		return rejection;
+	}
+
+	private Rejection take(String kind, String id, Limit limit, Meter limited, long now, List<TokenBucket> taken) {
+		if (limit==null) { limit = defaults; }
+		if (limit.getRate()<=0) { return null; } // unlimited
+		String name = kind+":"+id;
+		TokenBucket bucket = buckets.get(name);
+		if (bucket==null) {
+			TokenBucket fresh = new TokenBucket(limit.getRate(), limit.getBurst(), now);
+			bucket = buckets.putIfAbsent(name, fresh);
+			if (bucket==null) { bucket = fresh; }
+		}
+		long wait = bucket.take(now);
+		if (wait==0) {
+			taken.add(bucket);
+			return null;
+		}
+		limited.mark();
+		return new Rejection(false, wait, "Over the limit of "+limit.getRate()+" requests per second for this "+kind);
+	}
+
+	public double getLatency() {
+		return latency;
+	}
+
+	public Priority getShedding() {
+		return shedding;
+	}
+
+	private void tick() {
+		long count = latencyCount.getAndSet(0);
+		long sum = latencySum.getAndSet(0);
+		// without writes there is nothing to measure, let the latency fall off
+		latency = count==0 ? latency/2 : (latency + sum/1e6/count)/2;
+		Priority previous = shedding;
+		shedding = level(previous);
+		if (shedding!=previous) {
+			if (shedding==null) {
+				logger.info("Ingest latency down to "+Math.round(latency)+" ms, all requests admitted");
+			} else {
+				logger.warn("Ingest latency at "+Math.round(latency)+" ms, turning away "+shedding.name().toLowerCase()+" priority requests");
+			}
+		}
+
+		long now = System.nanoTime();
+		long since = now - idleTimeout*1000000L;
+		Iterator<TokenBucket> it = buckets.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isIdle(now, since)) { it.remove(); }
+		}
+	}
+
+	private Priority level(Priority current) {
+		if (maxLatency>0 && latency > threshold(maxLatency, current==Priority.NORMAL)) { return Priority.NORMAL; }
+		if (targetLatency>0 && latency > threshold(targetLatency, current!=null)) { return Priority.LOW; }
+		return null;
+	}
+
+	// a target that was already exceeded is only met again well below it, so the level does not flap
+	private double threshold(long target, boolean exceeded) {
+		return exceeded ? target*HYSTERESIS : target;
+	}
+}
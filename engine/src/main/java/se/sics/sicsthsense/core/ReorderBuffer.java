@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Holds back the points written to one stream so they can be passed on
+ * in timestamp order although they arrive out of it. A point is released once the
+ * stream has a point lateness newer, or once it has been held for lateness, or early
+ * when more than maxBuffered points are held. A point that is not newer than one
+ * already released is late: the buffer refuses it and the caller has to correct
+ * what was computed without it. A second point at a held timestamp replaces the
+ * first, as the REPLACE in storage would.
+ * Used by a single StreamActor, so not thread-safe.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ReorderBuffer {
+	private final long lateness;
+	private final int maxBuffered;
+	// held points by timestamp
+	private final TreeMap<Long, Held> held = new TreeMap<Long, Held>();
+	private long newest = Long.MIN_VALUE;
+	private long released = Long.MIN_VALUE; // timestamp of the last point released
+	private long replaced = 0;
+
+	private static final class Held {
+		final DataPoint point;
+		final long arrived;
+		Held(DataPoint point, long arrived) {
+			this.point = point;
+			this.arrived = arrived;
+		}
+	}
+
+	public ReorderBuffer(long lateness, int maxBuffered) {
+		this.lateness = lateness;
+		this.maxBuffered = maxBuffered;
+	}
+
+	// hold the point, false if it is late and was not taken
+	public boolean add(DataPoint point, long now) {
+		long timestamp = point.getTimestamp();
+		if (timestamp<=released) { return false; }
+		if (held.put(timestamp, new Held(point, now))!=null) { replaced++; }
+		if (timestamp>newest) { newest = timestamp; }
+		return true;
+	}
+
+	// the points due by now, oldest first
+	public List<DataPoint> release(long now) {
+		List<DataPoint> due = new ArrayList<DataPoint>();
+		while (!held.isEmpty()) {
+			Map.Entry<Long, Held> first = held.firstEntry();
+			boolean overdue = first.getKey()<=newest-lateness || now-first.getValue().arrived>=lateness;
+			if (!overdue && held.size()<=maxBuffered) { break; }
+			due.add(take());
+		}
+		return due;
+	}
+
+	// every held point, oldest first
+	public List<DataPoint> drain() {
+		List<DataPoint> all = new ArrayList<DataPoint>(held.size());
+		while (!held.isEmpty()) { all.add(take()); }
+		return all;
+	}
+
+	private DataPoint take() {
+		Map.Entry<Long, Held> first = held.pollFirstEntry();
+		released = first.getKey();
+		return first.getValue().point;
+	}
+
+	// how long until the first held point is due if no newer points come, -1 when empty
+	public long nextDue(long now) {
+		if (held.isEmpty()) { return -1; }
+		return Math.max(0, held.firstEntry().getValue().arrived+lateness-now);
+	}
+
+	public boolean isEmpty()		{ return held.isEmpty(); }
+	public int size()						{ return held.size(); }
+	public long getReleased()		{ return released; }
+	// points that took the place of a held point with the same timestamp
+	public long getReplaced()		{ return replaced; }
+}
@@ -126,6 +126,7 @@ public class Resource {
 	}
 	public boolean isAuthorised(String key) {
 		if (this.secret_key.equals(key)) {
+			InMemoryKeyCache.INSTANCE.resourceKey(key, owner_id, id, label); // see RateLimiter
 			return true;
 		}
 		return false;
@@ -39,6 +39,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.codahale.metrics.Timer;
 
 import se.sics.sicsthsense.*;
 import se.sics.sicsthsense.jdbi.*;
@@ -134,9 +135,15 @@ public class Stream {
 
 	public boolean isReadable(StorageDAO storage, String token) {
 		if (public_access) {return true;}
-		if (token.equals(secret_key)) {return true;} // owners can read
+		if (token.equals(secret_key)) { // owners can read
+			InMemoryKeyCache.INSTANCE.resourceKey(token, owner_id, resource_id, null); // see RateLimiter
+			return true;
+		}
 		User owner = storage.findUserById(owner_id);
-		if (owner!=null && token.equals(owner.getToken())) {return true;} // owners can read
+		if (owner!=null && token.equals(owner.getToken())) { // owners can read
+			InMemoryKeyCache.INSTANCE.userKey(token, owner_id);
+			return true;
+		}
 		return false;
 	}
 	public boolean isReadable(User user) {
@@ -153,6 +160,11 @@ public class Stream {
 	public void update(StorageDAO storage) throws Exception {
 		long sid =getId();
 		//logger.info("Updating stream: "+sid);
+		StreamSystem streams = StreamSystem.getInstance();
+		if (streams!=null) { // serialised with the stream's other writes
+			streams.update(sid);
+			return;
+		}
 
 		List<Long> antecedents = storage.findAntecedents(getId());
 		if (antecedents==null) { logger.error("Antecedents are null! ID:"+getId()); return; }
@@ -161,7 +173,7 @@ public class Stream {
             // add to stream
             for (DataPoint p: newPoints) {
 			p.setStreamId(sid);
-			Utils.insertDataPoint(storage,p);
+			Utils.storeDataPoint(storage,p);
             }
             //notifyDependents();
         } catch (IOException e) {
@@ -169,53 +181,37 @@ public class Stream {
         }
 	}
 
+	// update the streams derived from this one, see DependencyPropagator
 	public void notifyDependents(StorageDAO storage) throws Exception {
-		//logger.info("Notify dependents of stream "+getId());
-		List<Long> dependents = storage.findDependents(getId());
-		// update dependents!
-		for (Long dependent: dependents) {
-			Stream ds = storage.findStreamById(dependent);
-			if (ds!=null) { ds.update(storage);
-			} else { logger.warn("Dependent stream not found, id:"+dependent); }
-		}
+		DependencyPropagator.getInstance().ingested(getId());
 	}
 	public static void notifyDependents(StorageDAO storage, long stream_id) throws Exception {
-		List<Long> dependents = storage.findDependents(stream_id);
-		// update dependents!
-		for (Long dependent: dependents) {
-			Stream ds = storage.findStreamById(dependent);
-			if (ds!=null) { ds.update(storage);
-			} else { System.out.println("Dependent stream not found, id:"+dependent); }
-		}
+		DependencyPropagator.getInstance().ingested(stream_id);
 	}
 
 	public List<DataPoint> performFunction(List<Long> antecedents) throws Exception {
-		Function function = null;
 		//logger.info("Performing function of stream "+getId());
 		if (antecedents==null) { logger.error("Antecedents are null!!"); return null;	}
 
 		// do nothing if the function is not set
 		if (this.getFunction()==null || this.getFunction()=="") {return new ArrayList<DataPoint>();}
 
-		if ("mean".equals(this.getFunction())) {
-			function = new Mean(storage);
-		} else if ("min".equals(this.getFunction())) {
-			function = new Min(storage);
-		} else if ("max".equals(this.getFunction())) {
-			function = new Max(storage);
-		} else if ("median".equals(this.getFunction())) {
-			function = new Median(storage);
-		} else if ("intensity".equals(this.getFunction())) {
-			function = new Intensity(storage,getId());
-		} else if ("smooth".equals(this.getFunction())) {
-			function = new Smooth(storage);
-		} else if ("meansmooth".equals(this.getFunction())) {
-			function = new MeanSmooth(storage);
-		} else {
-			logger.error("Unknown function "+this.getFunction()+"! Stream ID: "+getId());
+		try {
+			return FunctionRegistry.apply(storage, getId(), this.getFunction(), antecedents);
+		} catch (IllegalArgumentException e) {
+			logger.error("Bad function "+this.getFunction()+"! Stream ID: "+getId()+" "+e.getMessage());
 			return new ArrayList<DataPoint>();
 		}
-		return function.apply(antecedents);
+	}
+
+	// run the triggers of the point's stream, see TriggerSubscriber
+	public static void testTriggers(StorageDAO storage, DataPoint dp) {
+		Timer.Context timer = IngestMetrics.getInstance().triggers.time();
+		try {
+			for (Trigger t: TriggerSubscriber.triggersOf(storage, dp.getStreamId())) { t.test(dp); }
+		} finally {
+			timer.stop();
+		}
 	}
 
 	public void testTriggers(DataPoint dp) {
@@ -232,6 +228,7 @@ public class Stream {
 	}
 	public boolean isAuthorised(String key) {
 		if (this.secret_key.equals(key)) {
+			InMemoryKeyCache.INSTANCE.resourceKey(key, owner_id, resource_id, null); // see RateLimiter
 			return true;
 		}
 		return false;
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Single writer for one stream. Every insert into the stream and
+ * every recomputation of its function is a message to this actor, so they are
+ * applied one at a time and in arrival order without any locking. The actor keeps
+ * the stream's hot state: its definition, reloaded every few seconds, and the
+ * pending last_updated time, which is written at most once per touch interval.
+ * Live subscribers and triggers get the points through the StreamBus in the order
+ * they were written. After a period without messages, or when its stream moves to
+ * another node, the actor retires: StreamSystem forgets it, and for a grace period
+ * it passes any write still sent to it on to the stream's new actor before it
+ * stops, so a writer that looked it up just before is not left without a reply.
+ * With the reorder buffer enabled written points are still stored before the
+ * writer is answered, but held in a ReorderBuffer and published and propagated to
+ * derived streams when it releases them, in timestamp order. A late point, older
+ * than one already released, is not published; correctionDelay later the streams
+ * derived from this one are recomputed from the earliest late point on, see
+ * Backfill.correct.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import akka.actor.ReceiveTimeout;
+import akka.actor.Status;
+import akka.actor.UntypedActor;
+import scala.concurrent.duration.Duration;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.IngestMetrics;
+import se.sics.sicsthsense.ReorderConfiguration;
+import se.sics.sicsthsense.jdbi.StorageDAO;
+import se.sics.sicsthsense.model.Backfill;
+
+public class StreamActor extends UntypedActor {
+	private static final Logger logger = LoggerFactory.getLogger(StreamActor.class);
+	// how long a loaded stream definition is trusted
+	private static final long RELOAD_INTERVAL = 5000;
+	// how long a retired actor passes writes on before it stops
+	private static final long RETIRE_GRACE = 2000;
+
+	private static final Meter releasedPoints = EngineMetrics.meter("reorder", "released");
+	private static final Meter latePoints = EngineMetrics.meter("reorder", "late");
+	private static final Meter replacedPoints = EngineMetrics.meter("reorder", "replaced");
+	private static final Meter failures = EngineMetrics.meter("reorder", "failures");
+
+	// messages
+	public static final class Insert {
+		final DataPoint point;
+		public Insert(DataPoint point) { this.point = point; }
+	}
+	public static final Object UPDATE = "update"; // recompute the stream's function
+	public static final Object RELOAD = "reload"; // the stream definition changed
+	public static final Object DONE = "done";     // reply to Insert and UPDATE
+	private static final Object TOUCH = "touch";  // write a pending last_updated
+	private static final Object FLUSH = "flush";  // release the held points that are due
+	private static final Object CORRECT = "correct"; // recompute after late points
+	static final Object RETIRE = "retire";          // the stream is now written elsewhere
+	private static final Object STOP = "stop";      // end of the retirement grace period
+	// a message from a traced caller, handled as part of its trace
+	static final class Traced {
+		final Object message;
+		final Trace trace;
+		Traced(Object message, Trace trace) {
+			this.message = message;
+			this.trace = trace;
+		}
+	}
+
+	private final StorageDAO storage;
+	private final long streamId;
+	private final long idleTimeout;
+	private final long touchInterval;
+
+	private Stream stream;
+	private long loaded;
+	private long touched;      // last time last_updated was written
+	private long pendingTouch; // last_updated not written yet, 0 when none
+	private boolean retired = false;
+	private boolean stopped = false;
+
+	private final ReorderBuffer buffer; // null unless points are reordered
+	private final long correctionDelay;
+	private boolean flushScheduled = false;
+	private long correctFrom = Long.MAX_VALUE; // earliest late point not corrected for
+
+	public StreamActor(StorageDAO storage, long streamId, long idleTimeout, long touchInterval, ReorderConfiguration reorder) {
+		this.storage = storage;
+		this.streamId = streamId;
+		this.idleTimeout = idleTimeout;
+		this.touchInterval = touchInterval;
+		this.buffer = reorder.isEnabled() ? new ReorderBuffer(reorder.getLateness(), reorder.getMaxBuffered()) : null;
+		this.correctionDelay = reorder.getCorrectionDelay();
+	}
+
+	public void preStart() {
+		getContext().setReceiveTimeout(Duration.create(idleTimeout, TimeUnit.MILLISECONDS));
+	}
+
+	public void postStop() {
+		stopped = true;
+		if (buffer!=null) {
+			release(buffer.drain());
+			correct();
+		}
+		flushTouch();
+	}
+
+	public void onReceive(Object message) throws Exception {
+		if (retired && isWrite(message)) {
+			StreamSystem streams = StreamSystem.getInstance();
+			if (streams==null) {
+				getSender().tell(new Status.Failure(new IllegalStateException("Stream "+streamId+" has no writer")), getSelf());
+			} else {
+				streams.route(streamId, message, getSender());
+			}
+		} else if (message instanceof Traced) {
+			Trace previous = Trace.attach(((Traced)message).trace);
+			try {
+				onReceive(((Traced)message).message);
+			} finally {
+				Trace.attach(previous);
+			}
+		} else if (message instanceof Insert) {
+			try {
+				if (buffer==null) {
+					store(((Insert)message).point);
+				} else {
+					hold(((Insert)message).point);
+				}
+				getSender().tell(DONE, getSelf());
+			} catch (Exception e) {
+				getSender().tell(new Status.Failure(e), getSelf());
+			}
+		} else if (message==UPDATE) {
+			try {
+				update();
+				getSender().tell(DONE, getSelf());
+			} catch (Exception e) {
+				getSender().tell(new Status.Failure(e), getSelf());
+			}
+		} else if (message==TOUCH) {
+			flushTouch();
+		} else if (message==FLUSH) {
+			flushScheduled = false;
+			long now = java.lang.System.currentTimeMillis();
+			release(buffer.release(now));
+			scheduleFlush(now);
+		} else if (message==CORRECT) {
+			correct();
+		} else if (message==RELOAD) {
+			stream = null;
+		} else if (message instanceof ReceiveTimeout) {
+			passivate();
+		} else if (message==RETIRE) {
+			retire();
+		} else if (message==STOP) {
+			getContext().stop(getSelf());
+		} else {
+			unhandled(message);
+		}
+	}
+
+	private void store(DataPoint point) {
+		long now = java.lang.System.currentTimeMillis();
+		if (point.getTimestamp()<=0) { point.setTimestamp(now); }
+		Timer.Context timer = IngestMetrics.getInstance().store.time();
+		try {
+			storage.insertDataPoint(streamId, point.getValue(), point.getTimestamp());
+		} finally {
+			timer.stop();
+		}
+		touch(now);
+		StreamBus.getInstance().publish(point); // live subscribers and triggers
+	}
+
+	// store the point, so the writer's answer means it is durable, but keep back its
+	// publication until the points before it have had time to arrive
+	private void hold(DataPoint point) {
+		long now = java.lang.System.currentTimeMillis();
+		if (point.getTimestamp()<=0) { point.setTimestamp(now); }
+		Timer.Context timer = IngestMetrics.getInstance().store.time();
+		try {
+			storage.insertDataPoint(streamId, point.getValue(), point.getTimestamp());
+		} finally {
+			timer.stop();
+		}
+		touch(now);
+		long replaced = buffer.getReplaced();
+		if (!buffer.add(point, now)) {
+			late(point);
+			return;
+		}
+		if (buffer.getReplaced()>replaced) { replacedPoints.mark(); }
+		release(buffer.release(now));
+		scheduleFlush(now);
+	}
+
+	// publish points let go by the buffer, they are stored already, then update the
+	// derived streams without waiting for them, as this actor may be one of their
+	// antecedents' writers
+	private void release(List<DataPoint> points) {
+		if (points.size()==0) { return; }
+		for (DataPoint p: points) {
+			p.setStreamId(streamId);
+			StreamBus.getInstance().publish(p); // live subscribers and triggers
+		}
+		releasedPoints.mark(points.size());
+		DependencyPropagator.getInstance().propagateLater(streamId);
+	}
+
+	// older than a point already passed on, so what was derived since is recomputed
+	private void late(DataPoint point) {
+		latePoints.mark();
+		if (correctFrom==Long.MAX_VALUE) { schedule(correctionDelay, CORRECT); }
+		correctFrom = Math.min(correctFrom, point.getTimestamp());
+	}
+
+	private void correct() {
+		if (correctFrom==Long.MAX_VALUE) { return; }
+		long from = correctFrom;
+		correctFrom = Long.MAX_VALUE;
+		try {
+			Backfill.correct(storage, streamId, from);
+		} catch (Exception e) {
+			failures.mark();
+			logger.error("Could not correct the streams derived from "+streamId+" from "+from+": "+e);
+		}
+	}
+
+	private void scheduleFlush(long now) {
+		if (flushScheduled || buffer.isEmpty()) { return; }
+		schedule(buffer.nextDue(now), FLUSH);
+		flushScheduled = true;
+	}
+
+	// recompute the stream from its antecedents and store the result
+	private void update() throws Exception {
+		long now = java.lang.System.currentTimeMillis();
+		if (stream==null || now-loaded > RELOAD_INTERVAL) {
+			stream = storage.findStreamById(streamId);
+			loaded = now;
+		}
+		if (stream==null) { logger.warn("Stream "+streamId+" no longer exists"); return; }
+		List<Long> antecedents = storage.findAntecedents(streamId);
+		if (antecedents==null) { logger.error("Antecedents are null! ID:"+streamId); return; }
+		List<DataPoint> newPoints = stream.performFunction(antecedents);
+		for (DataPoint p: newPoints) {
+			p.setStreamId(streamId);
+			store(p);
+		}
+	}
+
+	// hot streams would otherwise rewrite the same streams row for every point
+	private void touch(long now) {
+		if (now-touched >= touchInterval) {
+			storage.updatedStream(streamId, now);
+			touched = now;
+			pendingTouch = 0;
+			return;
+		}
+		if (pendingTouch==0 && !stopped) { schedule(touchInterval, TOUCH); } // postStop writes it
+		pendingTouch = now;
+	}
+
+	private void schedule(long delay, Object message) {
+		getContext().system().scheduler().scheduleOnce(
+			Duration.create(delay, TimeUnit.MILLISECONDS),
+			getSelf(), message, getContext().dispatcher(), getSelf());
+	}
+
+	private void flushTouch() {
+		if (pendingTouch==0) { return; }
+		try {
+			storage.updatedStream(streamId, pendingTouch);
+			touched = pendingTouch;
+		} catch (Exception e) {
+			logger.error("Could not update last_updated of stream "+streamId+": "+e);
+		}
+		pendingTouch = 0;
+	}
+
+	// new messages go to a fresh actor from now on
+	private void passivate() {
+		if (retired) { return; }
+		StreamSystem.getInstance().passivated(streamId, getSelf());
+		retire();
+	}
+
+	// StreamSystem no longer hands this actor out. A writer may still have looked it
+	// up just before, so its writes are passed on for a while rather than lost
+	private void retire() {
+		if (retired) { return; }
+		retired = true;
+		getContext().setReceiveTimeout(Duration.Undefined());
+		schedule(RETIRE_GRACE, STOP);
+	}
+
+	private static boolean isWrite(Object message) {
+		if (message instanceof Traced) { message = ((Traced)message).message; }
+		return message instanceof Insert || message==UPDATE;
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: In-process publish/subscribe for live stream updates. Every point
+ * committed through Utils.insertDataPoint is published here once, whatever its
+ * source. Each subscriber has its own bounded queue drained on a shared dispatcher,
+ * so a slow subscriber only ever loses its own updates, according to its overflow
+ * policy:
+ *   DROP_OLDEST  discard the oldest queued point
+ *   COALESCE     replace the queued point of the same stream, else drop the oldest
+ *   DISCONNECT   close the subscription
+ * In cluster mode with the stream actors, points are only published on the node
+ * owning their stream, so subscribing to a stream owned by another node is
+ * refused, and subscriptions of streams that move to another node are closed,
+ * telling the subscriber where. ALL only sees the streams this node owns.
+ * An inline subscriber, such as the trigger tests, gets every point on the
+ * publisher's thread instead, with no queue to overflow; it must not block.
+ * TODO: CoAP observe of stream data is not fed from the bus yet.
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import se.sics.sicsthsense.BusConfiguration;
+import se.sics.sicsthsense.EngineMetrics;
+
+public class StreamBus {
+	private static final Logger logger = LoggerFactory.getLogger(StreamBus.class);
+	private static volatile StreamBus singleton;
+
+	// subscribe to this to receive the points of every stream
+	public static final long ALL = -1;
+	// points delivered per turn before a subscriber makes way for others
+	public static final int MAX_BATCH = 64;
+
+	public enum Overflow {
+		DROP_OLDEST, COALESCE, DISCONNECT;
+
+		// accepts the configuration spelling, e.g. "drop-oldest"
+		public static Overflow parse(String name) {
+			return valueOf(name.trim().toUpperCase().replace('-','_'));
+		}
+	}
+
+	public interface Subscriber {
+		void deliver(DataPoint point) throws Exception;
+		// the subscription ended, by unsubscribe() or because of its overflow policy
+		void closed(String reason);
+	}
+
+	private final ExecutorService dispatcher;
+	private final int queueSize;
+	private final Overflow overflow;
+	private final ConcurrentHashMap<Long, CopyOnWriteArrayList<Subscription>> subscriptions = new ConcurrentHashMap<Long, CopyOnWriteArrayList<Subscription>>();
+	private final CopyOnWriteArrayList<Subscription> everything = new CopyOnWriteArrayList<Subscription>();
+	private final CopyOnWriteArrayList<Subscriber> inline = new CopyOnWriteArrayList<Subscriber>();
+	private final AtomicInteger subscriberCount = new AtomicInteger();
+
+	private final Timer fanout = EngineMetrics.timer("bus", "fanout");
+	private final Meter published = EngineMetrics.meter("bus", "published");
+	private final Meter delivered = EngineMetrics.meter("bus", "delivered");
+	private final Meter dropped = EngineMetrics.meter("bus", "dropped");
+	private final Meter coalesced = EngineMetrics.meter("bus", "coalesced");
+	private final Meter disconnected = EngineMetrics.meter("bus", "disconnected");
+	private final Meter failed = EngineMetrics.meter("bus", "failed");
+	private final Meter moved = EngineMetrics.meter("bus", "moved");
+
+	// close the subscriptions of streams now published on another node
+	private final ClusterNode.Listener mover = new ClusterNode.Listener() {
+		public void membershipChanged(ClusterNode node) {
+			for (Long streamId: subscriptions.keySet()) {
+				String owner = remoteOwner(streamId);
+				if (owner==null) { continue; }
+				CopyOnWriteArrayList<Subscription> list = subscriptions.get(streamId);
+				if (list==null) { continue; }
+				for (Subscription subscription: list) {
+					moved.mark();
+					subscription.close(movedTo(streamId, owner));
+				}
+			}
+		}
+	};
+
+	// Static methods to ensure single instance
+	public static StreamBus getInstance() {
+		StreamBus bus = singleton;
+		if (bus==null) {
+			synchronized (StreamBus.class) {
+				if (singleton==null) { singleton = new StreamBus(new BusConfiguration()); }
+				bus = singleton;
+			}
+		}
+		return bus;
+	}
+	public static synchronized StreamBus build(BusConfiguration config) {
+		if (singleton!=null) { singleton.shutdown(); }
+		singleton = new StreamBus(config);
+		ClusterNode node = ClusterNode.getInstance();
+		if (node!=null) { node.addListener(singleton.mover); }
+		EngineMetrics.getRegistry().remove("bus.subscribers");
+		EngineMetrics.getRegistry().register("bus.subscribers", new Gauge<Integer>() {
+			public Integer getValue() { return getInstance().getSubscriberCount(); }
+		});
+		return singleton;
+	}
+
+	public StreamBus(BusConfiguration config) {
+		this.queueSize = config.getQueueSize();
+		this.overflow = Overflow.parse(config.getOverflow());
+		this.dispatcher = Executors.newFixedThreadPool(config.getThreads(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "stream-bus-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public void shutdown() {
+		ClusterNode node = ClusterNode.getInstance();
+		if (node!=null) { node.removeListener(mover); }
+		dispatcher.shutdown();
+	}
+
+	// the node publishing the stream's points when it is another one, null when it
+	// is this one or not clustered. Without the stream actors every node publishes
+	// the points written through it
+	public static String remoteOwner(long streamId) {
+		ClusterNode node = ClusterNode.getInstance();
+		if (node==null || streamId==ALL || StreamSystem.getInstance()==null) { return null; }
+		return node.remoteOwner(streamId);
+	}
+
+	// why a subscription to a stream of another node is refused or closed
+	public static String movedTo(long streamId, String owner) {
+		return "Stream "+streamId+" is published on cluster node "+owner+", subscribe there";
+	}
+
+	public Subscription subscribe(long streamId, Subscriber subscriber) {
+		return subscribe(streamId, subscriber, queueSize, overflow);
+	}
+
+	// throws IllegalStateException for a stream published on another node
+	public Subscription subscribe(long streamId, Subscriber subscriber, int capacity, Overflow policy) {
+		String owner = remoteOwner(streamId);
+		if (owner!=null) { throw new IllegalStateException(movedTo(streamId, owner)); }
+		Subscription subscription = new Subscription(streamId, subscriber, capacity, policy);
+		if (streamId==ALL) {
+			everything.add(subscription);
+		} else {
+			CopyOnWriteArrayList<Subscription> list = subscriptions.get(streamId);
+			if (list==null) {
+				subscriptions.putIfAbsent(streamId, new CopyOnWriteArrayList<Subscription>());
+				list = subscriptions.get(streamId);
+			}
+			list.add(subscription);
+		}
+		subscriberCount.incrementAndGet();
+		owner = remoteOwner(streamId);
+		if (owner!=null) { // moved while subscribing, after the mover looked
+			subscription.close(movedTo(streamId, owner));
+			throw new IllegalStateException(movedTo(streamId, owner));
+		}
+		return subscription;
+	}
+
+	// every point, handed over as it is published; closed() is never called
+	public void subscribeInline(Subscriber subscriber) {
+		inline.add(subscriber);
+	}
+
+	public void unsubscribe(Subscription subscription) {
+		subscription.close("unsubscribed");
+	}
+
+	// hand a committed point to every subscriber of its stream, never blocks
+	public void publish(DataPoint point) {
+		Timer.Context timing = fanout.time();
+		try {
+			published.mark();
+			CopyOnWriteArrayList<Subscription> list = subscriptions.get(point.getStreamId());
+			if (list!=null) {
+				for (Subscription subscription: list) { subscription.offer(point); }
+			}
+			for (Subscription subscription: everything) { subscription.offer(point); }
+			for (Subscriber subscriber: inline) {
+				try {
+					subscriber.deliver(point);
+					delivered.mark();
+				} catch (Exception e) {
+					failed.mark();
+					logger.warn("Inline subscriber of stream "+point.getStreamId()+" failed: "+e);
+				}
+			}
+		} finally {
+			timing.stop();
+		}
+	}
+
+	public int getQueueSize()				{ return queueSize; }
+	public Overflow getOverflow()		{ return overflow; }
+
+	public int getSubscriberCount() {
+		return subscriberCount.get();
+	}
+
+	public int getSubscriberCount(long streamId) {
+		CopyOnWriteArrayList<Subscription> list = subscriptions.get(streamId);
+		return list==null ? 0 : list.size();
+	}
+
+	private void remove(Subscription subscription) {
+		boolean removed;
+		if (subscription.streamId==ALL) {
+			removed = everything.remove(subscription);
+		} else {
+			CopyOnWriteArrayList<Subscription> list = subscriptions.get(subscription.streamId);
+			removed = list!=null && list.remove(subscription);
+			if (list!=null && list.isEmpty()) { subscriptions.remove(subscription.streamId, list); }
+		}
+		if (removed) { subscriberCount.decrementAndGet(); }
+	}
+
+	// one subscriber's queue; at most one dispatcher thread drains it at a time
+	public class Subscription implements Runnable {
+		private final long streamId;
+		private final Subscriber subscriber;
+		private final int capacity;
+		private final Overflow policy;
+		private final ArrayDeque<DataPoint> queue = new ArrayDeque<DataPoint>();
+		private boolean scheduled = false;
+		private volatile boolean closed = false;
+
+		Subscription(long streamId, Subscriber subscriber, int capacity, Overflow policy) {
+			this.streamId = streamId;
+			this.subscriber = subscriber;
+			this.capacity = capacity;
+			this.policy = policy;
+		}
+
+		void offer(DataPoint point) {
+			boolean schedule = false;
+			boolean disconnect = false;
+			synchronized (this) {
+				if (closed) { return; }
+				if (queue.size()>=capacity) {
+					switch (policy) {
+						case DISCONNECT:
+							disconnect = true;
+							break;
+						case COALESCE:
+							if (replace(point)) { coalesced.mark(); return; }
+							queue.poll();
+							dropped.mark();
+							break;
+						default:
+							queue.poll();
+							dropped.mark();
+					}
+				}
+				if (!disconnect) {
+					queue.add(point);
+					if (!scheduled) { scheduled = schedule = true; }
+				}
+			}
+			if (disconnect) {
+				disconnected.mark();
+				close("queue full");
+			} else if (schedule) {
+				dispatcher.execute(this);
+			}
+		}
+
+		// swap the queued point of the same stream for the newer one
+		private boolean replace(DataPoint point) {
+			Iterator<DataPoint> it = queue.descendingIterator();
+			while (it.hasNext()) {
+				if (it.next().getStreamId()==point.getStreamId()) {
+					it.remove();
+					queue.add(point);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public void run() {
+			List<DataPoint> batch = new ArrayList<DataPoint>();
+			synchronized (this) {
+				for (int c=0; c<MAX_BATCH && !queue.isEmpty(); c++) { batch.add(queue.poll()); }
+			}
+			for (DataPoint point: batch) {
+				if (closed) { break; }
+				try {
+					subscriber.deliver(point);
+					delivered.mark();
+				} catch (Exception e) {
+					failed.mark();
+					logger.warn("Subscriber of stream "+streamId+" failed: "+e);
+				}
+			}
+			boolean again;
+			synchronized (this) {
+				again = !closed && !queue.isEmpty();
+				scheduled = again;
+			}
+			if (again) { dispatcher.execute(this); } // back of the line, others get a turn
+		}
+
+		public void close(String reason) {
+			synchronized (this) {
+				if (closed) { return; }
+				closed = true;
+				queue.clear();
+			}
+			remove(this);
+			try {
+				subscriber.closed(reason);
+			} catch (Exception e) {
+				logger.warn("Closing subscriber of stream "+streamId+" failed: "+e);
+			}
+		}
+
+		public synchronized int getQueued()	{ return queue.size(); }
+		public long getStreamId()						{ return streamId; }
+		public boolean isClosed()						{ return closed; }
+	}
+}
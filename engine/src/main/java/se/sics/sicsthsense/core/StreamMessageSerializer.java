@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Wire format of the StreamRouter messages between cluster nodes:
+ * one type byte, the stream id, for a write its timestamp and value, and for a
+ * write or update the hops it has made, 26 bytes where Java serialization takes
+ * well over a hundred. Bound to
+ * StreamRouter.Message in the configuration ClusterNode builds.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.nio.ByteBuffer;
+
+import akka.serialization.JSerializer;
+
+public class StreamMessageSerializer extends JSerializer {
+	private static final byte WRITE = 1;
+	private static final byte UPDATE = 2;
+	private static final byte RELOAD = 3;
+	private static final byte FORGET = 4;
+
+	public int identifier() {
+		return 6046; // unique among the system's serializers, akka keeps 0-40
+	}
+
+	public boolean includeManifest() {
+		return false; // the type byte says it
+	}
+
+	public byte[] toBinary(Object o) {
+		if (o instanceof StreamRouter.Write) {
+			StreamRouter.Write write = (StreamRouter.Write)o;
+			return ByteBuffer.allocate(26).put(WRITE).putLong(write.streamId).putLong(write.timestamp).putDouble(write.value).put((byte)write.hops).array();
+		}
+		if (o instanceof StreamRouter.Update) {
+			StreamRouter.Update update = (StreamRouter.Update)o;
+			return ByteBuffer.allocate(10).put(UPDATE).putLong(update.streamId).put((byte)update.hops).array();
+		}
+		byte type;
+		if (o instanceof StreamRouter.Reload)				{ type = RELOAD; }
+		else if (o instanceof StreamRouter.Forget)	{ type = FORGET; }
+		else { throw new IllegalArgumentException("Cannot serialize "+o.getClass().getName()); }
+		return ByteBuffer.allocate(9).put(type).putLong(((StreamRouter.Message)o).streamId).array();
+	}
+
+	public Object fromBinaryJava(byte[] bytes, Class<?> manifest) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		byte type = buffer.get();
+		long streamId = buffer.getLong();
+		switch (type) {
+			case WRITE:		return new StreamRouter.Write(streamId, buffer.getLong(), buffer.getDouble(), buffer.get());
+			case UPDATE:	return new StreamRouter.Update(streamId, buffer.get());
+			case RELOAD:	return new StreamRouter.Reload(streamId);
+			case FORGET:	return new StreamRouter.Forget(streamId);
+			default:			throw new IllegalArgumentException("Unknown stream message type "+type);
+		}
+	}
+}
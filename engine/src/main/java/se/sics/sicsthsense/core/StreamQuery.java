@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Body of a multi-stream query, selects many streams over one time range
+ * and optionally aligns them onto a common time grid.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class StreamQuery {
+	// no alignment, every stream keeps its own timestamps
+	public static final String FILL_NONE   = "none";
+	// last observation carried forward onto the grid
+	public static final String FILL_LAST   = "last";
+	// linear interpolation between the neighbouring points
+	public static final String FILL_LINEAR = "linear";
+
+	// stream IDs or URL-encoded stream paths
+	@JsonProperty
+	protected List<String> streams;
+	@JsonProperty
+	protected long from;
+	@JsonProperty
+	protected long until;
+	@JsonProperty
+	protected int limit;
+	@JsonProperty
+	protected String fill;
+	// grid step in ms, 0 aligns onto the union of all timestamps
+	@JsonProperty
+	protected long interval;
+
+	public StreamQuery() {
+		this.streams  = new ArrayList<String>();
+		this.from     = -1;
+		this.until    = -1;
+		this.limit    = -1;
+		this.fill     = FILL_NONE;
+		this.interval = 0;
+	}
+
+	public boolean isAligned() {
+		return fill!=null && !FILL_NONE.equals(fill);
+	}
+
+	public String toString() {
+		return "Query: "+streams+" from "+from+" until "+until+" fill "+fill+" interval "+interval;
+	}
+
+	public List<String> getStreams()		{ return streams; }
+	public long getFrom()								{ return from; }
+	public long getUntil()							{ return until; }
+	public int getLimit()								{ return limit; }
+	public String getFill()							{ return fill; }
+	public long getInterval()						{ return interval; }
+
+	public void setStreams(List<String> streams)	{ this.streams = streams; }
+	public void setFrom(long from)								{ this.from = from; }
+	public void setUntil(long until)							{ this.until = until; }
+	public void setLimit(int limit)								{ this.limit = limit; }
+	public void setFill(String fill)							{ this.fill = fill; }
+	public void setInterval(long interval)				{ this.interval = interval; }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: In cluster mode, takes the stream writes other nodes send on to
+ * this one, the owner, at /user/streams, and hands them to the stream's actor
+ * here. Replies come back once the write is applied, as for a local caller. While
+ * the nodes' rings disagree, e.g. during a rebalance, a write can reach a node that
+ * no longer owns its stream: it is sent on to the owner this node knows of, at most
+ * MAX_HOPS times, so a stream never has actors on two nodes. The messages are flat
+ * and go over the wire through the StreamMessageSerializer.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import akka.actor.Status;
+import akka.actor.UntypedActor;
+import akka.pattern.Patterns;
+import scala.concurrent.Future;
+
+import se.sics.sicsthsense.core.functions.FunctionRegistry;
+
+public class StreamRouter extends UntypedActor {
+	public static final String NAME = "streams";
+	// times a write may be sent on to another node before it is refused
+	public static final int MAX_HOPS = 2;
+
+	// messages, all naming their stream
+	public static abstract class Message {
+		final long streamId;
+		Message(long streamId) { this.streamId = streamId; }
+	}
+	// writes also count the nodes that sent them on
+	public static abstract class Change extends Message {
+		final int hops;
+		Change(long streamId, int hops) {
+			super(streamId);
+			this.hops = hops;
+		}
+		// the same change, one more hop along
+		abstract Change onward();
+	}
+	public static final class Write extends Change {
+		final long timestamp;
+		final double value;
+		public Write(long streamId, long timestamp, double value) {
+			this(streamId, timestamp, value, 0);
+		}
+		Write(long streamId, long timestamp, double value, int hops) {
+			super(streamId, hops);
+			this.timestamp = timestamp;
+			this.value = value;
+		}
+		Change onward() { return new Write(streamId, timestamp, value, hops+1); }
+	}
+	public static final class Update extends Change {
+		public Update(long streamId) { this(streamId, 0); }
+		Update(long streamId, int hops) { super(streamId, hops); }
+		Change onward() { return new Update(streamId, hops+1); }
+	}
+	public static final class Reload extends Message {
+		public Reload(long streamId) { super(streamId); }
+	}
+	public static final class Forget extends Message {
+		public Forget(long streamId) { super(streamId); }
+	}
+
+	public void onReceive(Object message) throws Exception {
+		StreamSystem streams = StreamSystem.getInstance();
+		if (!(message instanceof Message)) { unhandled(message); return; }
+		long streamId = ((Message)message).streamId;
+		if (streams==null) {
+			getSender().tell(new Status.Failure(new IllegalStateException("Stream actors are disabled on "+getSelf().path().address())), getSelf());
+			return;
+		}
+		streams.received();
+		if (message instanceof Change) {
+			String owner = streams.remoteOwner(streamId);
+			if (owner!=null) { // the rings disagree, this node has no actor for it
+				bounce(streams, (Change)message, owner);
+				return;
+			}
+		}
+		if (message instanceof Write) {
+			Write write = (Write)message;
+			DataPoint point = new DataPoint(streamId, write.timestamp, write.value);
+			reply(streams, streamId, new StreamActor.Insert(point));
+		} else if (message instanceof Update) {
+			reply(streams, streamId, StreamActor.UPDATE);
+		} else if (message instanceof Reload) {
+			streams.reloadLocal(streamId);
+		} else if (message instanceof Forget) {
+			FunctionRegistry.forget(streamId);
+			TriggerSubscriber.forget(streamId);
+			streams.forgetLocal(streamId);
+		}
+	}
+
+	// send the write on to the owner this node knows of, its reply going to the sender
+	private void bounce(StreamSystem streams, Change change, String owner) {
+		if (change.hops>=MAX_HOPS) {
+			getSender().tell(new Status.Failure(new IllegalStateException("Stream "+change.streamId+" has no agreed owner yet, sent on "+change.hops+" times")), getSelf());
+			return;
+		}
+		streams.bounced();
+		Future<Object> reply = Patterns.ask(ClusterNode.getInstance().select(owner, NAME), change.onward(), streams.getTimeout());
+		Patterns.pipe(reply, getContext().dispatcher()).to(getSender());
+	}
+
+	// the actor's DONE or failure goes straight back to the sending node
+	private void reply(StreamSystem streams, long streamId, Object message) {
+		Future<Object> done = Patterns.ask(streams.actorFor(streamId), message, streams.getTimeout());
+		Patterns.pipe(done, getContext().dispatcher()).to(getSender());
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Owns one StreamActor per active stream. Writers call insert() or
+ * update() and wait for the stream's actor to apply the change, so every stream
+ * has exactly one writer while different streams are written in parallel on the
+ * actor system's threads. Actors are created on first use and stop themselves
+ * when idle. In cluster mode only the stream's owning node has an actor for it:
+ * other nodes send the write to the owner's StreamRouter and wait for its reply,
+ * and actors of streams that moved to another node are retired, see ClusterNode.
+ * A retired actor passes the writes that still reach it on through route(), and a
+ * write that timed out while its stream's actor changed is tried once more.
+ * With the reorder buffer enabled an insert returns once its point is stored; the
+ * actor publishes it later in timestamp order, see StreamActor.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.pattern.AskTimeoutException;
+import akka.pattern.Patterns;
+import akka.util.Timeout;
+import scala.concurrent.Await;
+import scala.concurrent.Future;
+import scala.concurrent.duration.Duration;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+
+import se.sics.sicsthsense.ActorConfiguration;
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.ReorderConfiguration;
+import se.sics.sicsthsense.jdbi.ReadRouter;
+import se.sics.sicsthsense.jdbi.StorageDAO;
+
+public class StreamSystem {
+	private static final Logger logger = LoggerFactory.getLogger(StreamSystem.class);
+	private static volatile StreamSystem singleton;
+
+	private final StorageDAO storage;
+	private final ActorSystem system;
+	private final ConcurrentHashMap<Long, ActorRef> actors = new ConcurrentHashMap<Long, ActorRef>();
+	// a passivating actor keeps its name until it has stopped, so names are unique
+	private final AtomicLong generation = new AtomicLong();
+	private final long idleTimeout;
+	private final long touchInterval;
+	private final Timeout timeout;
+	private final ReorderConfiguration reorder;
+
+	private final Meter started = EngineMetrics.meter("actors.started");
+	private final Meter passivated = EngineMetrics.meter("actors.passivated");
+	private final Meter forwarded = EngineMetrics.meter("actors.forwarded");
+	private final Meter received = EngineMetrics.meter("actors.received");
+	private final Meter moved = EngineMetrics.meter("actors.moved");
+	private final Meter rerouted = EngineMetrics.meter("actors.rerouted");
+	private final Meter bounced = EngineMetrics.meter("actors.bounced");
+	private final Meter retried = EngineMetrics.meter("actors.retried");
+
+	// retire the actors of streams this node no longer owns
+	private final ClusterNode.Listener rebalancer = new ClusterNode.Listener() {
+		public void membershipChanged(ClusterNode node) {
+			int count = 0;
+			for (Long streamId: actors.keySet()) {
+				if (node.owns(streamId)) { continue; }
+				forgetLocal(streamId);
+				count++;
+			}
+			moved.mark(count);
+			if (count>0) { logger.info("Retired "+count+" stream actors now owned elsewhere"); }
+		}
+	};
+
+	// null unless built with actors enabled, writers then write directly
+	public static StreamSystem getInstance() {
+		return singleton;
+	}
+
+	public static synchronized StreamSystem build(StorageDAO storage, ActorConfiguration config, ReorderConfiguration reorder) {
+		if (singleton!=null) { singleton.shutdown(); singleton = null; }
+		if (!config.isEnabled()) {
+			if (reorder.isEnabled()) { logger.warn("Points are not reordered, that needs the stream actors enabled"); }
+			return null;
+		}
+		singleton = new StreamSystem(storage, config, reorder);
+		ClusterNode node = ClusterNode.getInstance();
+		if (node!=null) { node.addListener(singleton.rebalancer); }
+		EngineMetrics.getRegistry().remove("actors.active");
+		EngineMetrics.getRegistry().register("actors.active", new Gauge<Integer>() {
+			public Integer getValue() {
+				StreamSystem streams = getInstance();
+				return streams==null ? 0 : streams.actors.size();
+			}
+		});
+		return singleton;
+	}
+
+	public StreamSystem(StorageDAO storage, ActorConfiguration config, ReorderConfiguration reorder) {
+		this.storage = storage;
+		this.system = ActorSystem.create("SicsthStreamSystem");
+		this.idleTimeout = config.getIdleTimeout();
+		this.touchInterval = config.getTouchInterval();
+		this.timeout = new Timeout(Duration.create(config.getAskTimeout(), TimeUnit.MILLISECONDS));
+		this.reorder = reorder;
+	}
+
+	// store a point, returns once it is stored and published, or held to be
+	public void insert(DataPoint point) throws Exception {
+		send(point.getStreamId(), new StreamActor.Insert(point));
+	}
+
+	// recompute a derived stream, returns once its new points are stored
+	public void update(long streamId) throws Exception {
+		send(streamId, StreamActor.UPDATE);
+	}
+
+	// hand a write to the stream's actor, here or on its owner. Writes are
+	// idempotent, so one that timed out while the stream's actor changed is sent
+	// once more, to the new one
+	private void send(long streamId, Object message) throws Exception {
+		ActorRef before = actors.get(streamId);
+		try {
+			write(streamId, message);
+		} catch (AskTimeoutException e) {
+			if (actors.get(streamId)==before) { throw e; }
+			retried.mark();
+			write(streamId, message);
+		}
+	}
+
+	private void write(long streamId, Object message) throws Exception {
+		String owner = remoteOwner(streamId);
+		if (owner!=null) {
+			forward(owner, routerMessage(streamId, message));
+			return;
+		}
+		ask(streamId, message);
+	}
+
+	// pass a write that reached a retired actor on to where the stream is written
+	// now, the reply going to the writer
+	void route(long streamId, Object message, ActorRef replyTo) {
+		rerouted.mark();
+		String owner = remoteOwner(streamId);
+		if (owner==null) {
+			actorFor(streamId).tell(message, replyTo);
+			return;
+		}
+		if (message instanceof StreamActor.Traced) { message = ((StreamActor.Traced)message).message; }
+		Future<Object> reply = Patterns.ask(ClusterNode.getInstance().select(owner, StreamRouter.NAME), routerMessage(streamId, message), timeout);
+		Patterns.pipe(reply, system.dispatcher()).to(replyTo);
+	}
+
+	// the message a StreamActor write becomes between nodes
+	private static StreamRouter.Message routerMessage(long streamId, Object message) {
+		if (message instanceof StreamActor.Insert) {
+			DataPoint point = ((StreamActor.Insert)message).point;
+			return new StreamRouter.Write(streamId, point.getTimestamp(), point.getValue());
+		}
+		return new StreamRouter.Update(streamId);
+	}
+
+	// the stream was changed or deleted, drop its hot state
+	public void reload(long streamId) {
+		String owner = remoteOwner(streamId);
+		if (owner!=null) {
+			ClusterNode.getInstance().select(owner, StreamRouter.NAME).tell(new StreamRouter.Reload(streamId), ActorRef.noSender());
+			return;
+		}
+		reloadLocal(streamId);
+	}
+
+	public void forget(long streamId) {
+		String owner = remoteOwner(streamId);
+		if (owner!=null) {
+			ClusterNode.getInstance().select(owner, StreamRouter.NAME).tell(new StreamRouter.Forget(streamId), ActorRef.noSender());
+		}
+		forgetLocal(streamId); // this node may have had it before the last rebalance
+	}
+
+	void reloadLocal(long streamId) {
+		ActorRef actor = actors.get(streamId);
+		if (actor!=null) { actor.tell(StreamActor.RELOAD, ActorRef.noSender()); }
+	}
+
+	void forgetLocal(long streamId) {
+		ActorRef actor = actors.remove(streamId);
+		if (actor!=null) { actor.tell(StreamActor.RETIRE, ActorRef.noSender()); }
+	}
+
+	// whether the actors hold points back to pass them on in timestamp order
+	public boolean isReordering() {
+		return reorder.isEnabled();
+	}
+
+	public int getActiveCount() {
+		return actors.size();
+	}
+
+	public void shutdown() {
+		logger.info("Stopping "+actors.size()+" stream actors");
+		ClusterNode node = ClusterNode.getInstance();
+		if (node!=null) { node.removeListener(rebalancer); }
+		system.shutdown();
+		actors.clear();
+	}
+
+	// called by an idle actor before it stops
+	void passivated(long streamId, ActorRef actor) {
+		if (actors.remove(streamId, actor)) { passivated.mark(); }
+	}
+
+	// a traced caller's trace goes with the message, so the actor's work shows in it
+	private void ask(long streamId, Object message) throws Exception {
+		Trace trace = Trace.current();
+		if (trace!=null) { message = new StreamActor.Traced(message, trace); }
+		Trace.Span span = Trace.start("actor", "stream", streamId);
+		try {
+			Future<Object> reply = Patterns.ask(actorFor(streamId), message, timeout);
+			Await.result(reply, timeout.duration()); // rethrows the actor's failure
+		} finally {
+			span.end();
+		}
+	}
+
+	// the node owning the stream when it is another one, null when not clustered
+	String remoteOwner(long streamId) {
+		ClusterNode node = ClusterNode.getInstance();
+		return node==null ? null : node.remoteOwner(streamId);
+	}
+
+	private void forward(String owner, StreamRouter.Message message) throws Exception {
+		forwarded.mark();
+		Trace.Span span = Trace.start("actor", "forward", message.streamId);
+		try {
+			Future<Object> reply = Patterns.ask(ClusterNode.getInstance().select(owner, StreamRouter.NAME), message, timeout);
+			Await.result(reply, timeout.duration()); // rethrows the owner's failure
+			ReadRouter.wrote(message.streamId); // so this node's reads see the write too
+		} finally {
+			span.end();
+		}
+	}
+
+	// a write sent on by another node
+	void received() {
+		received.mark();
+	}
+
+	// a write sent on by another node that this one passed on again
+	void bounced() {
+		bounced.mark();
+	}
+
+	Timeout getTimeout() {
+		return timeout;
+	}
+
+	ActorRef actorFor(long streamId) {
+		ActorRef actor = actors.get(streamId);
+		if (actor!=null) { return actor; }
+		synchronized (actors) {
+			actor = actors.get(streamId);
+			if (actor==null) {
+				actor = system.actorOf(
+					Props.create(StreamActor.class, storage, streamId, idleTimeout, touchInterval, reorder),
+					"stream-"+streamId+"-"+generation.incrementAndGet());
+				actors.put(streamId, actor);
+				started.mark();
+			}
+		}
+		return actor;
+	}
+}
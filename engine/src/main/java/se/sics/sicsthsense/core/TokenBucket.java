@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: A token bucket: rate tokens a second up to burst, one taken per
+ * request. Times are System.nanoTime() values.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+public class TokenBucket {
+	private final double rate; // tokens per nanosecond
+	private final double burst;
+	private double tokens;
+	private long last; // when tokens was last brought up to date
+	private long used; // when a token was last taken
+
+	public TokenBucket(double perSecond, int burst, long now) {
+		this.rate = perSecond/1e9;
+		this.burst = burst;
+		this.tokens = burst;
+		this.last = now;
+		this.used = now;
+	}
+
+	// take a token, returns 0 when taken, else the milliseconds until one is there
+	public synchronized long take(long now) {
+		refill(now);
+		used = now;
+		if (tokens>=1) {
+			tokens -= 1;
+			return 0;
+		}
+		return Math.max(1, (long)Math.ceil((1-tokens)/rate/1e6));
+	}
+
+	// give back a token taken for a request that was turned away after all
+	public synchronized void refund() {
+		tokens = Math.min(burst, tokens+1);
+	}
+
+	// full and unused since the given time, so dropping it changes nothing
+	public synchronized boolean isIdle(long now, long since) {
+		refill(now);
+		return tokens>=burst && used-since<=0;
+	}
+
+	private void refill(long now) {
+		if (now-last<=0) { return; }
+		tokens = Math.min(burst, tokens+(now-last)*rate);
+		last = now;
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: The spans of one request, poll or trigger delivery. A trace is
+ * bound to the thread handling it; work done for it on other threads (stream
+ * actors, the dependency propagator) attaches it while it runs. Code marks the
+ * work to be blamed with
+ *   Trace.Span span = Trace.start("dao", "findStreamById"); try { ... } finally { span.end(); }
+ * which costs a ThreadLocal lookup when the thread is not tracing. Finished traces
+ * go to the FlightRecorder, which keeps the slow ones.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class Trace {
+	private static final ThreadLocal<Trace> current = new ThreadLocal<Trace>();
+	private static final Span NONE = new Span(null, null, null, -1, 0);
+
+	private final String name;
+	private final long id;
+	private final long started = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	private final int maxSpans;
+	private final List<Span> spans = new ArrayList<Span>();
+	private final Map<String, Long> totals = new TreeMap<String, Long>(); // nanos by kind
+	private int dropped;
+	private long duration = -1; // nanos, -1 while running
+
+	private Trace(String name, long id, int maxSpans) {
+		this.name = name;
+		this.id = id;
+		this.maxSpans = maxSpans;
+	}
+
+	public static Trace begin(String name) {
+		return begin(name, -1);
+	}
+
+	// start tracing the calling thread, null when tracing is off, this one is not
+	// sampled or the thread is already tracing; pass the result to end()
+	public static Trace begin(String name, long id) {
+		FlightRecorder recorder = FlightRecorder.getInstance();
+		if (recorder==null || current.get()!=null) { return null; }
+		double rate = recorder.getSampleRate();
+		if (rate<1.0 && ThreadLocalRandom.current().nextDouble()>=rate) { return null; }
+		Trace trace = new Trace(name, id, recorder.getMaxSpans());
+		current.set(trace);
+		return trace;
+	}
+
+	public static void end(Trace trace) {
+		if (trace==null) { return; }
+		current.remove();
+		trace.finish();
+		FlightRecorder recorder = FlightRecorder.getInstance();
+		if (recorder!=null) { recorder.record(trace); }
+	}
+
+	public static Trace current() {
+		return current.get();
+	}
+
+	// run the calling thread's work as part of trace, returns what to restore after
+	public static Trace attach(Trace trace) {
+		Trace previous = current.get();
+		if (trace==null) { current.remove(); }
+		else { current.set(trace); }
+		return previous;
+	}
+
+	public static Span start(String kind, String name) {
+		return start(kind, name, -1);
+	}
+
+	// id, e.g. a stream's, is kept apart from name so untraced calls build no strings
+	public static Span start(String kind, String name, long id) {
+		Trace trace = current.get();
+		if (trace==null) { return NONE; }
+		return new Span(trace, kind, name, id, System.nanoTime());
+	}
+
+	private synchronized void finish() {
+		duration = System.nanoTime()-startNanos;
+	}
+
+	private synchronized void add(Span span, long nanos) {
+		if (duration>=0) { return; } // late work of a request that gave up waiting
+		Long total = totals.get(span.kind);
+		totals.put(span.kind, (total==null ? 0 : total)+nanos);
+		if (spans.size()>=maxSpans) { dropped++; return; }
+		span.offset = span.startNanos-startNanos;
+		span.duration = nanos;
+		span.thread = Thread.currentThread().getName();
+		spans.add(span);
+	}
+
+	public String getName()				{ return id<0 ? name : name+" "+id; }
+	public long getStarted()				{ return started; }
+	public synchronized double getDurationMillis()	{ return millis(duration); }
+	public synchronized int getDropped()	{ return dropped; }
+	public synchronized List<Span> getSpans()	{ return new ArrayList<Span>(spans); }
+
+	// time spent in spans of each kind, nested kinds overlap (an actor span holds dao spans)
+	public synchronized Map<String, Double> getTotals() {
+		Map<String, Double> millis = new TreeMap<String, Double>();
+		for (Map.Entry<String, Long> entry: totals.entrySet()) { millis.put(entry.getKey(), millis(entry.getValue())); }
+		return millis;
+	}
+
+	public long durationNanos() {
+		synchronized (this) { return duration; }
+	}
+
+	public String toString() {
+		return getName()+" "+getDurationMillis()+"ms "+getTotals();
+	}
+
+	private static double millis(long nanos) {
+		return nanos/(double)TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public static class Span {
+		private final Trace trace;
+		private final String kind;
+		private final String name;
+		private final long id;
+		private final long startNanos;
+		private long offset, duration;
+		private String thread;
+
+		private Span(Trace trace, String kind, String name, long id, long startNanos) {
+			this.trace = trace;
+			this.kind = kind;
+			this.name = name;
+			this.id = id;
+			this.startNanos = startNanos;
+		}
+
+		public void end() {
+			if (trace==null) { return; }
+			trace.add(this, System.nanoTime()-startNanos);
+		}
+
+		public String getKind()				{ return kind; }
+		public String getName()				{ return id<0 ? name : name+" "+id; }
+		public double getOffsetMillis()		{ return millis(offset); }
+		public double getDurationMillis()	{ return millis(duration); }
+		public String getThread()			{ return thread; }
+	}
+}
@@ -23,7 +23,9 @@
  * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
 
-/* Description:
+/* Description: A condition on a stream's points calling a URL when it holds. The
+ * call is made on the triggers bulkhead, see Bulkheads, so a slow webhook only
+ * holds up other webhooks.
  * TODO:
  * */
 package se.sics.sicsthsense.core;
@@ -37,6 +39,7 @@ import java.io.DataOutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.MalformedURLException;
+import java.util.concurrent.RejectedExecutionException;
 import javax.net.ssl.HttpsURLConnection;
 
 import org.slf4j.Logger;
@@ -79,24 +82,39 @@ public class Trigger {
 	public void test(DataPoint dp) {
 		double value = dp.getValue();
 		if (">".equals(operator)) {
-			if (value>operand) {perform();}
+			if (value>operand) {fire();}
 		} else if ("<".equals(operator)) {
-			if (value<operand) {perform();}
+			if (value<operand) {fire();}
 		} else if ("=".equals(operator)) {
-			if (value==operand) {perform();}
+			if (value==operand) {fire();}
 		} else if (">=".equals(operator)) {
-			if (value>=operand) {perform();}
+			if (value>=operand) {fire();}
 		} else if ("<=".equals(operator)) {
-			if (value<=operand) {perform();}
+			if (value<=operand) {fire();}
+		}
+	}
+
+	private void fire() {
+		try {
+			Bulkheads.execute(Bulkheads.TRIGGERS, new Runnable() {
+				public void run() { perform(); }
+			});
+		} catch (RejectedExecutionException e) {
+			logger.warn("Trigger "+id+" of stream "+stream_id+" not performed: "+e.getMessage());
 		}
 	}
 
 	public void perform() {
-		if (payload != null && !"".equals(payload)) {
-			performPut();
-			//performPost();
-		} else {
-			performGet();
+		Trace.Span span = Trace.start("trigger", url);
+		try {
+			if (payload != null && !"".equals(payload)) {
+				performPut();
+				//performPost();
+			} else {
+				performGet();
+			}
+		} finally {
+			span.end();
 		}
 	}
 
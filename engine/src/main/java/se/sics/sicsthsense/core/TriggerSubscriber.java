@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Tests stream triggers against every point published on the StreamBus,
+ * so triggers fire whichever way the point arrived. The test is a comparison made
+ * inline on the publisher's thread, so no point goes untested; the calls of the
+ * triggers that fire go to the triggers bulkhead, see Trigger. Each stream's
+ * triggers are cached, most streams have none and that is cached too, so a point
+ * costs no query.
+ * The cache is dropped for a stream when its triggers are written or it is deleted,
+ * see forget(), and entries are reloaded after TTL to pick up changes made on
+ * other cluster nodes.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.sics.sicsthsense.jdbi.*;
+
+public class TriggerSubscriber implements StreamBus.Subscriber {
+	private static final Logger logger = LoggerFactory.getLogger(TriggerSubscriber.class);
+	// how long a stream's cached triggers are trusted
+	private static final long TTL = 10000;
+	private static final List<Trigger> NONE = Collections.emptyList();
+
+	private static final class Cached {
+		final List<Trigger> triggers;
+		final long loaded;
+		Cached(List<Trigger> triggers, long loaded) {
+			this.triggers = triggers;
+			this.loaded = loaded;
+		}
+	}
+	private static final ConcurrentHashMap<Long, Cached> cache = new ConcurrentHashMap<Long, Cached>();
+	// a load that overlapped a forget() may have read the old triggers, it is not kept
+	private static final AtomicLong forgotten = new AtomicLong();
+
+	private final StorageDAO storage;
+
+	public TriggerSubscriber(StorageDAO storage) {
+		this.storage = storage;
+	}
+
+	// triggers need every point, a queue would drop some when full
+	public static void attach(StreamBus bus, StorageDAO storage) {
+		bus.subscribeInline(new TriggerSubscriber(storage));
+	}
+
+	public void deliver(DataPoint point) {
+		Trace trace = Trace.begin("triggers of stream", point.getStreamId());
+		try {
+			Stream.testTriggers(storage, point);
+		} finally {
+			Trace.end(trace);
+		}
+	}
+
+	// the stream's triggers, empty when it has none
+	public static List<Trigger> triggersOf(StorageDAO storage, long streamId) {
+		long now = System.currentTimeMillis();
+		Cached cached = cache.get(streamId);
+		if (cached!=null && now-cached.loaded < TTL) { return cached.triggers; }
+		long seen = forgotten.get();
+		List<Trigger> triggers = storage.findTriggersByStreamId(streamId);
+		if (triggers==null || triggers.isEmpty()) { triggers = NONE; }
+		if (forgotten.get()==seen) { cache.put(streamId, new Cached(triggers, now)); }
+		return triggers;
+	}
+
+	// the stream's triggers changed or it was deleted
+	public static void forget(long streamId) {
+		forgotten.incrementAndGet();
+		cache.remove(streamId);
+	}
+
+	public void closed(String reason) {
+		logger.warn("Triggers no longer tested: "+reason);
+	}
+}
@@ -210,6 +210,7 @@ public class User {
 	}
 	public boolean isAuthorised(String key) {
 		if (this.token.equals(key)) {
+			InMemoryKeyCache.INSTANCE.userKey(key, id); // see RateLimiter
 			return true;
 		}
 		return false;
@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Arithmetic/boolean expression over a derived stream's antecedents,
+ * compiled once into a tree of nodes that evaluates without allocating.
+ * Syntax: numbers, variables, + - * / % ^, comparisons (< <= > >= == !=) and
+ * && || ! giving 1 or 0, c ? a : b, the constants pi and e, and the functions
+ * abs sqrt exp log log10 sin cos tan floor ceil round sign pow atan2 clamp min max.
+ * Distinct variable names, sorted alphabetically, are bound to the antecedents in the
+ * order they were given when the stream was made (StorageDAO.findAntecedents), so in
+ * "max(a,b)-c" a, b and c are the first, second and third antecedent.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core.functions;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class CompiledExpression {
+	// compiled expressions are immutable, share them between streams
+	private static final ConcurrentHashMap<String, CompiledExpression> cache = new ConcurrentHashMap<String, CompiledExpression>();
+	public static final int MAX_CACHED = 10000;
+
+	private final String source;
+	private final Node root;
+	private final String[] variables;
+
+	private CompiledExpression(String source, Node root, String[] variables) {
+		this.source = source;
+		this.root = root;
+		this.variables = variables;
+	}
+
+	// throws IllegalArgumentException describing the first syntax error
+	public static CompiledExpression compile(String source) {
+		CompiledExpression compiled = cache.get(source);
+		if (compiled!=null) { return compiled; }
+		Parser parser = new Parser(source);
+		Node root = parser.parse();
+		String[] variables = parser.variables.toArray(new String[parser.variables.size()]);
+		root = root.bind(variables);
+		compiled = new CompiledExpression(source, root, variables);
+		if (cache.size() < MAX_CACHED) { cache.put(source, compiled); }
+		return compiled;
+	}
+
+	// values are given in the order of getVariables()
+	public double evaluate(double[] values) {
+		return root.eval(values);
+	}
+
+	public String[] getVariables()	{ return variables; }
+	public String getSource()				{ return source; }
+	public String toString()				{ return source; }
+
+	/* Expression tree */
+	static abstract class Node {
+		abstract double eval(double[] v);
+		// resolve variable names to indices, folding constant subtrees
+		Node bind(String[] variables) { return this; }
+		boolean isConstant() { return false; }
+	}
+	static final class Const extends Node {
+		final double value;
+		Const(double value) { this.value = value; }
+		double eval(double[] v) { return value; }
+		boolean isConstant() { return true; }
+	}
+	static final class Var extends Node {
+		final String name;
+		int index = -1;
+		Var(String name) { this.name = name; }
+		double eval(double[] v) { return v[index]; }
+		Node bind(String[] variables) {
+			for (int c=0; c<variables.length; c++) {
+				if (variables[c].equals(name)) { index = c; }
+			}
+			return this;
+		}
+	}
+	static final class Unary extends Node {
+		final int op;
+		Node a;
+		Unary(int op, Node a) { this.op = op; this.a = a; }
+		double eval(double[] v) {
+			double x = a.eval(v);
+			switch (op) {
+				case NEG:   return -x;
+				case NOT:   return x==0.0 ? 1.0 : 0.0;
+				case ABS:   return Math.abs(x);
+				case SQRT:  return Math.sqrt(x);
+				case EXP:   return Math.exp(x);
+				case LOG:   return Math.log(x);
+				case LOG10: return Math.log10(x);
+				case SIN:   return Math.sin(x);
+				case COS:   return Math.cos(x);
+				case TAN:   return Math.tan(x);
+				case FLOOR: return Math.floor(x);
+				case CEIL:  return Math.ceil(x);
+				case ROUND: return Math.rint(x);
+				default:    return Math.signum(x);
+			}
+		}
+		Node bind(String[] variables) {
+			a = a.bind(variables);
+			return a.isConstant() ? new Const(eval(null)) : this;
+		}
+	}
+	static final class Binary extends Node {
+		final int op;
+		Node a, b;
+		Binary(int op, Node a, Node b) { this.op = op; this.a = a; this.b = b; }
+		double eval(double[] v) {
+			double x = a.eval(v);
+			switch (op) { // short circuit the boolean operators
+				case AND: return (x!=0.0 && b.eval(v)!=0.0) ? 1.0 : 0.0;
+				case OR:  return (x!=0.0 || b.eval(v)!=0.0) ? 1.0 : 0.0;
+			}
+			double y = b.eval(v);
+			switch (op) {
+				case ADD:   return x+y;
+				case SUB:   return x-y;
+				case MUL:   return x*y;
+				case DIV:   return x/y;
+				case MOD:   return x%y;
+				case POW:   return Math.pow(x,y);
+				case LT:    return x<y  ? 1.0 : 0.0;
+				case LE:    return x<=y ? 1.0 : 0.0;
+				case GT:    return x>y  ? 1.0 : 0.0;
+				case GE:    return x>=y ? 1.0 : 0.0;
+				case EQ:    return x==y ? 1.0 : 0.0;
+				case NE:    return x!=y ? 1.0 : 0.0;
+				case MIN:   return Math.min(x,y);
+				case MAX:   return Math.max(x,y);
+				default:    return Math.atan2(x,y);
+			}
+		}
+		Node bind(String[] variables) {
+			a = a.bind(variables);
+			b = b.bind(variables);
+			return (a.isConstant() && b.isConstant()) ? new Const(eval(null)) : this;
+		}
+	}
+	static final class Cond extends Node {
+		Node c, a, b;
+		Cond(Node c, Node a, Node b) { this.c = c; this.a = a; this.b = b; }
+		double eval(double[] v) { return c.eval(v)!=0.0 ? a.eval(v) : b.eval(v); }
+		Node bind(String[] variables) {
+			c = c.bind(variables);
+			a = a.bind(variables);
+			b = b.bind(variables);
+			if (c.isConstant()) { return c.eval(null)!=0.0 ? a : b; }
+			return this;
+		}
+	}
+
+	static final int NEG=0, NOT=1, ABS=2, SQRT=3, EXP=4, LOG=5, LOG10=6, SIN=7, COS=8, TAN=9,
+		FLOOR=10, CEIL=11, ROUND=12, SIGN=13;
+	static final int ADD=20, SUB=21, MUL=22, DIV=23, MOD=24, POW=25, LT=26, LE=27, GT=28, GE=29,
+		EQ=30, NE=31, AND=32, OR=33, MIN=34, MAX=35, ATAN2=36;
+
+	static final String[] UNARY_NAMES = { null, null, "abs", "sqrt", "exp", "log", "log10", "sin", "cos", "tan",
+		"floor", "ceil", "round", "sign" };
+
+	/* Recursive descent parser, lowest precedence first:
+	 *   cond := or ['?' cond ':' cond]
+	 *   or := and {'||' and},  and := cmp {'&&' cmp},  cmp := add [relop add]
+	 *   add := mul {('+'|'-') mul},  mul := unary {('*'|'/'|'%') unary}
+	 *   unary := ('-'|'+'|'!') unary | power,  power := primary ['^' unary]
+	 *   primary := number | name | name '(' cond {',' cond} ')' | '(' cond ')' */
+	static final class Parser {
+		private final String src;
+		private int pos;
+		final TreeSet<String> variables = new TreeSet<String>();
+
+		Parser(String src) {
+			if (src==null) { throw new IllegalArgumentException("Empty expression"); }
+			this.src = src;
+		}
+
+		Node parse() {
+			Node n = cond();
+			skip();
+			if (pos<src.length()) { throw error("Unexpected '"+src.charAt(pos)+"'"); }
+			return n;
+		}
+
+		private Node cond() {
+			Node c = or();
+			if (accept("?")) {
+				Node a = cond();
+				expect(":");
+				Node b = cond();
+				return new Cond(c, a, b);
+			}
+			return c;
+		}
+		private Node or() {
+			Node n = and();
+			while (accept("||")) { n = new Binary(OR, n, and()); }
+			return n;
+		}
+		private Node and() {
+			Node n = cmp();
+			while (accept("&&")) { n = new Binary(AND, n, cmp()); }
+			return n;
+		}
+		private Node cmp() {
+			Node n = add();
+			if (accept("<="))      { return new Binary(LE, n, add()); }
+			else if (accept(">=")) { return new Binary(GE, n, add()); }
+			else if (accept("==")) { return new Binary(EQ, n, add()); }
+			else if (accept("!=")) { return new Binary(NE, n, add()); }
+			else if (accept("<"))  { return new Binary(LT, n, add()); }
+			else if (accept(">"))  { return new Binary(GT, n, add()); }
+			return n;
+		}
+		private Node add() {
+			Node n = mul();
+			while (true) {
+				if (accept("+"))      { n = new Binary(ADD, n, mul()); }
+				else if (accept("-")) { n = new Binary(SUB, n, mul()); }
+				else { return n; }
+			}
+		}
+		private Node mul() {
+			Node n = unary();
+			while (true) {
+				if (accept("*"))      { n = new Binary(MUL, n, unary()); }
+				else if (accept("/")) { n = new Binary(DIV, n, unary()); }
+				else if (accept("%")) { n = new Binary(MOD, n, unary()); }
+				else { return n; }
+			}
+		}
+		private Node unary() {
+			if (accept("-")) { return new Unary(NEG, unary()); }
+			if (accept("+")) { return unary(); }
+			if (peek("!") && !peek("!=")) { pos++; return new Unary(NOT, unary()); }
+			return power();
+		}
+		private Node power() {
+			Node n = primary();
+			if (accept("^")) { return new Binary(POW, n, unary()); }
+			return n;
+		}
+		private Node primary() {
+			skip();
+			if (pos>=src.length()) { throw error("Unexpected end of expression"); }
+			char ch = src.charAt(pos);
+			if (accept("(")) {
+				Node n = cond();
+				expect(")");
+				return n;
+			}
+			if (Character.isDigit(ch) || ch=='.') { return number(); }
+			if (Character.isLetter(ch) || ch=='_') {
+				String name = name();
+				if (accept("(")) { return call(name); }
+				if ("pi".equals(name)) { return new Const(Math.PI); }
+				if ("e".equals(name))  { return new Const(Math.E); }
+				variables.add(name);
+				return new Var(name);
+			}
+			throw error("Unexpected '"+ch+"'");
+		}
+		private Node call(String name) {
+			List<Node> args = new ArrayList<Node>();
+			if (!accept(")")) {
+				do { args.add(cond()); } while (accept(","));
+				expect(")");
+			}
+			for (int op=ABS; op<=SIGN; op++) {
+				if (UNARY_NAMES[op].equals(name)) {
+					arity(name, args, 1, 1);
+					return new Unary(op, args.get(0));
+				}
+			}
+			if ("min".equals(name) || "max".equals(name)) {
+				arity(name, args, 1, Integer.MAX_VALUE);
+				Node n = args.get(0);
+				for (int c=1; c<args.size(); c++) { n = new Binary("min".equals(name) ? MIN : MAX, n, args.get(c)); }
+				return n;
+			}
+			if ("pow".equals(name))   { arity(name, args, 2, 2); return new Binary(POW, args.get(0), args.get(1)); }
+			if ("atan2".equals(name)) { arity(name, args, 2, 2); return new Binary(ATAN2, args.get(0), args.get(1)); }
+			if ("clamp".equals(name)) {
+				arity(name, args, 3, 3);
+				return new Binary(MIN, new Binary(MAX, args.get(0), args.get(1)), args.get(2));
+			}
+			throw error("Unknown function "+name+"()");
+		}
+		private void arity(String name, List<Node> args, int min, int max) {
+			if (args.size()<min || args.size()>max) {
+				throw error(name+"() takes "+(min==max ? ""+min : "at least "+min)+" argument"+(min==1 && max==1 ? "" : "s"));
+			}
+		}
+		private Node number() {
+			int begin = pos;
+			while (pos<src.length() && (Character.isDigit(src.charAt(pos)) || src.charAt(pos)=='.')) { pos++; }
+			if (pos<src.length() && (src.charAt(pos)=='e' || src.charAt(pos)=='E')) {
+				int mark = pos++;
+				if (pos<src.length() && (src.charAt(pos)=='+' || src.charAt(pos)=='-')) { pos++; }
+				if (pos<src.length() && Character.isDigit(src.charAt(pos))) {
+					while (pos<src.length() && Character.isDigit(src.charAt(pos))) { pos++; }
+				} else { pos = mark; } // not an exponent after all
+			}
+			try {
+				return new Const(Double.parseDouble(src.substring(begin, pos)));
+			} catch (NumberFormatException e) {
+				throw error("Bad number "+src.substring(begin, pos));
+			}
+		}
+		private String name() {
+			int begin = pos;
+			while (pos<src.length() && (Character.isLetterOrDigit(src.charAt(pos)) || src.charAt(pos)=='_')) { pos++; }
+			return src.substring(begin, pos);
+		}
+		private void skip() {
+			while (pos<src.length() && Character.isWhitespace(src.charAt(pos))) { pos++; }
+		}
+		private boolean peek(String token) {
+			skip();
+			return src.startsWith(token, pos);
+		}
+		private boolean accept(String token) {
+			if (peek(token)) { pos += token.length(); return true; }
+			return false;
+		}
+		private void expect(String token) {
+			if (!accept(token)) { throw error("Expected '"+token+"'"); }
+		}
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message+" at position "+pos+" in: "+src);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Derived stream computed by a user expression, e.g. "expr:(a*1.8)+32".
+ * The antecedents are joined at the newest timestamp; a value is only produced when
+ * every variable has a point within tolerance of it.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core.functions;
+
+import java.util.List;
+import java.util.ArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.sics.sicsthsense.core.*;
+import se.sics.sicsthsense.jdbi.*;
+
+public class Expression extends Function {
+	private static final Logger logger = LoggerFactory.getLogger(Expression.class);
+
+	private CompiledExpression expression;
+	private double[] aligned;
+	private boolean[] present;
+
+	public Expression(StorageDAO storage) {
+		super(storage, "expr");
+	}
+
+	// the expression itself, compiled (or taken from the cache) here
+	public void configure(String args) {
+		if (args==null || "".equals(args.trim())) {
+			throw new IllegalArgumentException("expr needs an expression, e.g. expr:(a*1.8)+32");
+		}
+		expression = CompiledExpression.compile(args.trim());
+		aligned = new double[expression.getVariables().length];
+		present = new boolean[aligned.length];
+	}
+
+	public boolean acceptsInputs(int inputs) {
+		return expression!=null && inputs==expression.getVariables().length;
+	}
+
+	public List<DataPoint> apply(List<Long> streamIds) {
+		List<DataPoint> rv = new ArrayList<DataPoint>();
+		if (expression==null) { logger.error("Expression not configured!"); return rv; }
+		if (streamIds==null) { logger.error("Stream IDs are null!!"); return rv; }
+		int n = aligned.length;
+		if (streamIds.size()!=n) {
+			logger.error("Expression "+expression+" has "+n+" variables but "+streamIds.size()+" antecedents");
+			return rv;
+		}
+		if (n==0) { // constant expression
+			rv.add(new DataPoint(System.currentTimeMillis(), expression.evaluate(aligned)));
+			return rv;
+		}
+		TimeJoin join = latestJoin(n);
+		join.load(storage, streamIds);
+		long tick = join.latestTick();
+		if (tick<0) { return rv; }
+		if (join.align(tick, aligned, present) < n) { return rv; } // a variable has no fresh value
+
+		double value = expression.evaluate(aligned);
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			logger.warn("Expression "+expression+" gave "+value+" at "+tick);
+			return rv;
+		}
+		rv.add(new DataPoint(tick, value));
+		return rv;
+	}
+
+	public boolean isPointwise() {
+		return true;
+	}
+
+	// only once every variable has a value within tolerance, as in apply()
+	public void replay(int input, long timestamp, double value, List<DataPoint> out) {
+		replayJoin.add(input, timestamp, value);
+		if (replayJoin.align(timestamp, aligned, present) < aligned.length) { return; }
+		double result = expression.evaluate(aligned);
+		if (Double.isNaN(result) || Double.isInfinite(result)) { return; }
+		out.add(new DataPoint(timestamp, result));
+	}
+
+	public CompiledExpression getExpression() { return expression; }
+
+	public String toString() {
+		return type+":"+expression;
+	}
+
+}
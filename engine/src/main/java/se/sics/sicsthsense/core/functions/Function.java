@@ -38,26 +38,154 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class Function {
+	// how old an antecedent's value may be and still be combined with the others
+	public static final long DEFAULT_TOLERANCE = 5*60*1000;
+
 	protected String type;
 	protected Logger logger;
 	protected StorageDAO storage;
+	protected long tolerance = DEFAULT_TOLERANCE;
+	// the derived stream this instance computes, -1 when not bound to one
+	protected long streamId = -1;
 
 	public Function(StorageDAO storage, String type) {
 		this.type = type;
 		this.storage = storage;
 	}
 
+	// arguments given after the name, e.g. "mean:30s", by default a join tolerance
+	public void configure(String args) {
+		if (args==null || "".equals(args.trim())) {return;}
+		this.tolerance = parseDuration(args.trim());
+	}
+
+	// called once by the FunctionRegistry before the instance is first applied
+	public void bind(long streamId) {
+		this.streamId = streamId;
+	}
+
+	// whether the function can be computed from this many antecedents, beyond
+	// the arity its factory declares
+	public boolean acceptsInputs(int inputs) {
+		return true;
+	}
+
     // This should be overidden by subclasses
 	public List<DataPoint> apply(List<Long> streamIds) throws Exception {
 		List<DataPoint> rv = new ArrayList<DataPoint>();
 		return rv;
 	}
 
+	// Pointwise functions override this to combine the count aligned values
+	public double combine(double[] values, int count) {
+		return Double.NaN;
+	}
+
+	// Join the antecedents at the newest timestamp any of them has, and combine the
+	// values of those within tolerance of it. Stale antecedents are left out.
+	protected List<DataPoint> applyLatest(List<Long> streamIds) {
+		List<DataPoint> rv = new ArrayList<DataPoint>();
+		if (streamIds==null || streamIds.size()==0) { return rv; }
+		int n = streamIds.size();
+		TimeJoin join = latestJoin(n);
+		join.load(storage, streamIds);
+		long tick = join.latestTick();
+		if (tick<0) { return rv; } // no data on any input
+
+		join.align(tick, latestValues, latestPresent);
+		int k=0;
+		for (int i=0; i<n; i++) {
+			if (latestPresent[i]) { latestFresh[k++] = latestValues[i]; }
+		}
+		rv.add(new DataPoint(tick, combine(latestFresh, k)));
+		return rv;
+	}
+
+	// one-point join kept between updates, apply() is serialised per bound function
+	private TimeJoin latestJoin;
+	private long latestTolerance;
+	private double[] latestValues;
+	private boolean[] latestPresent;
+	private double[] latestFresh;
+
+	// the instance's join for n antecedents, emptied, made anew only when n or the tolerance changes
+	protected TimeJoin latestJoin(int n) {
+		if (latestJoin==null || latestJoin.getInputs()!=n || latestTolerance!=tolerance) {
+			latestJoin = new TimeJoin(n, 1, tolerance, TimeJoin.FILL_LAST);
+			latestTolerance = tolerance;
+			latestValues = new double[n];
+			latestPresent = new boolean[n];
+			latestFresh = new double[n];
+		} else {
+			latestJoin.clear();
+		}
+		return latestJoin;
+	}
+
+	/* Recomputing from history (see Backfill). A replayable function is started
+	 * on a fresh instance and then given every antecedent point in time order. */
+
+	// whether the function's output depends only on its antecedents' points
+	public boolean isReplayable() {
+		return isPointwise();
+	}
+
+	// whether each output depends only on the latest points of the antecedents, so
+	// separate stretches of history can be replayed independently
+	public boolean isPointwise() {
+		return false;
+	}
+
+	// how far back of a stretch replay has to start to produce its first value
+	public long replayLookback() {
+		return tolerance;
+	}
+
+	protected TimeJoin replayJoin;
+	protected double[] replayValues;
+	protected boolean[] replayPresent;
+
+	public void startReplay(int inputs) {
+		replayJoin = new TimeJoin(inputs, 1, tolerance, TimeJoin.FILL_LAST);
+		replayValues = new double[inputs];
+		replayPresent = new boolean[inputs];
+	}
+
+	// by default as applyLatest() would have done when this point arrived
+	public void replay(int input, long timestamp, double value, List<DataPoint> out) {
+		replayJoin.add(input, timestamp, value);
+		int k = replayJoin.align(timestamp, replayValues, replayPresent);
+		if (k==0) { return; }
+		double[] fresh = new double[k];
+		k=0;
+		for (int i=0; i<replayValues.length; i++) {
+			if (replayPresent[i]) { fresh[k++] = replayValues[i]; }
+		}
+		out.add(new DataPoint(timestamp, combine(fresh, k)));
+	}
+
+	// durations such as 500ms, 30s, 5m, 1h or 1d; a bare number is milliseconds
+	public static long parseDuration(String duration) {
+		String d = duration.trim().toLowerCase();
+		long unit = 1;
+		if (d.endsWith("ms"))		{ d = d.substring(0, d.length()-2); }
+		else if (d.endsWith("s")) { unit = 1000; d = d.substring(0, d.length()-1); }
+		else if (d.endsWith("m")) { unit = 60*1000; d = d.substring(0, d.length()-1); }
+		else if (d.endsWith("h")) { unit = 60*60*1000; d = d.substring(0, d.length()-1); }
+		else if (d.endsWith("d")) { unit = 24*60*60*1000; d = d.substring(0, d.length()-1); }
+		long value = Long.parseLong(d.trim());
+		if (value<0) { throw new IllegalArgumentException("Negative duration: "+duration); }
+		return value*unit;
+	}
+
 	public String toString() {
 		return type;
 	}
 
 	public String getType()				{ return type; }
+	public long getTolerance()		{ return tolerance; }
+	public long getStreamId()			{ return streamId; }
 	public void setType(String type)	{ this.type = type; }
+	public void setTolerance(long tolerance)	{ this.tolerance = tolerance; }
 
 }
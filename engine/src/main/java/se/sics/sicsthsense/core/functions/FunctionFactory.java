@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Describes and creates one kind of stream function. Plug-ins subclass
+ * this with a no-argument constructor and list the class in
+ * META-INF/services/se.sics.sicsthsense.core.functions.FunctionFactory, or call
+ * FunctionRegistry.register() themselves.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core.functions;
+
+import se.sics.sicsthsense.jdbi.*;
+
+public abstract class FunctionFactory {
+	public static final int ANY = Integer.MAX_VALUE;
+
+	// what an instance keeps between updates
+	public enum StateType {
+		STATELESS, // each update reads what it needs from storage
+		HISTORY,   // reads back its own output or a fixed number of points
+		WINDOWED   // keeps window state in memory
+	}
+
+	// rough work done per update, for scheduling and capacity planning
+	public enum Cost {
+		LOW,    // a point per antecedent
+		MEDIUM, // a few points per antecedent
+		HIGH    // a window's worth of points or more
+	}
+
+	private final String name;
+	private final int minInputs;
+	private final int maxInputs;
+	private final StateType stateType;
+	private final Cost cost;
+
+	public FunctionFactory(String name, int minInputs, int maxInputs, StateType stateType, Cost cost) {
+		if (name==null || name.indexOf(':')>=0) { throw new IllegalArgumentException("Bad function name: "+name); }
+		this.name = name;
+		this.minInputs = minInputs;
+		this.maxInputs = maxInputs;
+		this.stateType = stateType;
+		this.cost = cost;
+	}
+
+	// a new, unconfigured instance; the registry binds and configures it
+	public abstract Function create(StorageDAO storage);
+
+	public boolean acceptsInputs(int inputs) {
+		return inputs>=minInputs && inputs<=maxInputs;
+	}
+
+	public String getName()					{ return name; }
+	public int getMinInputs()				{ return minInputs; }
+	public int getMaxInputs()				{ return maxInputs; }
+	public StateType getStateType()	{ return stateType; }
+	public Cost getCost()						{ return cost; }
+
+	public String toString() {
+		return name+"["+minInputs+".."+(maxInputs==ANY ? "*" : ""+maxInputs)+", "+stateType+", "+cost+"]";
+	}
+}
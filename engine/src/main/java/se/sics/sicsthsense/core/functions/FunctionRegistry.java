@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Looks up stream functions by name and keeps one configured instance
+ * per derived stream, so functions are built once rather than on every update.
+ * The built-in functions are always registered; others are found with
+ * ServiceLoader when loadPlugins() is called at start up.
+ * Every invocation is timed under functions.<name>.invocations, failures are
+ * counted under functions.<name>.errors.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core.functions;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ServiceLoader;
+import java.util.ServiceConfigurationError;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.core.*;
+import se.sics.sicsthsense.jdbi.*;
+
+public class FunctionRegistry {
+	private static final Logger logger = LoggerFactory.getLogger(FunctionRegistry.class);
+
+	private static final ConcurrentHashMap<String, FunctionFactory> factories = new ConcurrentHashMap<String, FunctionFactory>();
+	// configured instance per derived stream id
+	private static final ConcurrentHashMap<Long, Bound> instances = new ConcurrentHashMap<Long, Bound>();
+
+	static {
+		registerDefaults();
+	}
+
+	public static void register(FunctionFactory factory) {
+		FunctionFactory old = factories.put(factory.getName(), factory);
+		if (old!=null && old!=factory) {
+			logger.warn("Function "+factory.getName()+" replaced by "+factory.getClass().getName());
+			instances.clear(); // rebuild with the new implementation
+		}
+	}
+
+	// register any FunctionFactory implementations found on the class path
+	public static int loadPlugins() {
+		int count=0;
+		try {
+			for (FunctionFactory factory: ServiceLoader.load(FunctionFactory.class)) {
+				register(factory);
+				logger.info("Loaded function plug-in "+factory);
+				count++;
+			}
+		} catch (ServiceConfigurationError e) {
+			logger.error("Failed to load function plug-ins: "+e.getMessage());
+		}
+		return count;
+	}
+
+	public static FunctionFactory getFactory(String name) {
+		return factories.get(name);
+	}
+
+	public static Collection<FunctionFactory> getFactories() {
+		return factories.values();
+	}
+
+	// name of the function in a spec such as "mean:30s"
+	public static String nameOf(String spec) {
+		int colon = spec.indexOf(':');
+		return colon>=0 ? spec.substring(0,colon) : spec;
+	}
+
+	// A new instance for spec, which may carry arguments after the function name.
+	// Throws IllegalArgumentException if the name is unknown or the arguments are bad.
+	public static Function create(StorageDAO storage, long streamId, String spec) {
+		if (spec==null || "".equals(spec)) { throw new IllegalArgumentException("No function given"); }
+		String name = nameOf(spec);
+		String args = name.length()<spec.length() ? spec.substring(name.length()+1) : null;
+		FunctionFactory factory = factories.get(name);
+		if (factory==null) { throw new IllegalArgumentException("Unknown function "+name); }
+		Function function = factory.create(storage);
+		function.bind(streamId);
+		function.configure(args);
+		return function;
+	}
+
+	// check spec can be computed from the given number of antecedents
+	public static void validate(StorageDAO storage, String spec, int inputs) {
+		Function function = create(storage, -1, spec);
+		FunctionFactory factory = factories.get(nameOf(spec));
+		if (!factory.acceptsInputs(inputs) || !function.acceptsInputs(inputs)) {
+			throw new IllegalArgumentException("Function "+spec+" cannot take "+inputs+" antecedent"+(inputs==1 ? "" : "s")+" "+factory);
+		}
+	}
+
+	// the instance computing streamId, rebuilt when its function spec changes
+	public static Function forStream(StorageDAO storage, long streamId, String spec) {
+		return bound(storage, streamId, spec).function;
+	}
+
+	public static List<DataPoint> apply(StorageDAO storage, long streamId, String spec, List<Long> antecedents) throws Exception {
+		Bound bound = bound(storage, streamId, spec);
+		Timer.Context timing = bound.invocations.time();
+		Trace.Span span = Trace.start("function", spec, streamId);
+		ReadRouter.pin(); // functions must see the antecedents' latest points
+		try {
+			// instances may keep state, so one update of a stream at a time
+			synchronized (bound.function) {
+				return bound.function.apply(antecedents);
+			}
+		} catch (Exception e) {
+			bound.errors.mark();
+			throw e;
+		} finally {
+			ReadRouter.unpin();
+			span.end();
+			timing.stop();
+		}
+	}
+
+	// drop the instance of a deleted stream
+	public static void forget(long streamId) {
+		instances.remove(streamId);
+	}
+
+	// concurrent callers may each build an instance, but only the one that gets into
+	// instances is used, so a stateful function's state is not split between two
+	private static Bound bound(StorageDAO storage, long streamId, String spec) {
+		while (true) {
+			Bound bound = instances.get(streamId);
+			if (bound!=null && bound.spec.equals(spec)) { return bound; }
+			Bound built = new Bound(spec, create(storage, streamId, spec));
+			if (bound==null) {
+				Bound winner = instances.putIfAbsent(streamId, built);
+				if (winner==null) { return built; }
+				if (winner.spec.equals(spec)) { return winner; }
+			} else if (instances.replace(streamId, bound, built)) {
+				return built;
+			}
+			// lost to a caller with another spec, or forget(); look again
+		}
+	}
+
+	private static class Bound {
+		final String spec;
+		final Function function;
+		final Timer invocations;
+		final Meter errors;
+
+		Bound(String spec, Function function) {
+			this.spec = spec;
+			this.function = function;
+			String name = nameOf(spec);
+			this.invocations = EngineMetrics.timer("functions", name, "invocations");
+			this.errors = EngineMetrics.meter("functions", name, "errors");
+		}
+	}
+
+	private static void registerDefaults() {
+		register(new FunctionFactory("mean", 1, FunctionFactory.ANY, FunctionFactory.StateType.STATELESS, FunctionFactory.Cost.LOW) {
+			public Function create(StorageDAO storage) { return new Mean(storage); }
+		});
+		register(new FunctionFactory("min", 1, FunctionFactory.ANY, FunctionFactory.StateType.STATELESS, FunctionFactory.Cost.LOW) {
+			public Function create(StorageDAO storage) { return new Min(storage); }
+		});
+		register(new FunctionFactory("max", 1, FunctionFactory.ANY, FunctionFactory.StateType.STATELESS, FunctionFactory.Cost.LOW) {
+			public Function create(StorageDAO storage) { return new Max(storage); }
+		});
+		register(new FunctionFactory("median", 1, FunctionFactory.ANY, FunctionFactory.StateType.STATELESS, FunctionFactory.Cost.LOW) {
+			public Function create(StorageDAO storage) { return new Median(storage); }
+		});
+		register(new FunctionFactory("intensity", 3, 7, FunctionFactory.StateType.HISTORY, FunctionFactory.Cost.MEDIUM) {
+			public Function create(StorageDAO storage) { return new Intensity(storage); }
+		});
+		register(new FunctionFactory("smooth", 1, 1, FunctionFactory.StateType.HISTORY, FunctionFactory.Cost.MEDIUM) {
+			public Function create(StorageDAO storage) { return new Smooth(storage); }
+		});
+		register(new FunctionFactory("meansmooth", 1, 1, FunctionFactory.StateType.HISTORY, FunctionFactory.Cost.MEDIUM) {
+			public Function create(StorageDAO storage) { return new MeanSmooth(storage); }
+		});
+		register(new FunctionFactory("tumbling", 1, FunctionFactory.ANY, FunctionFactory.StateType.WINDOWED, FunctionFactory.Cost.HIGH) {
+			public Function create(StorageDAO storage) { return new WindowAggregate(storage, "tumbling"); }
+		});
+		register(new FunctionFactory("sliding", 1, FunctionFactory.ANY, FunctionFactory.StateType.WINDOWED, FunctionFactory.Cost.HIGH) {
+			public Function create(StorageDAO storage) { return new WindowAggregate(storage, "sliding"); }
+		});
+		register(new FunctionFactory("expr", 0, FunctionFactory.ANY, FunctionFactory.StateType.STATELESS, FunctionFactory.Cost.LOW) {
+			public Function create(StorageDAO storage) { return new Expression(storage); }
+		});
+	}
+}
@@ -38,16 +38,20 @@ import se.sics.sicsthsense.Utils;
 import se.sics.sicsthsense.jdbi.*;
 
 public class Intensity extends Function {
-	private final Logger logger = LoggerFactory.getLogger(Intensity.class);
+	private static final Logger logger = LoggerFactory.getLogger(Intensity.class);
 	public int AccHistorySize  = 1;
 	public int GyroHistorySize = 1;
-	public long streamId;
 	private boolean DEBUG = false;
+	// samples of one device's accelerometer and gyro should be this close together
+	public static final long SENSOR_TOLERANCE = 1000;
+	public static final long HEARTRATE_TOLERANCE = 10*1000;
+	// extra points buffered per input so that slower inputs can still be aligned
+	private static final int JOIN_SLACK = 4;
 
-	public Intensity(StorageDAO storage, long streamId) {
+	public Intensity(StorageDAO storage) {
 		super(storage, "intensity");
 		this.type = "intensity";
-		this.streamId = streamId;
+		this.tolerance = SENSOR_TOLERANCE;
 	}
 
 	public double magnitude3D(double x, double y, double z) {
@@ -55,65 +59,53 @@ public class Intensity extends Function {
 	  return Math.sqrt(x*x + y*y + z*z);
 	}
 
-	// Given 3 stream ID of acceleration, calculate the acceleration intensity history
-	public List<DataPoint> getAccel(long Xstream, long Ystream, long Zstream) throws Exception {
-	  List<DataPoint> rv = new ArrayList<DataPoint>();
-	  List<DataPoint> X = storage.findPointsByStreamId(Xstream,AccHistorySize);
-	  List<DataPoint> Y = storage.findPointsByStreamId(Ystream,AccHistorySize);
-	  List<DataPoint> Z = storage.findPointsByStreamId(Zstream,AccHistorySize);
-	  if (X==null || Y==null || Z==null) {throw new Exception("No acceleration data");}
-	  for (int c=0; c<X.size(); ++c) {
-		double magnitude = magnitude3D(X.get(c).getValue(), Y.get(c).getValue(), Z.get(c).getValue());
-		if (DEBUG) {logger.warn("Accel: "+X.get(c).getValue()+" "+ Y.get(c).getValue()+" "+ Z.get(c).getValue());}
+	// Acceleration intensity of one aligned X/Y/Z sample, gravity removed
+	public double accelMagnitude(double x, double y, double z) {
+		double magnitude = magnitude3D(x, y, z);
+		if (DEBUG) {logger.warn("Accel: "+x+" "+y+" "+z);}
 		double gravity = 10.0;//9.8;
 		if (DEBUG) {logger.info("magnitude: "+magnitude);}
 		magnitude -= gravity;
 		if (DEBUG) {logger.info("magnitude - gravity: "+magnitude);}
 		if (magnitude<0) {magnitude=0.0;}
-		rv.add(new DataPoint(X.get(c).getTimestamp(), magnitude));
-	  }
-	  return rv;
+		return magnitude;
 	}
 
-	// calculate the gyro scope history
-	public List<DataPoint> getGyro(long Xstream, long Ystream, long Zstream) throws Exception {
-	  List<DataPoint> rv = new ArrayList<DataPoint>();
-	  List<DataPoint> X = storage.findPointsByStreamId(Xstream,AccHistorySize);
-	  List<DataPoint> Y = storage.findPointsByStreamId(Ystream,AccHistorySize);
-	  List<DataPoint> Z = storage.findPointsByStreamId(Zstream,AccHistorySize);
-	  if (X==null || Y==null || Z==null) {throw new Exception("No gyro data");}
-	  for (int c=0; c<X.size(); ++c) {
-		double magnitude = Math.abs(X.get(c).getValue()) + Math.abs(Y.get(c).getValue()) + Math.abs(Z.get(c).getValue());
-		if (DEBUG) {logger.error("Gyro: "+Math.abs(X.get(c).getValue()) +" "+ Math.abs(Y.get(c).getValue()) +" "+ Math.abs(Z.get(c).getValue())+" "+magnitude);}
-		rv.add(new DataPoint(X.get(c).getTimestamp(), magnitude));
-	  }
-
-	  return rv;
+	// Rotation of one aligned gyro sample
+	public double gyroMagnitude(double x, double y, double z) {
+		double magnitude = Math.abs(x) + Math.abs(y) + Math.abs(z);
+		if (DEBUG) {logger.error("Gyro: "+Math.abs(x) +" "+ Math.abs(y) +" "+ Math.abs(z)+" "+magnitude);}
+		return magnitude;
 	}
 
 	public List<DataPoint> apply(List<Long> streamIds) throws Exception {
 		List<DataPoint> rv = new ArrayList<DataPoint>();
-		int maxPossible=10; // max possible intensity score
 
 		if (streamIds==null) { logger.error("Stream IDs are null!!"); return rv; }
 		int streamCount = streamIds.size(); // how many input streams?
 
 		if (streamCount!=3 && streamCount!=6  && streamCount!=7) { throw new Exception("Error: Stream count wrong (should be 3, 6 or 7)!"); }
 
-		//logger.info("Stream ids: "+streamIds.get(0)+" "+ streamIds.get(1)+" "+streamIds.get(2));
-		// We need acceleration data
-		List<DataPoint> accel = getAccel(streamIds.get(0), streamIds.get(1), streamIds.get(2));
-		// Do we have gyro data?
-		List<DataPoint> gyro = null;
-		if (streamCount>=6) { gyro = getGyro(streamIds.get(3), streamIds.get(4), streamIds.get(5)); }
-		// Do we have heartrate?
-		List<DataPoint> heartrate = null;
-		if (streamCount>=7) { heartrate = storage.findPointsByStreamId(streamIds.get(6),1); }
-
-		// combine all the separate readings
-		for (int c=0; c<accel.size(); ++c) {
+		// line the inputs up on the acceleration X timestamps instead of pairing by position
+		TimeJoin join = new TimeJoin(streamCount, AccHistorySize+JOIN_SLACK, tolerance, TimeJoin.FILL_LAST);
+		if (streamCount>=7) { join.setTolerance(6, HEARTRATE_TOLERANCE); } // heart rate is sampled slowly
+		join.load(storage, streamIds);
+		if (join.size(0)==0) {throw new Exception("No acceleration data");}
+
+		double[] values = new double[streamCount];
+		boolean[] present = new boolean[streamCount];
+		int ticks = Math.min(AccHistorySize, join.size(0));
+		for (int c=0; c<ticks; ++c) {
+			long tick = join.newest(0,c);
+			join.align(tick, values, present);
+			// We need acceleration data
+			if (!present[0] || !present[1] || !present[2]) {
+				logger.warn("Acceleration axes not aligned at "+tick+", skipping");
+				continue;
+			}
+			int maxPossible=10; // max possible intensity score
 			double intensity=0.0;
-			double acc = accel.get(c).getValue();
+			double acc = accelMagnitude(values[0], values[1], values[2]);
 			//logger.info("acc raw: "+acc);
 			double accFudge = 0.25;
 			acc = 1+(acc*accFudge); // tune the value
@@ -121,8 +113,9 @@ public class Intensity extends Function {
 			intensity += 10 - (10.0/acc);
 			if (DEBUG) {logger.info("intensity with acc: "+intensity+" / "+maxPossible+" = "+(intensity/maxPossible));}
 
-		if (gyro!=null) {
-			double gy = gyro.get(c).getValue();
+		// Do we have gyro data?
+		if (streamCount>=6 && present[3] && present[4] && present[5]) {
+			double gy = gyroMagnitude(values[3], values[4], values[5]);
 			double gyFudge=2;
 			gy = gy * gyFudge;
 			if (gy > 0.5) {
@@ -132,8 +125,9 @@ public class Intensity extends Function {
 		}
 		if (DEBUG) {logger.info("intensity with gyro: "+intensity+" / "+maxPossible+" = "+(intensity/maxPossible));}
 
-		if (heartrate!=null) {
-			double hr = heartrate.get(c).getValue();
+		// Do we have heartrate?
+		if (streamCount>=7 && present[6]) {
+			double hr = values[6];
 			if (DEBUG) {logger.warn("heartrate: "+hr);}
 			if (hr<60.0) {
 			  //do nothing, bad reading
@@ -153,16 +147,6 @@ public class Intensity extends Function {
 		List<DataPoint> dps = storage.findPointsByStreamId(this.streamId,2);
 		if (dps==null)     { logger.error("Stream not valid!"); return rv;}
 
-		// group statistics
-		if (false) {
-			// include stats from the group Stream
-			List<DataPoint> groupdps = storage.findPointsByStreamId(this.streamId,1);
-			if (groupdps!=null && groupdps.size()==1) {
-				maxPossible += 5;
-				intensity += dps.get(0).getValue() / 20; // reduce from %
-			}
-		}
-
 		double decayFactor=0.50;// how much of the *current* value to use?
 		double smoothIntensity=0.0;
 		double prevValue;
@@ -170,7 +154,7 @@ public class Intensity extends Function {
 
 		if (dps.size()>0) {//use a proportion of the prev value
 			// get latest point that is not of the same time
-			if (dps.get(0).getTimestamp() == (accel.get(0).getTimestamp())) {
+			if (dps.get(0).getTimestamp() == tick) {
 				if (dps.size()>1) { prevValue = dps.get(1).getValue();
 				} else {prevValue = intensity;} // no prev values
 			} else { prevValue = dps.get(0).getValue(); }
@@ -183,12 +167,7 @@ public class Intensity extends Function {
 		//if (smoothIntensity<0.0)   {smoothIntensity=0.0;}
 		//if (smoothIntensity>100.0) {smoothIntensity=100.0;}
 
-		rv.add(new DataPoint(accel.get(0).getTimestamp(), smoothIntensity)); // scale to 0-100
-
-		// add this point for others
-		//DataPoint groupdp = new DataPoint(accel.get(0).getTimestamp(), smoothIntensity); // scale to 0-100
-		//groupdp.setStreamId(9999);
-		//Utils.insertDataPoint(storage,groupdp);
+		rv.add(new DataPoint(tick, smoothIntensity)); // scale to 0-100
 		}
 		return rv;
 	}
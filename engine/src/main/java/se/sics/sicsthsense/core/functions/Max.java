@@ -37,41 +37,34 @@ import se.sics.sicsthsense.core.*;
 import se.sics.sicsthsense.jdbi.*;
 
 public class Max extends Function {
-	private final Logger logger = LoggerFactory.getLogger(Max.class);
+	private static final Logger logger = LoggerFactory.getLogger(Max.class);
 
 	public Max(StorageDAO storage) {
 		super(storage,"max");
 		this.type = "max";
 	}
 
+	// combine the latest value of every antecedent that is within tolerance of the newest
 	public List<DataPoint> apply(List<Long> streamIds) {
-		int k=0;
-		double max=Double.MIN_VALUE;
-		long latest=-1;
-		List<DataPoint> rv = new ArrayList<DataPoint>();
-
 		if (streamIds==null) {
 			logger.error("Stream IDs are null!!");
-			return rv;
-		}
-		for (long streamId: streamIds) {
-			List<DataPoint> dps = storage.findPointsByStreamId(streamId,1);
-			if (dps.size()>0) {
-				DataPoint dp = dps.get(0);
-				k++;
-				if (dp.getValue()>max) {max=dp.getValue();}
-				if (dp.getTimestamp() > latest) {latest = dp.getTimestamp();}
-			}
-		}
-		if (k>0) { //check we have some data points
-			rv.add(new DataPoint(latest, max ));
-			//logger.info("Calculated max: "+max);
-		} else {
-			logger.warn("No points to calculate mean of!");
+			return new ArrayList<DataPoint>();
 		}
+		List<DataPoint> rv = applyLatest(streamIds);
+		if (rv.size()==0) { logger.warn("No points to calculate max of!"); }
 		return rv;
 	}
 
+	public boolean isPointwise() {
+		return true;
+	}
+
+	public double combine(double[] values, int count) {
+		double max=-Double.MAX_VALUE;
+		for (int c=0; c<count; c++) { if (values[c]>max) {max=values[c];} }
+		return max;
+	}
+
 	public String toString() {
 		return type;
 	}
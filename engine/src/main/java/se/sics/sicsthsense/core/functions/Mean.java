@@ -37,41 +37,34 @@ import se.sics.sicsthsense.core.*;
 import se.sics.sicsthsense.jdbi.*;
 
 public class Mean extends Function {
-	private final Logger logger = LoggerFactory.getLogger(Mean.class);
+	private static final Logger logger = LoggerFactory.getLogger(Mean.class);
 
 	public Mean(StorageDAO storage) {
 		super(storage, "mean");
 		this.type = "mean";
 	}
 
+	// combine the latest value of every antecedent that is within tolerance of the newest
 	public List<DataPoint> apply(List<Long> streamIds) {
-		int k=0;
-		double total=0.0;
-		long latest=-1;
-		List<DataPoint> rv = new ArrayList<DataPoint>();
-
 		if (streamIds==null) {
 			logger.error("Stream IDs are null!!");
-			return rv;
-		}
-		for (long streamId: streamIds) {
-			List<DataPoint> dps = storage.findPointsByStreamId(streamId,1);
-			if (dps.size()>0) {
-				DataPoint dp = dps.get(0);
-				k++;
-				total += dp.getValue();
-				if (dp.getTimestamp() > latest) {latest = dp.getTimestamp();}
-			}
-		}
-		if (k>0) { //check we have some data points
-			rv.add(new DataPoint(latest, (total/k) ));
-			//logger.info("Calculated mean: "+(total/k));
-		} else {
-			logger.warn("No points to calculate mean of!");
+			return new ArrayList<DataPoint>();
 		}
+		List<DataPoint> rv = applyLatest(streamIds);
+		if (rv.size()==0) { logger.warn("No points to calculate mean of!"); }
 		return rv;
 	}
 
+	public boolean isPointwise() {
+		return true;
+	}
+
+	public double combine(double[] values, int count) {
+		double total=0.0;
+		for (int c=0; c<count; c++) { total += values[c]; }
+		return total/count;
+	}
+
 	public String toString() {
 		return type;
 	}
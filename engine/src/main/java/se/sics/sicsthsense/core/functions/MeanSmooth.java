@@ -37,7 +37,7 @@ import se.sics.sicsthsense.core.*;
 import se.sics.sicsthsense.jdbi.*;
 
 public class MeanSmooth extends Function {
-	private final Logger logger = LoggerFactory.getLogger(MeanSmooth.class);
+	private static final Logger logger = LoggerFactory.getLogger(MeanSmooth.class);
 	public int N;
 
 	public MeanSmooth(StorageDAO storage) {
@@ -30,7 +30,7 @@ package se.sics.sicsthsense.core.functions;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,44 +38,34 @@ import se.sics.sicsthsense.core.*;
 import se.sics.sicsthsense.jdbi.*;
 
 public class Median extends Function {
-	private final Logger logger = LoggerFactory.getLogger(Median.class);
+	private static final Logger logger = LoggerFactory.getLogger(Median.class);
 
 	public Median(StorageDAO storage) {
 		super(storage,"median");
 		this.type = "median";
 	}
 
+	// combine the latest value of every antecedent that is within tolerance of the newest
 	public List<DataPoint> apply(List<Long> streamIds) {
-		int k=0;
-		double total=0.0;
-		long latest=-1;
-		List<Double> orderlist = new ArrayList<Double>();
-		List<DataPoint> rv = new ArrayList<DataPoint>();
-
-		//logger.info(" Calculating median!!");
 		if (streamIds==null) {
 			logger.error("Stream IDs are null!!");
-			return rv;
-		}
-		for (long streamId: streamIds) {
-			List<DataPoint> dps = storage.findPointsByStreamId(streamId,1);
-			if (dps.size()>0) {
-				DataPoint dp = dps.get(0);
-				k++;
-				orderlist.add(dp.getValue());
-				if (dp.getTimestamp() > latest) {latest = dp.getTimestamp();}
-			}
-		}
-		if (k>0) { //check we have some data points
-			Collections.sort(orderlist);
-			rv.add(new DataPoint(latest, orderlist.get(orderlist.size()/2 )));
-			//logger.info("Calculated median: "+orderlist.get(orderlist.size()/2 ));
-		} else {
-			logger.warn("No points to calculate mean of!");
+			return new ArrayList<DataPoint>();
 		}
+		List<DataPoint> rv = applyLatest(streamIds);
+		if (rv.size()==0) { logger.warn("No points to calculate median of!"); }
 		return rv;
 	}
 
+	public boolean isPointwise() {
+		return true;
+	}
+
+	public double combine(double[] values, int count) {
+		double[] ordered = Arrays.copyOf(values, count);
+		Arrays.sort(ordered);
+		return ordered[count/2];
+	}
+
 	public String toString() {
 		return type;
 	}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: A window covering the last size milliseconds before the newest point.
+ * Emits on every point, or when the window end crosses a multiple of the hop.
+ * Sums are kept incrementally and min/max with monotonic queues, so evicting a point
+ * costs amortised constant time.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core.functions;
+
+import java.util.List;
+
+import se.sics.sicsthsense.core.*;
+
+public class SlidingWindow extends Window {
+	private final long hop;
+	private long nextEmit = Long.MIN_VALUE;
+	// points in the window as a ring addressed by sequence number
+	private long[] times = new long[16];
+	private double[] values = new double[16];
+	private long first, next; // sequence numbers of the oldest and the next point
+	private double sum, sumsq;
+	// sequence numbers with increasing values (min) and decreasing values (max)
+	private final SeqQueue minQueue = new SeqQueue();
+	private final SeqQueue maxQueue = new SeqQueue();
+
+	public SlidingWindow(long size, long hop, int aggregate, double percentile, boolean emitOnUpdate) {
+		super(size, aggregate, percentile, emitOnUpdate);
+		if (!emitOnUpdate && hop<=0) { throw new IllegalArgumentException("Sliding window needs a positive hop to emit on close"); }
+		this.hop = hop;
+	}
+
+	public void add(long timestamp, double value, List<DataPoint> out) {
+		if (next>first && timestamp < times[slot(next-1)]) { return; } // out of order
+		if (!emitOnUpdate) {
+			if (nextEmit==Long.MIN_VALUE) { nextEmit = ceilToHop(timestamp); }
+			while (nextEmit < timestamp) { // close every window that ends before this point
+				evictUpTo(nextEmit - size);
+				if (next>first) { out.add(new DataPoint(nextEmit, current())); }
+				nextEmit += hop;
+				if (next==first) { nextEmit = ceilToHop(timestamp); } // skip the empty windows
+			}
+		}
+		push(timestamp, value);
+		evictUpTo(timestamp - size);
+		if (emitOnUpdate) { out.add(new DataPoint(timestamp, current())); }
+	}
+
+	public long warmupFrom(long latest) {
+		return latest - size;
+	}
+
+	// the first window end at or after the timestamp
+	private long ceilToHop(long timestamp) {
+		long offset = ((timestamp % hop) + hop) % hop;
+		return offset==0 ? timestamp : timestamp - offset + hop;
+	}
+
+	private void push(long timestamp, double value) {
+		if (next-first == times.length) { grow(); }
+		times[slot(next)] = timestamp;
+		values[slot(next)] = value;
+		sum += value;
+		sumsq += value*value;
+		while (minQueue.size()>0 && values[slot(minQueue.last())] >= value) { minQueue.removeLast(); }
+		minQueue.add(next);
+		while (maxQueue.size()>0 && values[slot(maxQueue.last())] <= value) { maxQueue.removeLast(); }
+		maxQueue.add(next);
+		next++;
+	}
+
+	// drop every point at or before the cutoff
+	private void evictUpTo(long cutoff) {
+		while (next>first && times[slot(first)] <= cutoff) {
+			double value = values[slot(first)];
+			sum -= value;
+			sumsq -= value*value;
+			if (minQueue.size()>0 && minQueue.first()==first) { minQueue.removeFirst(); }
+			if (maxQueue.size()>0 && maxQueue.first()==first) { maxQueue.removeFirst(); }
+			first++;
+		}
+		if (next==first) { sum=0; sumsq=0; } // drop accumulated rounding error
+	}
+
+	private double current() {
+		int n = (int)(next-first);
+		double[] window = null;
+		if (aggregate==PERCENTILE) {
+			window = new double[n];
+			for (int c=0; c<n; c++) { window[c] = values[slot(first+c)]; }
+		}
+		return result(n, sum, sumsq, values[slot(minQueue.first())], values[slot(maxQueue.first())], window, n);
+	}
+
+	private int slot(long seq) {
+		return (int)(seq % times.length);
+	}
+
+	private void grow() {
+		long[] t = new long[times.length*2];
+		double[] v = new double[values.length*2];
+		for (long s=first; s<next; s++) {
+			t[(int)(s % t.length)] = times[slot(s)];
+			v[(int)(s % v.length)] = values[slot(s)];
+		}
+		times = t;
+		values = v;
+	}
+
+	// deque of sequence numbers
+	private static class SeqQueue {
+		private long[] seqs = new long[16];
+		private int head, size;
+
+		int size()		{ return size; }
+		long first()	{ return seqs[head]; }
+		long last()		{ return seqs[(head+size-1) % seqs.length]; }
+		void removeFirst()	{ head = (head+1) % seqs.length; size--; }
+		void removeLast()		{ size--; }
+		void add(long seq) {
+			if (size==seqs.length) {
+				long[] s = new long[seqs.length*2];
+				for (int c=0; c<size; c++) { s[c] = seqs[(head+c) % seqs.length]; }
+				seqs = s;
+				head = 0;
+			}
+			seqs[(head+size) % seqs.length] = seq;
+			size++;
+		}
+	}
+}
@@ -37,7 +37,7 @@ import se.sics.sicsthsense.core.*;
 import se.sics.sicsthsense.jdbi.*;
 
 public class Smooth extends Function {
-	private final Logger logger = LoggerFactory.getLogger(Smooth.class);
+	private static final Logger logger = LoggerFactory.getLogger(Smooth.class);
 
 	public Smooth(StorageDAO storage) {
 		super(storage,"smooth");
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Aligns several input streams by timestamp so that multi-input functions
+ * combine samples taken at the same time instead of whatever each input has last seen.
+ * Each input keeps a bounded, time ordered buffer. For an output tick an input contributes
+ * its last observation at or before the tick (carried forward), or the linear interpolation
+ * between the points either side of it, provided the point used lies within the input's
+ * tolerance of the tick. Interpolation needs both points within tolerance; with only one
+ * of them that near, the nearer point is used as it is.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core.functions;
+
+import java.util.List;
+
+import se.sics.sicsthsense.core.*;
+import se.sics.sicsthsense.jdbi.*;
+
+public class TimeJoin {
+	public static final int FILL_LAST   = 0;
+	public static final int FILL_LINEAR = 1;
+
+	private final int inputs;
+	private final int capacity;
+	private final int fill;
+	private final long[] tolerance;
+	// per-input ring buffers, oldest point at start[i]
+	private final long[][] times;
+	private final double[][] values;
+	private final int[] start;
+	private final int[] size;
+
+	public TimeJoin(int inputs, int capacity, long tolerance, int fill) {
+		if (inputs<1)   { throw new IllegalArgumentException("TimeJoin needs at least one input"); }
+		if (capacity<1) { throw new IllegalArgumentException("TimeJoin buffer capacity must be positive"); }
+		this.inputs   = inputs;
+		this.capacity = capacity;
+		this.fill     = fill;
+		this.tolerance = new long[inputs];
+		this.times  = new long[inputs][capacity];
+		this.values = new double[inputs][capacity];
+		this.start  = new int[inputs];
+		this.size   = new int[inputs];
+		for (int i=0; i<inputs; i++) { this.tolerance[i] = tolerance; }
+	}
+
+	// inputs sampled at a different rate may need a wider window
+	public void setTolerance(int input, long tolerance) {
+		this.tolerance[input] = tolerance;
+	}
+
+	// empty every buffer so the join can be reused
+	public void clear() {
+		for (int i=0; i<inputs; i++) { start[i] = 0; size[i] = 0; }
+	}
+
+	// fill each input's buffer with its most recent points from storage
+	public void load(StorageDAO storage, List<Long> streamIds) {
+		if (streamIds.size()!=inputs) {
+			throw new IllegalArgumentException("TimeJoin has "+inputs+" inputs but got "+streamIds.size()+" streams");
+		}
+		for (int i=0; i<inputs; i++) {
+			List<DataPoint> dps = storage.findPointsByStreamId(streamIds.get(i), capacity);
+			if (dps==null) {continue;}
+			for (int c=dps.size()-1; c>=0; --c) { // stored newest first
+				add(i, dps.get(c).getTimestamp(), dps.get(c).getValue());
+			}
+		}
+	}
+
+	// add a point keeping the buffer time ordered, the oldest point is dropped when full
+	public void add(int input, long timestamp, double value) {
+		long[] t = times[input];
+		double[] v = values[input];
+		int n = size[input];
+		// find the insertion position counting back from the newest point
+		int pos = n;
+		while (pos>0 && t[slot(input,pos-1)] > timestamp) { pos--; }
+		if (pos>0 && t[slot(input,pos-1)]==timestamp) { // replace, like the store does
+			v[slot(input,pos-1)] = value;
+			return;
+		}
+		if (n==capacity) {
+			if (pos==0) {return;} // older than everything we keep
+			start[input] = (start[input]+1) % capacity;
+			n--; pos--;
+		}
+		for (int c=n; c>pos; c--) {
+			t[slot(input,c)] = t[slot(input,c-1)];
+			v[slot(input,c)] = v[slot(input,c-1)];
+		}
+		t[slot(input,pos)] = timestamp;
+		v[slot(input,pos)] = value;
+		size[input] = n+1;
+	}
+
+	private int slot(int input, int index) {
+		return (start[input]+index) % capacity;
+	}
+
+	public int size(int input) { return size[input]; }
+
+	// timestamp of the k-th newest point of an input, k=0 being the newest
+	public long newest(int input, int k) {
+		return times[input][slot(input, size[input]-1-k)];
+	}
+
+	// the newest timestamp seen on any input, -1 when all are empty
+	public long latestTick() {
+		long latest = -1;
+		for (int i=0; i<inputs; i++) {
+			if (size[i]>0) { latest = Math.max(latest, newest(i,0)); }
+		}
+		return latest;
+	}
+
+	/* Align every input onto tick, writing into out[] and setting present[i] for
+	 * inputs that have a value within tolerance. Returns the number present. */
+	public int align(long tick, double[] out, boolean[] present) {
+		int count=0;
+		for (int i=0; i<inputs; i++) {
+			present[i] = valueAt(i, tick, out);
+			if (present[i]) {count++;}
+		}
+		return count;
+	}
+
+	// align requiring all inputs, the usual case for a fixed arity function
+	public boolean alignAll(long tick, double[] out) {
+		for (int i=0; i<inputs; i++) {
+			if (!valueAt(i, tick, out)) {return false;}
+		}
+		return true;
+	}
+
+	private boolean valueAt(int input, long tick, double[] out) {
+		int n = size[input];
+		if (n==0) {return false;}
+		long[] t = times[input];
+		double[] v = values[input];
+		// binary search for the last point at or before the tick
+		int lo=0, hi=n-1, before=-1;
+		while (lo<=hi) {
+			int mid = (lo+hi) >>> 1;
+			if (t[slot(input,mid)] <= tick) { before=mid; lo=mid+1; }
+			else { hi=mid-1; }
+		}
+		if (before>=0 && t[slot(input,before)]==tick) {
+			out[input] = v[slot(input,before)];
+			return true;
+		}
+		if (fill==FILL_LINEAR && before>=0 && before+1<n) {
+			long t0 = t[slot(input,before)], t1 = t[slot(input,before+1)];
+			boolean near0 = tick-t0 <= tolerance[input], near1 = t1-tick <= tolerance[input];
+			double v0 = v[slot(input,before)], v1 = v[slot(input,before+1)];
+			if (near0 && near1) {
+				out[input] = v0 + (v1-v0)*((double)(tick-t0)/(t1-t0));
+				return true;
+			}
+			// no interpolating across a gap, take the nearest point within tolerance
+			if (near0 || near1) {
+				out[input] = (near0 && (!near1 || tick-t0 <= t1-tick)) ? v0 : v1;
+				return true;
+			}
+			return false;
+		}
+		// carry the last observation forward
+		if (before>=0 && tick-t[slot(input,before)] <= tolerance[input]) {
+			out[input] = v[slot(input,before)];
+			return true;
+		}
+		return false;
+	}
+
+	public int getInputs()		{ return inputs; }
+	public int getCapacity()	{ return capacity; }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Fixed, non-overlapping windows aligned to multiples of the window size.
+ * Results are stamped with the window start, so per-update results of an open window
+ * replace each other in the store and the final one is the value on close.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core.functions;
+
+import java.util.List;
+import java.util.Arrays;
+
+import se.sics.sicsthsense.core.*;
+
+public class TumblingWindow extends Window {
+	private long start = Long.MIN_VALUE;
+	private long count;
+	private double sum, sumsq, min, max;
+	// only kept for percentiles
+	private double[] values;
+
+	public TumblingWindow(long size, int aggregate, double percentile, boolean emitOnUpdate) {
+		super(size, aggregate, percentile, emitOnUpdate);
+		if (aggregate==PERCENTILE) { values = new double[16]; }
+	}
+
+	public void add(long timestamp, double value, List<DataPoint> out) {
+		long windowStart = timestamp - (((timestamp % size) + size) % size);
+		if (count>0 && windowStart < start) { return; } // late for a window already closed
+		if (count>0 && windowStart > start) { // the open window is complete
+			if (!emitOnUpdate) { out.add(new DataPoint(start, current())); }
+			count=0;
+		}
+		if (count==0) {
+			start = windowStart;
+			sum = 0; sumsq = 0;
+			min = Double.MAX_VALUE; max = -Double.MAX_VALUE;
+		}
+		if (values!=null) {
+			if (count==values.length) { values = Arrays.copyOf(values, values.length*2); }
+			values[(int)count] = value;
+		}
+		count++;
+		sum += value;
+		sumsq += value*value;
+		if (value<min) {min=value;}
+		if (value>max) {max=value;}
+		if (emitOnUpdate) { out.add(new DataPoint(start, current())); }
+	}
+
+	public long warmupFrom(long latest) {
+		return latest - (((latest % size) + size) % size) - 1; // just before the open window
+	}
+
+	private double current() {
+		return result(count, sum, sumsq, min, max, values, (int)count);
+	}
+}
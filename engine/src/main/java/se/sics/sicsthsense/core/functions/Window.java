@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Incremental state of one time window aggregation over a stream of points.
+ * Subclasses decide how points enter and leave the window and when results are emitted.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core.functions;
+
+import java.util.List;
+import java.util.Arrays;
+
+import se.sics.sicsthsense.core.*;
+
+public abstract class Window {
+	public static final int COUNT      = 0;
+	public static final int SUM        = 1;
+	public static final int MEAN       = 2;
+	public static final int MIN        = 3;
+	public static final int MAX        = 4;
+	public static final int STDDEV     = 5;
+	public static final int PERCENTILE = 6;
+
+	protected final long size;
+	protected final int aggregate;
+	protected final double percentile;
+	protected final boolean emitOnUpdate;
+
+	public Window(long size, int aggregate, double percentile, boolean emitOnUpdate) {
+		if (size<=0) { throw new IllegalArgumentException("Window size must be positive"); }
+		this.size = size;
+		this.aggregate = aggregate;
+		this.percentile = percentile;
+		this.emitOnUpdate = emitOnUpdate;
+	}
+
+	// feed one point in timestamp order, results are appended to out
+	public abstract void add(long timestamp, double value, List<DataPoint> out);
+
+	// where to start reading history so that the first result covers a whole window
+	public abstract long warmupFrom(long latest);
+
+	/* count, sum, mean, min, max, stddev, median or pNN, e.g. p95 */
+	public static int parseAggregate(String name) {
+		String n = name.trim().toLowerCase();
+		if ("count".equals(n))	{ return COUNT; }
+		if ("sum".equals(n))		{ return SUM; }
+		if ("mean".equals(n) || "avg".equals(n)) { return MEAN; }
+		if ("min".equals(n))		{ return MIN; }
+		if ("max".equals(n))		{ return MAX; }
+		if ("stddev".equals(n)) { return STDDEV; }
+		if ("median".equals(n) || n.startsWith("p")) { return PERCENTILE; }
+		throw new IllegalArgumentException("Unknown window aggregate: "+name);
+	}
+	public static double parsePercentile(String name) {
+		String n = name.trim().toLowerCase();
+		if ("median".equals(n)) { return 50; }
+		if (!n.startsWith("p")) { return 0; }
+		double p = Double.parseDouble(n.substring(1));
+		if (p<=0 || p>100) { throw new IllegalArgumentException("Percentile out of range: "+name); }
+		return p;
+	}
+
+	protected double result(long count, double sum, double sumsq, double min, double max, double[] values, int n) {
+		switch (aggregate) {
+			case COUNT:  return count;
+			case SUM:    return sum;
+			case MEAN:   return sum/count;
+			case MIN:    return min;
+			case MAX:    return max;
+			case STDDEV: {
+				double mean = sum/count;
+				return Math.sqrt(Math.max(0.0, sumsq/count - mean*mean));
+			}
+			default: { // nearest rank percentile
+				double[] sorted = Arrays.copyOf(values, n);
+				Arrays.sort(sorted);
+				int rank = (int)Math.ceil(percentile/100.0*n);
+				return sorted[Math.max(0, Math.min(n-1, rank-1))];
+			}
+		}
+	}
+
+	public long getSize()					{ return size; }
+	public int getAggregate()			{ return aggregate; }
+	public boolean getEmitOnUpdate()	{ return emitOnUpdate; }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Time windowed aggregation of the antecedents' points, configured as
+ *   tumbling:<size>:<aggregate>[:update]       e.g. tumbling:1h:mean
+ *   sliding:<size>[/<hop>]:<aggregate>[:close]  e.g. sliding:5m:p95, sliding:10m/1m:max:close
+ * where aggregate is count, sum, mean, min, max, stddev, median or pNN. Tumbling windows
+ * emit on close unless "update" is given, sliding windows on every point unless "close".
+ * The window state lives in this instance, which the FunctionRegistry keeps per derived
+ * stream, so each update only reads the points that arrived since the last one.
+ * TODO:
+ * */
+package se.sics.sicsthsense.core.functions;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.sics.sicsthsense.core.*;
+import se.sics.sicsthsense.jdbi.*;
+
+public class WindowAggregate extends Function {
+	private static final Logger logger = LoggerFactory.getLogger(WindowAggregate.class);
+	// most points read from one antecedent in one update
+	public static final int MAX_CATCHUP = 1000;
+
+	private static final Comparator<DataPoint> byTimestamp = new Comparator<DataPoint>() {
+		public int compare(DataPoint a, DataPoint b) {
+			return a.getTimestamp()<b.getTimestamp() ? -1 : (a.getTimestamp()==b.getTimestamp() ? 0 : 1);
+		}
+	};
+
+	private String spec;
+	private Window window;
+	// newest timestamp read from each antecedent
+	private final Map<Long, Long> lastSeen = new HashMap<Long, Long>();
+
+	public WindowAggregate(StorageDAO storage, String type) {
+		super(storage, type);
+		this.type = type;
+	}
+
+	public void configure(String args) {
+		if (args==null || "".equals(args.trim())) {
+			throw new IllegalArgumentException(type+" needs a window size and aggregate, e.g. "+type+":5m:mean");
+		}
+		this.spec = args.trim();
+		this.window = makeWindow(type, spec); // fails early on a bad spec
+		lastSeen.clear();
+	}
+
+	static Window makeWindow(String type, String spec) {
+		String[] parts = spec.split(":");
+		if (parts.length<2 || parts.length>3) {
+			throw new IllegalArgumentException("Window spec should be <size>:<aggregate>[:close|update] not "+spec);
+		}
+		int aggregate = Window.parseAggregate(parts[1]);
+		double percentile = Window.parsePercentile(parts[1]);
+		if ("tumbling".equals(type)) {
+			boolean onUpdate = parts.length==3 && "update".equals(parts[2]);
+			return new TumblingWindow(parseDuration(parts[0]), aggregate, percentile, onUpdate);
+		}
+		boolean onUpdate = !(parts.length==3 && "close".equals(parts[2]));
+		String[] sizes = parts[0].split("/");
+		long hop = sizes.length>1 ? parseDuration(sizes[1]) : 0;
+		return new SlidingWindow(parseDuration(sizes[0]), hop, aggregate, percentile, onUpdate);
+	}
+
+	public List<DataPoint> apply(List<Long> streamIds) {
+		List<DataPoint> rv = new ArrayList<DataPoint>();
+		if (streamIds==null) { logger.error("Stream IDs are null!!"); return rv; }
+		if (spec==null) { logger.error("Window not configured! Stream ID: "+streamId); return rv; }
+
+		synchronized (this) {
+			// gather what arrived since the last update, in time order across antecedents
+			List<DataPoint> fresh = new ArrayList<DataPoint>();
+			for (Long antecedent: streamIds) {
+				Long seen = lastSeen.get(antecedent);
+				if (seen==null) { // first update, read back one window
+					List<DataPoint> latest = storage.findPointsByStreamId(antecedent, 1);
+					if (latest==null || latest.size()==0) {continue;}
+					seen = window.warmupFrom(latest.get(0).getTimestamp());
+				}
+				List<DataPoint> dps = storage.findPointsByStreamIdSinceLimit(antecedent, seen, MAX_CATCHUP);
+				long newest = seen;
+				for (DataPoint dp: dps) {
+					fresh.add(dp);
+					newest = Math.max(newest, dp.getTimestamp());
+				}
+				lastSeen.put(antecedent, newest);
+			}
+			Collections.sort(fresh, byTimestamp);
+			for (DataPoint dp: fresh) {
+				window.add(dp.getTimestamp(), dp.getValue(), rv);
+			}
+		}
+		return rv;
+	}
+
+	// windows need every point in order, so they are replayed in one stretch
+	public boolean isReplayable() {
+		return true;
+	}
+
+	public long replayLookback() {
+		return window.getSize();
+	}
+
+	public void startReplay(int inputs) {
+		window = makeWindow(type, spec);
+		lastSeen.clear();
+	}
+
+	public void replay(int input, long timestamp, double value, List<DataPoint> out) {
+		window.add(timestamp, value, out);
+	}
+
+	public String toString() {
+		return type+":"+spec;
+	}
+}
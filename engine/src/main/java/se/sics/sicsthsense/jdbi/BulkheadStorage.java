@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Wraps a StorageDAO so every call takes a place in the storage
+ * bulkhead first, see Bulkheads. However many threads the API, the pollers and
+ * the actors have between them, at most that many calls reach the database at
+ * once; the rest wait their turn or are refused with a RejectedExecutionException.
+ * A transaction holds its place until it ends.
+ * TODO:
+ * */
+package se.sics.sicsthsense.jdbi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+
+import se.sics.sicsthsense.core.Bulkhead;
+
+public class BulkheadStorage implements InvocationHandler {
+	private final StorageDAO target;
+	private final Bulkhead bulkhead;
+
+	private BulkheadStorage(StorageDAO target, Bulkhead bulkhead) {
+		this.target = target;
+		this.bulkhead = bulkhead;
+	}
+
+	public static StorageDAO wrap(StorageDAO target, Bulkhead bulkhead) {
+		return (StorageDAO)Proxy.newProxyInstance(StorageDAO.class.getClassLoader(),
+			new Class<?>[] { StorageDAO.class }, new BulkheadStorage(target, bulkhead));
+	}
+
+	public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+		if (method.getDeclaringClass()==Object.class) {
+			if (method.getName().equals("equals")) { return proxy==args[0]; }
+			if (method.getName().equals("hashCode")) { return System.identityHashCode(proxy); }
+			return "BulkheadStorage("+target+")";
+		}
+		try {
+			return bulkhead.call(new Callable<Object>() {
+				public Object call() throws Exception {
+					return method.invoke(target, args);
+				}
+			});
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
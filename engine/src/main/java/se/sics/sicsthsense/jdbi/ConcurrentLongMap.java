@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: A concurrent map from primitive long keys, so the in-memory
+ * storage does not box an id on every lookup. The keys are spread over
+ * segments, each an open addressing table with linear probing guarded by its
+ * own lock.
+ * TODO:
+ * */
+package se.sics.sicsthsense.jdbi;
+
+import java.util.List;
+import java.util.ArrayList;
+
+public class ConcurrentLongMap<V> {
+	private static final int SEGMENTS = 16; // a power of two
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	public ConcurrentLongMap() {
+		for (int i=0; i<SEGMENTS; i++) { segments[i] = new Segment(); }
+	}
+
+	public V get(long key) {
+		int hash = hash(key);
+		return (V)segmentFor(hash).get(key, hash);
+	}
+
+	public boolean containsKey(long key) {
+		return get(key)!=null;
+	}
+
+	// returns the previous value, null if there was none
+	public V put(long key, V value) {
+		if (value==null) { throw new NullPointerException("null values are not supported"); }
+		int hash = hash(key);
+		return (V)segmentFor(hash).put(key, hash, value, false);
+	}
+
+	// returns the value already present, null if value was added
+	public V putIfAbsent(long key, V value) {
+		if (value==null) { throw new NullPointerException("null values are not supported"); }
+		int hash = hash(key);
+		return (V)segmentFor(hash).put(key, hash, value, true);
+	}
+
+	public V remove(long key) {
+		int hash = hash(key);
+		return (V)segmentFor(hash).remove(key, hash);
+	}
+
+	// a snapshot, each segment is copied under its lock
+	public List<V> values() {
+		List<V> values = new ArrayList<V>();
+		for (Segment segment: segments) { segment.collect(values); }
+		return values;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment: segments) { size += segment.size(); }
+		return size;
+	}
+
+	public void clear() {
+		for (Segment segment: segments) { segment.clear(); }
+	}
+
+	private Segment segmentFor(int hash) {
+		return segments[hash>>>28]; // the high bits pick the segment, the low ones the slot
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h>>>32));
+	}
+
+	private static final class Segment {
+		private long[] keys;
+		private Object[] values; // null marks a free slot
+		private int size;
+
+		Segment() {
+			clear();
+		}
+
+		synchronized Object get(long key, int hash) {
+			int mask = keys.length-1;
+			for (int i=hash&mask; values[i]!=null; i=(i+1)&mask) {
+				if (keys[i]==key) { return values[i]; }
+			}
+			return null;
+		}
+
+		synchronized Object put(long key, int hash, Object value, boolean onlyIfAbsent) {
+			int mask = keys.length-1;
+			int i = hash&mask;
+			for (; values[i]!=null; i=(i+1)&mask) {
+				if (keys[i]==key) {
+					Object previous = values[i];
+					if (!onlyIfAbsent) { values[i] = value; }
+					return previous;
+				}
+			}
+			keys[i] = key;
+			values[i] = value;
+			if (++size*4 > keys.length*3) { resize(); }
+			return null;
+		}
+
+		synchronized Object remove(long key, int hash) {
+			int mask = keys.length-1;
+			int i = hash&mask;
+			while (values[i]!=null && keys[i]!=key) { i = (i+1)&mask; }
+			if (values[i]==null) { return null; }
+			Object previous = values[i];
+			values[i] = null;
+			size--;
+			// shift back the entries of the run that probed past the freed slot
+			for (int j=(i+1)&mask; values[j]!=null; j=(j+1)&mask) {
+				int home = hash(keys[j])&mask;
+				boolean reachable = (i<=j) ? (i<home && home<=j) : (i<home || home<=j);
+				if (reachable) { continue; }
+				keys[i] = keys[j];
+				values[i] = values[j];
+				values[j] = null;
+				i = j;
+			}
+			return previous;
+		}
+
+		synchronized void collect(List values) {
+			for (Object value: this.values) {
+				if (value!=null) { values.add(value); }
+			}
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		synchronized void clear() {
+			keys = new long[16];
+			values = new Object[16];
+			size = 0;
+		}
+
+		private void resize() {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new long[oldKeys.length*2];
+			values = new Object[oldValues.length*2];
+			int mask = keys.length-1;
+			for (int k=0; k<oldKeys.length; k++) {
+				if (oldValues[k]==null) { continue; }
+				int i = hash(oldKeys[k])&mask;
+				while (values[i]!=null) { i = (i+1)&mask; }
+				keys[i] = oldKeys[k];
+				values[i] = oldValues[k];
+			}
+		}
+	}
+}
@@ -28,6 +28,7 @@
  * */
 package se.sics.sicsthsense.jdbi;
 
+import java.io.IOException;
 import java.util.List;
 
 import org.skife.jdbi.v2.*;
@@ -37,6 +38,7 @@ import org.skife.jdbi.v2.sqlobject.customizers.*;
 import io.dropwizard.setup.Environment;
 import io.dropwizard.jdbi.*;
 import io.dropwizard.db.*;
+import io.dropwizard.lifecycle.Managed;
 
 import se.sics.sicsthsense.*;
 import se.sics.sicsthsense.core.*;
@@ -44,11 +46,66 @@ import se.sics.sicsthsense.core.*;
 public class DAOFactory {
 
 		private static StorageDAO singleton;
+		private static ReadRouter router;
+		private static WriteAheadLog wal;
 
-		public static void build(EngineConfiguration configuration, Environment environment) throws ClassNotFoundException {
+		// with replicas configured the DAO is a ReadRouter sending history reads to them
+		public static void build(EngineConfiguration configuration, Environment environment) throws ClassNotFoundException, IOException {
+			if (router!=null) { router.stop(); router = null; }
+			if (wal!=null) { stopLog(); }
+			StorageConfiguration storage = configuration.getStorage();
+			if (storage.isInMemory()) { // no database is connected to, nor replicas
+				singleton = traced(configuration, logged(configuration, environment, limited(new InMemoryStorageDAO(storage.getMaxPointsPerStream()))));
+				return;
+			}
 			DBIFactory factory = new DBIFactory();
-			DBI jdbi = factory.build(environment, configuration.getDataSourceFactory(), "com.mysql.jdbc.Driver");
-			singleton = jdbi.onDemand(StorageDAO.class);
+			DBI jdbi = factory.build(environment, configuration.getDataSourceFactory(), "primary");
+			StorageDAO primary = jdbi.onDemand(StorageDAO.class);
+			List<DataSourceFactory> replicas = configuration.getReplication().getReplicas();
+			if (replicas.isEmpty()) {
+				singleton = traced(configuration, logged(configuration, environment, limited(primary)));
+				return;
+			}
+			router = new ReadRouter(primary, configuration.getReplication());
+			for (int i=0; i<replicas.size(); i++) {
+				router.addReplica("replica-"+i, factory.build(environment, replicas.get(i), "replica-"+i));
+			}
+			router.start();
+			singleton = traced(configuration, logged(configuration, environment, limited(router.proxy())));
+		}
+
+		// calls to the database share the storage bulkhead, see BulkheadStorage
+		private static StorageDAO limited(StorageDAO storage) {
+			Bulkhead bulkhead = Bulkheads.get(Bulkheads.STORAGE);
+			return bulkhead==null ? storage : BulkheadStorage.wrap(storage, bulkhead);
+		}
+
+		// datapoints go to disk first and on to the database from there, see WriteAheadLog
+		private static StorageDAO logged(EngineConfiguration configuration, Environment environment, StorageDAO storage) throws IOException {
+			WalConfiguration config = configuration.getWal();
+			if (!config.isEnabled()) { return storage; }
+			wal = new WriteAheadLog(storage, config); // recovers what an earlier run left
+			wal.start();
+			environment.lifecycle().manage(new Managed() {
+				public void start() {}
+				public void stop() { stopLog(); }
+			});
+			return WalStorage.wrap(storage, wal, config.getDrainTimeout());
+		}
+
+		private static void stopLog() {
+			if (wal==null) { return; }
+			try {
+				wal.stop();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			wal = null;
+		}
+
+		// each call is a span of the trace of the request making it
+		private static StorageDAO traced(EngineConfiguration configuration, StorageDAO storage) {
+			return configuration.getTracing().isEnabled() ? TracingStorage.wrap(storage) : storage;
 		}
 
 		public static StorageDAO getInstance() {
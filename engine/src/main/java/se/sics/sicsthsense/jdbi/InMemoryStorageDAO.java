@@ -0,0 +1,1238 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: StorageDAO kept entirely in memory, for benchmarks, load tests
+ * and deployments without a database server. Selected with "type: memory" in the
+ * storage section of the configuration. Every table is a map from primary key to
+ * row, the lookups the ingest path makes per point (triggers, dependents, parsers
+ * of a resource) have an index, and the points of each stream are parallel arrays
+ * sorted by timestamp. Rows are copied out into new model objects, as the mappers
+ * do, so callers never share state with the store.
+ * Statements behave like the MySQL ones, except where those are broken (updateUser,
+ * updateParser, deleteStreamsVFile and findStreamByName do what their name says).
+ * Transactions do not isolate, but inTransaction keeps two of them from
+ * interleaving, and one that fails or is marked rollback only is undone: every
+ * change made on its thread records how to undo itself, and the undo log is replayed
+ * backwards. begin/commit/rollback and checkpoints work the same way. A change
+ * made meanwhile outside the transaction to a row it also changed is lost with it.
+ * Nothing is persisted.
+ * TODO:
+ * */
+package se.sics.sicsthsense.jdbi;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionIsolationLevel;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.exceptions.TransactionFailedException;
+
+import se.sics.sicsthsense.core.*;
+
+public class InMemoryStorageDAO implements StorageDAO {
+	private static final Logger logger = LoggerFactory.getLogger(InMemoryStorageDAO.class);
+
+	private final ConcurrentLongMap<UserRow> users = new ConcurrentLongMap<UserRow>();
+	private final ConcurrentLongMap<ResourceRow> resources = new ConcurrentLongMap<ResourceRow>();
+	private final ConcurrentLongMap<StreamRow> streams = new ConcurrentLongMap<StreamRow>();
+	private final ConcurrentLongMap<ParserRow> parsers = new ConcurrentLongMap<ParserRow>();
+	private final ConcurrentLongMap<TriggerRow> triggers = new ConcurrentLongMap<TriggerRow>();
+	private final ConcurrentLongMap<VFileRow> vfiles = new ConcurrentLongMap<VFileRow>();
+	private final ConcurrentLongMap<LogRow> logs = new ConcurrentLongMap<LogRow>();
+	private final ConcurrentLongMap<Series> points = new ConcurrentLongMap<Series>();
+
+	// secondary indexes, from the key to the ids of the rows having it
+	private final ConcurrentLongMap<IdSet> streamsByResource = new ConcurrentLongMap<IdSet>();
+	private final ConcurrentLongMap<IdSet> parsersByResource = new ConcurrentLongMap<IdSet>();
+	private final ConcurrentLongMap<IdSet> triggersByStream = new ConcurrentLongMap<IdSet>();
+	private final ConcurrentLongMap<IdSet> vfilesByStream = new ConcurrentLongMap<IdSet>();
+	// the dependents table, indexed both ways
+	private final ConcurrentLongMap<IdSet> dependents = new ConcurrentLongMap<IdSet>();
+	private final ConcurrentLongMap<IdSet> antecedents = new ConcurrentLongMap<IdSet>();
+
+	private final AtomicLong userIds = new AtomicLong();
+	private final AtomicLong resourceIds = new AtomicLong();
+	private final AtomicLong streamIds = new AtomicLong();
+	private final AtomicLong parserIds = new AtomicLong();
+	private final AtomicLong triggerIds = new AtomicLong();
+	private final AtomicLong vfileIds = new AtomicLong();
+	private final AtomicLong logIds = new AtomicLong();
+	private final AtomicLong pointIds = new AtomicLong();
+
+	private final ReentrantLock transactions = new ReentrantLock();
+	// the transaction running on this thread, null outside one
+	private final ThreadLocal<Undo> undo = new ThreadLocal<Undo>();
+	// the oldest points of a stream are dropped beyond this many, 0 keeps all
+	private final int maxPointsPerStream;
+
+	public InMemoryStorageDAO() {
+		this(0);
+	}
+
+	public InMemoryStorageDAO(int maxPointsPerStream) {
+		this.maxPointsPerStream = maxPointsPerStream;
+	}
+
+	// Users
+	public User findUserById(long id) {
+		UserRow row = users.get(id);
+		return row==null ? null : row.toUser();
+	}
+
+	public User findUserByUsername(String username) {
+		UserRow row = findUserRow(username, null);
+		return row==null ? null : row.toUser();
+	}
+
+	public long findUserIdByUsername(String username) {
+		UserRow row = findUserRow(username, null);
+		return row==null ? 0 : row.id;
+	}
+
+	public User findUserByEmail(String email) {
+		UserRow row = findUserRow(null, email);
+		return row==null ? null : row.toUser();
+	}
+
+	public long findUserIdByEmail(String email) {
+		UserRow row = findUserRow(null, email);
+		return row==null ? 0 : row.id;
+	}
+
+	public String findUsernameById(long id) {
+		UserRow row = users.get(id);
+		return row==null ? null : row.username();
+	}
+
+	public void insertUser(String username, String email, String first_name, String last_name, String token, String password) {
+		UserRow row = new UserRow(userIds.incrementAndGet());
+		row.username = username;
+		row.email = email;
+		row.firstName = first_name;
+		row.lastName = last_name;
+		row.token = token;
+		row.password = password;
+		row.creationDate = new Date();
+		users.put(row.id, row);
+		undoInsert(users, row.id);
+	}
+
+	public void updateUser(long id, String username, String first_name, String last_name, String email) {
+		UserRow row = users.get(id);
+		if (row==null) { return; }
+		undoUpdate(row);
+		synchronized (row) {
+			row.username = username;
+			row.firstName = first_name;
+			row.lastName = last_name;
+			row.email = email;
+		}
+	}
+
+	// Resources
+	public List<Resource> findResourcesByOwnerId(long id) {
+		List<Resource> found = new ArrayList<Resource>();
+		for (ResourceRow row: sorted(resources.values())) {
+			if (row.ownerId==id) { found.add(row.toResource()); }
+		}
+		return found;
+	}
+
+	public Resource findResourceById(long id) {
+		ResourceRow row = resources.get(id);
+		return row==null ? null : row.toResource();
+	}
+
+	public Resource findResourceByLabel(String label) {
+		ResourceRow row = findResourceRow(label, -1);
+		return row==null ? null : row.toResource();
+	}
+
+	public Resource findResourceByLabel(String label, long owner_id) {
+		ResourceRow row = findResourceRow(label, owner_id);
+		return row==null ? null : row.toResource();
+	}
+
+	public List<Resource> findPolledResources() {
+		List<Resource> found = new ArrayList<Resource>();
+		for (ResourceRow row: sorted(resources.values())) {
+			Resource resource = row.toResource();
+			if (resource.getPolling_period()>0) { found.add(resource); }
+		}
+		return found;
+	}
+
+	public long findResourceId(String label) {
+		ResourceRow row = findResourceRow(label, -1);
+		return row==null ? 0 : row.id;
+	}
+
+	public void insertResource(String label, String version, long owner_id, long parent_id, String polling_url, String polling_authentication_key, long polling_period, String secret_key, String description) {
+		ResourceRow row = new ResourceRow(resourceIds.incrementAndGet());
+		row.label = label;
+		row.version = version;
+		row.ownerId = owner_id;
+		row.parentId = parent_id;
+		row.pollingUrl = polling_url;
+		row.pollingKey = polling_authentication_key;
+		row.pollingPeriod = polling_period;
+		row.secretKey = secret_key;
+		row.description = description;
+		resources.put(row.id, row);
+		undoInsert(resources, row.id);
+	}
+
+	// like the statement, only the label and the polling settings change
+	public void updateResource(long id, String label, String version, long owner_id, long parent_id, String polling_url, String polling_authentication_key, long polling_period, String secret_key, String description, long last_polled, long last_posted) {
+		ResourceRow row = resources.get(id);
+		if (row==null) { return; }
+		undoUpdate(row);
+		synchronized (row) {
+			row.label = label;
+			row.pollingPeriod = polling_period;
+			row.pollingUrl = polling_url;
+			row.pollingKey = polling_authentication_key;
+		}
+	}
+
+	public void polledResource(long id, long time) {
+		ResourceRow row = resources.get(id);
+		if (row==null) { return; }
+		undoUpdate(row);
+		synchronized (row) { row.lastPolled = time; }
+	}
+
+	public void postedResource(long id, long time) {
+		ResourceRow row = resources.get(id);
+		if (row==null) { return; }
+		undoUpdate(row);
+		synchronized (row) { row.lastPosted = time; }
+	}
+
+	public void deleteResource(long id) {
+		undoDelete(resources, resources.remove(id));
+	}
+
+	// Streams
+	public List<Stream> findStreamsByResourceId(long resourceId) {
+		List<Stream> found = new ArrayList<Stream>();
+		for (long id: ids(streamsByResource, resourceId)) {
+			StreamRow row = streams.get(id);
+			if (row!=null) { found.add(row.toStream()); }
+		}
+		return found;
+	}
+
+	public Stream findStreamById(long id) {
+		StreamRow row = streams.get(id);
+		return row==null ? null : row.toStream();
+	}
+
+	public long findStreamIdByName(String name) {
+		long id = findStreamIdByPath(name);
+		return streams.containsKey(id) ? id : 0;
+	}
+
+	public Stream findStreamByName(String name) {
+		return findStreamById(findStreamIdByPath(name));
+	}
+
+	public Stream findStreamByName(String name, long userId) {
+		return findStreamByName(name);
+	}
+
+	public long findStreamId(long id, String secret_key) {
+		for (long streamId: ids(streamsByResource, id)) {
+			StreamRow row = streams.get(streamId);
+			if (row!=null && equal(row.secretKey(), secret_key)) { return streamId; }
+		}
+		return 0;
+	}
+
+	public long insertStream(String type, double latitude, double longitude, String description, boolean public_access, boolean public_search, boolean frozen, int history_size, long last_updated, String secret_key, long owner_id, long resource_id, String function, int version) {
+		StreamRow row = new StreamRow(streamIds.incrementAndGet(), resource_id);
+		row.type = type;
+		row.latitude = latitude;
+		row.longitude = longitude;
+		row.description = description;
+		row.publicAccess = public_access;
+		row.publicSearch = public_search;
+		row.frozen = frozen;
+		row.historySize = history_size;
+		row.lastUpdated = last_updated;
+		row.secretKey = secret_key;
+		row.ownerId = owner_id;
+		row.function = function;
+		row.version = version;
+		streams.put(row.id, row);
+		index(streamsByResource, resource_id).add(row.id);
+		undoInsert(streams, row.id);
+		undoIndex(streamsByResource, resource_id, row.id);
+		return row.id;
+	}
+
+	public void insertStreams(List<Stream> streams) {
+		for (Stream s: streams) {
+			insertStream(s.getType(), s.getLatitude(), s.getLongitude(), s.getDescription(),
+				s.getPublic_access(), s.getPublic_search(), s.getFrozen(), s.getHistory_size(),
+				s.getLast_updated(), s.getSecret_key(), s.getOwner_id(), s.getResource_id(),
+				s.getFunction(), s.getVersion());
+		}
+	}
+
+	public void updatedStream(long id, long time) {
+		StreamRow row = streams.get(id);
+		if (row==null) { return; }
+		undoUpdate(row);
+		synchronized (row) { row.lastUpdated = time; }
+	}
+
+	// the points go with the stream, as the foreign key cascades in MySQL
+	public void deleteStream(long id) {
+		StreamRow row = streams.remove(id);
+		undoDelete(streams, row);
+		if (row!=null) { unindex(streamsByResource, row.resourceId, id); }
+		undoDelete(points, points.remove(id), id);
+	}
+
+	public void deleteStreams(List<Long> ids) {
+		for (Long id: ids) { deleteStream(id); }
+	}
+
+	// Dependents
+	// in the order they were added, as ordered by id in the database
+	public List<Long> findAntecedents(long dependent_id) {
+		return list(ids(antecedents, dependent_id));
+	}
+
+	public List<Long> findDependents(long stream_id) {
+		return list(ids(dependents, stream_id));
+	}
+
+	public void insertDependent(long stream_id, long dependent_id) {
+		if (index(dependents, stream_id).add(dependent_id)) { undoIndex(dependents, stream_id, dependent_id); }
+		if (index(antecedents, dependent_id).add(stream_id)) { undoIndex(antecedents, dependent_id, stream_id); }
+	}
+
+	public void deleteDependent(long dependent_id) {
+		IdSet removed = antecedents.remove(dependent_id);
+		if (removed==null) { return; }
+		undoDelete(antecedents, removed, dependent_id);
+		for (long antecedent: removed.toArray()) { unindex(dependents, antecedent, dependent_id); }
+	}
+
+	public void deleteDependentsByStreamIds(List<Long> streamIds) {
+		for (Long id: streamIds) {
+			deleteDependent(id);
+			IdSet removed = dependents.remove(id);
+			if (removed==null) { continue; }
+			undoDelete(dependents, removed, id);
+			for (long dependent: removed.toArray()) { unindex(antecedents, dependent, id); }
+		}
+	}
+
+	// Triggers
+	public List<Trigger> findTriggersByStreamId(long stream_id) {
+		List<Trigger> found = new ArrayList<Trigger>();
+		for (long id: ids(triggersByStream, stream_id)) {
+			TriggerRow row = triggers.get(id);
+			if (row!=null) { found.add(row.toTrigger()); }
+		}
+		return found;
+	}
+
+	public List<Long> findTriggerIdsByStreamId(long stream_id) {
+		return list(ids(triggersByStream, stream_id));
+	}
+
+	public void insertTrigger(long stream_id, String url, String operator, double operand, String payload) {
+		TriggerRow row = new TriggerRow(triggerIds.incrementAndGet(), stream_id, url, operator, operand, payload);
+		triggers.put(row.id, row);
+		index(triggersByStream, stream_id).add(row.id);
+		undoInsert(triggers, row.id);
+		undoIndex(triggersByStream, stream_id, row.id);
+	}
+
+	public void deleteTrigger(long dependent_id) {
+		TriggerRow row = triggers.remove(dependent_id);
+		undoDelete(triggers, row);
+		if (row!=null) { unindex(triggersByStream, row.streamId, row.id); }
+	}
+
+	public void deleteTriggersByStreamIds(List<Long> streamIds) {
+		for (Long streamId: streamIds) {
+			IdSet removed = triggersByStream.remove(streamId);
+			if (removed==null) { continue; }
+			undoDelete(triggersByStream, removed, streamId);
+			for (long id: removed.toArray()) { undoDelete(triggers, triggers.remove(id)); }
+		}
+	}
+
+	// VFiles
+	public String findPathByStreamId(long stream_id) {
+		for (long id: ids(vfilesByStream, stream_id)) {
+			VFileRow row = vfiles.get(id);
+			if (row!=null) { return row.path; }
+		}
+		return null;
+	}
+
+	public List<Long> findPathIdsByStreamId(long stream_id) {
+		return list(ids(vfilesByStream, stream_id));
+	}
+
+	public long findStreamIdByPath(String path) {
+		for (VFileRow row: sorted(vfiles.values())) {
+			if (equal(row.path, path)) { return row.streamId; }
+		}
+		return 0;
+	}
+
+	public void insertVFile(String path, long owner_id, String type, long linked_stream_id) {
+		VFileRow row = new VFileRow(vfileIds.incrementAndGet(), path, owner_id, type, linked_stream_id);
+		vfiles.put(row.id, row);
+		index(vfilesByStream, linked_stream_id).add(row.id);
+		undoInsert(vfiles, row.id);
+		undoIndex(vfilesByStream, linked_stream_id, row.id);
+	}
+
+	public void insertVFiles(List<String> paths, long owner_id, String type, List<Long> linked_stream_ids) {
+		for (int i=0; i<paths.size(); i++) { insertVFile(paths.get(i), owner_id, type, linked_stream_ids.get(i)); }
+	}
+
+	public void deleteVFile(long id) {
+		VFileRow row = vfiles.remove(id);
+		undoDelete(vfiles, row);
+		if (row!=null) { unindex(vfilesByStream, row.streamId, id); }
+	}
+
+	public void deleteStreamsVFile(long stream_id) {
+		IdSet removed = vfilesByStream.remove(stream_id);
+		if (removed==null) { return; }
+		undoDelete(vfilesByStream, removed, stream_id);
+		for (long id: removed.toArray()) { undoDelete(vfiles, vfiles.remove(id)); }
+	}
+
+	public void deleteVFilesByStreamIds(List<Long> streamIds) {
+		for (Long streamId: streamIds) { deleteStreamsVFile(streamId); }
+	}
+
+	// Parsers
+	public Parser findParserById(long id) {
+		ParserRow row = parsers.get(id);
+		return row==null ? null : row.toParser();
+	}
+
+	public List<Parser> findParsersByResourceId(long resourceId) {
+		List<Parser> found = new ArrayList<Parser>();
+		for (long id: ids(parsersByResource, resourceId)) {
+			ParserRow row = parsers.get(id);
+			if (row!=null) { found.add(row.toParser()); }
+		}
+		return found;
+	}
+
+	public List<Long> findParserIdsByStreamId(long streamId) {
+		List<Long> found = new ArrayList<Long>();
+		for (ParserRow row: sorted(parsers.values())) {
+			if (row.streamId==streamId) { found.add(row.id); }
+		}
+		return found;
+	}
+
+	public long insertParser(long resource_id, long stream_id, String input_parser, String input_type, String timeformat, int data_group, int time_group, int number_of_points) {
+		ParserRow row = new ParserRow(parserIds.incrementAndGet(), resource_id, stream_id);
+		row.inputParser = input_parser;
+		row.inputType = input_type;
+		row.timeformat = timeformat;
+		row.dataGroup = data_group;
+		row.timeGroup = time_group;
+		row.numberOfPoints = number_of_points;
+		parsers.put(row.id, row);
+		index(parsersByResource, resource_id).add(row.id);
+		undoInsert(parsers, row.id);
+		undoIndex(parsersByResource, resource_id, row.id);
+		return row.id;
+	}
+
+	public void insertParsers(List<Parser> parsers) {
+		for (Parser p: parsers) {
+			insertParser(p.getResource_id(), p.getStream_id(), p.getInput_parser(), p.getInput_type(),
+				p.getTimeformat(), p.getData_group(), p.getTime_group(), p.getNumber_of_points());
+		}
+	}
+
+	public long findParserId(long id, long stream_id) {
+		for (long parserId: ids(parsersByResource, id)) {
+			ParserRow row = parsers.get(parserId);
+			if (row!=null && row.streamId==stream_id) { return parserId; }
+		}
+		return 0;
+	}
+
+	public void updateParser(long id, String input_parser, String input_type, String timeformat, int data_group, int time_group, int number_of_points) {
+		ParserRow row = parsers.get(id);
+		if (row==null) { return; }
+		undoUpdate(row);
+		synchronized (row) {
+			row.inputParser = input_parser;
+			row.inputType = input_type;
+			row.timeformat = timeformat;
+			row.dataGroup = data_group;
+			row.timeGroup = time_group;
+			row.numberOfPoints = number_of_points;
+		}
+	}
+
+	public void deleteParser(long id) {
+		ParserRow row = parsers.remove(id);
+		undoDelete(parsers, row);
+		if (row!=null) { unindex(parsersByResource, row.resourceId, id); }
+	}
+
+	public void deleteParsersByStreamIds(List<Long> streamIds) {
+		for (Long streamId: streamIds) {
+			for (Long id: findParserIdsByStreamId(streamId)) { deleteParser(id); }
+		}
+	}
+
+	public void deleteParsersByResourceId(long resource_id) {
+		IdSet removed = parsersByResource.remove(resource_id);
+		if (removed==null) { return; }
+		undoDelete(parsersByResource, removed, resource_id);
+		for (long id: removed.toArray()) { undoDelete(parsers, parsers.remove(id)); }
+	}
+
+	// ResourceLog
+	public ResourceLog findResourceLogByResourceId(long resource_id) {
+		for (LogRow row: sorted(logs.values())) {
+			if (row.resourceId==resource_id) { return row.toResourceLog(); }
+		}
+		return null;
+	}
+
+	public ResourceLog findResourceLogById(long id) {
+		LogRow row = logs.get(id);
+		return row==null ? null : row.toResourceLog();
+	}
+
+	public void insertResourceLog(long resource_id, long creation_timestamp, long response_timestamp, boolean parsed_successfully, boolean is_poll, String body, String method, String headers, String message, int version) {
+		LogRow row = new LogRow(logIds.incrementAndGet(), resource_id);
+		row.set(creation_timestamp, response_timestamp, parsed_successfully, is_poll, body, method, headers, message, version);
+		logs.put(row.id, row);
+		undoInsert(logs, row.id);
+	}
+
+	public void updateResourceLog(long resource_id, long creation_timestamp, long response_timestamp, boolean parsed_successfully, boolean is_poll, String body, String method, String headers, String message, int version) {
+		for (LogRow row: logs.values()) {
+			if (row.resourceId==resource_id) {
+				undoUpdate(row);
+				row.set(creation_timestamp, response_timestamp, parsed_successfully, is_poll, body, method, headers, message, version);
+			}
+		}
+	}
+
+	public void deleteResourceLog(long id) {
+		undoDelete(logs, logs.remove(id));
+	}
+
+	public void deleteResourceLogByResourceId(long resource_id) {
+		for (LogRow row: logs.values()) {
+			if (row.resourceId==resource_id) { undoDelete(logs, logs.remove(row.id)); }
+		}
+	}
+
+	// Datapoints
+	public DataPoint findPointById(long id) {
+		for (Series series: points.values()) {
+			DataPoint point = series.find(id);
+			if (point!=null) { return point; }
+		}
+		return null;
+	}
+
+	public List<DataPoint> findPointsByStreamId(long stream_id, int limit) {
+		Series series = points.get(stream_id);
+		return series==null ? new ArrayList<DataPoint>() : series.latest(limit);
+	}
+
+	public List<DataPoint> findPointsByStreamIdSince(long stream_id, long from) {
+		return findPointsByStreamIdSinceLimit(stream_id, from, Integer.MAX_VALUE);
+	}
+
+	public List<DataPoint> findPointsByStreamIdSince(long stream_id, long from, long until) {
+		if (from==Long.MAX_VALUE) { return new ArrayList<DataPoint>(); }
+		return findPointsByStreamIdRange(stream_id, from+1, until, Integer.MAX_VALUE);
+	}
+
+	public List<DataPoint> findPointsByStreamIdSinceLimit(long stream_id, long from, int limit) {
+		Series series = points.get(stream_id);
+		if (series==null || from==Long.MAX_VALUE) { return new ArrayList<DataPoint>(); }
+		return series.range(from+1, Long.MAX_VALUE, true, limit);
+	}
+
+	// REPLACE: a point at a timestamp the stream already has takes its place
+	public void insertDataPoint(long stream_id, double data, long timestamp) {
+		Series series = points.get(stream_id);
+		if (series==null) {
+			Series created = new Series(stream_id);
+			series = points.putIfAbsent(stream_id, created);
+			if (series==null) {
+				series = created;
+				undoInsert(points, stream_id);
+			}
+		}
+		undoUpdate(series);
+		series.put(pointIds.incrementAndGet(), timestamp, data, maxPointsPerStream);
+	}
+
+	public void insertDataPoints(List<DataPoint> points) {
+		for (DataPoint point: points) { insertDataPoint(point.getStreamId(), point.getValue(), point.getTimestamp()); }
+	}
+
+	public List<DataPoint> findPointsByStreamIdRange(long stream_id, long from, long until, int limit) {
+		Series series = points.get(stream_id);
+		return series==null ? new ArrayList<DataPoint>() : series.range(from, until, false, limit);
+	}
+
+	public Long findFirstTimestamp(long stream_id) {
+		Series series = points.get(stream_id);
+		return series==null ? null : series.first();
+	}
+
+	public int deletePointsByStreamIdRange(long stream_id, long from, long until) {
+		Series series = points.get(stream_id);
+		if (series==null) { return 0; }
+		undoUpdate(series);
+		return series.delete(from, until);
+	}
+
+	// Transactional
+	public void begin() {
+		if (undo.get()!=null) { return; } // already in one
+		transactions.lock();
+		undo.set(new Undo());
+	}
+
+	public void commit() {
+		end();
+	}
+
+	public void rollback() {
+		Undo log = undo.get();
+		if (log!=null) { log.replay(0); }
+		end();
+	}
+
+	public void checkpoint(String name) {
+		Undo log = undo.get();
+		if (log==null) { return; }
+		log.checkpoints.put(name, log.actions.size());
+		log.saved.clear(); // later changes are undone back to here
+	}
+
+	public void release(String name) {
+		Undo log = undo.get();
+		if (log!=null) { log.checkpoints.remove(name); }
+	}
+
+	public void rollback(String checkpointName) {
+		Undo log = undo.get();
+		if (log==null) { return; }
+		Integer mark = log.checkpoints.get(checkpointName);
+		if (mark==null) { throw new TransactionFailedException("No checkpoint "+checkpointName); }
+		log.replay(mark);
+	}
+
+	// a transaction already running on this thread takes the nested one in
+	public <ReturnType> ReturnType inTransaction(Transaction<ReturnType, StorageDAO> func) {
+		if (undo.get()!=null) {
+			try {
+				return func.inTransaction(this, new TransactionState());
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new TransactionFailedException("Transaction failed", e);
+			}
+		}
+		begin();
+		boolean done = false;
+		try {
+			TransactionState status = new TransactionState();
+			ReturnType result = func.inTransaction(this, status);
+			if (status.isRollbackOnly()) {
+				rollback();
+			} else {
+				commit();
+			}
+			done = true;
+			return result;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new TransactionFailedException("Transaction failed and was rolled back", e);
+		} finally {
+			if (!done) { rollback(); }
+		}
+	}
+
+	public <ReturnType> ReturnType inTransaction(TransactionIsolationLevel isolation, Transaction<ReturnType, StorageDAO> func) {
+		return inTransaction(func);
+	}
+
+	private void end() {
+		if (!transactions.isHeldByCurrentThread()) { return; }
+		undo.remove();
+		transactions.unlock();
+	}
+
+	// the undo log of a transaction, replayed newest first
+	private static final class Undo {
+		final List<Runnable> actions = new ArrayList<Runnable>();
+		final Map<String, Integer> checkpoints = new HashMap<String, Integer>();
+		// rows and series saved already, saving the first state is enough
+		final Map<Object, Boolean> saved = new IdentityHashMap<Object, Boolean>();
+
+		void replay(int mark) {
+			for (int i=actions.size()-1; i>=mark; i--) {
+				try {
+					actions.remove(i).run();
+				} catch (RuntimeException e) {
+					logger.error("Could not undo a change: "+e);
+				}
+			}
+			saved.clear(); // rows may change again after the checkpoint
+		}
+	}
+
+	private void onRollback(Runnable action) {
+		Undo log = undo.get();
+		if (log!=null) { log.actions.add(action); }
+	}
+
+	private <R> void undoInsert(final ConcurrentLongMap<R> table, final long id) {
+		if (undo.get()==null) { return; }
+		onRollback(new Runnable() {
+			public void run() { table.remove(id); }
+		});
+	}
+
+	private <R extends Row> void undoDelete(final ConcurrentLongMap<R> table, final R row) {
+		if (row==null) { return; }
+		undoDelete(table, row, row.id);
+	}
+
+	private <R> void undoDelete(final ConcurrentLongMap<R> table, final R row, final long id) {
+		if (row==null || undo.get()==null) { return; }
+		onRollback(new Runnable() {
+			public void run() { table.put(id, row); }
+		});
+		if (row instanceof StreamRow) { undoUnindex(streamsByResource, ((StreamRow)row).resourceId, id); }
+		else if (row instanceof TriggerRow) { undoUnindex(triggersByStream, ((TriggerRow)row).streamId, id); }
+		else if (row instanceof VFileRow) { undoUnindex(vfilesByStream, ((VFileRow)row).streamId, id); }
+		else if (row instanceof ParserRow) { undoUnindex(parsersByResource, ((ParserRow)row).resourceId, id); }
+		else if (row instanceof IdSet && table==antecedents) {
+			for (long antecedent: ((IdSet)row).toArray()) { undoUnindex(dependents, antecedent, id); }
+		} else if (row instanceof IdSet && table==dependents) {
+			for (long dependent: ((IdSet)row).toArray()) { undoUnindex(antecedents, dependent, id); }
+		}
+	}
+
+	private void undoIndex(final ConcurrentLongMap<IdSet> index, final long key, final long id) {
+		if (undo.get()==null) { return; }
+		onRollback(new Runnable() {
+			public void run() { unindex(index, key, id); }
+		});
+	}
+
+	// back where it was, the order of the antecedents binds expression variables
+	private void undoUnindex(final ConcurrentLongMap<IdSet> index, final long key, final long id) {
+		IdSet ids = index.get(key);
+		final int at = ids==null ? -1 : ids.indexOf(id);
+		onRollback(new Runnable() {
+			public void run() { index(index, key).add(id, at); }
+		});
+	}
+
+	// the first change of a row or series in the transaction saves its state
+	private void undoUpdate(final Restorable target) {
+		Undo log = undo.get();
+		if (log==null || log.saved.put(target, Boolean.TRUE)!=null) { return; }
+		final Restorable saved = target.copy();
+		onRollback(new Runnable() {
+			public void run() { target.restore(saved); }
+		});
+	}
+
+	// lookups by column without an index, the lowest id wins like "limit 1" on the primary key
+	private UserRow findUserRow(String username, String email) {
+		for (UserRow row: sorted(users.values())) {
+			synchronized (row) {
+				if (username!=null && username.equals(row.username)) { return row; }
+				if (email!=null && email.equals(row.email)) { return row; }
+			}
+		}
+		return null;
+	}
+
+	private ResourceRow findResourceRow(String label, long owner_id) {
+		for (ResourceRow row: sorted(resources.values())) {
+			synchronized (row) {
+				if (equal(row.label, label) && (owner_id==-1 || row.ownerId==owner_id)) { return row; }
+			}
+		}
+		return null;
+	}
+
+	private static IdSet index(ConcurrentLongMap<IdSet> index, long key) {
+		IdSet ids = index.get(key);
+		if (ids==null) {
+			IdSet created = new IdSet();
+			ids = index.putIfAbsent(key, created);
+			if (ids==null) { ids = created; }
+		}
+		return ids;
+	}
+
+	// an emptied set stays in the index, it is cheap and racing removal against add is not
+	private static void unindex(ConcurrentLongMap<IdSet> index, long key, long id) {
+		IdSet ids = index.get(key);
+		if (ids!=null) { ids.remove(id); }
+	}
+
+	private static long[] ids(ConcurrentLongMap<IdSet> index, long key) {
+		IdSet ids = index.get(key);
+		return ids==null ? new long[0] : ids.toArray();
+	}
+
+	private static List<Long> list(long[] ids) {
+		List<Long> list = new ArrayList<Long>(ids.length);
+		for (long id: ids) { list.add(id); }
+		return list;
+	}
+
+	private static <R extends Row> List<R> sorted(List<R> rows) {
+		Object[] array = rows.toArray();
+		Arrays.sort(array);
+		List<R> list = new ArrayList<R>(array.length);
+		for (Object row: array) { list.add((R)row); }
+		return list;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a==null ? b==null : a.equals(b);
+	}
+
+	private static class TransactionState implements TransactionStatus {
+		private boolean rollbackOnly;
+		public void setRollbackOnly()	{ rollbackOnly = true; }
+		public boolean isRollbackOnly()	{ return rollbackOnly; }
+	}
+
+	// ids in insertion order, small enough that a copy on read is cheap
+	private static final class IdSet {
+		private long[] ids = new long[4];
+		private int size;
+
+		// false if it was there already
+		synchronized boolean add(long id) {
+			for (int i=0; i<size; i++) { if (ids[i]==id) { return false; } }
+			if (size==ids.length) { ids = Arrays.copyOf(ids, size*2); }
+			ids[size++] = id;
+			return true;
+		}
+
+		// at position at, or at the end when it is -1
+		synchronized boolean add(long id, int at) {
+			if (at<0 || at>size) { return add(id); }
+			for (int i=0; i<size; i++) { if (ids[i]==id) { return false; } }
+			if (size==ids.length) { ids = Arrays.copyOf(ids, size*2); }
+			System.arraycopy(ids, at, ids, at+1, size-at);
+			ids[at] = id;
+			size++;
+			return true;
+		}
+
+		synchronized int indexOf(long id) {
+			for (int i=0; i<size; i++) { if (ids[i]==id) { return i; } }
+			return -1;
+		}
+
+		synchronized void remove(long id) {
+			for (int i=0; i<size; i++) {
+				if (ids[i]==id) {
+					System.arraycopy(ids, i+1, ids, i, size-i-1);
+					size--;
+					return;
+				}
+			}
+		}
+
+		synchronized long[] toArray() {
+			return Arrays.copyOf(ids, size);
+		}
+	}
+
+	// a row or series whose state a transaction can save and put back
+	private interface Restorable {
+		Restorable copy();
+		void restore(Restorable saved);
+	}
+
+	private static abstract class Row implements Comparable<Row> {
+		final long id;
+		Row(long id) { this.id = id; }
+		public int compareTo(Row other) { return id<other.id ? -1 : (id==other.id ? 0 : 1); }
+	}
+
+	private static final class UserRow extends Row implements Restorable {
+		String username, email, password, firstName, lastName, description, token;
+		double latitude, longitude;
+		Date creationDate, lastLogin;
+
+		UserRow(long id) { super(id); }
+
+		public synchronized Restorable copy() {
+			UserRow copy = new UserRow(id);
+			copy.set(this);
+			return copy;
+		}
+
+		public void restore(Restorable saved) {
+			synchronized (this) { set((UserRow)saved); }
+		}
+
+		private void set(UserRow from) {
+			username = from.username; email = from.email; password = from.password;
+			firstName = from.firstName; lastName = from.lastName; description = from.description;
+			token = from.token; latitude = from.latitude; longitude = from.longitude;
+			creationDate = from.creationDate; lastLogin = from.lastLogin;
+		}
+
+		synchronized String username() { return username; }
+
+		synchronized User toUser() {
+			return new User(id, username, email, password, firstName, lastName, description,
+				latitude, longitude, creationDate, lastLogin, token);
+		}
+	}
+
+	private static final class ResourceRow extends Row implements Restorable {
+		String label, version, pollingUrl, pollingKey, secretKey, description;
+		long ownerId, parentId, pollingPeriod, lastPolled, lastPosted;
+
+		ResourceRow(long id) { super(id); }
+
+		public synchronized Restorable copy() {
+			ResourceRow copy = new ResourceRow(id);
+			copy.set(this);
+			return copy;
+		}
+
+		public void restore(Restorable saved) {
+			synchronized (this) { set((ResourceRow)saved); }
+		}
+
+		private void set(ResourceRow from) {
+			label = from.label; version = from.version; pollingUrl = from.pollingUrl;
+			pollingKey = from.pollingKey; secretKey = from.secretKey; description = from.description;
+			ownerId = from.ownerId; parentId = from.parentId; pollingPeriod = from.pollingPeriod;
+			lastPolled = from.lastPolled; lastPosted = from.lastPosted;
+		}
+
+		synchronized Resource toResource() {
+			return new Resource((int)id, label, version, ownerId, parentId, pollingUrl, pollingKey,
+				pollingPeriod, secretKey, description, lastPolled, lastPosted);
+		}
+	}
+
+	private static final class StreamRow extends Row implements Restorable {
+		final long resourceId; // fixed, it keys the streamsByResource index
+		String type, description, secretKey, function;
+		double latitude, longitude;
+		boolean publicAccess, publicSearch, frozen;
+		int historySize, version;
+		long lastUpdated, ownerId;
+
+		StreamRow(long id, long resourceId) {
+			super(id);
+			this.resourceId = resourceId;
+		}
+
+		synchronized String secretKey() { return secretKey; }
+
+		public synchronized Restorable copy() {
+			StreamRow copy = new StreamRow(id, resourceId);
+			copy.set(this);
+			return copy;
+		}
+
+		public void restore(Restorable saved) {
+			synchronized (this) { set((StreamRow)saved); }
+		}
+
+		private void set(StreamRow from) {
+			type = from.type; description = from.description; secretKey = from.secretKey;
+			function = from.function; latitude = from.latitude; longitude = from.longitude;
+			publicAccess = from.publicAccess; publicSearch = from.publicSearch; frozen = from.frozen;
+			historySize = from.historySize; version = from.version;
+			lastUpdated = from.lastUpdated; ownerId = from.ownerId;
+		}
+
+		synchronized Stream toStream() {
+			return new Stream(id, type, latitude, longitude, description, publicAccess, publicSearch,
+				frozen, historySize, lastUpdated, secretKey, ownerId, resourceId, function, version);
+		}
+	}
+
+	private static final class ParserRow extends Row implements Restorable {
+		final long resourceId, streamId;
+		String inputParser, inputType, timeformat;
+		int dataGroup, timeGroup, numberOfPoints;
+
+		ParserRow(long id, long resourceId, long streamId) {
+			super(id);
+			this.resourceId = resourceId;
+			this.streamId = streamId;
+		}
+
+		public synchronized Restorable copy() {
+			ParserRow copy = new ParserRow(id, resourceId, streamId);
+			copy.set(this);
+			return copy;
+		}
+
+		public void restore(Restorable saved) {
+			synchronized (this) { set((ParserRow)saved); }
+		}
+
+		private void set(ParserRow from) {
+			inputParser = from.inputParser; inputType = from.inputType; timeformat = from.timeformat;
+			dataGroup = from.dataGroup; timeGroup = from.timeGroup; numberOfPoints = from.numberOfPoints;
+		}
+
+		synchronized Parser toParser() {
+			return new Parser(id, resourceId, streamId, inputParser, inputType, timeformat,
+				dataGroup, timeGroup, numberOfPoints);
+		}
+	}
+
+	private static final class TriggerRow extends Row {
+		final long streamId;
+		final String url, operator, payload;
+		final double operand;
+
+		TriggerRow(long id, long streamId, String url, String operator, double operand, String payload) {
+			super(id);
+			this.streamId = streamId;
+			this.url = url;
+			this.operator = operator;
+			this.operand = operand;
+			this.payload = payload;
+		}
+
+		Trigger toTrigger() {
+			return new Trigger(id, streamId, url, operator, operand, payload);
+		}
+	}
+
+	private static final class VFileRow extends Row {
+		final String path, type;
+		final long ownerId, streamId;
+
+		VFileRow(long id, String path, long ownerId, String type, long streamId) {
+			super(id);
+			this.path = path;
+			this.ownerId = ownerId;
+			this.type = type;
+			this.streamId = streamId;
+		}
+	}
+
+	private static final class LogRow extends Row implements Restorable {
+		final long resourceId;
+		long creation, response;
+		boolean parsed, isPoll;
+		String body, method, headers, message;
+		int version;
+
+		LogRow(long id, long resourceId) {
+			super(id);
+			this.resourceId = resourceId;
+		}
+
+		synchronized void set(long creation, long response, boolean parsed, boolean isPoll, String body, String method, String headers, String message, int version) {
+			this.creation = creation;
+			this.response = response;
+			this.parsed = parsed;
+			this.isPoll = isPoll;
+			this.body = body;
+			this.method = method;
+			this.headers = headers;
+			this.message = message;
+			this.version = version;
+		}
+
+		public synchronized Restorable copy() {
+			LogRow copy = new LogRow(id, resourceId);
+			copy.set(creation, response, parsed, isPoll, body, method, headers, message, version);
+			return copy;
+		}
+
+		public void restore(Restorable saved) {
+			LogRow from = (LogRow)saved;
+			set(from.creation, from.response, from.parsed, from.isPoll, from.body, from.method, from.headers, from.message, from.version);
+		}
+
+		synchronized ResourceLog toResourceLog() {
+			return new ResourceLog(id, resourceId, creation, response, parsed, isPoll, body, method, headers, message);
+		}
+	}
+
+	// the points of one stream, parallel arrays sorted by timestamp
+	private static final class Series implements Restorable {
+		private final long streamId;
+		private long[] timestamps = new long[16];
+		private double[] values = new double[16];
+		private long[] ids = new long[16];
+		private int size;
+
+		Series(long streamId) {
+			this.streamId = streamId;
+		}
+
+		public synchronized Restorable copy() {
+			Series copy = new Series(streamId);
+			copy.timestamps = Arrays.copyOf(timestamps, size);
+			copy.values = Arrays.copyOf(values, size);
+			copy.ids = Arrays.copyOf(ids, size);
+			copy.size = size;
+			return copy;
+		}
+
+		public void restore(Restorable saved) {
+			Series from = (Series)saved;
+			synchronized (this) {
+				timestamps = Arrays.copyOf(from.timestamps, Math.max(16, from.size));
+				values = Arrays.copyOf(from.values, Math.max(16, from.size));
+				ids = Arrays.copyOf(from.ids, Math.max(16, from.size));
+				size = from.size;
+			}
+		}
+
+		synchronized void put(long id, long timestamp, double value, int max) {
+			int i = search(timestamp);
+			if (i>=0) { // replaced, and like REPLACE the point gets a new id
+				ids[i] = id;
+				values[i] = value;
+				return;
+			}
+			i = -i-1;
+			if (size==timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, size*2);
+				values = Arrays.copyOf(values, size*2);
+				ids = Arrays.copyOf(ids, size*2);
+			}
+			if (i<size) { // out of order, make room
+				System.arraycopy(timestamps, i, timestamps, i+1, size-i);
+				System.arraycopy(values, i, values, i+1, size-i);
+				System.arraycopy(ids, i, ids, i+1, size-i);
+			}
+			timestamps[i] = timestamp;
+			values[i] = value;
+			ids[i] = id;
+			size++;
+			if (max>0 && size>max) { remove(0, size-max); }
+		}
+
+		// the newest first, by descending timestamp as in MySQL
+		synchronized List<DataPoint> latest(int limit) {
+			int n = Math.min(Math.max(limit, 0), size);
+			List<DataPoint> found = new ArrayList<DataPoint>(n);
+			for (int i=size-1; i>=size-n; i--) { found.add(point(i)); }
+			return found;
+		}
+
+		// from inclusive, until exclusive unless untilInclusive, oldest first
+		synchronized List<DataPoint> range(long from, long until, boolean untilInclusive, int limit) {
+			int start = lowerBound(from);
+			int end = untilInclusive ? size : lowerBound(until);
+			List<DataPoint> found = new ArrayList<DataPoint>();
+			for (int i=start; i<end && found.size()<limit; i++) { found.add(point(i)); }
+			return found;
+		}
+
+		synchronized Long first() {
+			return size==0 ? null : Long.valueOf(timestamps[0]);
+		}
+
+		synchronized DataPoint find(long id) {
+			for (int i=0; i<size; i++) {
+				if (ids[i]==id) { return point(i); }
+			}
+			return null;
+		}
+
+		synchronized int delete(long from, long until) {
+			int start = lowerBound(from);
+			int end = Math.max(start, lowerBound(until));
+			remove(start, end-start);
+			return end-start;
+		}
+
+		private void remove(int start, int count) {
+			if (count==0) { return; }
+			System.arraycopy(timestamps, start+count, timestamps, start, size-start-count);
+			System.arraycopy(values, start+count, values, start, size-start-count);
+			System.arraycopy(ids, start+count, ids, start, size-start-count);
+			size -= count;
+		}
+
+		private DataPoint point(int i) {
+			return new DataPoint(ids[i], streamId, timestamps[i], values[i]);
+		}
+
+		// points mostly arrive in order, so check the end before searching
+		private int search(long timestamp) {
+			if (size==0 || timestamp>timestamps[size-1]) { return -size-1; }
+			return Arrays.binarySearch(timestamps, 0, size, timestamp);
+		}
+
+		// the index of the first point at or after timestamp
+		private int lowerBound(long timestamp) {
+			int i = search(timestamp);
+			return i>=0 ? i : -i-1;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Splits StorageDAO calls between the primary database and its read
+ * replicas. Queries marked @ReplicaRead go round-robin to the replicas whose
+ * measured lag is within the staleness bound; all other calls, and any read made
+ * while the calling thread or the stream read is pinned, go to the primary. A
+ * stream is pinned for pinAfterWrite after each write of its points, whichever
+ * thread or cluster node made it, so a client reads its own writes although its
+ * next request lands on another thread. A thread is pinned likewise after its own
+ * writes, and explicitly around work that must see the latest data, e.g. derived
+ * stream functions:
+ *   ReadRouter.pin(); try { ... } finally { ReadRouter.unpin(); }
+ * Replica lag is Seconds_Behind_Master from SHOW SLAVE STATUS, checked periodically.
+ * TODO:
+ * */
+package se.sics.sicsthsense.jdbi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.ReplicationConfiguration;
+import se.sics.sicsthsense.core.DataPoint;
+
+public class ReadRouter implements InvocationHandler {
+	private static final Logger logger = LoggerFactory.getLogger(ReadRouter.class);
+	private static final long UNAVAILABLE = -1;
+
+	// per thread: time of the last write, explicit pin depth
+	private static final ThreadLocal<long[]> pins = new ThreadLocal<long[]>() {
+		protected long[] initialValue() { return new long[2]; }
+	};
+	// time of the last write of each stream's points, dropped once it no longer pins
+	private static final ConcurrentHashMap<Long, Long> written = new ConcurrentHashMap<Long, Long>();
+	private static final int NO_STREAM = -1;
+	// the position of each method's stream_id parameter, NO_STREAM if it has none
+	private static final ConcurrentHashMap<Method, Integer> streamParameters = new ConcurrentHashMap<Method, Integer>();
+
+	private final StorageDAO primary;
+	private final List<Replica> replicas = new CopyOnWriteArrayList<Replica>();
+	private final AtomicInteger next = new AtomicInteger();
+	private final long maxStaleness;
+	private final long lagCheckInterval;
+	private final long pinAfterWrite;
+	private ScheduledExecutorService checker;
+
+	private final Meter primaryReads = EngineMetrics.meter("db.primary.reads");
+	private final Meter primaryWrites = EngineMetrics.meter("db.primary.writes");
+	// replica eligible reads that had to go to the primary
+	private final Meter fallbacks = EngineMetrics.meter("db.replicas.fallbacks");
+
+	public ReadRouter(StorageDAO primary, ReplicationConfiguration config) {
+		this.primary = primary;
+		this.maxStaleness = config.getMaxStaleness();
+		this.lagCheckInterval = config.getLagCheckInterval();
+		this.pinAfterWrite = config.getPinAfterWrite();
+	}
+
+	// reads on this thread go to the primary until the matching unpin()
+	public static void pin() {
+		pins.get()[1]++;
+	}
+
+	public static void unpin() {
+		pins.get()[1]--;
+	}
+
+	// the stream's points were written, maybe on another node, so read them from the primary for a while
+	public static void wrote(long streamId) {
+		written.put(streamId, System.currentTimeMillis());
+	}
+
+	public void addReplica(String name, DBI dbi) {
+		replicas.add(new Replica(name, dbi));
+	}
+
+	public StorageDAO proxy() {
+		return (StorageDAO)Proxy.newProxyInstance(StorageDAO.class.getClassLoader(),
+			new Class<?>[] { StorageDAO.class }, this);
+	}
+
+	public void start() {
+		checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "replica-lag");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		checker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (Replica replica: replicas) { replica.checkLag(); }
+				long expired = System.currentTimeMillis()-pinAfterWrite;
+				Iterator<Long> it = written.values().iterator();
+				while (it.hasNext()) {
+					if (it.next()<expired) { it.remove(); }
+				}
+			}
+		}, 0, lagCheckInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		if (checker!=null) { checker.shutdownNow(); }
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass()==Object.class) {
+			if (method.getName().equals("equals")) { return proxy==args[0]; }
+			if (method.getName().equals("hashCode")) { return System.identityHashCode(proxy); }
+			return "ReadRouter("+replicas.size()+" replicas)";
+		}
+		long[] pin = pins.get();
+		long now = System.currentTimeMillis();
+		if (method.isAnnotationPresent(ReplicaRead.class) && pin[1]<=0
+				&& now-pin[0] >= pinAfterWrite && !pinned(method, args, now)) {
+			Replica replica = pick();
+			if (replica!=null) {
+				try {
+					Object result = method.invoke(replica.dao, args);
+					replica.reads.mark();
+					return result;
+				} catch (InvocationTargetException e) {
+					logger.warn("Read from "+replica.name+" failed, using the primary: "+e.getCause());
+					replica.lag = UNAVAILABLE;
+				}
+			}
+			fallbacks.mark();
+		}
+		// transactions, from the Transactional mixin, count as writes
+		if (method.isAnnotationPresent(SqlUpdate.class) || method.isAnnotationPresent(SqlBatch.class)
+				|| method.getDeclaringClass()!=StorageDAO.class) {
+			pin[0] = now;
+			wrote(method, args, now);
+			primaryWrites.mark();
+		} else {
+			primaryReads.mark();
+		}
+		try {
+			return method.invoke(primary, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	// whether the stream read was written too recently for a replica to have it
+	private boolean pinned(Method method, Object[] args, long now) {
+		int i = streamParameter(method);
+		if (i==NO_STREAM) { return false; }
+		Long last = written.get(((Number)args[i]).longValue());
+		return last!=null && now-last < pinAfterWrite;
+	}
+
+	private void wrote(Method method, Object[] args, long now) {
+		if (args==null) { return; }
+		int i = streamParameter(method);
+		if (i!=NO_STREAM && args[i] instanceof Number) {
+			written.put(((Number)args[i]).longValue(), now);
+			return;
+		}
+		// batched points, e.g. insertDataPoints
+		if (args.length==1 && args[0] instanceof List) {
+			for (Object o: (List<?>)args[0]) {
+				if (o instanceof DataPoint) { written.put(((DataPoint)o).getStreamId(), now); }
+			}
+		}
+	}
+
+	private static int streamParameter(Method method) {
+		Integer known = streamParameters.get(method);
+		if (known!=null) { return known; }
+		int i = NO_STREAM;
+		java.lang.annotation.Annotation[][] annotations = method.getParameterAnnotations();
+		for (int p=0; p<annotations.length && i==NO_STREAM; p++) {
+			for (java.lang.annotation.Annotation a: annotations[p]) {
+				if (a instanceof Bind && "stream_id".equals(((Bind)a).value())
+						&& (method.getParameterTypes()[p]==long.class || method.getParameterTypes()[p]==Long.class)) {
+					i = p;
+				}
+			}
+		}
+		streamParameters.put(method, i);
+		return i;
+	}
+
+	// round robin over the replicas within the staleness bound
+	private Replica pick() {
+		int n = replicas.size();
+		int start = next.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i=0; i<n; i++) {
+			Replica replica = replicas.get((start+i)%n);
+			if (replica.lag!=UNAVAILABLE && replica.lag<=maxStaleness) { return replica; }
+		}
+		return null;
+	}
+
+	private static class Replica {
+		final String name;
+		final DBI dbi;
+		final StorageDAO dao;
+		final Meter reads;
+		volatile long lag = UNAVAILABLE; // ms behind the primary
+
+		Replica(String name, DBI dbi) {
+			this.name = name;
+			this.dbi = dbi;
+			this.dao = dbi.onDemand(StorageDAO.class);
+			this.reads = EngineMetrics.meter("db", name, "reads");
+			String gauge = MetricRegistry.name("db", name, "lag");
+			EngineMetrics.getRegistry().remove(gauge);
+			EngineMetrics.getRegistry().register(gauge, new Gauge<Long>() {
+				public Long getValue() { return lag; }
+			});
+		}
+
+		void checkLag() {
+			Handle h = null;
+			try {
+				h = dbi.open();
+				Map<String, Object> status = h.createQuery("SHOW SLAVE STATUS").first();
+				if (status==null) { lag = 0; return; } // not replicating, e.g. a snapshot
+				Object seconds = null;
+				for (Map.Entry<String, Object> column: status.entrySet()) {
+					if (column.getKey().equalsIgnoreCase("Seconds_Behind_Master")) { seconds = column.getValue(); }
+				}
+				if (seconds==null) {
+					if (lag!=UNAVAILABLE) { logger.warn("Replication to "+name+" is stopped"); }
+					lag = UNAVAILABLE;
+				} else {
+					lag = Long.parseLong(seconds.toString())*1000;
+				}
+			} catch (Exception e) {
+				if (lag!=UNAVAILABLE) { logger.warn("Replica "+name+" is unavailable: "+e); }
+				lag = UNAVAILABLE;
+			} finally {
+				if (h!=null) { h.close(); }
+			}
+		}
+	}
+}
@@ -33,13 +33,14 @@ import java.util.List;
 import org.skife.jdbi.v2.*;
 import org.skife.jdbi.v2.sqlobject.*;
 import org.skife.jdbi.v2.sqlobject.customizers.*;
+import org.skife.jdbi.v2.sqlobject.mixins.Transactional;
 
 import io.dropwizard.jdbi.*;
 import io.dropwizard.db.*;
 
 import se.sics.sicsthsense.core.*;
 
-public interface StorageDAO {
+public interface StorageDAO extends Transactional<StorageDAO> {
 
   //@SqlUpdate("create table something (id int primary key, name varchar(100))")
   //void createSomethingTable();
@@ -175,7 +176,8 @@ public interface StorageDAO {
   long findStreamId(@Bind("resource_id") long id, @Bind("secret_key") String secret_key);
 
   @SqlUpdate("insert into streams( type, latitude, longitude, description, public_access, public_search, frozen, history_size, last_updated, secret_key, owner_id, resource_id, function, version) values (  :type, :latitude, :longitude, :description, :public_access, :public_search, :frozen, :history_size, :last_updated, :secret_key, :owner_id, :resource_id, :function, :version)")
-  void insertStream(
+	@GetGeneratedKeys
+  long insertStream(
 		@Bind("type")        String type,
 		@Bind("latitude")    double latitude,
 		@Bind("longitude")   double longitude,
@@ -192,14 +194,23 @@ public interface StorageDAO {
 		@Bind("version")      int version
 	);
 
+  @SqlBatch("insert into streams( type, latitude, longitude, description, public_access, public_search, frozen, history_size, last_updated, secret_key, owner_id, resource_id, function, version) values (  :type, :latitude, :longitude, :description, :public_access, :public_search, :frozen, :history_size, :last_updated, :secret_key, :owner_id, :resource_id, :function, :version)")
+	@BatchChunkSize(1000)
+  void insertStreams(@BindBean List<Stream> streams);
+
   @SqlUpdate("update streams set last_updated=:time where id = :id")
   void updatedStream(@Bind("id") long id, @Bind("time") long time);
 
   @SqlUpdate("delete from streams where id = :id")
   void deleteStream(@Bind("id") long id);
 
+  @SqlBatch("delete from streams where id = :id")
+	@BatchChunkSize(1000)
+  void deleteStreams(@Bind("id") List<Long> ids);
+
 
-  @SqlQuery("select stream_id from dependents where dependent_id = :dependent_id")
+  // in the order they were added, expression variables are bound by it
+  @SqlQuery("select stream_id from dependents where dependent_id = :dependent_id order by id")
 	List<Long> findAntecedents(@Bind("dependent_id") long dependent_id);
 
   @SqlQuery("select dependent_id from dependents where stream_id = :stream_id")
@@ -217,6 +228,11 @@ public interface StorageDAO {
 		@Bind("dependent_id")	 long dependent_id
 	);
 
+  // every relation the streams take part in, as antecedent or as dependent
+  @SqlBatch("delete from dependents where stream_id = :id or dependent_id = :id")
+	@BatchChunkSize(1000)
+  void deleteDependentsByStreamIds(@Bind("id") List<Long> streamIds);
+
 
 	// Triggers
   @SqlQuery("select * from triggers where stream_id = :stream_id")
@@ -241,6 +257,10 @@ public interface StorageDAO {
 		@Bind("id")	 long dependent_id
 	);
 
+  @SqlBatch("delete from triggers where stream_id = :stream_id")
+	@BatchChunkSize(1000)
+  void deleteTriggersByStreamIds(@Bind("stream_id") List<Long> streamIds);
+
 
 	// VFiles
   @SqlQuery("select path from vfiles where linked_stream_id = :stream_id limit 1")
@@ -259,6 +279,15 @@ public interface StorageDAO {
 		@Bind("type")       String type,
 		@Bind("linked_stream_id")   long linked_stream_id
 	);
+  // owner and type are the same for every file of the batch
+  @SqlBatch("insert into vfiles(path, owner_id, type, linked_stream_id ) values (:path, :owner_id, :type, :linked_stream_id )")
+	@BatchChunkSize(1000)
+  void insertVFiles(
+		@Bind("path")       List<String> paths,
+		@Bind("owner_id")		long owner_id,
+		@Bind("type")       String type,
+		@Bind("linked_stream_id")   List<Long> linked_stream_ids
+	);
   @SqlUpdate("delete from vfiles where id = :id")
   void deleteVFile(
 		@Bind("id")	 long id
@@ -268,6 +297,10 @@ public interface StorageDAO {
 		@Bind("stream_id")	 long stream_id
 	);
 
+  @SqlBatch("delete from vfiles where linked_stream_id = :stream_id")
+	@BatchChunkSize(1000)
+  void deleteVFilesByStreamIds(@Bind("stream_id") List<Long> streamIds);
+
 
 	// Parsers
   @SqlQuery("select * from parsers where id = :id limit 1")
@@ -282,7 +315,8 @@ public interface StorageDAO {
   List<Long> findParserIdsByStreamId(@Bind("streamId") long streamId);
 
   @SqlUpdate("insert into parsers( resource_id, stream_id, input_parser, input_type, timeformat, data_group, time_group, number_of_points) values ( :resource_id, :stream_id, :input_parser, :input_type, :timeformat, :data_group, :time_group, :number_of_points)")
-  void insertParser(
+	@GetGeneratedKeys
+  long insertParser(
 		@Bind("resource_id") long resource_id,
 		@Bind("stream_id")  long stream_id,
 		@Bind("input_parser") String input_parser,
@@ -293,6 +327,10 @@ public interface StorageDAO {
 		@Bind("number_of_points")  int number_of_points
 	);
 
+  @SqlBatch("insert into parsers( resource_id, stream_id, input_parser, input_type, timeformat, data_group, time_group, number_of_points) values ( :resource_id, :stream_id, :input_parser, :input_type, :timeformat, :data_group, :time_group, :number_of_points)")
+	@BatchChunkSize(1000)
+  void insertParsers(@BindBean List<Parser> parsers);
+
   @SqlQuery("select id from parsers where resource_id = :resource_id and stream_id = :stream_id limit 1")
   long findParserId(@Bind("resource_id") long id, @Bind("stream_id") long stream_id);
 
@@ -310,6 +348,13 @@ public interface StorageDAO {
   @SqlUpdate("delete from parsers where id = :id")
   void deleteParser(@Bind("id") long id);
 
+  @SqlBatch("delete from parsers where stream_id = :stream_id")
+	@BatchChunkSize(1000)
+  void deleteParsersByStreamIds(@Bind("stream_id") List<Long> streamIds);
+
+  @SqlUpdate("delete from parsers where resource_id = :resource_id")
+  void deleteParsersByResourceId(@Bind("resource_id") long resource_id);
+
 
 	//ResourceLog
   @SqlQuery("SELECT * FROM resource_log WHERE resource_id = :resource_id  LIMIT 1")
@@ -360,23 +405,43 @@ public interface StorageDAO {
 	@Mapper(DataPointMapper.class)
   DataPoint findPointById(@Bind("id") long id);
 
-  @SqlQuery("SELECT * FROM data_point_double WHERE stream_id = :stream_id ORDER BY id DESC limit :limit")
+  @SqlQuery("SELECT * FROM data_point_double WHERE stream_id = :stream_id ORDER BY timestamp DESC limit :limit")
 	@Mapper(DataPointMapper.class)
+	@ReplicaRead
   List<DataPoint> findPointsByStreamId(@Bind("stream_id") long stream_id, @Bind("limit") int limit);
 
   @SqlQuery("SELECT * FROM data_point_double WHERE stream_id = :stream_id AND timestamp > :from")
 	@Mapper(DataPointMapper.class)
+	@ReplicaRead
   List<DataPoint> findPointsByStreamIdSince(@Bind("stream_id") long stream_id, @Bind("from") long from);
 
   @SqlQuery("SELECT * FROM data_point_double WHERE stream_id = :stream_id AND timestamp > :from AND timestamp < :until")
 	@Mapper(DataPointMapper.class)
+	@ReplicaRead
   List<DataPoint> findPointsByStreamIdSince(@Bind("stream_id") long stream_id, @Bind("from") long from, @Bind("until") long until);
 
-  @SqlQuery("SELECT * FROM data_point_double WHERE stream_id = :stream_id AND timestamp > :from LIMIT :limit")
+  @SqlQuery("SELECT * FROM data_point_double WHERE stream_id = :stream_id AND timestamp > :from ORDER BY timestamp LIMIT :limit")
 	@Mapper(DataPointMapper.class)
+	@ReplicaRead
   List<DataPoint> findPointsByStreamIdSinceLimit(@Bind("stream_id") long stream_id, @Bind("from") long from, @Bind("limit") int limit);
 
   @SqlUpdate("REPLACE INTO data_point_double(stream_id, data, timestamp) VALUES (:stream_id, :data, :timestamp)")
   void insertDataPoint(@Bind("stream_id") long stream_id, @Bind("data") double data, @Bind("timestamp") long timestamp);
 
+  @SqlBatch("REPLACE INTO data_point_double(stream_id, data, timestamp) VALUES (:streamId, :value, :timestamp)")
+	@BatchChunkSize(1000)
+  void insertDataPoints(@BindBean List<DataPoint> points);
+
+  @SqlQuery("SELECT * FROM data_point_double WHERE stream_id = :stream_id AND timestamp >= :from AND timestamp < :until ORDER BY timestamp LIMIT :limit")
+	@Mapper(DataPointMapper.class)
+	@ReplicaRead
+  List<DataPoint> findPointsByStreamIdRange(@Bind("stream_id") long stream_id, @Bind("from") long from, @Bind("until") long until, @Bind("limit") int limit);
+
+  @SqlQuery("SELECT MIN(timestamp) FROM data_point_double WHERE stream_id = :stream_id")
+	@ReplicaRead
+  Long findFirstTimestamp(@Bind("stream_id") long stream_id);
+
+  @SqlUpdate("DELETE FROM data_point_double WHERE stream_id = :stream_id AND timestamp >= :from AND timestamp < :until")
+  int deletePointsByStreamIdRange(@Bind("stream_id") long stream_id, @Bind("from") long from, @Bind("until") long until);
+
 }
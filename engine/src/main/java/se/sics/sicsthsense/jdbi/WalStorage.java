@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Wraps a StorageDAO so datapoint inserts go through the
+ * WriteAheadLog, which applies them to the wrapped DAO. Deletes and transactions
+ * first wait for the log to be applied, so a replay cannot bring back points
+ * deleted after they were logged; they fail if it is not applied in time.
+ * TODO:
+ * */
+package se.sics.sicsthsense.jdbi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import se.sics.sicsthsense.core.DataPoint;
+
+public class WalStorage implements InvocationHandler {
+	private final StorageDAO target;
+	private final WriteAheadLog log;
+	private final long drainTimeout;
+
+	private WalStorage(StorageDAO target, WriteAheadLog log, long drainTimeout) {
+		this.target = target;
+		this.log = log;
+		this.drainTimeout = drainTimeout;
+	}
+
+	public static StorageDAO wrap(StorageDAO target, WriteAheadLog log, long drainTimeout) {
+		return (StorageDAO)Proxy.newProxyInstance(StorageDAO.class.getClassLoader(),
+			new Class<?>[] { StorageDAO.class }, new WalStorage(target, log, drainTimeout));
+	}
+
+	@SuppressWarnings("unchecked")
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass()==Object.class) {
+			if (method.getName().equals("equals")) { return proxy==args[0]; }
+			if (method.getName().equals("hashCode")) { return System.identityHashCode(proxy); }
+			return "WalStorage("+target+")";
+		}
+		String name = method.getName();
+		if (name.equals("insertDataPoint")) {
+			log.append((Long)args[0], (Double)args[1], (Long)args[2]);
+			return null;
+		}
+		if (name.equals("insertDataPoints")) {
+			log.append((List<DataPoint>)args[0]);
+			return null;
+		}
+		if (name.startsWith("delete") || name.equals("inTransaction")) {
+			if (!log.drain(drainTimeout)) {
+				throw new IllegalStateException("Write-ahead log has "+log.getLag()+" points not yet in the database, try again later");
+			}
+		}
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -0,0 +1,531 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Append-only log of datapoints on local disk in front of the
+ * database. A write is acknowledged once its record has been forced to disk; the
+ * records are applied to the database in order by a background thread, which
+ * retries while the database is away, so points survive a crash or a database
+ * outage. Writers appending while the previous batch is being forced go to disk
+ * together in the next one, one fsync for all of them.
+ *
+ * The log is a directory of segments named by the sequence number of their first
+ * record, a new one started once a segment passes segmentSize. A segment is a
+ * 16 byte header (magic, first sequence) followed by 28 byte records: the CRC32 of
+ * the record's sequence and payload, then stream id, timestamp and value. The
+ * checkpoint file holds the last sequence applied; segments wholly before it are
+ * deleted. On start the last segment is cut back to its last intact record and
+ * everything after the checkpoint is replayed.
+ * TODO:
+ * */
+package se.sics.sicsthsense.jdbi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.WalConfiguration;
+import se.sics.sicsthsense.core.DataPoint;
+
+public class WriteAheadLog {
+	private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+	static final long MAGIC = 0x36534e5357414c31L; // "6SNSWAL1"
+	static final int HEADER = 16;
+	static final int RECORD = 28;
+	private static final String SUFFIX = ".wal";
+	private static final String CHECKPOINT = "checkpoint";
+
+	private final File directory;
+	private final StorageDAO storage; // the database the log is applied to
+	private final long segmentSize;
+	private final int batchSize;
+	private final long applyWait;
+	private final long retryDelay;
+	private final long maxRetryDelay;
+
+	// guarded by this
+	private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+	private ByteBuffer pending = ByteBuffer.allocate(64*1024);
+	private ByteBuffer spare = ByteBuffer.allocate(64*1024);
+	private final CRC32 crc = new CRC32();
+	private final byte[] scratch = new byte[32];
+	private long nextSeq;    // of the next record appended
+	private long durableSeq; // everything up to here is on disk
+	private long appliedSeq; // everything up to here is in the database
+	private IOException failure; // the log could not be written, appends fail
+	private volatile boolean running = true;
+
+	private FileChannel segment; // the one being appended to, only used by the sync thread after start
+	private Thread syncer;
+	private Thread applier;
+
+	private final Timer append = EngineMetrics.timer("wal", "append");
+	private final Timer sync = EngineMetrics.timer("wal", "sync");
+	private final Histogram group = EngineMetrics.histogram("wal", "group");
+	private final Timer apply = EngineMetrics.timer("wal", "apply");
+	private final Meter failures = EngineMetrics.meter("wal", "failures");
+	private final Meter corrupt = EngineMetrics.meter("wal", "corrupt");
+
+	public WriteAheadLog(StorageDAO storage, WalConfiguration config) throws IOException {
+		this.storage = storage;
+		this.directory = new File(config.getDirectory());
+		this.segmentSize = config.getSegmentSize();
+		this.batchSize = config.getBatchSize();
+		this.applyWait = config.getApplyWait();
+		this.retryDelay = config.getRetryDelay();
+		this.maxRetryDelay = Math.max(config.getRetryDelay(), config.getMaxRetryDelay());
+		recover();
+		EngineMetrics.gauge(new Gauge<Long>() {
+			public Long getValue() { return getLag(); }
+		}, "wal", "lag");
+	}
+
+	public synchronized void start() {
+		syncer = new Thread(new Runnable() {
+			public void run() { syncLoop(); }
+		}, "wal-sync");
+		applier = new Thread(new Runnable() {
+			public void run() { applyLoop(); }
+		}, "wal-apply");
+		syncer.setDaemon(true);
+		applier.setDaemon(true);
+		syncer.start();
+		applier.start();
+	}
+
+	// appended records are forced to disk before this returns, the rest waits for the next start
+	public void stop() throws InterruptedException {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		if (syncer!=null) { syncer.join(); }
+		if (applier!=null) { applier.interrupt(); applier.join(); }
+		try {
+			if (segment!=null) { segment.close(); }
+		} catch (IOException e) {
+			logger.error("Closing the write-ahead log failed: "+e);
+		}
+	}
+
+	// returns once the point is on disk, waiting up to applyWait for it to reach the database
+	public void append(long streamId, double value, long timestamp) throws IOException {
+		Timer.Context timer = append.time();
+		try {
+			long seq;
+			synchronized (this) {
+				seq = add(streamId, value, timestamp);
+				notifyAll();
+			}
+			settle(seq);
+		} finally {
+			timer.stop();
+		}
+	}
+
+	public void append(List<DataPoint> points) throws IOException {
+		if (points.isEmpty()) { return; }
+		Timer.Context timer = append.time();
+		try {
+			long seq = 0;
+			synchronized (this) {
+				for (DataPoint point: points) { seq = add(point.getStreamId(), point.getValue(), point.getTimestamp()); }
+				notifyAll();
+			}
+			settle(seq);
+		} finally {
+			timer.stop();
+		}
+	}
+
+	// wait for everything on disk to be in the database, false when it is not by then
+	public synchronized boolean drain(long timeout) throws InterruptedException {
+		long target = nextSeq-1;
+		long until = System.currentTimeMillis()+timeout;
+		while (appliedSeq<target) {
+			long left = until-System.currentTimeMillis();
+			if (left<=0) { return false; }
+			wait(left);
+		}
+		return true;
+	}
+
+	// records on disk not yet in the database
+	public synchronized long getLag() {
+		return durableSeq-appliedSeq;
+	}
+
+	private long add(long streamId, double value, long timestamp) throws IOException {
+		if (failure!=null) { throw new IOException("Write-ahead log failed: "+failure.getMessage(), failure); }
+		if (!running) { throw new IOException("Write-ahead log is stopped"); }
+		long seq = nextSeq++;
+		if (pending.remaining()<RECORD) {
+			ByteBuffer larger = ByteBuffer.allocate(pending.capacity()*2);
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+		pending.putInt(checksum(seq, streamId, timestamp, value)).putLong(streamId).putLong(timestamp).putDouble(value);
+		return seq;
+	}
+
+	// on disk, then give the database up to applyWait so the writer can read its own write
+	private synchronized void settle(long seq) throws IOException {
+		try {
+			while (durableSeq<seq) {
+				if (failure!=null) { throw new IOException("Write-ahead log failed: "+failure.getMessage(), failure); }
+				wait();
+			}
+			long until = System.currentTimeMillis()+applyWait;
+			while (appliedSeq<seq) {
+				long left = until-System.currentTimeMillis();
+				if (left<=0) { return; } // durable is enough, the database catches up
+				wait(left);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the write-ahead log");
+		}
+	}
+
+	private int checksum(long seq, long streamId, long timestamp, double value) {
+		ByteBuffer.wrap(scratch).putLong(seq).putLong(streamId).putLong(timestamp).putDouble(value);
+		crc.reset();
+		crc.update(scratch, 0, 32);
+		return (int)crc.getValue();
+	}
+
+	private void syncLoop() {
+		while (true) {
+			ByteBuffer batch;
+			long upTo;
+			synchronized (this) {
+				while (pending.position()==0 && running) {
+					try { wait(); } catch (InterruptedException e) { /* stop() says when */ }
+				}
+				if (pending.position()==0) { return; } // stopped with nothing left
+				batch = pending;
+				pending = spare;
+				spare = batch;
+				upTo = nextSeq-1;
+			}
+			Timer.Context timer = sync.time();
+			try {
+				group.update(batch.position()/RECORD);
+				batch.flip();
+				while (batch.hasRemaining()) { segment.write(batch); }
+				segment.force(false);
+				synchronized (this) {
+					durableSeq = upTo;
+					notifyAll();
+				}
+				if (segment.size()>=segmentSize) { rotate(upTo+1); }
+			} catch (IOException e) {
+				logger.error("Write-ahead log cannot be written, refusing points from now on: "+e);
+				synchronized (this) {
+					failure = e;
+					notifyAll();
+				}
+				return;
+			} finally {
+				batch.clear();
+				timer.stop();
+			}
+		}
+	}
+
+	private void rotate(long first) throws IOException {
+		FileChannel next = create(first);
+		segment.close();
+		segment = next;
+	}
+
+	private FileChannel create(long first) throws IOException {
+		File file = new File(directory, String.format("%020d", first)+SUFFIX);
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		ByteBuffer header = ByteBuffer.allocate(HEADER).putLong(MAGIC).putLong(first);
+		header.flip();
+		while (header.hasRemaining()) { channel.write(header); }
+		channel.force(true);
+		synchronized (this) { segments.put(first, file); }
+		return channel;
+	}
+
+	private void applyLoop() {
+		Reader reader = new Reader(appliedSeq()+1);
+		try {
+			List<DataPoint> batch = new ArrayList<DataPoint>(batchSize);
+			long last = 0;
+			long delay = retryDelay;
+			while (running) {
+				try {
+					if (batch.isEmpty()) {
+						long upTo;
+						synchronized (this) {
+							while (durableSeq<=appliedSeq && running) { wait(); }
+							if (!running) { return; }
+							upTo = Math.min(durableSeq, appliedSeq+batchSize);
+						}
+						try {
+							last = reader.read(upTo, batch);
+						} catch (IOException e) { // start again from the last applied record
+							batch.clear();
+							reader.close();
+							reader = new Reader(appliedSeq()+1);
+							throw e;
+						}
+					}
+					Timer.Context timer = apply.time();
+					try {
+						if (!batch.isEmpty()) { storage.insertDataPoints(batch); }
+					} finally {
+						timer.stop();
+					}
+					batch.clear();
+					delay = retryDelay;
+					synchronized (this) {
+						appliedSeq = last;
+						notifyAll();
+					}
+					checkpoint(last);
+					dropSegments(last);
+				} catch (InterruptedException e) {
+					return;
+				} catch (Exception e) { // the database is away, keep the batch and try again
+					failures.mark();
+					logger.warn("Applying the write-ahead log failed, "+getLag()+" points waiting, retrying in "+delay+"ms: "+e);
+					Thread.sleep(delay);
+					delay = Math.min(delay*2, maxRetryDelay);
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped while waiting to retry
+		} finally {
+			reader.close();
+		}
+	}
+
+	private synchronized long appliedSeq() {
+		return appliedSeq;
+	}
+
+	// reads records in sequence across segments, for the applier
+	private class Reader {
+		private long seq;
+		private long first;
+		private FileChannel channel;
+		private final ByteBuffer record = ByteBuffer.allocate(RECORD);
+
+		Reader(long seq) {
+			this.seq = seq;
+		}
+
+		// the records up to upTo into points, returns the last sequence read
+		long read(long upTo, List<DataPoint> points) throws IOException {
+			while (seq<=upTo) {
+				if (channel==null) { open(); }
+				record.clear();
+				long position = HEADER+(seq-first)*RECORD;
+				if (position+RECORD>channel.size()) { // the rest is in the next segment
+					channel.close();
+					channel = null;
+					synchronized (WriteAheadLog.this) {
+						Long next = segments.higherKey(first);
+						if (next==null) { throw new IOException("Record "+seq+" is missing from the write-ahead log"); }
+						seq = Math.max(seq, next);
+					}
+					continue;
+				}
+				while (record.hasRemaining()) {
+					if (channel.read(record, position+record.position())<0) { throw new IOException("Unexpected end of segment "+first); }
+				}
+				record.flip();
+				int sum = record.getInt();
+				long streamId = record.getLong();
+				long timestamp = record.getLong();
+				double value = record.getDouble();
+				int expected;
+				synchronized (WriteAheadLog.this) { expected = checksum(seq, streamId, timestamp, value); }
+				if (sum==expected) {
+					points.add(new DataPoint(streamId, timestamp, value));
+				} else {
+					corrupt.mark();
+					logger.error("Write-ahead log record "+seq+" is corrupt, skipped");
+				}
+				seq++;
+			}
+			return seq-1;
+		}
+
+		void close() {
+			try {
+				if (channel!=null) { channel.close(); }
+			} catch (IOException e) {
+				logger.warn("Closing a write-ahead log segment failed: "+e);
+			}
+			channel = null;
+		}
+
+		private void open() throws IOException {
+			Map.Entry<Long, File> entry;
+			synchronized (WriteAheadLog.this) {
+				entry = segments.floorEntry(seq);
+				if (entry==null) { // older segments are gone
+					entry = segments.firstEntry();
+					logger.error("Write-ahead log records "+seq+" to "+(entry.getKey()-1)+" are missing");
+					seq = entry.getKey();
+				}
+			}
+			first = entry.getKey();
+			channel = new RandomAccessFile(entry.getValue(), "r").getChannel();
+		}
+	}
+
+	// written aside and renamed over the old one, so a crash leaves one or the other
+	private void checkpoint(long seq) throws IOException {
+		File tmp = new File(directory, CHECKPOINT+".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(16).putLong(seq).putLong(~seq);
+			out.write(buffer.array());
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		File file = new File(directory, CHECKPOINT);
+		if (!tmp.renameTo(file)) { // not atomic where rename cannot replace
+			file.delete();
+			if (!tmp.renameTo(file)) { throw new IOException("Cannot write "+file); }
+		}
+	}
+
+	private long readCheckpoint() throws IOException {
+		File file = new File(directory, CHECKPOINT);
+		if (!file.exists()) { return 0; }
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			long seq = in.readLong();
+			if (in.readLong()!=~seq) { throw new IOException("Write-ahead log checkpoint "+file+" is corrupt"); }
+			return seq;
+		} finally {
+			in.close();
+		}
+	}
+
+	// segments whose records have all been applied, never the one being appended to
+	private void dropSegments(long applied) {
+		List<File> drop = new ArrayList<File>();
+		synchronized (this) {
+			while (segments.size()>1) {
+				Long second = segments.higherKey(segments.firstKey());
+				if (second-1>applied) { break; }
+				drop.add(segments.pollFirstEntry().getValue());
+			}
+		}
+		for (File file: drop) {
+			if (!file.delete()) { logger.warn("Could not delete applied segment "+file); }
+		}
+	}
+
+	// find the segments, cut a torn tail off the last one and carry on appending to it
+	private void recover() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) { throw new IOException("Cannot create "+directory); }
+		appliedSeq = readCheckpoint();
+		File[] files = directory.listFiles();
+		for (File file: files) {
+			String name = file.getName();
+			if (!name.endsWith(SUFFIX)) { continue; }
+			try {
+				segments.put(Long.parseLong(name.substring(0, name.length()-SUFFIX.length())), file);
+			} catch (NumberFormatException e) {
+				logger.warn("Ignoring "+file+" in the write-ahead log directory");
+			}
+		}
+		if (segments.isEmpty()) {
+			nextSeq = appliedSeq+1;
+			segment = create(nextSeq);
+		} else {
+			Map.Entry<Long, File> last = segments.lastEntry();
+			segment = new RandomAccessFile(last.getValue(), "rw").getChannel();
+			nextSeq = last.getKey()+intact(segment, last.getKey());
+		}
+		durableSeq = nextSeq-1;
+		if (appliedSeq>durableSeq) { // the log ends before the checkpoint, nothing to replay
+			logger.warn("Write-ahead log checkpoint "+appliedSeq+" is past its end "+durableSeq);
+			appliedSeq = durableSeq;
+		}
+		if (durableSeq>appliedSeq) { logger.info("Replaying "+(durableSeq-appliedSeq)+" points from the write-ahead log"); }
+	}
+
+	// records in the segment up to the first torn or corrupt one, which is cut off with the rest
+	private long intact(FileChannel channel, long first) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		channel.read(header, 0);
+		header.flip();
+		if (header.remaining()<HEADER || header.getLong()!=MAGIC || header.getLong()!=first) { // torn while being created
+			header = ByteBuffer.allocate(HEADER).putLong(MAGIC).putLong(first);
+			header.flip();
+			channel.truncate(0);
+			channel.write(header, 0);
+			channel.force(true);
+			channel.position(HEADER);
+			return 0;
+		}
+		long count = 0;
+		ByteBuffer record = ByteBuffer.allocate(RECORD);
+		long size = channel.size();
+		while (HEADER+(count+1)*RECORD<=size) {
+			record.clear();
+			channel.read(record, HEADER+count*RECORD);
+			record.flip();
+			int sum = record.getInt();
+			if (sum!=checksum(first+count, record.getLong(), record.getLong(), record.getDouble())) { break; }
+			count++;
+		}
+		long end = HEADER+count*RECORD;
+		if (end<size) {
+			logger.warn("Cutting the write-ahead log back to record "+(first+count-1)+", "+(size-end)+" bytes were torn");
+			channel.truncate(end);
+			channel.force(true);
+		}
+		channel.position(end);
+		return count;
+	}
+}
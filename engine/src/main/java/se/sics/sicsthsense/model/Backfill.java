@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Recomputes a derived stream's points over a time range by replaying
+ * its antecedents' history through the stream's function. History is read in
+ * chunks in timestamp order and results are written with batched inserts.
+ * Pointwise functions have the range split into slices that run in parallel,
+ * windowed functions are replayed in one piece. Jobs run in the background and
+ * report their progress through getJobs(). Once a job has finished without error
+ * the streams derived from the backfilled one are corrected from its start.
+ * A correction is a backfill of the streams derived from one whose history changed,
+ * e.g. by a late point or a backfill: each is replayed from far enough back to redo
+ * the windows the change falls in, and its own dependents are corrected in turn.
+ * TODO:
+ * */
+package se.sics.sicsthsense.model;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Meter;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.jdbi.*;
+import se.sics.sicsthsense.core.*;
+import se.sics.sicsthsense.core.functions.Function;
+import se.sics.sicsthsense.core.functions.FunctionRegistry;
+
+public class Backfill {
+	private static final Logger logger = LoggerFactory.getLogger(Backfill.class);
+	// points read from one antecedent per query
+	public static final int READ_CHUNK = 5000;
+	// derived points written per batch
+	public static final int WRITE_BATCH = 1000;
+	// slices shorter than this are not worth splitting further
+	public static final long MIN_SLICE = 60*60*1000;
+	// finished jobs kept for reporting
+	public static final int MAX_FINISHED = 100;
+
+	private static final int workers = Runtime.getRuntime().availableProcessors();
+	private static final ExecutorService executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "backfill-"+count.incrementAndGet());
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY); // live traffic first
+			return t;
+		}
+	});
+	private static final ConcurrentHashMap<Long, Job> jobs = new ConcurrentHashMap<Long, Job>();
+	private static final AtomicLong nextId = new AtomicLong(1);
+
+	private static final Meter pointsRead = EngineMetrics.meter("backfill", "points-read");
+	private static final Meter pointsWritten = EngineMetrics.meter("backfill", "points-written");
+	private static final Meter corrections = EngineMetrics.meter("backfill", "corrections");
+	private static final Meter uncorrected = EngineMetrics.meter("backfill", "uncorrected");
+
+	// Start recomputing stream over [from, until). from<0 means from its antecedents'
+	// first point, until<0 means now. With clear, the stream's existing points in the
+	// range are deleted first. Throws IllegalArgumentException if the stream cannot
+	// be recomputed.
+	public static Job start(StorageDAO storage, Stream stream, long from, long until, boolean clear) {
+		Set<Long> path = new HashSet<Long>();
+		path.add(stream.getId());
+		return start(storage, stream, from, until, clear, path, false);
+	}
+
+	// Correct the streams derived from streamId, whose points from the given time on
+	// have changed since they were used. Returns the jobs started.
+	public static List<Job> correct(StorageDAO storage, long streamId, long from) {
+		Set<Long> path = new HashSet<Long>();
+		path.add(streamId);
+		return correct(storage, streamId, from, path);
+	}
+
+	// path holds the streams corrected on the way here, so a cycle is not gone round
+	private static List<Job> correct(StorageDAO storage, long streamId, long from, Set<Long> path) {
+		List<Job> started = new ArrayList<Job>();
+		for (Long dependent: storage.findDependents(streamId)) {
+			if (path.contains(dependent)) { continue; }
+			Stream stream = storage.findStreamById(dependent);
+			if (stream==null || stream.getFunction()==null || "".equals(stream.getFunction())) { continue; }
+			try {
+				long lookback = FunctionRegistry.create(storage, dependent, stream.getFunction()).replayLookback();
+				Set<Long> next = new HashSet<Long>(path);
+				next.add(dependent);
+				started.add(start(storage, stream, Math.max(0, from-lookback), -1, false, next, true));
+			} catch (IllegalArgumentException e) {
+				uncorrected.mark();
+				logger.warn("Stream "+dependent+" cannot be corrected from "+from+": "+e.getMessage());
+				continue;
+			}
+			// the live function state was built without the change
+			FunctionRegistry.forget(dependent);
+			StreamSystem streams = StreamSystem.getInstance();
+			if (streams!=null) { streams.forget(dependent); }
+			corrections.mark();
+		}
+		return started;
+	}
+
+	// path holds the stream and those corrected on the way to it
+	private static Job start(StorageDAO storage, Stream stream, long from, long until, boolean clear, Set<Long> path, boolean correction) {
+		if (stream.getFunction()==null || "".equals(stream.getFunction())) {
+			throw new IllegalArgumentException("Stream "+stream.getId()+" is not a derived stream");
+		}
+		List<Long> antecedents = storage.findAntecedents(stream.getId());
+		if (antecedents==null || antecedents.size()==0) {
+			throw new IllegalArgumentException("Stream "+stream.getId()+" has no antecedents");
+		}
+		Function probe = FunctionRegistry.create(storage, stream.getId(), stream.getFunction());
+		if (!probe.isReplayable()) {
+			throw new IllegalArgumentException("Function "+stream.getFunction()+" depends on its own output and cannot be recomputed");
+		}
+		if (until<0) { until = System.currentTimeMillis(); }
+		if (from<0) {
+			from = until;
+			for (Long antecedent: antecedents) {
+				Long first = storage.findFirstTimestamp(antecedent);
+				if (first!=null) { from = Math.min(from, first); }
+			}
+		}
+		if (from>=until) { throw new IllegalArgumentException("Empty time range "+from+" to "+until); }
+
+		Job job = new Job(nextId.getAndIncrement(), stream, antecedents, from, until, path, correction);
+		jobs.put(job.id, job);
+		prune();
+		if (clear) {
+			int deleted = storage.deletePointsByStreamIdRange(stream.getId(), from, until);
+			logger.info("Backfill "+job.id+" cleared "+deleted+" points of stream "+stream.getId());
+		}
+
+		// split the range between the workers if each stretch can be replayed on its own
+		int slices = 1;
+		if (probe.isPointwise()) {
+			slices = (int)Math.max(1, Math.min(workers, (until-from)/MIN_SLICE));
+		}
+		job.slices = slices;
+		long step = (until-from)/slices;
+		for (int c=0; c<slices; c++) {
+			long sliceFrom = from + c*step;
+			long sliceUntil = (c==slices-1) ? until : sliceFrom+step;
+			executor.execute(new Slice(storage, job, sliceFrom, sliceUntil));
+		}
+		logger.info("Started backfill "+job);
+		return job;
+	}
+
+	public static Collection<Job> getJobs() {
+		return jobs.values();
+	}
+
+	public static Job getJob(long id) {
+		return jobs.get(id);
+	}
+
+	// running slices stop at their next chunk
+	public static boolean cancel(long id) {
+		Job job = jobs.get(id);
+		if (job==null) { return false; }
+		job.cancelled = true;
+		return true;
+	}
+
+	// forget the oldest finished jobs
+	private static void prune() {
+		if (jobs.size()<=MAX_FINISHED) { return; }
+		long oldest = Long.MAX_VALUE;
+		for (Job job: jobs.values()) {
+			if (job.isFinished() && job.id<oldest) { oldest = job.id; }
+		}
+		if (oldest!=Long.MAX_VALUE) { jobs.remove(oldest); }
+	}
+
+	// replays one stretch of history on its own function instance
+	private static class Slice implements Runnable {
+		private final StorageDAO storage;
+		private final Job job;
+		private final long from, until;
+		private long reached; // how far progress has been reported
+
+		Slice(StorageDAO storage, Job job, long from, long until) {
+			this.storage = storage;
+			this.job = job;
+			this.from = from;
+			this.until = until;
+			this.reached = from;
+		}
+
+		public void run() {
+			try {
+				replay();
+			} catch (Exception e) {
+				job.error = e.toString();
+				logger.error("Backfill "+job.id+" of stream "+job.streamId+" failed: "+e);
+			} finally {
+				job.sliceDone(storage);
+			}
+		}
+
+		private void replay() {
+			Function function = FunctionRegistry.create(storage, job.streamId, job.function);
+			int n = job.antecedents.size();
+			function.startReplay(n);
+			long start = Math.max(0, from - function.replayLookback());
+
+			Cursor[] cursors = new Cursor[n];
+			for (int i=0; i<n; i++) { cursors[i] = new Cursor(storage, job.antecedents.get(i), start, until); }
+
+			List<DataPoint> out = new ArrayList<DataPoint>();
+			List<DataPoint> batch = new ArrayList<DataPoint>(WRITE_BATCH);
+			while (!job.cancelled) {
+				// next point in time order across the antecedents
+				int next = -1;
+				for (int i=0; i<n; i++) {
+					DataPoint head = cursors[i].peek();
+					if (head!=null && (next<0 || head.getTimestamp()<cursors[next].peek().getTimestamp())) { next = i; }
+				}
+				if (next<0) { break; }
+				DataPoint dp = cursors[next].next();
+				job.read.incrementAndGet();
+				pointsRead.mark();
+
+				function.replay(next, dp.getTimestamp(), dp.getValue(), out);
+				for (DataPoint result: out) {
+					// points before the slice only warm the function up
+					if (result.getTimestamp()<from || result.getTimestamp()>=until) { continue; }
+					result.setStreamId(job.streamId);
+					batch.add(result);
+				}
+				out.clear();
+				if (batch.size()>=WRITE_BATCH) { write(batch); }
+				if (dp.getTimestamp()>reached) {
+					job.covered.addAndGet(dp.getTimestamp()-reached);
+					reached = dp.getTimestamp();
+				}
+			}
+			write(batch);
+			if (!job.cancelled) { job.covered.addAndGet(until-reached); }
+		}
+
+		private void write(List<DataPoint> batch) {
+			if (batch.size()==0) { return; }
+			storage.insertDataPoints(batch);
+			job.written.addAndGet(batch.size());
+			pointsWritten.mark(batch.size());
+			batch.clear();
+		}
+	}
+
+	// reads one antecedent's points in [from, until) a chunk at a time
+	private static class Cursor {
+		private final StorageDAO storage;
+		private final long streamId, until;
+		private long from;
+		private List<DataPoint> chunk;
+		private int pos;
+		private boolean exhausted = false;
+
+		Cursor(StorageDAO storage, long streamId, long from, long until) {
+			this.storage = storage;
+			this.streamId = streamId;
+			this.from = from;
+			this.until = until;
+		}
+
+		DataPoint peek() {
+			if (chunk==null || pos>=chunk.size()) {
+				if (exhausted) { return null; }
+				chunk = storage.findPointsByStreamIdRange(streamId, from, until, READ_CHUNK);
+				pos = 0;
+				if (chunk==null || chunk.size()<READ_CHUNK) { exhausted = true; }
+				if (chunk==null || chunk.size()==0) { return null; }
+				from = chunk.get(chunk.size()-1).getTimestamp()+1; // timestamps are unique per stream
+			}
+			return chunk.get(pos);
+		}
+
+		DataPoint next() {
+			DataPoint dp = peek();
+			pos++;
+			return dp;
+		}
+	}
+
+	public static class Job {
+		@JsonProperty
+		private final long id;
+		@JsonProperty
+		private final long streamId;
+		@JsonProperty
+		private final String function;
+		@JsonProperty
+		private final long from;
+		@JsonProperty
+		private final long until;
+		@JsonProperty
+		private final long started = System.currentTimeMillis();
+		@JsonProperty
+		private volatile long ended = -1;
+		@JsonProperty
+		private volatile String error;
+		@JsonProperty
+		private volatile int slices;
+		@JsonProperty
+		private final boolean correction;
+		private final List<Long> antecedents;
+		private final Set<Long> path;
+		private final AtomicInteger slicesDone = new AtomicInteger();
+		private final AtomicLong read = new AtomicLong();
+		private final AtomicLong written = new AtomicLong();
+		// time covered so far, summed over the slices
+		private final AtomicLong covered = new AtomicLong();
+		private volatile boolean cancelled = false;
+
+		Job(long id, Stream stream, List<Long> antecedents, long from, long until, Set<Long> path, boolean correction) {
+			this.id = id;
+			this.streamId = stream.getId();
+			this.function = stream.getFunction();
+			this.antecedents = antecedents;
+			this.from = from;
+			this.until = until;
+			this.path = path;
+			this.correction = correction;
+		}
+
+		void sliceDone(StorageDAO storage) {
+			if (slicesDone.incrementAndGet()==slices) {
+				ended = System.currentTimeMillis();
+				logger.info("Finished backfill "+this);
+				if (cancelled || error!=null) { return; }
+				try {
+					correct(storage, streamId, from, path);
+				} catch (Exception e) {
+					logger.error("Could not correct the streams derived from "+streamId+": "+e);
+				}
+			}
+		}
+
+		public boolean isFinished()	{ return ended>=0; }
+
+		@JsonProperty
+		public String getState() {
+			if (!isFinished()) { return cancelled ? "cancelling" : "running"; }
+			if (cancelled) { return "cancelled"; }
+			return error==null ? "done" : "failed";
+		}
+		@JsonProperty
+		public int getSlicesDone()		{ return slicesDone.get(); }
+		@JsonProperty
+		public long getPointsRead()		{ return read.get(); }
+		@JsonProperty
+		public long getPointsWritten()	{ return written.get(); }
+		// percentage of the time range recomputed
+		@JsonProperty
+		public double getProgress()		{ return Math.min(100.0, 100.0*covered.get()/(until-from)); }
+
+		public long getId()						{ return id; }
+		public long getStreamId()			{ return streamId; }
+
+		public String toString() {
+			return "job "+id+" stream "+streamId+" "+function+" ["+from+","+until+") "+getState()+", "+read.get()+" read, "+written.get()+" written";
+		}
+	}
+}
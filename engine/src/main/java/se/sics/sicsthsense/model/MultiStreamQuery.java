@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Fetches many streams for one time range in parallel and optionally
+ * aligns them onto a common time grid.
+ * TODO:
+ * */
+package se.sics.sicsthsense.model;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.sics.sicsthsense.Utils;
+import se.sics.sicsthsense.jdbi.*;
+import se.sics.sicsthsense.core.*;
+
+public class MultiStreamQuery {
+	private static final Logger logger = LoggerFactory.getLogger(MultiStreamQuery.class);
+	// largest grid we are willing to materialise for one query
+	public static final int MAX_GRID_POINTS = 100000;
+	public static final long FETCH_TIMEOUT = 30; // seconds for the whole query
+
+	// up to 16 fetches at once, so one dashboard can not queue unlimited DB reads;
+	// nothing is queued, with every thread busy the requesting thread does the
+	// fetch itself
+	private static final ExecutorService executor = new ThreadPoolExecutor(
+		4, 16, 60, TimeUnit.SECONDS,
+		new SynchronousQueue<Runnable>(),
+		new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "stream-query-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		},
+		new ThreadPoolExecutor.CallerRunsPolicy());
+
+	private static final Comparator<DataPoint> byTimestamp = new Comparator<DataPoint>() {
+		public int compare(DataPoint a, DataPoint b) {
+			return a.getTimestamp()<b.getTimestamp() ? -1 : (a.getTimestamp()==b.getTimestamp() ? 0 : 1);
+		}
+	};
+
+	private final StorageDAO storage;
+
+	public MultiStreamQuery(StorageDAO storage) {
+		this.storage = storage;
+	}
+
+	// streams and names are parallel lists, the names are echoed back in the result
+	public QueryResult run(List<Stream> streams, List<String> names, final StreamQuery query) throws Exception {
+		List<Future<List<DataPoint>>> futures = new ArrayList<Future<List<DataPoint>>>(streams.size());
+		for (final Stream stream: streams) {
+			futures.add(executor.submit(new Callable<List<DataPoint>>() {
+				public List<DataPoint> call() {
+					return Utils.findPoints(storage, stream.getId(), query.getLimit(), query.getFrom(), query.getUntil());
+				}
+			}));
+		}
+
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(FETCH_TIMEOUT);
+		List<List<DataPoint>> series = new ArrayList<List<DataPoint>>(streams.size());
+		try {
+			for (Future<List<DataPoint>> future: futures) {
+				long wait = Math.max(0, deadline-System.currentTimeMillis());
+				List<DataPoint> points = future.get(wait, TimeUnit.MILLISECONDS);
+				if (points==null) { points = new ArrayList<DataPoint>(); }
+				Collections.sort(points, byTimestamp); // cheap, usually already ordered
+				series.add(points);
+			}
+		} catch (TimeoutException e) {
+			for (Future<List<DataPoint>> future: futures) { future.cancel(true); }
+			logger.error("Multi-stream query timed out: "+query);
+			throw e;
+		} catch (ExecutionException e) {
+			for (Future<List<DataPoint>> future: futures) { future.cancel(true); }
+			throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+		}
+
+		QueryResult result = new QueryResult(query.isAligned() ? query.getFill() : StreamQuery.FILL_NONE);
+		long[] grid = null;
+		if (query.isAligned()) {
+			grid = makeGrid(series, query);
+			result.setTimestamps(grid);
+		}
+		for (int i=0; i<streams.size(); i++) {
+			List<DataPoint> points = series.get(i);
+			QueryResult.Column column = new QueryResult.Column(streams.get(i).getId(), names.get(i));
+			if (grid==null) {
+				long[] timestamps = new long[points.size()];
+				Double[] values = new Double[points.size()];
+				for (int c=0; c<points.size(); c++) {
+					timestamps[c] = points.get(c).getTimestamp();
+					values[c] = points.get(c).getValue();
+				}
+				column.setTimestamps(timestamps);
+				column.setValues(values);
+			} else if (StreamQuery.FILL_LINEAR.equals(query.getFill())) {
+				column.setValues(fillLinear(points, grid));
+			} else {
+				column.setValues(fillLast(points, grid));
+			}
+			result.getStreams().add(column);
+		}
+		return result;
+	}
+
+	// either a fixed step grid, or the union of every timestamp returned
+	static long[] makeGrid(List<List<DataPoint>> series, StreamQuery query) {
+		long start = Long.MAX_VALUE;
+		long end   = Long.MIN_VALUE;
+		int total  = 0;
+		for (List<DataPoint> points: series) {
+			if (points.size()==0) {continue;}
+			start = Math.min(start, points.get(0).getTimestamp());
+			end   = Math.max(end, points.get(points.size()-1).getTimestamp());
+			total += points.size();
+		}
+		if (query.getFrom()!=-1)  { start = query.getFrom(); }
+		if (query.getUntil()!=-1) { end = query.getUntil(); }
+		if (total==0 && (query.getFrom()==-1 || query.getUntil()==-1)) { return new long[0]; }
+
+		if (query.getInterval() > 0) {
+			long count = (end-start)/query.getInterval() + 1;
+			if (count > MAX_GRID_POINTS) {
+				throw new IllegalArgumentException("Grid of "+count+" points is larger than "+MAX_GRID_POINTS);
+			}
+			long[] grid = new long[(int)Math.max(0,count)];
+			for (int c=0; c<grid.length; c++) { grid[c] = start + c*query.getInterval(); }
+			return grid;
+		}
+
+		long[] all = new long[total];
+		int k=0;
+		for (List<DataPoint> points: series) {
+			for (DataPoint dp: points) { all[k++] = dp.getTimestamp(); }
+		}
+		Arrays.sort(all);
+		int distinct=0;
+		for (int c=0; c<all.length; c++) {
+			if (distinct==0 || all[c]!=all[distinct-1]) { all[distinct++] = all[c]; }
+		}
+		if (distinct > MAX_GRID_POINTS) {
+			throw new IllegalArgumentException("Grid of "+distinct+" points is larger than "+MAX_GRID_POINTS);
+		}
+		return Arrays.copyOf(all, distinct);
+	}
+
+	// last observation carried forward, null before the first observation
+	static Double[] fillLast(List<DataPoint> points, long[] grid) {
+		Double[] rv = new Double[grid.length];
+		int idx=-1;
+		for (int c=0; c<grid.length; c++) {
+			while (idx+1 < points.size() && points.get(idx+1).getTimestamp() <= grid[c]) { idx++; }
+			if (idx>=0) { rv[c] = points.get(idx).getValue(); }
+		}
+		return rv;
+	}
+
+	// linear interpolation, null outside of the observed range
+	static Double[] fillLinear(List<DataPoint> points, long[] grid) {
+		Double[] rv = new Double[grid.length];
+		int idx=-1;
+		for (int c=0; c<grid.length; c++) {
+			while (idx+1 < points.size() && points.get(idx+1).getTimestamp() <= grid[c]) { idx++; }
+			if (idx<0) {continue;}
+			DataPoint before = points.get(idx);
+			if (before.getTimestamp()==grid[c]) {
+				rv[c] = before.getValue();
+			} else if (idx+1 < points.size()) {
+				DataPoint after = points.get(idx+1);
+				double fraction = (double)(grid[c]-before.getTimestamp()) / (after.getTimestamp()-before.getTimestamp());
+				rv[c] = before.getValue() + fraction*(after.getValue()-before.getValue());
+			}
+		}
+		return rv;
+	}
+}
@@ -32,6 +32,10 @@ import java.util.Date;
 import java.util.Locale;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Collections;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -44,7 +48,11 @@ import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionStatus;
+import com.codahale.metrics.Timer;
 
+import se.sics.sicsthsense.IngestMetrics;
 import se.sics.sicsthsense.Utils;
 import se.sics.sicsthsense.jdbi.*;
 import se.sics.sicsthsense.core.*;
@@ -68,19 +76,26 @@ public class ParseData {
 		this.mapper=mapper;
 	}
 
-	// Apply this parser to the supplied data
-	public void apply(Parser parser, String data, long timestamp) throws Exception {
+	// Apply this parser to the supplied data, returns the number of points inserted
+	public int apply(Parser parser, String data, long timestamp) throws Exception {
 		//logger.info("apply()");
-		if (storage==null) { logger.error("StorageDAO has not been set!"); return; }
-		if ("application/json".equalsIgnoreCase(parser.getInput_type())
-			//|| "application/json".equalsIgnoreCase(request.getHeader("Content-Type"))
-		) {
-			//logger.info("Applying JSON Parser to JSON data");
-			JsonNode rootNode = PollSystem.getInstance().mapper.readTree(data);
-			parseJsonResponse(parser, rootNode, timestamp);
-		} else {
-			//logger.info("Applying Text Parser to text data");
-			parseTextResponse(parser, data, timestamp);
+		if (storage==null) { logger.error("StorageDAO has not been set!"); return 0; }
+		Timer.Context timer = IngestMetrics.getInstance().parse.time();
+		Trace.Span span = Trace.start("parse", "parser", parser.getId());
+		try {
+			if ("application/json".equalsIgnoreCase(parser.getInput_type())
+				//|| "application/json".equalsIgnoreCase(request.getHeader("Content-Type"))
+			) {
+				//logger.info("Applying JSON Parser to JSON data");
+				JsonNode rootNode = PollSystem.getInstance().mapper.readTree(data);
+				return parseJsonResponse(parser, rootNode, timestamp) ? 1 : 0;
+			} else {
+				//logger.info("Applying Text Parser to text data");
+				return parseTextResponse(parser, data, timestamp);
+			}
+		} finally {
+			span.end();
+			timer.stop();
 		}
 	}
 
@@ -133,28 +148,27 @@ public class ParseData {
 	 * @param textBody
 	 * @return true if could post
 	 */
-	private boolean parseTextResponse(Parser parser, String textBody, Long currentTime)
+	private int parseTextResponse(Parser parser, String textBody, Long currentTime)
 					throws NumberFormatException, Exception {
 			//logger.info("Parsing Text");
 			Stream stream = storage.findStreamById(parser.getStream_id());
-			boolean success = false;
+			int posted = 0;
 			double number = 0.0;
 			String value = "";
 			String time = "";
-			if (textBody==null) {return false;}
+			if (textBody==null) {return 0;}
 			if (parser.getInput_parser() == null || parser.getInput_parser().equalsIgnoreCase("")) {
 				// no parser to speak of just try and eat a number
 				number = Double.parseDouble(textBody);
-				storage.insertDataPoint(parser.getStream_id(),number,currentTime);
-				storage.updatedStream(parser.getStream_id(), System.currentTimeMillis() );
+				Utils.insertDataPoint(storage, new DataPoint(parser.getStream_id(), currentTime, number));
 				//stream.notifyDependents();
-				return true;
+				return 1;
 			}
 
-			if (parser.getNumber_of_points() < 1) {return false;} // apparently, we dont want any points
+			if (parser.getNumber_of_points() < 1) {return 0;} // apparently, we dont want any points
 			regexPattern = Pattern.compile(parser.getInput_parser());
 			Matcher matcher = regexPattern.matcher(textBody);
-			if (!matcher.find()) { logger.info("Did not manage to match the regex for parser: "+parser.getId()); return false; }
+			if (!matcher.find()) { logger.info("Did not manage to match the regex for parser: "+parser.getId()); return 0; }
 
 			for (int i = 0; i < parser.getNumber_of_points(); i++) {
 					try { value = matcher.group(parser.getData_group()); }
@@ -176,47 +190,77 @@ public class ParseData {
 							}
 					}
 					logger.error("Insert Data point "+parser.getStream_id()+": "+number+" "+currentTime);
-					storage.insertDataPoint(parser.getStream_id(),number,currentTime);
-					storage.updatedStream(parser.getStream_id(), System.currentTimeMillis() );
+					Utils.insertDataPoint(storage, new DataPoint(parser.getStream_id(), currentTime, number));
+					posted++;
 					//stream.notifyDependents();
 				}
-			return success;
+			return posted;
 	}
 
 	public static void makeStreamAndParser(StorageDAO storage, Resource resource, String nodePath) {
-			//Logger.info("addParser() "+resource.id+" "+nodePath+" "+"application/json"+" "+ resource.label+nodePath);
-			Stream stream = new Stream();
-			stream.setResource_id(resource.getId());
-			stream.setOwner_id(resource.getOwner_id());
-			long streamId = Utils.insertStream(storage,stream);
-			long vfileId =  Utils.insertVFile(storage,nodePath,resource.getOwner_id(),"D",streamId);
-
-			Parser parser = new Parser();
-			parser.setResource_id(resource.getId());
-			parser.setStream_id(streamId);
-			parser.setInput_parser(nodePath);
-			ParserResource.insertParser(storage,parser);
+		makeStreamsAndParsers(storage, resource, Collections.singletonList(nodePath));
+	}
+
+	// create a stream, vfile and parser per node path in one transaction of a few
+	// batched statements; returns the new stream IDs in the order of the paths
+	public static List<Long> makeStreamsAndParsers(StorageDAO storage, final Resource resource, final List<String> nodePaths) {
+		if (nodePaths.isEmpty()) { return new ArrayList<Long>(); }
+		return storage.inTransaction(new Transaction<List<Long>, StorageDAO>() {
+			public List<Long> inTransaction(StorageDAO tx, TransactionStatus status) {
+				List<Stream> streams = new ArrayList<Stream>(nodePaths.size());
+				for (int i=0; i<nodePaths.size(); i++) {
+					Stream stream = new Stream();
+					stream.setResource_id(resource.getId());
+					stream.setOwner_id(resource.getOwner_id());
+					streams.add(stream);
+				}
+				tx.insertStreams(streams);
+
+				// batches return no keys, so find the new IDs by the streams' unique secret keys
+				Map<String, Long> ids = new HashMap<String, Long>();
+				for (Stream s: tx.findStreamsByResourceId(resource.getId())) { ids.put(s.getSecret_key(), s.getId()); }
+				List<Long> streamIds = new ArrayList<Long>(streams.size());
+				List<Parser> parsers = new ArrayList<Parser>(streams.size());
+				for (int i=0; i<streams.size(); i++) {
+					Long streamId = ids.get(streams.get(i).getSecret_key());
+					if (streamId==null) { throw new IllegalStateException("Stream for "+nodePaths.get(i)+" was not created"); }
+					streamIds.add(streamId);
+					Parser parser = new Parser();
+					parser.setResource_id(resource.getId());
+					parser.setStream_id(streamId);
+					parser.setInput_parser(nodePaths.get(i));
+					parsers.add(parser);
+				}
+				tx.insertVFiles(nodePaths, resource.getOwner_id(), "D", streamIds);
+				tx.insertParsers(parsers);
+				return streamIds;
+			}
+		});
 	}
 
 	// Auto parsing
   // Walk Json tree creating resource parsers
   public static void parseJsonNode(StorageDAO storage, Resource resource, JsonNode node, String parents) {
+		List<String> nodePaths = new ArrayList<String>();
+		findJsonLeaves(node, parents, nodePaths);
+		makeStreamsAndParsers(storage, resource, nodePaths);
+	}
+
+  // collect the paths of all primitive elements below node
+  public static void findJsonLeaves(JsonNode node, String parents, List<String> nodePaths) {
     // descend to all nodes to find all primitive element paths...
     //logger.info("parsing Nodes below "+parents);
-    System.out.println("parsing Nodes below "+parents);
     Iterator<String> nodeIt = node.fieldNames();
     while (nodeIt.hasNext()) {
       String field = nodeIt.next();
       JsonNode n = node.get(field);
       if (n.isValueNode()) {
-        System.out.println("value node: " + parents + "/" + field);
         // TODO: try to guess time format instead of defaulting to "unix"!
-        String nodePath = parents+"/"+field;
-			makeStreamAndParser(storage, resource, nodePath);
+        nodePaths.add(parents+"/"+field);
       } else {
         String fullNodeName = parents + "/" + field;
         //Logger.info("Node: " + fullNodeName);
-        parseJsonNode(storage, resource, n, fullNodeName);
+        findJsonLeaves(n, fullNodeName, nodePaths);
       }
     }
   }
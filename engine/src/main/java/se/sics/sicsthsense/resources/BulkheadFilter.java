@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Handles each HTTP API request within the api bulkhead, see Bulkheads,
+ * so no more than its threads requests are worked on at once and the server keeps
+ * threads for the admin port, websockets and event streams. A request finding the
+ * bulkhead full, or the storage bulkhead behind it, is answered 503 Service
+ * Unavailable with a Retry-After.
+ * TODO:
+ * */
+package se.sics.sicsthsense.resources;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.MediaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.sics.sicsthsense.core.Bulkheads;
+import se.sics.sicsthsense.core.JSONMessage;
+
+public class BulkheadFilter implements Filter {
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	public void init(FilterConfig config) {}
+
+	public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException {
+		try {
+			Bulkheads.call(Bulkheads.API, new Callable<Void>() {
+				public Void call() throws IOException, ServletException {
+					chain.doFilter(request, response);
+					return null;
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if (response.isCommitted() || !(response instanceof HttpServletResponse)) { throw e; }
+			HttpServletResponse reply = (HttpServletResponse)response;
+			reply.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			reply.setHeader("Retry-After", "1");
+			reply.setContentType(MediaType.APPLICATION_JSON);
+			mapper.writeValue(reply.getOutputStream(), new JSONMessage(e.getMessage()));
+		} catch (IOException e) {
+			throw e;
+		} catch (ServletException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ServletException(e);
+		}
+	}
+
+	public void destroy() {}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+/* Description: Rate limits and admission control for the HTTP API, see RateLimiter.
+ * The user, resource and key are taken from the path and query string, and only
+ * count as the request's once the key is known to match, so a request that is
+ * turned away costs no database access. Over a rate limit the
+ * answer is 429 Too Many Requests, when overloaded 503 Service Unavailable, both
+ * with a Retry-After in seconds. Reads of stored data, queries, backfills and
+ * posts of more than bulkSize bytes are low priority.
+ * TODO:
+ * */
+package se.sics.sicsthsense.resources;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.MediaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.sics.sicsthsense.core.JSONMessage;
+import se.sics.sicsthsense.core.RateLimiter;
+
+public class RateLimitFilter implements Filter {
+	// RFC 6585, not in HttpServletResponse
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	public void init(FilterConfig config) {}
+
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		if (!(request instanceof HttpServletRequest)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		HttpServletRequest http = (HttpServletRequest)request;
+		// /users/{userId}/resources/{resourceId}/streams/{streamId}/data and the like
+		String path = http.getPathInfo()==null ? "" : http.getPathInfo();
+		String[] parts = path.startsWith("/") ? path.substring(1).split("/") : path.split("/");
+		String user = parts.length>0 && isNumber(parts[0]) ? parts[0] : null;
+		String resource = parts.length>2 && parts[1].startsWith("r") ? parts[2] : null;
+		String key = parameter(http.getQueryString(), "key");
+
+		RateLimiter.Rejection rejection = RateLimiter.admit(user, resource, key, http.getRemoteAddr(), priority(http, parts));
+		if (rejection==null) {
+			chain.doFilter(request, response);
+			return;
+		}
+		HttpServletResponse reply = (HttpServletResponse)response;
+		reply.setStatus(rejection.isOverloaded() ? HttpServletResponse.SC_SERVICE_UNAVAILABLE : SC_TOO_MANY_REQUESTS);
+		reply.setHeader("Retry-After", String.valueOf(rejection.getRetryAfterSeconds()));
+		reply.setContentType(MediaType.APPLICATION_JSON);
+		mapper.writeValue(reply.getOutputStream(), new JSONMessage(rejection.getReason()));
+	}
+
+	private RateLimiter.Priority priority(HttpServletRequest http, String[] parts) {
+		String method = http.getMethod();
+		String last = parts[parts.length-1];
+		if (parts.length>1 && "query".equals(parts[1])) { return RateLimiter.Priority.LOW; }
+		if ("backfill".equals(last)) { return RateLimiter.Priority.LOW; }
+		// .../data of a resource or a stream, elsewhere a name may start with d
+		boolean data = (parts.length==4 || parts.length==6) && last.startsWith("d");
+		if ("GET".equals(method) && data) { return RateLimiter.Priority.LOW; }
+		return RateLimiter.ofWrite(http.getContentLength());
+	}
+
+	private static boolean isNumber(String s) {
+		if (s.length()==0) { return false; }
+		for (int i=0; i<s.length(); i++) {
+			if (!Character.isDigit(s.charAt(i))) { return false; }
+		}
+		return true;
+	}
+
+	// from the query string only, getParameter() could read a form posted in the body
+	private static String parameter(String query, String name) throws UnsupportedEncodingException {
+		if (query==null) { return null; }
+		for (String pair: query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq<=0 || !name.equals(pair.substring(0, eq))) { continue; }
+			try {
+				return URLDecoder.decode(pair.substring(eq+1), "UTF-8");
+			} catch (IllegalArgumentException e) { // a stray %, leave it to the resource to refuse
+				return pair.substring(eq+1);
+			}
+		}
+		return null;
+	}
+
+	public void destroy() {}
+}
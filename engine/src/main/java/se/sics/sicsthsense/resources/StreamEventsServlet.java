@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Server-Sent Events for stream data, mounted at /sse/*
+ *   GET /sse/{userId}/resources/{resourceId}/streams/{streamId}?key=..
+ *   GET /sse/{userId}/resources/{resourceId}?key=..    every stream of the resource
+ * Each point is one event. On a stream's connection its id is the point's
+ * timestamp; on a resource's it lists how far every stream has got, e.g.
+ * "12:1428051600000,13:1428051598000", as device clocks differ. A client
+ * reconnecting with Last-Event-ID (or ?lastEventId=) first gets the points it
+ * missed, from the recent points kept in memory or else from storage. A bare
+ * timestamp resuming a resource's connection is taken for all its streams. Connections are held with
+ * the servlet async API, so idle ones take no thread; a shared timer sends
+ * comment heartbeats to keep proxies from closing them.
+ * Points from the StreamBus are only queued on the connection, up to MAX_QUEUED
+ * events, and written out by the sse bulkhead's threads, so a slow client never
+ * holds up the bus. A connection whose queue overflows, or whose write has not
+ * finished after WRITE_TIMEOUT, is closed; the client resumes with Last-Event-ID.
+ * In cluster mode a stream published on another node is answered 409 naming that
+ * node, and a connection whose stream moves away is closed, see StreamBus.
+ * TODO:
+ * */
+package se.sics.sicsthsense.resources;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.Utils;
+import se.sics.sicsthsense.core.*;
+import se.sics.sicsthsense.jdbi.*;
+
+public class StreamEventsServlet extends HttpServlet {
+	private static final Logger logger = LoggerFactory.getLogger(StreamEventsServlet.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	public static final long HEARTBEAT = 15; // seconds
+	public static final long RETRY = 3000; // ms, suggested to clients
+	public static final int HOT_POINTS = 100; // kept per stream for resuming
+	public static final int MAX_REPLAY = 1000; // points resent per stream on resume
+	public static final int MAX_QUEUED = 1000; // events waiting for a slow client
+	public static final long WRITE_TIMEOUT = 30000; // ms a write may block
+	private static final int WRITERS = 8;
+
+	private static final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "sse-heartbeat");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final CopyOnWriteArraySet<Connection> connections = new CopyOnWriteArraySet<Connection>();
+	// recent points of the streams someone is listening to
+	private final ConcurrentHashMap<Long, Hot> hot = new ConcurrentHashMap<Long, Hot>();
+	private StorageDAO storage;
+
+	private final Counter open = EngineMetrics.counter("sse", "connections");
+	private final Meter events = EngineMetrics.meter("sse", "events");
+	private final Meter dropped = EngineMetrics.meter("sse", "dropped");
+	// writes to the clients, one drain of a connection's queue at a time
+	private Bulkhead writers;
+
+	public void init() {
+		storage = DAOFactory.getInstance();
+		writers = Bulkhead.pool("sse", WRITERS, 10000);
+		heartbeat.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				long now = System.currentTimeMillis();
+				for (Connection connection: connections) {
+					if (connection.stalled(now)) {
+						dropped.mark();
+						connection.close();
+					} else {
+						connection.queue(": heartbeat\n\n");
+					}
+				}
+			}
+		}, HEARTBEAT, HEARTBEAT, TimeUnit.SECONDS);
+	}
+
+	public void destroy() {
+		for (Connection connection: connections) { connection.close(); }
+		writers.shutdown();
+	}
+
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		// {userId}/resources/{resourceId}[/streams/{streamId}]
+		String path = request.getPathInfo()==null ? "" : request.getPathInfo();
+		String[] parts = path.startsWith("/") ? path.substring(1).split("/") : path.split("/");
+		if ((parts.length!=3 && parts.length!=5) || !parts[1].startsWith("r") || (parts.length==5 && !parts[3].startsWith("s"))) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Expected /sse/{userId}/resources/{resourceId}[/streams/{streamId}]");
+			return;
+		}
+		String key = request.getParameter("key")==null ? "" : request.getParameter("key");
+		User user;
+		try {
+			user = storage.findUserById(Long.parseLong(parts[0]));
+		} catch (NumberFormatException e) {
+			user = null;
+		}
+		Resource resource = Utils.findResourceByIdName(storage, parts[2]);
+		if (user==null || resource==null || resource.getOwner_id()!=user.getId()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such resource");
+			return;
+		}
+		List<Stream> streams = new ArrayList<Stream>();
+		if (parts.length==5) {
+			Stream stream = Utils.findStreamByIdName(storage, parts[4]);
+			if (stream==null || stream.getResource_id()!=resource.getId()) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such stream");
+				return;
+			}
+			if (!user.isAuthorised(key) && !resource.isAuthorised(key) && !stream.isReadable(storage, key)) {
+				response.sendError(HttpServletResponse.SC_FORBIDDEN, "Not authorised to read stream");
+				return;
+			}
+			streams.add(stream);
+		} else {
+			if (!user.isAuthorised(key) && !resource.isAuthorised(key)) {
+				response.sendError(HttpServletResponse.SC_FORBIDDEN, "Not authorised to read resource");
+				return;
+			}
+			streams.addAll(storage.findStreamsByResourceId(resource.getId()));
+		}
+		for (Stream stream: streams) { // its points are only published on its owner
+			String owner = StreamBus.remoteOwner(stream.getId());
+			if (owner!=null) {
+				response.sendError(HttpServletResponse.SC_CONFLICT, StreamBus.movedTo(stream.getId(), owner));
+				return;
+			}
+		}
+
+		String last = request.getHeader("Last-Event-ID");
+		if (last==null) { last = request.getParameter("lastEventId"); }
+		Map<Long, Long> from = positions(last, streams);
+
+		response.setContentType("text/event-stream");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.setHeader("X-Accel-Buffering", "no"); // no proxy buffering
+		AsyncContext async = request.startAsync();
+		async.setTimeout(0); // held until either side closes
+		Connection connection = new Connection(async, response.getOutputStream(), parts.length==3);
+		async.addListener(connection);
+		connections.add(connection);
+		open.inc();
+		connection.start(streams, from);
+	}
+
+	// where each stream was resumed from, as in the event ids; empty for a new client
+	private static Map<Long, Long> positions(String last, List<Stream> streams) {
+		Map<Long, Long> from = new HashMap<Long, Long>();
+		if (last==null || "".equals(last.trim())) { return from; }
+		try {
+			if (last.indexOf(':')<0) { // a stream's id, or an older client's
+				long timestamp = Long.parseLong(last.trim());
+				for (Stream stream: streams) { from.put(stream.getId(), timestamp); }
+				return from;
+			}
+			for (String position: last.trim().split(",")) {
+				int colon = position.indexOf(':');
+				from.put(Long.parseLong(position.substring(0, colon)), Long.parseLong(position.substring(colon+1)));
+			}
+		} catch (RuntimeException e) { // not one of ours, start afresh
+			from.clear();
+		}
+		return from;
+	}
+
+	private Hot hot(long streamId) {
+		Hot h = hot.get(streamId);
+		if (h==null) {
+			hot.putIfAbsent(streamId, new Hot());
+			h = hot.get(streamId);
+		}
+		return h;
+	}
+
+	// the latest points of one stream and how many connections want them
+	private static class Hot {
+		final ArrayDeque<DataPoint> points = new ArrayDeque<DataPoint>();
+		int listeners = 0;
+
+		synchronized void add(DataPoint dp) {
+			if (!points.isEmpty() && points.peekLast().getTimestamp()>=dp.getTimestamp()) { return; } // seen it
+			points.add(dp);
+			if (points.size()>HOT_POINTS) { points.poll(); }
+		}
+
+		// the points after timestamp, or null if some of them may have been dropped
+		synchronized List<DataPoint> since(long timestamp) {
+			if (points.isEmpty() || points.peekFirst().getTimestamp()>timestamp) { return null; }
+			List<DataPoint> rv = new ArrayList<DataPoint>();
+			for (DataPoint dp: points) {
+				if (dp.getTimestamp()>timestamp) { rv.add(dp); }
+			}
+			return rv;
+		}
+	}
+
+	private class Connection implements StreamBus.Subscriber, AsyncListener {
+		final AsyncContext async;
+		final ServletOutputStream out;
+		final List<StreamBus.Subscription> subscriptions = new ArrayList<StreamBus.Subscription>();
+		final List<Long> streamIds = new ArrayList<Long>();
+		// live points held back while missed ones are being resent
+		List<DataPoint> held = new ArrayList<DataPoint>();
+		// whether the ids list every stream's position, as for a resource
+		final boolean resourceWide;
+		// newest timestamp sent of each stream, in the order of streamIds
+		final LinkedHashMap<Long, Long> sent = new LinkedHashMap<Long, Long>();
+		volatile boolean closed = false;
+		// events waiting for the writers, and whether a drain is on its way
+		final ArrayDeque<String> queued = new ArrayDeque<String>();
+		boolean draining = false;
+		volatile long writing = 0; // when the write under way started, 0 if none
+		final Runnable drain = new Runnable() {
+			public void run() { drain(); }
+		};
+
+		Connection(AsyncContext async, ServletOutputStream out, boolean resourceWide) {
+			this.async = async;
+			this.out = out;
+			this.resourceWide = resourceWide;
+		}
+
+		// on the request's own thread, so missed points are written directly
+		void start(List<Stream> streams, Map<Long, Long> from) {
+			write("retry: "+RETRY+"\n\n");
+			StreamBus bus = StreamBus.getInstance();
+			synchronized (this) {
+				for (Stream stream: streams) {
+					Hot h = hot(stream.getId());
+					synchronized (h) { h.listeners++; }
+					streamIds.add(stream.getId());
+					try {
+						subscriptions.add(bus.subscribe(stream.getId(), this));
+					} catch (IllegalStateException e) { // moved since doGet looked
+						logger.info(e.getMessage());
+						close();
+						return;
+					}
+				}
+			}
+			// on a resource every stream's position goes in the ids from the first event
+			// on, a new client's starting from the newest point there is
+			Map<Long, Long> start = new LinkedHashMap<Long, Long>();
+			for (Long streamId: streamIds) {
+				Long since = from.get(streamId);
+				if (since!=null) { start.put(streamId, since); }
+				else if (resourceWide) { start.put(streamId, newest(streamId)); }
+			}
+			synchronized (this) { sent.putAll(start); }
+			// resend what was missed, then what arrived meanwhile, per stream
+			Map<Long, Long> replayed = new HashMap<Long, Long>();
+			for (Long streamId: streamIds) {
+				Long since = from.get(streamId);
+				if (since==null) { continue; }
+				List<DataPoint> missed = hot(streamId).since(since);
+				if (missed==null) { missed = storage.findPointsByStreamIdSinceLimit(streamId, since, MAX_REPLAY); }
+				long newest = since;
+				for (DataPoint dp: missed) {
+					write(event(dp));
+					events.mark();
+					newest = Math.max(newest, dp.getTimestamp());
+				}
+				replayed.put(streamId, newest);
+			}
+			List<DataPoint> meanwhile;
+			synchronized (this) {
+				meanwhile = held;
+				held = null;
+			}
+			for (DataPoint dp: meanwhile) {
+				Long newest = replayed.get(dp.getStreamId());
+				if (newest==null || dp.getTimestamp()>newest) { send(dp); }
+			}
+		}
+
+		// the newest point of a stream, 0 when it has none
+		private long newest(long streamId) {
+			List<DataPoint> latest = storage.findPointsByStreamId(streamId, 1);
+			return latest==null || latest.isEmpty() ? 0 : latest.get(0).getTimestamp();
+		}
+
+		public void deliver(DataPoint point) {
+			hot(point.getStreamId()).add(point);
+			synchronized (this) {
+				if (held!=null) { held.add(point); return; }
+			}
+			send(point);
+		}
+
+		public void closed(String reason) {
+			if (!closed) { close(); } // e.g. the subscriber queue overflowed
+		}
+
+		// the id is taken and queued together, so ids never go back
+		void send(DataPoint dp) {
+			synchronized (this) { queue(event(dp)); }
+			events.mark();
+		}
+
+		synchronized String event(DataPoint dp) {
+			Long position = sent.get(dp.getStreamId());
+			if (position==null || dp.getTimestamp()>position) { sent.put(dp.getStreamId(), dp.getTimestamp()); }
+			return "id: "+id(dp)+"\nevent: point\ndata: {\"streamId\":"+dp.getStreamId()+",\"timestamp\":"+dp.getTimestamp()+",\"value\":"+dp.getValue()+"}\n\n";
+		}
+
+		// see the description at the top
+		private String id(DataPoint dp) {
+			if (!resourceWide) { return String.valueOf(dp.getTimestamp()); }
+			StringBuilder id = new StringBuilder(sent.size()*24);
+			for (Map.Entry<Long, Long> position: sent.entrySet()) {
+				if (id.length()>0) { id.append(','); }
+				id.append(position.getKey()).append(':').append(position.getValue());
+			}
+			return id.toString();
+		}
+
+		// hand the event to the writers, never blocks the caller
+		void queue(String text) {
+			boolean overflow = false;
+			boolean schedule = false;
+			synchronized (this) {
+				if (closed) { return; }
+				if (queued.size()>=MAX_QUEUED) {
+					overflow = true;
+				} else {
+					queued.add(text);
+					schedule = !draining;
+					draining = true;
+				}
+			}
+			if (overflow) {
+				dropped.mark();
+				close();
+				return;
+			}
+			if (!schedule) { return; }
+			try {
+				writers.execute(drain);
+			} catch (RejectedExecutionException e) {
+				dropped.mark();
+				close();
+			}
+		}
+
+		// on a writer: write out everything queued, one flush per batch
+		void drain() {
+			while (true) {
+				StringBuilder batch = new StringBuilder();
+				synchronized (this) {
+					if (queued.isEmpty() || closed) {
+						queued.clear();
+						draining = false;
+						return;
+					}
+					while (!queued.isEmpty()) { batch.append(queued.poll()); }
+				}
+				write(batch.toString());
+			}
+		}
+
+		// a write has been blocked by the client for too long
+		boolean stalled(long now) {
+			long started = writing;
+			return started!=0 && now-started > WRITE_TIMEOUT;
+		}
+
+		void write(String text) {
+			if (closed) { return; }
+			try {
+				synchronized (out) {
+					writing = System.currentTimeMillis();
+					out.write(text.getBytes(UTF8));
+					out.flush();
+				}
+			} catch (Exception e) { // gone, or the container has recycled the stream
+				close();
+			} finally {
+				writing = 0;
+			}
+		}
+
+		void close() {
+			synchronized (this) {
+				if (closed) { return; }
+				closed = true;
+			}
+			connections.remove(this);
+			open.dec();
+			for (StreamBus.Subscription subscription: subscriptions) { subscription.close("connection closed"); }
+			for (Long streamId: streamIds) {
+				Hot h = hot(streamId);
+				synchronized (h) {
+					if (--h.listeners<=0) { hot.remove(streamId, h); }
+				}
+			}
+			try {
+				async.complete();
+			} catch (IllegalStateException e) {
+				// already completed by the container
+			}
+		}
+
+		public void onComplete(AsyncEvent event)	{ close(); }
+		public void onTimeout(AsyncEvent event)		{ close(); }
+		public void onError(AsyncEvent event)			{ close(); }
+		public void onStartAsync(AsyncEvent event)	{ }
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Feeds a stream's points from the StreamBus to the Atmosphere
+ * broadcaster of its web socket clients. The bus subscription is made when the
+ * first client subscribes and dropped once the broadcaster has no clients left, so
+ * a slow client only backs up its own bounded queue. In cluster mode attach()
+ * refuses a stream published on another node, and the clients of a stream that
+ * moves away are sent {"error":...} naming the node, see StreamBus.
+ * TODO:
+ * */
+package se.sics.sicsthsense.resources.atmosphere;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.atmosphere.cpr.Broadcaster;
+import org.atmosphere.cpr.BroadcasterFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.sics.sicsthsense.core.*;
+
+public class BroadcasterBridge implements StreamBus.Subscriber {
+	private static final Logger logger = LoggerFactory.getLogger(BroadcasterBridge.class);
+	private static final ConcurrentHashMap<Long, StreamBus.Subscription> bridges = new ConcurrentHashMap<Long, StreamBus.Subscription>();
+	private static StreamBus.Overflow overflow = StreamBus.Overflow.COALESCE;
+
+	private final long streamId;
+	private final Broadcaster broadcaster;
+	private StreamBus.Subscription subscription;
+
+	private BroadcasterBridge(long streamId, Broadcaster broadcaster) {
+		this.streamId = streamId;
+		this.broadcaster = broadcaster;
+	}
+
+	public static void setOverflow(StreamBus.Overflow policy) {
+		overflow = policy;
+	}
+
+	// the broadcaster for a stream's clients, fed from the bus. Throws
+	// IllegalStateException for a stream published on another node
+	public static synchronized Broadcaster attach(long streamId) {
+		String owner = StreamBus.remoteOwner(streamId);
+		if (owner!=null) { throw new IllegalStateException(StreamBus.movedTo(streamId, owner)); }
+		Broadcaster broadcaster = BroadcasterFactory.getDefault().lookup(String.valueOf(streamId), true);
+		if (!bridges.containsKey(streamId)) {
+			StreamBus bus = StreamBus.getInstance();
+			BroadcasterBridge bridge = new BroadcasterBridge(streamId, broadcaster);
+			bridge.subscription = bus.subscribe(streamId, bridge, bus.getQueueSize(), overflow);
+			bridges.put(streamId, bridge.subscription);
+		}
+		return broadcaster;
+	}
+
+	public void deliver(DataPoint point) {
+		if (broadcaster.isDestroyed() || broadcaster.getAtmosphereResources().isEmpty()) {
+			if (subscription!=null) { subscription.close("no clients"); }
+			return;
+		}
+		broadcaster.broadcast(point.toString());
+	}
+
+	public void closed(String reason) {
+		synchronized (BroadcasterBridge.class) {
+			bridges.remove(streamId, subscription);
+		}
+		logger.info("Stopped broadcasting stream "+streamId+": "+reason);
+		if (StreamBus.remoteOwner(streamId)!=null && !broadcaster.isDestroyed()) {
+			broadcaster.broadcast("{\"error\":\""+reason+"\"}"); // its points now go to another node
+		}
+	}
+}
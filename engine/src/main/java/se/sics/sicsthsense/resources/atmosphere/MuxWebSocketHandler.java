@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: One web socket carrying updates for many streams, mounted at /mux.
+ * The client sends JSON control messages:
+ *   {"op":"subscribe", "streams":["12","/sensors/temp"], "key":"..."}
+ *   {"op":"unsubscribe", "streams":["12"]}
+ *   {"op":"rate", "interval":500}      at most one update frame per 500ms
+ * and is answered with {"ok":op,...} or {"error":...}. A subscribe naming a stream
+ * that is missing, not readable or one too many subscribes none of them. Updates
+ * are pushed as a compact array of [streamId, timestamp, value] triples, with only
+ * the latest point of each stream kept between frames. A shared timer decides when a frame is
+ * due and the mux bulkhead's threads write it, one frame per connection at a time,
+ * so a slow client only delays its own frames. A connection whose write has been
+ * blocked for WRITE_TIMEOUT is closed. In cluster mode a stream published on
+ * another node cannot be subscribed here, and a subscription whose stream moves
+ * away ends with an {"error":...} naming the node, see StreamBus.
+ * TODO:
+ * */
+package se.sics.sicsthsense.resources.atmosphere;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.atmosphere.websocket.WebSocket;
+import org.atmosphere.websocket.WebSocketHandlerAdapter;
+import org.atmosphere.websocket.WebSocketProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import se.sics.sicsthsense.EngineMetrics;
+import se.sics.sicsthsense.Utils;
+import se.sics.sicsthsense.core.*;
+import se.sics.sicsthsense.jdbi.*;
+
+public class MuxWebSocketHandler extends WebSocketHandlerAdapter {
+	private static final Logger logger = LoggerFactory.getLogger(MuxWebSocketHandler.class);
+	public static final long DEFAULT_INTERVAL = 250; // ms between frames
+	public static final long MIN_INTERVAL = 50;
+	public static final long MAX_INTERVAL = 60*1000;
+	public static final int MAX_STREAMS = 1000; // per connection
+	public static final long WRITE_TIMEOUT = 30000; // ms a frame write may block
+	private static final int WRITERS = 8;
+
+	private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "mux-flush");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final ConcurrentHashMap<WebSocket, Session> sessions = new ConcurrentHashMap<WebSocket, Session>();
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final StorageDAO storage;
+
+	private final Counter connections = EngineMetrics.counter("mux", "connections");
+	private final Meter frames = EngineMetrics.meter("mux", "frames");
+	private final Meter points = EngineMetrics.meter("mux", "points");
+	private final Meter dropped = EngineMetrics.meter("mux", "dropped");
+	private final Bulkhead writers = Bulkhead.pool("mux", WRITERS, 10000);
+
+	public MuxWebSocketHandler() {
+		this.storage = DAOFactory.getInstance();
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				long now = System.currentTimeMillis();
+				for (Session session: sessions.values()) {
+					if (session.stalled(now)) {
+						logger.info("Multiplexed web socket write blocked for "+WRITE_TIMEOUT+"ms, closing");
+						session.drop();
+					}
+				}
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	public void onOpen(WebSocket webSocket) throws IOException {
+		sessions.put(webSocket, new Session(webSocket));
+		connections.inc();
+	}
+
+	public void onClose(WebSocket webSocket) {
+		Session session = sessions.remove(webSocket);
+		if (session!=null) {
+			session.close();
+			connections.dec();
+		}
+	}
+
+	public void onError(WebSocket webSocket, WebSocketProcessor.WebSocketException t) {
+		logger.warn("Multiplexed web socket error: "+t.getMessage());
+		onClose(webSocket);
+	}
+
+	public void onTextMessage(WebSocket webSocket, String message) throws IOException {
+		Session session = sessions.get(webSocket);
+		if (session==null) { return; }
+		JsonNode request;
+		try {
+			request = mapper.readTree(message);
+		} catch (IOException e) {
+			session.send(error("Not JSON: "+e.getMessage()));
+			return;
+		}
+		if (request==null || request.get("op")==null) { session.send(error("No op given")); return; }
+		String op = request.get("op").asText();
+		if ("subscribe".equals(op)) {
+			String key = request.get("key")==null ? "" : request.get("key").asText();
+			session.send(subscribe(session, request.get("streams"), key));
+		} else if ("unsubscribe".equals(op)) {
+			session.send(unsubscribe(session, request.get("streams")));
+		} else if ("rate".equals(op)) {
+			long interval = request.get("interval")==null ? DEFAULT_INTERVAL : request.get("interval").asLong();
+			session.interval = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+			ObjectNode ok = mapper.createObjectNode();
+			ok.put("ok", "rate");
+			ok.put("interval", session.interval);
+			session.send(ok.toString());
+		} else {
+			session.send(error("Unknown op "+op));
+		}
+	}
+
+	// every name is checked before any is subscribed, so an error subscribes none
+	private String subscribe(Session session, JsonNode names, String key) {
+		if (names==null || !names.isArray()) { return error("streams should be an array"); }
+		Map<String, Long> wanted = new LinkedHashMap<String, Long>(); // as asked for -> stream id
+		Set<Long> added = new HashSet<Long>();
+		for (JsonNode node: names) {
+			String name = node.asText().trim();
+			String streamName = name.startsWith("/") ? name.substring(1) : name; // lookup adds the leading '/'
+			Stream stream = Utils.findStreamByIdName(storage, streamName);
+			if (stream==null) { return error("Stream "+name+" does not exist"); }
+			if (!stream.isReadable(storage, key)) { return error("Not authorised to read stream "+name); }
+			String owner = StreamBus.remoteOwner(stream.getId());
+			if (owner!=null) { return error(StreamBus.movedTo(stream.getId(), owner)); }
+			if (!session.subscriptions.containsKey(stream.getId())) { added.add(stream.getId()); }
+			wanted.put(name, stream.getId());
+		}
+		if (session.subscriptions.size()+added.size()>MAX_STREAMS) { return error("At most "+MAX_STREAMS+" streams per connection"); }
+		ObjectNode ok = mapper.createObjectNode();
+		ok.put("ok", "subscribe");
+		ObjectNode ids = ok.putObject("streams");
+		for (Map.Entry<String, Long> entry: wanted.entrySet()) {
+			if (added.contains(entry.getValue()) && !session.subscriptions.containsKey(entry.getValue())) {
+				try {
+					session.subscribe(entry.getValue());
+				} catch (IllegalStateException e) { // moved to another node meanwhile
+					ObjectNode error = mapper.createObjectNode();
+					error.put("error", e.getMessage());
+					error.set("streams", ids); // those that were subscribed
+					return error.toString();
+				}
+			}
+			ids.put(entry.getKey(), entry.getValue());
+		}
+		return ok.toString();
+	}
+
+	private String unsubscribe(Session session, JsonNode names) {
+		if (names==null || !names.isArray()) { return error("streams should be an array"); }
+		for (JsonNode node: names) {
+			String name = node.asText().trim();
+			String streamName = name.startsWith("/") ? name.substring(1) : name;
+			Stream stream = Utils.findStreamByIdName(storage, streamName);
+			if (stream!=null) { session.unsubscribe(stream.getId()); }
+		}
+		ObjectNode ok = mapper.createObjectNode();
+		ok.put("ok", "unsubscribe");
+		return ok.toString();
+	}
+
+	private String error(String message) {
+		ObjectNode error = mapper.createObjectNode();
+		error.put("error", message);
+		return error.toString();
+	}
+
+	// one connection: its bus subscriptions and the latest unsent point per stream
+	private class Session implements StreamBus.Subscriber, Runnable {
+		final WebSocket webSocket;
+		final ConcurrentHashMap<Long, StreamBus.Subscription> subscriptions = new ConcurrentHashMap<Long, StreamBus.Subscription>();
+		final LinkedHashMap<Long, DataPoint> pending = new LinkedHashMap<Long, DataPoint>();
+		volatile long interval = DEFAULT_INTERVAL;
+		long lastFlush = 0;
+		boolean scheduled = false;
+		volatile boolean closed = false;
+		volatile long writing = 0; // when the write under way started, 0 if none
+		// writes can be slow, keep them from holding up deliveries
+		private final Object writeLock = new Object();
+		// on the timer: hand the frame to a writer
+		private final Runnable due = new Runnable() {
+			public void run() {
+				try {
+					writers.execute(Session.this);
+				} catch (RejectedExecutionException e) {
+					drop();
+				}
+			}
+		};
+
+		Session(WebSocket webSocket) {
+			this.webSocket = webSocket;
+		}
+
+		void subscribe(long streamId) {
+			StreamBus bus = StreamBus.getInstance();
+			subscriptions.put(streamId, bus.subscribe(streamId, this, bus.getQueueSize(), StreamBus.Overflow.COALESCE));
+		}
+
+		void unsubscribe(long streamId) {
+			StreamBus.Subscription subscription = subscriptions.remove(streamId);
+			if (subscription!=null) { subscription.close("unsubscribed"); }
+			synchronized (this) { pending.remove(streamId); }
+		}
+
+		// from the bus: keep the newest point and make sure a frame is coming
+		public void deliver(DataPoint point) {
+			long delay;
+			synchronized (this) {
+				if (closed) { return; }
+				DataPoint old = pending.get(point.getStreamId());
+				if (old==null || old.getTimestamp()<=point.getTimestamp()) { pending.put(point.getStreamId(), point); }
+				if (scheduled) { return; }
+				scheduled = true;
+				delay = Math.max(0, lastFlush+interval-System.currentTimeMillis());
+			}
+			flusher.schedule(due, delay, TimeUnit.MILLISECONDS);
+		}
+
+		public void closed(String reason) {
+			if (closed || "unsubscribed".equals(reason)) { return; }
+			logger.info("Multiplexed subscription ended: "+reason);
+			for (Map.Entry<Long, StreamBus.Subscription> entry: subscriptions.entrySet()) {
+				if (!entry.getValue().isClosed()) { continue; }
+				subscriptions.remove(entry.getKey(), entry.getValue());
+				synchronized (this) { pending.remove(entry.getKey()); }
+			}
+			// tell the client, e.g. that the stream moved to another node
+			final String message = error(reason);
+			try {
+				writers.execute(new Runnable() {
+					public void run() { send(message); }
+				});
+			} catch (RejectedExecutionException e) {
+				drop();
+			}
+		}
+
+		// on a writer: send everything pending as one frame of [id, timestamp, value]
+		// triples. The next frame is only scheduled once this one is written
+		public void run() {
+			List<DataPoint> batch;
+			synchronized (this) {
+				lastFlush = System.currentTimeMillis();
+				if (closed || pending.isEmpty()) { scheduled = false; return; }
+				batch = new ArrayList<DataPoint>(pending.values());
+				pending.clear();
+			}
+			StringBuilder frame = new StringBuilder(batch.size()*32);
+			frame.append('[');
+			for (int c=0; c<batch.size(); c++) {
+				DataPoint dp = batch.get(c);
+				if (c>0) { frame.append(','); }
+				frame.append('[').append(dp.getStreamId()).append(',').append(dp.getTimestamp()).append(',');
+				double value = dp.getValue();
+				if (Double.isNaN(value) || Double.isInfinite(value)) { frame.append("null"); }
+				else { frame.append(value); }
+				frame.append(']');
+			}
+			frame.append(']');
+			send(frame.toString());
+			frames.mark();
+			points.mark(batch.size());
+			long delay;
+			synchronized (this) {
+				if (closed || pending.isEmpty()) { scheduled = false; return; }
+				delay = Math.max(0, lastFlush+interval-System.currentTimeMillis());
+			}
+			flusher.schedule(due, delay, TimeUnit.MILLISECONDS);
+		}
+
+		void send(String message) {
+			synchronized (writeLock) {
+				if (closed) { return; }
+				writing = System.currentTimeMillis();
+				try {
+					webSocket.write(message);
+					return;
+				} catch (IOException e) {
+					logger.info("Multiplexed web socket write failed, closing: "+e.getMessage());
+				} catch (RuntimeException e) { // the container closed it under us
+					logger.info("Multiplexed web socket write failed, closing: "+e);
+				} finally {
+					writing = 0;
+				}
+			}
+			onClose(webSocket);
+		}
+
+		// a write has been blocked by the client for too long
+		boolean stalled(long now) {
+			long started = writing;
+			return started!=0 && now-started > WRITE_TIMEOUT;
+		}
+
+		// give up on a client that cannot keep up
+		void drop() {
+			dropped.mark();
+			onClose(webSocket);
+			try {
+				webSocket.close();
+			} catch (Exception e) {
+				// already gone
+			}
+		}
+
+		void close() {
+			synchronized (this) {
+				closed = true;
+				pending.clear();
+			}
+			for (StreamBus.Subscription subscription: subscriptions.values()) { subscription.close("connection closed"); }
+			subscriptions.clear();
+		}
+	}
+}
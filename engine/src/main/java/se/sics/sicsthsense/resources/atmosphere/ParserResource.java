@@ -151,7 +151,7 @@ public class ParserResource {
 	// add a resource
 	// static to allow external ParseData to insertParser() as well
 	public static long insertParser(StorageDAO storage, Parser parser) {
-		storage.insertParser(
+		return storage.insertParser(
 			parser.getResource_id(),
 			parser.getStream_id(),
 			parser.getInput_parser(),
@@ -160,9 +160,7 @@ public class ParserResource {
 			parser.getData_group(),
 			parser.getTime_group(),
 			1
-		);
-		// XXX bad behaviour! Parsers are not unique to resourceid&streamid
-		return storage.findParserId(parser.getResource_id(), parser.getStream_id()); // return the new parser ID
+		); // the generated parser ID
 	}
 
 	// update a resource
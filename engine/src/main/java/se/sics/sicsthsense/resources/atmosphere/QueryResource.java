@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015, Swedish Institute of Computer Science
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *	   * Redistributions of source code must retain the above copyright
+ *		 notice, this list of conditions and the following disclaimer.
+ *	   * Redistributions in binary form must reproduce the above copyright
+ *		 notice, this list of conditions and the following disclaimer in the
+ *		 documentation and/or other materials provided with the distribution.
+ *	   * Neither the name of The Swedish Institute of Computer Science nor the
+ *		 names of its contributors may be used to endorse or promote products
+ *		 derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE SWEDISH INSTITUTE OF COMPUTER SCIENCE BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. */
+
+/* Description: Jersey Resource for reading many Streams of a User in one request,
+ * optionally aligned onto a common time grid.
+ * TODO:
+ * */
+package se.sics.sicsthsense.resources.atmosphere;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.annotation.Timed;
+import io.dropwizard.jersey.params.IntParam;
+import io.dropwizard.jersey.params.LongParam;
+
+import se.sics.sicsthsense.Utils;
+import se.sics.sicsthsense.core.*;
+import se.sics.sicsthsense.jdbi.*;
+import se.sics.sicsthsense.model.*;
+
+@Path("/{userId}/query")
+@Produces(MediaType.APPLICATION_JSON)
+public class QueryResource {
+	// upper bound on streams per request, each costs a fetch
+	public static final int MAX_STREAMS = 500;
+	private final StorageDAO storage;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final Logger logger = LoggerFactory.getLogger(QueryResource.class);
+
+	public QueryResource() {
+		this.storage = DAOFactory.getInstance();
+	}
+
+	// streams is a comma separated list of stream IDs or paths
+	@GET
+	@Timed
+	public Response getQuery(@PathParam("userId") long userId, @QueryParam("streams") String streams, @QueryParam("limit") @DefaultValue("-1") IntParam limit, @QueryParam("from") @DefaultValue("-1") LongParam from, @QueryParam("until") @DefaultValue("-1") LongParam until, @QueryParam("fill") @DefaultValue("none") String fill, @QueryParam("interval") @DefaultValue("0") LongParam interval, @QueryParam("key") String key) {
+		if (streams==null || "".equals(streams)) {
+			return Utils.resp(Status.BAD_REQUEST, new JSONMessage("Error: no streams given"), logger);
+		}
+		StreamQuery query = new StreamQuery();
+		query.setStreams(new ArrayList<String>(Arrays.asList(streams.split(","))));
+		query.setLimit(limit.get());
+		query.setFrom(from.get());
+		query.setUntil(until.get());
+		query.setFill(fill);
+		query.setInterval(interval.get());
+		return query(userId, query, key);
+	}
+
+	@POST
+	@Consumes({MediaType.APPLICATION_JSON})
+	@Timed
+	public Response postQuery(@PathParam("userId") long userId, StreamQuery query, @QueryParam("key") String key) {
+		if (query==null) {
+			return Utils.resp(Status.BAD_REQUEST, new JSONMessage("Error: no query given"), logger);
+		}
+		return query(userId, query, key);
+	}
+
+	Response query(long userId, StreamQuery query, String key) {
+		User user = storage.findUserById(userId);
+		Utils.checkHierarchy(user);
+		if (query.getStreams()==null || query.getStreams().size()==0) {
+			return Utils.resp(Status.BAD_REQUEST, new JSONMessage("Error: no streams given"), logger);
+		}
+		if (query.getStreams().size() > MAX_STREAMS) {
+			return Utils.resp(Status.BAD_REQUEST, new JSONMessage("Error: at most "+MAX_STREAMS+" streams per query"), logger);
+		}
+		String fill = query.getFill();
+		if (fill!=null && !StreamQuery.FILL_NONE.equals(fill) && !StreamQuery.FILL_LAST.equals(fill) && !StreamQuery.FILL_LINEAR.equals(fill)) {
+			return Utils.resp(Status.BAD_REQUEST, new JSONMessage("Error: unknown fill '"+fill+"', use none, last or linear"), logger);
+		}
+		boolean userKey = user.isAuthorised(key);
+
+		List<Stream> streams = new ArrayList<Stream>(query.getStreams().size());
+		List<String> names   = new ArrayList<String>(query.getStreams().size());
+		for (String name: query.getStreams()) {
+			if (name==null) {
+				return Utils.resp(Status.BAD_REQUEST, new JSONMessage("Error: streams can not contain null"), logger);
+			}
+			String streamName = name.trim();
+			if (streamName.startsWith("/")) { streamName = streamName.substring(1); } // lookup adds the leading '/'
+			Stream stream = Utils.findStreamByIdName(storage, streamName);
+			if (stream==null) {
+				return Utils.resp(Status.NOT_FOUND, new JSONMessage("Error: stream "+name+" does not exist"), logger);
+			}
+			if (!isReadable(user, userKey, stream, key)) {
+				return Utils.resp(Status.FORBIDDEN, new JSONMessage("Error: Not authorised to read stream "+name), logger);
+			}
+			streams.add(stream);
+			names.add(name);
+		}
+
+		try {
+			QueryResult result = new MultiStreamQuery(storage).run(streams, names, query);
+			String json = mapper.writeValueAsString(result);
+			read(streams, result, key, json.length());
+			return Utils.resp(Status.OK, json, null);
+		} catch (IllegalArgumentException e) {
+			return Utils.resp(Status.BAD_REQUEST, new JSONMessage("Error: "+e.getMessage()), logger);
+		} catch (Exception e) {
+			logger.error("Multi-stream query failed: "+e);
+			return Utils.resp(Status.INTERNAL_SERVER_ERROR, new JSONMessage("Error: query failed"), logger);
+		}
+	}
+
+	// count the read for each stream, sharing the response's bytes out by points
+	private void read(List<Stream> streams, QueryResult result, String key, long bytes) {
+		long total = 0;
+		for (QueryResult.Column column: result.getStreams()) {
+			if (column.getValues()!=null) { total += column.getValues().length; }
+		}
+		for (int i=0; i<streams.size() && i<result.getStreams().size(); i++) {
+			Double[] values = result.getStreams().get(i).getValues();
+			long points = values==null ? 0 : values.length;
+			HeavyHitters.read(streams.get(i), key, points, total==0 ? bytes/streams.size() : bytes*points/total);
+		}
+	}
+
+	// public streams, or the user's own streams with any of the user/resource/stream keys
+	boolean isReadable(User user, boolean userKey, Stream stream, String key) {
+		if (stream.getPublic_access()) { return true; }
+		if (stream.getOwner_id() != user.getId()) { return false; }
+		if (userKey || stream.isAuthorised(key)) { return true; }
+		Resource resource = storage.findResourceById(stream.getResource_id());
+		return resource!=null && resource.isAuthorised(key);
+	}
+}
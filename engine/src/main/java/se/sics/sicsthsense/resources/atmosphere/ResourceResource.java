@@ -56,6 +56,7 @@ import io.dropwizard.auth.Auth;
 import org.atmosphere.annotation.Broadcast;
 import org.atmosphere.annotation.Suspend;
 
+import se.sics.sicsthsense.IngestMetrics;
 import se.sics.sicsthsense.Utils;
 import se.sics.sicsthsense.core.*;
 import se.sics.sicsthsense.jdbi.*;
@@ -236,7 +237,7 @@ public class ResourceResource {
 			}
 		}
 		//run it through the parsers and update resource log
-		Utils.applyParsers(storage, resource, data, timestamp);
+		Utils.applyParsers(storage, resource, data, timestamp, IngestMetrics.Source.HTTP, key);
 
 		// update Resource last_posted
 		storage.postedResource(resource.getId(),timestamp);
@@ -34,6 +34,7 @@ import org.atmosphere.jersey.Broadcastable;
 import org.atmosphere.jersey.SuspendResponse;
 
 import java.util.List;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.ws.rs.GET;
@@ -43,6 +44,7 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.core.MediaType;
@@ -62,8 +64,11 @@ import io.dropwizard.jersey.params.LongParam;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import se.sics.sicsthsense.IngestMetrics;
 import se.sics.sicsthsense.Utils;
 import se.sics.sicsthsense.core.*;
+import se.sics.sicsthsense.core.functions.FunctionRegistry;
+import se.sics.sicsthsense.model.Backfill;
 import se.sics.sicsthsense.jdbi.*;
 import se.sics.sicsthsense.auth.annotation.RestrictedTo;
 import se.sics.sicsthsense.model.security.Authority;
@@ -77,7 +82,6 @@ public class StreamResource {
 	private ObjectMapper jsonmapper;
 //	private CsvMapper csvmapper;
 //	private CsvSchema schema;
-  private @PathParam("resourceId") Broadcaster topic;
 
 	public StreamResource() {
 		this.storage = DAOFactory.getInstance();
@@ -154,7 +158,7 @@ public class StreamResource {
 		return streamId;
 	}*/
 	@POST
-	public Response postStream(@PathParam("userId") long userId, @PathParam("resourceId") String resourceName, Stream stream, @QueryParam("key") String key) throws Exception {
+	public Response postStream(@PathParam("userId") long userId, @PathParam("resourceId") String resourceName, Stream stream, @QueryParam("key") String key, @QueryParam("backfill") @DefaultValue("false") boolean backfill) throws Exception {
 		logger.info("Creating stream!:"+stream);
 		User user         = storage.findUserById(userId);
 		Resource resource = Utils.findResourceByIdName(storage,resourceName);
@@ -164,12 +168,21 @@ public class StreamResource {
 		}
 		long streamId=-1;
 
+		// reject functions that will never evaluate, before anything is stored
+		if (stream.getFunction()!=null && !"".equals(stream.getFunction())) {
+			try {
+				FunctionRegistry.validate(storage, stream.getFunction(), stream.antecedents==null ? 0 : stream.antecedents.size());
+			} catch (IllegalArgumentException e) {
+				return Utils.resp(Status.BAD_REQUEST, new JSONMessage("Error: Bad function: "+e.getMessage()), logger);
+			}
+		}
+
 		// initialise the stream correctly
 		stream.setResource_id(resource.getId());
 		stream.setOwner_id(userId);
 		streamId = Utils.insertStream(storage,stream);
 
-		//create antecedant streams correctly!
+		//create antecedant streams correctly! In the order given, which binds expression variables
 		if (stream.antecedents !=null) {
 			logger.info("Antecedant streams: ");
 			for(Long antId: stream.antecedents) {
@@ -188,9 +201,54 @@ public class StreamResource {
 		}
 
         stream = storage.findStreamById(streamId); // need fresh DB version
+		// compute the new stream over its antecedents' history too
+		if (backfill && stream.getFunction()!=null && !"".equals(stream.getFunction())) {
+			try {
+				Backfill.start(storage, stream, -1, -1, false);
+			} catch (IllegalArgumentException e) {
+				logger.warn("Not backfilling stream "+streamId+": "+e.getMessage());
+			}
+		}
 		return Utils.resp(Status.OK, stream, logger);
 	}
 
+	// recompute a derived stream over [from, until) from its antecedents' history
+	@POST
+	@Path("/{streamId}/backfill")
+	public Response postBackfill(@PathParam("userId") long userId, @PathParam("resourceId") String resourceName, @PathParam("streamId") String streamName,
+			@QueryParam("from") @DefaultValue("-1") long from, @QueryParam("until") @DefaultValue("-1") long until,
+			@QueryParam("clear") @DefaultValue("false") boolean clear, @QueryParam("key") String key) {
+		User user = storage.findUserById(userId);
+		Resource resource = Utils.findResourceByIdName(storage,resourceName);
+		Stream stream     = Utils.findStreamByIdName(storage,streamName);
+		Utils.checkHierarchy(storage,user,resource,stream);
+		if (!user.isAuthorised(key) && !resource.isAuthorised(key)) {
+			return Utils.resp(Status.FORBIDDEN, new JSONMessage("Error: Not authorised to backfill stream"), logger);
+		}
+		try {
+			return Utils.resp(Status.ACCEPTED, Backfill.start(storage, stream, from, until, clear), logger);
+		} catch (IllegalArgumentException e) {
+			return Utils.resp(Status.BAD_REQUEST, new JSONMessage("Error: "+e.getMessage()), logger);
+		}
+	}
+
+	@GET
+	@Path("/{streamId}/backfill")
+	public Response getBackfill(@PathParam("userId") long userId, @PathParam("resourceId") String resourceName, @PathParam("streamId") String streamName, @QueryParam("key") String key) {
+		User user = storage.findUserById(userId);
+		Resource resource = Utils.findResourceByIdName(storage,resourceName);
+		Stream stream     = Utils.findStreamByIdName(storage,streamName);
+		Utils.checkHierarchy(storage,user,resource,stream);
+		if (!user.isAuthorised(key) && !resource.isAuthorised(key) && !stream.isAuthorised(key)) {
+			return Utils.resp(Status.FORBIDDEN, new JSONMessage("Error: Not authorised to get stream"), logger);
+		}
+		List<Backfill.Job> mine = new ArrayList<Backfill.Job>();
+		for (Backfill.Job job: Backfill.getJobs()) {
+			if (job.getStreamId()==stream.getId()) { mine.add(job); }
+		}
+		return Utils.resp(Status.OK, mine, logger);
+	}
+
 	void authoriseStreamKey(String key1, String key2) {
 	}
 
@@ -228,35 +286,16 @@ public class StreamResource {
 			}
 		}
 		//logger.info("Getting stream: "+streamId);
-		boolean limitSet=true;
-		int limitValue = limit.get();
-		if (limit.get()==-1) {
-			limitSet=false;
-			limitValue=50; // give default value
-		}
-
-
-		if (from.get() != -1) { // from is set
-			if (until.get() != -1) { // until is set
-				rv = storage.findPointsByStreamIdSince(stream.getId(), from.get(), until.get());
-			} else { // until is not set
-				if (limitSet) { // limit was set
-					rv = storage.findPointsByStreamIdSinceLimit(stream.getId(), from.get(), limitValue);
-				} else { // limit was not set, only from
-					rv = storage.findPointsByStreamIdSince(stream.getId(), from.get());
-				}
-			}
-		} else { // just get the most recent LIMIT points
-			rv = storage.findPointsByStreamId(stream.getId(), limitValue);
-			Collections.reverse(rv);
-		}
+		rv = Utils.findPoints(storage, stream.getId(), limit.get(), from.get(), until.get());
 
 		try {
 			if ("csv".equals(format)) {
 				//return Utils.resp(Status.OK, csvmapper.writer(schema).writeValueAsString(rv), null);
 				return Utils.resp(Status.BAD_REQUEST, new JSONMessage("Error: Can't parse data!"), logger);
 			} else { // default dump to JSON
-				return Utils.resp(Status.OK, jsonmapper.writeValueAsString(rv), null);
+				String json = jsonmapper.writeValueAsString(rv);
+				HeavyHitters.read(stream, key, rv.size(), json.length());
+				return Utils.resp(Status.OK, json, null);
 			}
 		} catch (Exception e) {
 				return Utils.resp(Status.BAD_REQUEST, new JSONMessage("Error: Can't parse data!"), logger);
@@ -264,11 +303,10 @@ public class StreamResource {
 	}
 
 	@POST
-	@Broadcast
 	@Path("/{streamId}/{data: d[a-z]*}")
 	@Consumes({MediaType.APPLICATION_JSON})
 	@Timed
-	public Response postData(@PathParam("userId") long userId, @PathParam("resourceId") String resourceName, @PathParam("streamId") String streamName, DataPoint datapoint, @QueryParam("key") String key) throws Exception {
+	public Response postData(@PathParam("userId") long userId, @PathParam("resourceId") String resourceName, @PathParam("streamId") String streamName, DataPoint datapoint, @QueryParam("key") String key, @HeaderParam("Content-Length") @DefaultValue("0") long length) throws Exception {
 		User user         = storage.findUserById(userId);
 		Resource resource = Utils.findResourceByIdName(storage,resourceName);
 		Stream stream     = Utils.findStreamByIdName(storage,streamName);
@@ -278,8 +316,9 @@ public class StreamResource {
 		}
 		logger.info("Inserting data into stream: "+streamName);
 		datapoint.setStreamId(stream.getId()); // keep consistency
-		Utils.insertDataPoint(storage, datapoint); // insert first to fail early
-		topic.broadcast(datapoint.toString());
+		Utils.insertDataPoint(storage, datapoint); // insert first to fail early, publishes to live subscribers
+		IngestMetrics.getInstance().points(IngestMetrics.Source.HTTP).mark();
+		HeavyHitters.wrote(stream, key, 1, length);
 
 		return Utils.resp(Status.OK, new JSONMessage("Data successfully posted"), null);
 	}
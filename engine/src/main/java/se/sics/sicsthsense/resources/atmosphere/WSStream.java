@@ -23,6 +23,8 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
 
 import org.atmosphere.annotation.Broadcast;
 import org.atmosphere.cpr.Broadcaster;
@@ -31,6 +33,7 @@ import org.atmosphere.jersey.SuspendResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.sics.sicsthsense.IngestMetrics;
 import se.sics.sicsthsense.Utils;
 import se.sics.sicsthsense.core.*;
 import se.sics.sicsthsense.jdbi.*;
@@ -55,20 +58,30 @@ public class WSStream {
 	}
 
     @GET
-    public SuspendResponse<String> subscribe() {
+    public SuspendResponse<String> subscribe(@PathParam("userId") long userId, @PathParam("resourceId") String resourceName) {
 		logger.info("Just received subscription");
+		User user = storage.findUserById(userId);
+		Resource resource = Utils.findResourceByIdName(storage, resourceName);
+		Stream stream     = Utils.findStreamByIdName(storage, topic.getID());
+		Utils.checkHierarchy(storage,user,resource,stream);
+		// points reach the clients from the StreamBus, whoever posted them
+		Broadcaster broadcaster;
+		try {
+			broadcaster = BroadcasterBridge.attach(stream.getId());
+		} catch (IllegalStateException e) { // published on another cluster node
+			throw new WebApplicationException(Response.status(Response.Status.CONFLICT).entity(e.getMessage()).build());
+		}
       return new SuspendResponse.SuspendResponseBuilder<String>()
-        .broadcaster(topic)
+        .broadcaster(broadcaster)
         .outputComments(true)
         .addListener(new EventsLogger())
         .build();
     }
 
     @POST
-    @Broadcast
     @Produces("text/html;charset=ISO-8859-1")
     //public Broadcastable publish(@FormParam("message") String data) {
-    public Broadcastable publish(@PathParam("userId") long userId, @PathParam("resourceId") String resourceName, @QueryParam("key") String key, @FormParam("message") String data) throws Exception {
+    public String publish(@PathParam("userId") long userId, @PathParam("resourceId") String resourceName, @QueryParam("key") String key, @FormParam("message") String data) throws Exception {
 			User user = storage.findUserById(userId);
 			Resource resource = Utils.findResourceByIdName(storage, resourceName);
 			Stream stream     = Utils.findStreamByIdName(storage, topic.getID());
@@ -78,11 +91,11 @@ public class WSStream {
 			DataPoint datapoint = new DataPoint(data);
 			//logger.info("Publish: "+datapoint.toString());
 			datapoint.setStreamId(stream.getId()); // keep consistency
-			Utils.insertDataPoint(storage,datapoint); // insert first to fail early
-			topic.broadcast(datapoint.toString());
+			Utils.insertDataPoint(storage,datapoint); // insert first to fail early, publishes to subscribers and triggers
+			IngestMetrics.getInstance().points(IngestMetrics.Source.WS).mark();
+			HeavyHitters.wrote(stream, key, 1, data.length());
 			stream.notifyDependents(storage); // notify all streams that depend on this
-			stream.testTriggers(datapoint); // see if any of the actions are triggered
 
-      return new Broadcastable(datapoint.toJson(), "", topic);
+      return datapoint.toJson();
     }
 }
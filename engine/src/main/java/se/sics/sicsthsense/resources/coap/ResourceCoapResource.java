@@ -29,6 +29,8 @@
 package se.sics.sicsthsense.resources.coap;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response.Status;
@@ -77,6 +79,38 @@ public class ResourceCoapResource extends CoapResource{
         this.mapper = new ObjectMapper();
     }
     
+    // Rate limits and admission control, see RateLimiter. Answers 5.03 Service
+    // Unavailable with a Max-Age of the seconds to wait, the 4.29 of RFC 8516 is
+    // unknown to this Californium, and returns false when turned away.
+    public static boolean admitted(CoapExchange exchange, Map<String, String> parameters, RateLimiter.Priority priority){
+        String client = exchange.getSourceAddress().getHostAddress();
+        RateLimiter.Rejection rejection = RateLimiter.admit(parameters.get("user"), parameters.get("resource"), parameters.get("key"), client, priority);
+        if(rejection == null) return true;
+        exchange.setMaxAge(rejection.getRetryAfterSeconds());
+        exchange.respond(ResponseCode.SERVICE_UNAVAILABLE, "Error: "+rejection.getReason());
+        return false;
+    }
+    
+    // Handle a request within the api bulkhead, see Bulkheads. Answers 5.03 Service
+    // Unavailable when it, or the storage bulkhead behind it, is full.
+    public static void inBulkhead(CoapExchange exchange, final Runnable handler){
+        try {
+            Bulkheads.call(Bulkheads.API, new Callable<Void>() {
+                public Void call() {
+                    handler.run();
+                    return null;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            exchange.setMaxAge(1);
+            exchange.respond(ResponseCode.SERVICE_UNAVAILABLE, "Error: "+e.getMessage());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
     public static Map<String, String> getThreeResourceParameters(CoapExchange exchange){
         List<String> queryList = exchange.getRequestOptions().getUriQuery();
         Map<String, String> parameters = new LinkedHashMap<String, String>();
@@ -36,6 +36,7 @@ import java.util.Map;
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
+import se.sics.sicsthsense.IngestMetrics;
 import se.sics.sicsthsense.Utils;
 import se.sics.sicsthsense.core.*;
 import se.sics.sicsthsense.jdbi.*;
@@ -68,10 +69,23 @@ public class ResourceDataCoapResource extends CoapResource{
     }
     
     @Override
-    public void handlePOST(CoapExchange exchange) {
+    public void handlePOST(final CoapExchange exchange) {
+        Trace trace = Trace.begin("CoAP POST "+getURI());
+        try {
+            ResourceCoapResource.inBulkhead(exchange, new Runnable() {
+                public void run() { post(exchange); }
+            });
+        } finally {
+            Trace.end(trace);
+        }
+    }
+
+    private void post(CoapExchange exchange) {
         
         Map<String, String> p = ResourceCoapResource.getThreeResourceParameters(exchange);
         if(p == null) return;
+        byte[] payload = exchange.getRequestPayload();
+        if(!ResourceCoapResource.admitted(exchange, p, RateLimiter.ofWrite(payload==null ? 0 : payload.length))) return;
         long userId = Long.parseLong(p.get("user"));
         String resourceName = p.get("resource");
         String key = p.get("key");
@@ -99,7 +113,7 @@ public class ResourceDataCoapResource extends CoapResource{
                 }
         }
         //run it through the parsers and update resource log
-        Utils.applyParsers(storage, resource, data, timestamp);
+        Utils.applyParsers(storage, resource, data, timestamp, IngestMetrics.Source.COAP, key);
 
         // update Resource last_posted
         storage.postedResource(resource.getId(),timestamp);
@@ -43,6 +43,7 @@ import org.atmosphere.cpr.Broadcaster;
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
+import se.sics.sicsthsense.IngestMetrics;
 import se.sics.sicsthsense.Utils;
 import se.sics.sicsthsense.core.*;
 import se.sics.sicsthsense.jdbi.*;
@@ -90,9 +91,16 @@ public class StreamDataCoapResource extends CoapResource{
     }
     
     @Override
-    public void handleGET(CoapExchange exchange) {
+    public void handleGET(final CoapExchange exchange) {
+        ResourceCoapResource.inBulkhead(exchange, new Runnable() {
+            public void run() { get(exchange); }
+        });
+    }
+
+    private void get(CoapExchange exchange) {
         Map<String, String> parameters = StreamCoapResource.getFourStreamParameters(exchange, false);
         if(parameters == null) return;
+        if(!ResourceCoapResource.admitted(exchange, parameters, RateLimiter.Priority.LOW)) return;
         long userId = Long.parseLong(parameters.get("user"));
         String resourceName = parameters.get("resource");
         String streamName = parameters.get("stream");
@@ -116,34 +124,16 @@ public class StreamDataCoapResource extends CoapResource{
             }
         }
         //logger.info("Getting stream: "+streamId);
-        boolean limitSet=true;
-        int limitValue = limit;
-        if (limit == -1) {
-            limitSet=false;
-            limitValue=50; // give default value
-        }
-
-        if (from != -1) { // from is set
-            if (until != -1) { // until is set
-                rv = storage.findPointsByStreamIdSince(stream.getId(), from, until);
-            } else { // until is not set
-                if (limitSet) { // limit was set
-                    rv = storage.findPointsByStreamIdSinceLimit(stream.getId(), from, limitValue);
-                } else { // limit was not set, only from
-                    rv = storage.findPointsByStreamIdSince(stream.getId(), from);
-                }
-            }
-        } else { // just get the most recent LIMIT points
-            rv = storage.findPointsByStreamId(stream.getId(), limitValue);
-            Collections.reverse(rv);
-        }
+        rv = Utils.findPoints(storage, stream.getId(), limit, from, until);
 
         try {
             if ("csv".equals(format)) {
                 //return Utils.resp(Status.OK, csvmapper.writer(schema).writeValueAsString(rv), null);
                 exchange.respond(ResponseCode.BAD_REQUEST, "Error: Can't parse data!");
             } else { // default dump to JSON
-                exchange.respond(ResponseCode.CONTENT, mapper.writeValueAsString(rv), MediaTypeRegistry.APPLICATION_JSON);
+                String json = mapper.writeValueAsString(rv);
+                HeavyHitters.read(stream, key, rv.size(), json.length());
+                exchange.respond(ResponseCode.CONTENT, json, MediaTypeRegistry.APPLICATION_JSON);
             }
         } catch (Exception e) {
             exchange.respond(ResponseCode.BAD_REQUEST, "Error: Can't parse data!");
@@ -151,9 +141,21 @@ public class StreamDataCoapResource extends CoapResource{
     }
     
     @Override
-    public void handlePOST(CoapExchange exchange) {
+    public void handlePOST(final CoapExchange exchange) {
+        Trace trace = Trace.begin("CoAP POST "+getURI());
+        try {
+            ResourceCoapResource.inBulkhead(exchange, new Runnable() {
+                public void run() { post(exchange); }
+            });
+        } finally {
+            Trace.end(trace);
+        }
+    }
+
+    private void post(CoapExchange exchange) {
         Map<String, String> parameters = StreamCoapResource.getFourStreamParameters(exchange, true);
         if(parameters == null) return;
+        if(!ResourceCoapResource.admitted(exchange, parameters, RateLimiter.Priority.NORMAL)) return;
         long userId = Long.parseLong(parameters.get("user"));
         String resourceName = parameters.get("resource");
         String streamName = parameters.get("stream");
@@ -180,6 +182,8 @@ public class StreamDataCoapResource extends CoapResource{
         datapoint.setStreamId(stream.getId()); // keep consistency
         try {
             Utils.insertDataPoint(storage, datapoint); // insert first to fail early
+            IngestMetrics.getInstance().points(IngestMetrics.Source.COAP).mark();
+            HeavyHitters.wrote(stream, key, 1, data.length());
         } catch (Exception ex) {
             java.util.logging.Logger.getLogger(StreamDataCoapResource.class.getName()).log(Level.SEVERE, null, ex);
             exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR);